@@ -27,13 +27,17 @@
 package com.emc.acdp;
 
 public abstract class AcdpConfig {
+    public static final long DEFAULT_SESSION_REFRESH_AGE = 25 * 60 * 1000; // 25 minutes
+
     private String proto;
     private boolean disableSslValidation = false;
     private String host;
     private int port;
     private String username;
     private String password;
-    private String sessionToken;
+    private volatile String sessionToken;
+    private volatile long sessionTokenTime;
+    private long sessionRefreshAge = DEFAULT_SESSION_REFRESH_AGE;
 
     public AcdpConfig() {
         this( "http", null, 80, null, null );
@@ -104,9 +108,30 @@ public abstract class AcdpConfig {
     }
 
     public void setSessionToken( String sessionToken ) {
+        this.sessionTokenTime = System.currentTimeMillis();
         this.sessionToken = sessionToken;
     }
 
+    /**
+     * Returns the time (in milliseconds) the current session token was set.
+     */
+    public long getSessionTokenTime() {
+        return sessionTokenTime;
+    }
+
+    public long getSessionRefreshAge() {
+        return sessionRefreshAge;
+    }
+
+    /**
+     * Sets the age (in milliseconds) after which the session is renewed before it is used again, so requests don't
+     * run into an expired session. While one thread logs in, others keep using the current session. Set to 0 to only
+     * log in again when a request is rejected. Default is 25 minutes.
+     */
+    public void setSessionRefreshAge( long sessionRefreshAge ) {
+        this.sessionRefreshAge = sessionRefreshAge;
+    }
+
     public String getBaseUri() {
         String url = proto + "://" + host;
         if ( port > 0 ) url += ":" + port;
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.acdp.api;
+
+import com.emc.acdp.AcdpException;
+import com.emc.cdp.services.rest.model.*;
+import com.emc.util.ThreadUtil;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Crawls the accounts, identities, token groups and tokens of a CDP tenant with parallel requests, streaming the
+ * results through an iterator as they arrive.
+ * <p/>
+ * Each listing is read in pages of pageSize. The first page reports the total, and the remaining pages are then
+ * fetched in parallel. Token groups and tokens fan out from there: every account's subscriptions are listed, then
+ * every subscription's token groups, then every group's tokens. All requests share a pool of parallelism threads.
+ * Results are handed over through a queue of up to queueSize entries, so a slow consumer holds the crawl back
+ * instead of it piling up in memory. The order of results is not defined.
+ * <p/>
+ * The first failed request ends the crawl. The iterator then throws its AcdpException from hasNext() or next().
+ * Close an iterator that is not read to the end, so its threads are released.
+ * <pre>
+ *     AcdpCrawler.Results&lt;AcdpCrawler.Item&lt;Token&gt;&gt; tokens = new AcdpCrawler( admin ).tokens();
+ *     try {
+ *         while ( tokens.hasNext() ) reconcile( tokens.next() );
+ *     } finally {
+ *         tokens.close();
+ *     }
+ * </pre>
+ */
+public class AcdpCrawler {
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final int DEFAULT_PARALLELISM = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private AcdpAdminApi api;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    public AcdpCrawler( AcdpAdminApi api ) {
+        this.api = api;
+    }
+
+    public Results<Account> accounts( final boolean includeSubscription ) {
+        final Results<Account> results = new Results<Account>();
+        results.submit( new Runnable() {
+            @Override
+            public void run() {
+                results.list( new Listing<AccountList, Account>() {
+                    @Override
+                    AccountList fetch( int start, int count ) {
+                        return api.listAccounts( includeSubscription, start, count );
+                    }
+
+                    @Override
+                    List<Account> items( AccountList list ) {
+                        return list.getAccounts();
+                    }
+
+                    @Override
+                    int total( AccountList list ) {
+                        return list.getTotalResults();
+                    }
+
+                    @Override
+                    void found( Account account ) {
+                        results.add( account );
+                    }
+                } );
+            }
+        } );
+        return results;
+    }
+
+    public Results<Identity> identities( final boolean listAllAccounts, final boolean includeProfile ) {
+        final Results<Identity> results = new Results<Identity>();
+        results.submit( new Runnable() {
+            @Override
+            public void run() {
+                results.list( new Listing<IdentityList, Identity>() {
+                    @Override
+                    IdentityList fetch( int start, int count ) {
+                        return api.listIdentities( listAllAccounts, includeProfile, start, count );
+                    }
+
+                    @Override
+                    List<Identity> items( IdentityList list ) {
+                        return list.getIdentities();
+                    }
+
+                    @Override
+                    int total( IdentityList list ) {
+                        return list.getTotalResults();
+                    }
+
+                    @Override
+                    void found( Identity identity ) {
+                        results.add( identity );
+                    }
+                } );
+            }
+        } );
+        return results;
+    }
+
+    /**
+     * Returns the token groups of every subscription of every account.
+     */
+    public Results<Item<TokenGroup>> tokenGroups() {
+        Results<Item<TokenGroup>> results = new Results<Item<TokenGroup>>();
+        crawlSubscriptions( results, false );
+        return results;
+    }
+
+    /**
+     * Returns the tokens of every token group of every subscription of every account.
+     */
+    public Results<Item<Token>> tokens() {
+        Results<Item<Token>> results = new Results<Item<Token>>();
+        crawlSubscriptions( results, true );
+        return results;
+    }
+
+    private void crawlSubscriptions( final Results<?> results, final boolean tokens ) {
+        results.submit( new Runnable() {
+            @Override
+            public void run() {
+                results.list( new Listing<AccountList, Account>() {
+                    @Override
+                    AccountList fetch( int start, int count ) {
+                        return api.listAccounts( false, start, count );
+                    }
+
+                    @Override
+                    List<Account> items( AccountList list ) {
+                        return list.getAccounts();
+                    }
+
+                    @Override
+                    int total( AccountList list ) {
+                        return list.getTotalResults();
+                    }
+
+                    @Override
+                    void found( final Account account ) {
+                        results.submit( new Runnable() {
+                            @Override
+                            public void run() {
+                                SubscriptionList subscriptions = api.getAccountSubscriptions( account.getId() );
+                                for ( Subscription subscription : subscriptions.getSubscriptions() ) {
+                                    listTokenGroups( results, account.getId(), subscription.getId(), tokens );
+                                }
+                            }
+                        } );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void listTokenGroups( final Results<?> results, final String accountId, final String subscriptionId,
+                                  final boolean tokens ) {
+        results.submit( new Runnable() {
+            @Override
+            public void run() {
+                results.list( new Listing<TokenGroupList, TokenGroup>() {
+                    @Override
+                    TokenGroupList fetch( int start, int count ) {
+                        return api.listTokenGroups( accountId, subscriptionId, start, count );
+                    }
+
+                    @Override
+                    List<TokenGroup> items( TokenGroupList list ) {
+                        return list.getTokenGroups();
+                    }
+
+                    @Override
+                    int total( TokenGroupList list ) {
+                        return list.getTotalResults();
+                    }
+
+                    @Override
+                    void found( TokenGroup tokenGroup ) {
+                        if ( tokens ) listTokens( results, accountId, subscriptionId, tokenGroup.getId() );
+                        else results.add( new Item<TokenGroup>( accountId, subscriptionId, null, tokenGroup ) );
+                    }
+                } );
+            }
+        } );
+    }
+
+    private void listTokens( final Results<?> results, final String accountId, final String subscriptionId,
+                             final String tokenGroupId ) {
+        results.submit( new Runnable() {
+            @Override
+            public void run() {
+                results.list( new Listing<TokenList, Token>() {
+                    @Override
+                    TokenList fetch( int start, int count ) {
+                        return api.listTokens( accountId, subscriptionId, tokenGroupId, start, count );
+                    }
+
+                    @Override
+                    List<Token> items( TokenList list ) {
+                        return list.getTokens();
+                    }
+
+                    @Override
+                    int total( TokenList list ) {
+                        return list.getTotalResults();
+                    }
+
+                    @Override
+                    void found( Token token ) {
+                        results.add( new Item<Token>( accountId, subscriptionId, tokenGroupId, token ) );
+                    }
+                } );
+            }
+        } );
+    }
+
+    public AcdpAdminApi getApi() {
+        return api;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of entries requested per page. Default is 1000.
+     */
+    public void setPageSize( int pageSize ) {
+        if ( pageSize <= 0 ) throw new IllegalArgumentException( "pageSize must be positive" );
+        this.pageSize = pageSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the most requests sent at the same time by one crawl. Default is 8.
+     */
+    public void setParallelism( int parallelism ) {
+        if ( parallelism <= 0 ) throw new IllegalArgumentException( "parallelism must be positive" );
+        this.parallelism = parallelism;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the most results held for the consumer before the crawl waits for it. Default is 1000.
+     */
+    public void setQueueSize( int queueSize ) {
+        if ( queueSize <= 0 ) throw new IllegalArgumentException( "queueSize must be positive" );
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * A result found under a subscription, with the IDs it was found under (the token group ID is null for token
+     * groups).
+     */
+    public static class Item<T> {
+        private String accountId;
+        private String subscriptionId;
+        private String tokenGroupId;
+        private T item;
+
+        public Item( String accountId, String subscriptionId, String tokenGroupId, T item ) {
+            this.accountId = accountId;
+            this.subscriptionId = subscriptionId;
+            this.tokenGroupId = tokenGroupId;
+            this.item = item;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public String getSubscriptionId() {
+            return subscriptionId;
+        }
+
+        public String getTokenGroupId() {
+            return tokenGroupId;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+
+    /**
+     * One paged CDP listing.
+     */
+    private abstract static class Listing<L, T> {
+        abstract L fetch( int start, int count );
+
+        abstract List<T> items( L list );
+
+        abstract int total( L list );
+
+        abstract void found( T item );
+    }
+
+    /**
+     * The results of a crawl as they arrive. Not thread-safe; read it from one thread.
+     */
+    public class Results<T> implements Iterator<T>, Closeable {
+        private final Object END = new Object();
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>( queueSize );
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                parallelism, parallelism, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                ThreadUtil.newDaemonThreadFactory( "acdp-crawl" ) );
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        private volatile boolean closed = false;
+        private Object next;
+        private boolean ended = false;
+
+        Results() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            if ( closed ) return false;
+            if ( next == null && !ended ) {
+                try {
+                    next = queue.take();
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new AcdpException( "Interrupted while waiting for crawl results", e );
+                }
+                if ( next == END ) {
+                    next = null;
+                    ended = true;
+                    executor.shutdownNow();
+                }
+            }
+            if ( ended && error.get() != null ) throw error.get();
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings( "unchecked" )
+        public T next() {
+            if ( !hasNext() ) throw new NoSuchElementException();
+            T result = (T) next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the crawl and releases its threads.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            executor.shutdownNow();
+        }
+
+        void submit( final Runnable task ) {
+            if ( closed || error.get() != null ) return;
+            pending.incrementAndGet();
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if ( !closed && error.get() == null ) task.run();
+                    } catch ( RuntimeException e ) {
+                        error.compareAndSet( null, e );
+                    } finally {
+                        if ( pending.decrementAndGet() == 0 || error.get() != null ) end();
+                    }
+                }
+            } );
+        }
+
+        void add( Object result ) {
+            try {
+                while ( !closed && error.get() == null ) {
+                    if ( queue.offer( result, 100, TimeUnit.MILLISECONDS ) ) return;
+                }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new AcdpException( "Interrupted while crawling", e );
+            }
+        }
+
+        private void end() {
+            if ( error.get() == null ) {
+                add( END );
+            } else {
+                // the results are abandoned; make room for END
+                while ( !queue.offer( END ) ) queue.poll();
+            }
+        }
+
+        /**
+         * Reads the first page of a listing, then the rest in parallel. If the total is not reported, pages are read
+         * one after the other until a short page.
+         */
+        <L, I> void list( final Listing<L, I> listing ) {
+            L first = listing.fetch( 1, pageSize );
+            List<I> items = listing.items( first );
+            int total = listing.total( first );
+            for ( I item : items ) listing.found( item );
+            if ( items.size() < pageSize ) return;
+
+            if ( total <= 0 ) {
+                listPage( listing, 1 + pageSize, true );
+            } else {
+                for ( int start = 1 + pageSize; start <= total; start += pageSize ) {
+                    listPage( listing, start, false );
+                }
+            }
+        }
+
+        private <L, I> void listPage( final Listing<L, I> listing, final int start, final boolean chain ) {
+            submit( new Runnable() {
+                @Override
+                public void run() {
+                    List<I> items = listing.items( listing.fetch( start, pageSize ) );
+                    for ( I item : items ) listing.found( item );
+                    if ( chain && items.size() == pageSize ) listPage( listing, start + pageSize, true );
+                }
+            } );
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.acdp.api;
+
+import com.emc.acdp.AcdpException;
+import com.emc.cdp.services.rest.model.Account;
+import com.emc.util.ThreadUtil;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Onboards many accounts at once: creates each account, then its subscription (which is then provisioned),
+ * invitations and identity assignments.
+ * <p/>
+ * Each stage runs on its own pool, sized by the stage's concurrency, so stages overlap across accounts (while some
+ * accounts are being created, others are already being provisioned) and a slow stage does not hold up the others
+ * beyond its own limit. Within an account, stages run in dependency order: the subscription is provisioned after it
+ * is created, and nothing else starts until the account exists. Invitations and assignments do not wait for the
+ * subscription.
+ * <p/>
+ * Stages that are safe to repeat ({@link Stage#isIdempotent()}) are retried up to maxRetries times on server (5xx)
+ * and connection errors, with a doubling delay. A stage that fails skips the stages that depend on it; the account's
+ * other stages still run. Progress and failures are reported per account in the {@link Result}s, which are updated
+ * as the run goes and can be read from another thread, along with {@link #getCompletedCount()} and
+ * {@link #getFailedCount()}. Each call is reported as a {@link Task}, so with several invitations or assignments it
+ * is clear which ones failed.
+ * <pre>
+ *     List&lt;BulkProvisioner.Job&gt; jobs = new ArrayList&lt;BulkProvisioner.Job&gt;();
+ *     for ( Customer customer : customers ) {
+ *         jobs.add( new BulkProvisioner.Job( customer.toAccount() ).subscription( "storageservice", true )
+ *                                                                   .invite( customer.getEmail(), "account_manager" ) );
+ *     }
+ *     for ( BulkProvisioner.Result result : new BulkProvisioner( admin ).run( jobs ) ) {
+ *         if ( !result.isSuccessful() ) log.warn( result );
+ *     }
+ * </pre>
+ */
+public class BulkProvisioner {
+    private static final Logger l4j = Logger.getLogger( BulkProvisioner.class );
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 1000; // 1 second
+
+    public static enum Stage {
+        CREATE_ACCOUNT( false, 4 ),
+        CREATE_SUBSCRIPTION( false, 4 ),
+        PROVISION_SUBSCRIPTION( true, 8 ),
+        INVITE( false, 4 ),
+        ASSIGN_IDENTITY( true, 8 );
+
+        private boolean idempotent;
+        private int defaultConcurrency;
+
+        private Stage( boolean idempotent, int defaultConcurrency ) {
+            this.idempotent = idempotent;
+            this.defaultConcurrency = defaultConcurrency;
+        }
+
+        /**
+         * Returns whether repeating this stage has the same effect as running it once (so it can be retried).
+         * Creates are not idempotent; a retry after a lost response would create a second account, subscription or
+         * invitation.
+         */
+        public boolean isIdempotent() {
+            return idempotent;
+        }
+
+        public int getDefaultConcurrency() {
+            return defaultConcurrency;
+        }
+    }
+
+    private AcdpAdminApi api;
+    private Map<Stage, Integer> concurrency = new EnumMap<Stage, Integer>( Stage.class );
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    public BulkProvisioner( AcdpAdminApi api ) {
+        this.api = api;
+        for ( Stage stage : Stage.values() ) {
+            concurrency.put( stage, stage.getDefaultConcurrency() );
+        }
+    }
+
+    /**
+     * Provisions the accounts and waits until every one is done.
+     *
+     * @return a result for each job, in the same order
+     */
+    public List<Result> run( List<Job> jobs ) {
+        completedCount.set( 0 );
+        failedCount.set( 0 );
+
+        Map<Stage, ExecutorService> executors = new EnumMap<Stage, ExecutorService>( Stage.class );
+        for ( Stage stage : Stage.values() ) {
+            int threads = concurrency.get( stage );
+            executors.put( stage, new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                          new LinkedBlockingQueue<Runnable>(),
+                                                          ThreadUtil.newDaemonThreadFactory(
+                                                                  "acdp-" + stage.name().toLowerCase() ) ) );
+        }
+
+        CountDownLatch done = new CountDownLatch( jobs.size() );
+        List<Result> results = new ArrayList<Result>( jobs.size() );
+        try {
+            for ( Job job : jobs ) {
+                Result result = new Result( job );
+                results.add( result );
+                new Provisioning( result, executors, done ).start();
+            }
+            done.await();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new AcdpException( "Interrupted while provisioning", e );
+        } finally {
+            for ( ExecutorService executor : executors.values() ) {
+                executor.shutdownNow();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs one stage call, retrying it if the stage is idempotent and the error is worth retrying.
+     */
+    private <T> T call( Stage stage, StageCall<T> call ) {
+        for ( int attempt = 0; ; attempt++ ) {
+            try {
+                return call.call();
+            } catch ( RuntimeException e ) {
+                if ( !stage.isIdempotent() || attempt >= maxRetries || !isRetryable( e ) ) throw e;
+                long delay = retryDelay << attempt;
+                l4j.info( stage + " failed (" + e + "); retrying in " + delay + "ms" );
+                try {
+                    Thread.sleep( delay );
+                } catch ( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private boolean isRetryable( RuntimeException e ) {
+        if ( e instanceof AcdpException ) {
+            int code = ((AcdpException) e).getHttpCode();
+            return code == 0 || code >= 500;
+        }
+        return true; // connection errors
+    }
+
+    /**
+     * Returns the number of accounts finished (successfully or not) in the current or last run.
+     */
+    public int getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Returns the number of accounts with a failed stage in the current or last run.
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    public int getConcurrency( Stage stage ) {
+        return concurrency.get( stage );
+    }
+
+    /**
+     * Sets the most calls of a stage made at the same time. Defaults are 4 for the creates and 8 for provisioning and
+     * identity assignment.
+     */
+    public void setConcurrency( Stage stage, int concurrency ) {
+        if ( concurrency <= 0 ) throw new IllegalArgumentException( "concurrency must be positive" );
+        this.concurrency.put( stage, concurrency );
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the most retries of an idempotent stage call. Default is 3.
+     */
+    public void setMaxRetries( int maxRetries ) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the delay (in milliseconds) before the first retry; each further retry waits twice as long. Default is
+     * 1000.
+     */
+    public void setRetryDelay( long retryDelay ) {
+        this.retryDelay = retryDelay;
+    }
+
+    private abstract static class StageCall<T> {
+        abstract T call();
+    }
+
+    /**
+     * Drives one account through its stages.
+     */
+    private class Provisioning {
+        private Result result;
+        private Map<Stage, ExecutorService> executors;
+        private CountDownLatch done;
+        private final AtomicInteger remaining = new AtomicInteger( 1 );
+
+        Provisioning( Result result, Map<Stage, ExecutorService> executors, CountDownLatch done ) {
+            this.result = result;
+            this.executors = executors;
+            this.done = done;
+        }
+
+        void start() {
+            schedule( new Task( Stage.CREATE_ACCOUNT, null ), new Runnable() {
+                @Override
+                public void run() {
+                    result.accountId = call( Stage.CREATE_ACCOUNT, new StageCall<String>() {
+                        @Override
+                        String call() {
+                            return api.createAccount( result.job.getAccount() );
+                        }
+                    } );
+                    afterAccount();
+                }
+            } );
+            finish(); // the initial count
+        }
+
+        private void afterAccount() {
+            final Job job = result.job;
+            final String accountId = result.accountId;
+            if ( job.getServiceId() != null ) {
+                schedule( new Task( Stage.CREATE_SUBSCRIPTION, null ), new Runnable() {
+                    @Override
+                    public void run() {
+                        result.subscriptionId = call( Stage.CREATE_SUBSCRIPTION, new StageCall<String>() {
+                            @Override
+                            String call() {
+                                return api.createSubscription( accountId, job.getServiceId() );
+                            }
+                        } );
+                        schedule( new Task( Stage.PROVISION_SUBSCRIPTION, null ), new Runnable() {
+                            @Override
+                            public void run() {
+                                call( Stage.PROVISION_SUBSCRIPTION, new StageCall<Object>() {
+                                    @Override
+                                    Object call() {
+                                        api.provisionSubscription( accountId, result.subscriptionId,
+                                                                   job.isSendEmail() );
+                                        return null;
+                                    }
+                                } );
+                            }
+                        } );
+                    }
+                } );
+            }
+            for ( final Invitation invitation : job.getInvitations() ) {
+                schedule( new Task( Stage.INVITE, invitation.email ), new Runnable() {
+                    @Override
+                    public void run() {
+                        result.invitationIds.put( invitation.email, call( Stage.INVITE, new StageCall<String>() {
+                            @Override
+                            String call() {
+                                return api.createAccountInvitation( accountId, invitation.email, invitation.role );
+                            }
+                        } ) );
+                    }
+                } );
+            }
+            for ( final Assignee assignee : job.getAssignees() ) {
+                schedule( new Task( Stage.ASSIGN_IDENTITY, assignee.identityId ), new Runnable() {
+                    @Override
+                    public void run() {
+                        call( Stage.ASSIGN_IDENTITY, new StageCall<Object>() {
+                            @Override
+                            Object call() {
+                                api.addAccountAssignee( accountId, assignee.identityId, assignee.password,
+                                                        assignee.firstName, assignee.lastName, assignee.email,
+                                                        assignee.role );
+                                return null;
+                            }
+                        } );
+                    }
+                } );
+            }
+        }
+
+        /**
+         * Queues a task on its stage's pool. The account is done when every scheduled task has finished.
+         */
+        private void schedule( final Task task, final Runnable work ) {
+            remaining.incrementAndGet();
+            executors.get( task.getStage() ).execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work.run();
+                        result.completedTasks.add( task );
+                    } catch ( RuntimeException e ) {
+                        l4j.warn( "Provisioning failed at " + task + " (account ID " + result.accountId + ")", e );
+                        result.failures.put( task, e );
+                    } finally {
+                        finish();
+                    }
+                }
+            } );
+        }
+
+        private void finish() {
+            if ( remaining.decrementAndGet() == 0 ) {
+                if ( !result.failures.isEmpty() ) failedCount.incrementAndGet();
+                result.done = true;
+                completedCount.incrementAndGet();
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * An account to provision: the account itself, optionally a subscription to create and provision, and any
+     * invitations and identity assignments.
+     */
+    public static class Job {
+        private Account account;
+        private String serviceId;
+        private boolean sendEmail;
+        private List<Invitation> invitations = new ArrayList<Invitation>();
+        private List<Assignee> assignees = new ArrayList<Assignee>();
+
+        public Job( Account account ) {
+            this.account = account;
+        }
+
+        /**
+         * Creates a subscription to the service and provisions it.
+         */
+        public Job subscription( String serviceId, boolean sendEmail ) {
+            this.serviceId = serviceId;
+            this.sendEmail = sendEmail;
+            return this;
+        }
+
+        public Job invite( String email, String accountRole ) {
+            invitations.add( new Invitation( email, accountRole ) );
+            return this;
+        }
+
+        public Job assign( String identityId, String password, String firstName, String lastName, String email,
+                           String role ) {
+            assignees.add( new Assignee( identityId, password, firstName, lastName, email, role ) );
+            return this;
+        }
+
+        public Account getAccount() {
+            return account;
+        }
+
+        public String getServiceId() {
+            return serviceId;
+        }
+
+        public boolean isSendEmail() {
+            return sendEmail;
+        }
+
+        public List<Invitation> getInvitations() {
+            return invitations;
+        }
+
+        public List<Assignee> getAssignees() {
+            return assignees;
+        }
+    }
+
+    public static class Invitation {
+        private String email;
+        private String role;
+
+        public Invitation( String email, String role ) {
+            this.email = email;
+            this.role = role;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getRole() {
+            return role;
+        }
+    }
+
+    public static class Assignee {
+        private String identityId;
+        private String password;
+        private String firstName;
+        private String lastName;
+        private String email;
+        private String role;
+
+        public Assignee( String identityId, String password, String firstName, String lastName, String email,
+                         String role ) {
+            this.identityId = identityId;
+            this.password = password;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.email = email;
+            this.role = role;
+        }
+
+        public String getIdentityId() {
+            return identityId;
+        }
+
+        public String getFirstName() {
+            return firstName;
+        }
+
+        public String getLastName() {
+            return lastName;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getRole() {
+            return role;
+        }
+    }
+
+    /**
+     * One call made for an account: its stage and, for invitations and identity assignments, the email or identity it
+     * is for.
+     */
+    public static final class Task {
+        private final Stage stage;
+        private final String target;
+
+        public Task( Stage stage, String target ) {
+            this.stage = stage;
+            this.target = target;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * Returns the invitation's email or the assignee's identity ID, or null for the other stages (which run at
+         * most once per account).
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( this == o ) return true;
+            if ( !(o instanceof Task) ) return false;
+            Task other = (Task) o;
+            return stage == other.stage && (target == null ? other.target == null : target.equals( other.target ));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * stage.hashCode() + (target == null ? 0 : target.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return target == null ? stage.name() : stage + "(" + target + ")";
+        }
+    }
+
+    /**
+     * The progress of one account. Updated while the run goes.
+     */
+    public static class Result {
+        private final Job job;
+        private volatile String accountId;
+        private volatile String subscriptionId;
+        private final Map<String, String> invitationIds = new ConcurrentHashMap<String, String>();
+        private final Set<Task> completedTasks = Collections.newSetFromMap( new ConcurrentHashMap<Task, Boolean>() );
+        private final Map<Task, Throwable> failures = new ConcurrentHashMap<Task, Throwable>();
+        private volatile boolean done = false;
+
+        Result( Job job ) {
+            this.job = job;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * Returns the ID of the created account, or null if it has not been created (yet).
+         */
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public String getSubscriptionId() {
+            return subscriptionId;
+        }
+
+        /**
+         * Returns the IDs of the invitations created so far, by email.
+         */
+        public Map<String, String> getInvitationIds() {
+            return Collections.unmodifiableMap( invitationIds );
+        }
+
+        /**
+         * Returns the tasks completed so far.
+         */
+        public Set<Task> getCompletedTasks() {
+            return new HashSet<Task>( completedTasks );
+        }
+
+        /**
+         * Returns the stages for which every task of the job has completed. A stage with a failed (or not yet
+         * finished) invitation or assignment is not listed, even if others have completed.
+         */
+        public Set<Stage> getCompletedStages() {
+            Map<Stage, Boolean> complete = new EnumMap<Stage, Boolean>( Stage.class );
+            for ( Task task : getTasks() ) {
+                Boolean stageComplete = complete.get( task.getStage() );
+                complete.put( task.getStage(), (stageComplete == null || stageComplete)
+                                               && completedTasks.contains( task ) );
+            }
+            Set<Stage> stages = EnumSet.noneOf( Stage.class );
+            for ( Map.Entry<Stage, Boolean> entry : complete.entrySet() ) {
+                if ( entry.getValue() ) stages.add( entry.getKey() );
+            }
+            return stages;
+        }
+
+        /**
+         * Returns the tasks that failed and why.
+         */
+        public Map<Task, Throwable> getFailures() {
+            return Collections.unmodifiableMap( failures );
+        }
+
+        /**
+         * Returns the stages with at least one failed task.
+         */
+        public Set<Stage> getFailedStages() {
+            Set<Stage> stages = EnumSet.noneOf( Stage.class );
+            for ( Task task : failures.keySet() ) {
+                stages.add( task.getStage() );
+            }
+            return stages;
+        }
+
+        /**
+         * Returns every task the job calls for, whether or not it has run.
+         */
+        private List<Task> getTasks() {
+            List<Task> tasks = new ArrayList<Task>();
+            tasks.add( new Task( Stage.CREATE_ACCOUNT, null ) );
+            if ( job.getServiceId() != null ) {
+                tasks.add( new Task( Stage.CREATE_SUBSCRIPTION, null ) );
+                tasks.add( new Task( Stage.PROVISION_SUBSCRIPTION, null ) );
+            }
+            for ( Invitation invitation : job.getInvitations() ) {
+                tasks.add( new Task( Stage.INVITE, invitation.getEmail() ) );
+            }
+            for ( Assignee assignee : job.getAssignees() ) {
+                tasks.add( new Task( Stage.ASSIGN_IDENTITY, assignee.getIdentityId() ) );
+            }
+            return tasks;
+        }
+
+        /**
+         * Returns whether every stage of the account has finished (successfully or not).
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isSuccessful() {
+            return done && failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Result{accountId=" + accountId + ", subscriptionId="
+                   + subscriptionId + ", completedStages=" + getCompletedStages() + ", failures=" + failures.keySet()
+                   + "}";
+        }
+    }
+}
@@ -33,6 +33,7 @@ import com.sun.jersey.api.client.ClientRequest;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.filter.ClientFilter;
 import com.sun.jersey.core.util.MultivaluedMapImpl;
+import org.apache.log4j.Logger;
 
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.HttpHeaders;
@@ -40,13 +41,26 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import java.net.URI;
 import java.net.URISyntaxException;
-
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Attaches the CDP session token to secure requests, logging in when there is no session yet, when the session is
+ * rejected (401) and, in the background of one request, when the session reaches the config's sessionRefreshAge.
+ * <p/>
+ * Logins are single-flight: when the session is missing or rejected, one thread logs in while the others wait for
+ * and then share its new session, instead of every request logging in on its own. A proactive refresh never makes
+ * other requests wait; they keep using the current session until the new one is in place. Logins are sent as their
+ * own request, so the caller's request is never modified beyond the session parameter.
+ */
 public class AuthFilter extends ClientFilter {
+    private static final Logger log = Logger.getLogger( AuthFilter.class );
+
     private static final String PARAM_SESSION_TOKEN = "cdp_session";
     private static final String PARAM_USER_ID = "cdp-identity-id";
     private static final String PARAM_PASSWORD = "cdp-password";
 
     private AcdpConfig config;
+    private final ReentrantLock loginLock = new ReentrantLock();
 
     public AuthFilter( AcdpConfig config ) {
         this.config = config;
@@ -57,83 +71,101 @@ public class AuthFilter extends ClientFilter {
         if ( !config.isSecureRequest( request.getURI().getPath(), request.getMethod() ) )
             return getNext().handle( request );
 
-        if ( config.getSessionToken() == null ) {
-
-            // must login
-            login( request );
-        } else {
-            attachSessionToken( request );
-        }
+        URI uri = request.getURI();
+        String token = getSessionToken( request, null );
+        request.setURI( attachSessionToken( uri, token ) );
 
-        ClientResponse response;
         try {
-            response = getNext().handle( request );
+            return getNext().handle( request );
 
-            // if unauthorized, try one more time after logging in
+            // if unauthorized, try one more time with a new session
         } catch ( AcdpException e ) {
-            if ( e.getHttpCode() == 401 ) {
-                login( request );
+            if ( e.getHttpCode() != 401 ) throw e;
 
-                response = getNext().handle( (request) );
-            } else {
-                throw e;
-            }
+            request.setURI( attachSessionToken( uri, getSessionToken( request, token ) ) );
+            return getNext().handle( request );
         }
-
-        return response;
     }
 
-    private void attachSessionToken( ClientRequest request ) {
-
-        // append session token to query in URI
-        String uriStr = request.getURI().toString();
-
-        URI uri = request.getURI();
-        if ( uri.getQuery() != null && uri.getQuery().length() > 0 )
-            uriStr += "&";
-        else
-            uriStr += "?";
-
-        uriStr += PARAM_SESSION_TOKEN + "=" + config.getSessionToken();
+    /**
+     * Returns a session token to use, logging in if there is none or if the current one is the (rejected) staleToken.
+     */
+    private String getSessionToken( ClientRequest request, String staleToken ) {
+        String token = config.getSessionToken();
+        if ( token != null && !token.equals( staleToken ) ) {
+            if ( isAging() && loginLock.tryLock() ) {
+
+                // refresh ahead of expiry; if it fails, the current session is still good (or will be rejected)
+                try {
+                    if ( isAging() ) config.setSessionToken( login( request ) );
+                } catch ( RuntimeException e ) {
+                    log.warn( "Could not refresh session; continuing with the current one", e );
+                } finally {
+                    loginLock.unlock();
+                }
+                return config.getSessionToken();
+            }
+            return token;
+        }
 
+        loginLock.lock();
         try {
-            request.setURI( new URI( uriStr ) );
-        } catch ( URISyntaxException e ) {
-            throw new RuntimeException( e );
+            // another thread may have logged in while we waited
+            token = config.getSessionToken();
+            if ( token == null || token.equals( staleToken ) ) {
+                token = login( request );
+                config.setSessionToken( token );
+            }
+            return token;
+        } finally {
+            loginLock.unlock();
         }
     }
 
-    private void login( ClientRequest request ) {
-
-        // hold existing request configuration (we can't create a new request here)
-        String holdMethod = request.getMethod();
-        URI holdUri = request.getURI();
-        Object holdEntity = request.getEntity();
-        Object holdType = request.getHeaders().getFirst( HttpHeaders.CONTENT_TYPE );
+    private boolean isAging() {
+        return config.getSessionRefreshAge() > 0
+               && System.currentTimeMillis() - config.getSessionTokenTime() >= config.getSessionRefreshAge();
+    }
 
-        // login
+    /**
+     * Logs in with a separate request (a copy of the caller's request, so it goes through the same client with the
+     * same properties) and returns the new session token.
+     */
+    private String login( ClientRequest request ) {
         MultivaluedMap<String, String> params = new MultivaluedMapImpl();
         params.putSingle( PARAM_USER_ID, config.getUsername() );
         params.putSingle( PARAM_PASSWORD, config.getPassword() );
 
-        request.setMethod( HttpMethod.POST );
-        request.setURI( request.getURI().resolve( config.getLoginPath() ) );
-        request.setEntity( params );
-        request.getHeaders().putSingle( HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_FORM_URLENCODED_TYPE );
+        ClientRequest loginRequest = request.clone();
+        loginRequest.setMethod( HttpMethod.POST );
+        loginRequest.setURI( request.getURI().resolve( config.getLoginPath() ) );
+        loginRequest.setEntity( params );
+        loginRequest.getHeaders().clear();
+        loginRequest.getHeaders().putSingle( HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_FORM_URLENCODED_TYPE );
 
-        ClientResponse response = getNext().handle( request );
+        log.debug( "Logging in as " + config.getUsername() );
+        ClientResponse response = getNext().handle( loginRequest );
 
         // get token from response
-        String token = response.getEntity( String.class );
-        //String token = new java.util.Scanner( response.getEntityInputStream(), "UTF-8" ).useDelimiter( "\\A" ).next();
-        config.setSessionToken( token );
+        return response.getEntity( String.class );
+    }
 
-        // reset initial request configuration
-        request.setMethod( holdMethod );
-        request.setURI( holdUri );
-        request.setEntity( holdEntity );
-        request.getHeaders().putSingle( HttpHeaders.CONTENT_TYPE, holdType );
+    private URI attachSessionToken( URI uri, String token ) {
 
-        attachSessionToken( request );
+        // append session token to query in URI
+        String uriStr = uri.toString();
+
+        if ( uri.getQuery() != null && uri.getQuery().length() > 0 )
+            uriStr += "&";
+        else
+            uriStr += "?";
+
+        uriStr += PARAM_SESSION_TOKEN + "=" + token;
+
+        try {
+            return new URI( uriStr );
+        } catch ( URISyntaxException e ) {
+            throw new RuntimeException( e );
+        }
     }
 }
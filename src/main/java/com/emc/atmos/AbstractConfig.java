@@ -30,6 +30,8 @@ import org.apache.log4j.Logger;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Holds configuration parameters common between Atmos data and mgmt APIs.
@@ -40,10 +42,17 @@ import java.net.URISyntaxException;
 public class AbstractConfig {
     private static final Logger l4j = Logger.getLogger( AbstractConfig.class );
 
+    private static final int MAX_ENCODED_PATHS = 256;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] PATH_CHARS = legalChars( ":@&=+$,;/" );
+    private static final boolean[] QUERY_CHARS = legalChars( ";/?:@&=+$,[]" );
+
     private String context;
     private URI[] endpoints;
     private boolean disableSslValidation = false;
     private LoadBalancingAlgorithm loadBalancingAlgorithm = new RoundRobinAlgorithm();
+    private final Map<URI, String> endpointPrefixes = new ConcurrentHashMap<URI, String>();
+    private final Map<String, String> encodedPaths = new ConcurrentHashMap<String, String>();
 
     public AbstractConfig( String context, URI... endpoints ) {
         this.context = context;
@@ -54,8 +63,49 @@ public class AbstractConfig {
      * Resolves a path relative to the API context. The returned URI will be of the format
      * scheme://host[:port]/context/relativePath?query. The scheme, host and port (endpoint) to use is delegated to the
      * configured loadBalancingAlgorithm to balance load across multiple endpoints.
+     * <p/>
+     * Endpoint prefixes and recently encoded paths are cached, so repeated calls for the same identifier do not
+     * re-quote the path. The result is identical to building the URI with the multi-argument {@link URI} constructor.
      */
     public URI resolvePath( String relativePath, String query ) {
+        return resolvePath( loadBalancingAlgorithm.getNextEndpoint( endpoints ), relativePath, query );
+    }
+
+    /**
+     * Resolves a path relative to the API context on the specified endpoint (for subclasses that choose the endpoint
+     * differently).
+     */
+    protected URI resolvePath( URI endpoint, String relativePath, String query ) {
+        String path = encodedPaths.get( relativePath );
+        if ( path == null ) {
+            path = encodePath( relativePath );
+            if ( encodedPaths.size() >= MAX_ENCODED_PATHS ) encodedPaths.clear();
+            encodedPaths.put( relativePath, path );
+        }
+
+        StringBuilder uriString = new StringBuilder( getEndpointPrefix( endpoint ) ).append( path );
+        if ( query != null ) {
+            uriString.append( '?' );
+            appendQuoted( uriString, query, QUERY_CHARS );
+        }
+
+        try {
+            URI uri = new URI( uriString.toString() );
+            if ( l4j.isDebugEnabled() ) {
+                l4j.debug( "raw path & query: " + relativePath + "?" + query );
+                l4j.debug( "encoded URI: " + uri );
+            }
+            return uri;
+        } catch ( URISyntaxException e ) {
+            throw new RuntimeException( "Invalid URI syntax", e );
+        }
+    }
+
+    /**
+     * Prepends the context (if not already present) and quotes the path exactly as the multi-argument
+     * {@link URI} constructors would.
+     */
+    private String encodePath( String relativePath ) {
         String path = relativePath;
 
         // make sure we have a root path
@@ -64,17 +114,106 @@ public class AbstractConfig {
         // don't add the context if it's already there
         if ( !path.startsWith( context ) ) path = context + path;
 
-        URI endpoint = loadBalancingAlgorithm.getNextEndpoint( endpoints );
+        StringBuilder encoded = new StringBuilder( path.length() + 16 );
+        appendQuoted( encoded, path, PATH_CHARS );
+        return encoded.toString();
+    }
 
-        try {
-            URI uri = new URI( endpoint.getScheme(), null, endpoint.getHost(), endpoint.getPort(),
-                               path, query, null );
-            l4j.debug( "raw path & query: " + path + "?" + query );
-            l4j.debug( "encoded URI: " + uri );
-            return uri;
-        } catch ( URISyntaxException e ) {
-            throw new RuntimeException( "Invalid URI syntax", e );
+    /**
+     * Returns scheme://host[:port] for the endpoint. These are computed once per endpoint.
+     */
+    private String getEndpointPrefix( URI endpoint ) {
+        String prefix = endpointPrefixes.get( endpoint );
+        if ( prefix == null ) {
+            try {
+                prefix = new URI( endpoint.getScheme(), null, endpoint.getHost(), endpoint.getPort(),
+                                  null, null, null ).toString();
+            } catch ( URISyntaxException e ) {
+                throw new RuntimeException( "Invalid URI syntax", e );
+            }
+            endpointPrefixes.put( endpoint, prefix );
+        }
+        return prefix;
+    }
+
+    /**
+     * Quotes a URI component the same way {@link URI}'s multi-argument constructors do: ASCII characters outside of
+     * the legal set (including '%') are percent-encoded, as are non-ASCII space and control characters (as UTF-8).
+     * All other non-ASCII characters are left as-is.
+     */
+    private static void appendQuoted( StringBuilder sb, String s, boolean[] legal ) {
+        for ( int i = 0; i < s.length(); i++ ) {
+            char c = s.charAt( i );
+            if ( c < 0x80 ) {
+                if ( legal[c] ) sb.append( c );
+                else appendEscape( sb, c );
+            } else if ( Character.isSpaceChar( c ) || Character.isISOControl( c ) ) {
+                if ( c < 0x800 ) {
+                    appendEscape( sb, 0xc0 | (c >> 6) );
+                } else {
+                    appendEscape( sb, 0xe0 | (c >> 12) );
+                    appendEscape( sb, 0x80 | ((c >> 6) & 0x3f) );
+                }
+                appendEscape( sb, 0x80 | (c & 0x3f) );
+            } else {
+                sb.append( c );
+            }
+        }
+    }
+
+    private static void appendEscape( StringBuilder sb, int b ) {
+        sb.append( '%' ).append( HEX_DIGITS[(b >> 4) & 0x0f] ).append( HEX_DIGITS[b & 0x0f] );
+    }
+
+    private static boolean[] legalChars( String punctuation ) {
+        boolean[] legal = new boolean[0x80];
+        for ( char c = '0'; c <= '9'; c++ ) legal[c] = true;
+        for ( char c = 'a'; c <= 'z'; c++ ) legal[c] = true;
+        for ( char c = 'A'; c <= 'Z'; c++ ) legal[c] = true;
+        for ( char c : "-_.!~*'()".toCharArray() ) legal[c] = true;
+        for ( char c : punctuation.toCharArray() ) legal[c] = true;
+        return legal;
+    }
+
+    /**
+     * Resolves the same path and query as the specified URI (as returned by {@link #resolvePath(String, String)}) on
+     * a different endpoint. Used to send a duplicate of an idempotent request to another node. Returns null if there
+     * is no other endpoint configured.
+     */
+    public URI resolveAlternatePath( URI uri ) {
+        if ( endpoints == null || endpoints.length < 2 ) return null;
+
+        // start after the endpoint used by the original URI so alternates are spread across the other nodes
+        int start = 0;
+        for ( int i = 0; i < endpoints.length; i++ ) {
+            if ( isSameEndpoint( endpoints[i], uri ) ) {
+                start = i + 1;
+                break;
+            }
         }
+
+        for ( int i = 0; i < endpoints.length; i++ ) {
+            URI endpoint = endpoints[(start + i) % endpoints.length];
+            if ( isSameEndpoint( endpoint, uri ) ) continue;
+
+            StringBuilder alternate = new StringBuilder( endpoint.getScheme() ).append( "://" );
+            alternate.append( endpoint.getHost() );
+            if ( endpoint.getPort() >= 0 ) alternate.append( ':' ).append( endpoint.getPort() );
+            alternate.append( uri.getRawPath() );
+            if ( uri.getRawQuery() != null ) alternate.append( '?' ).append( uri.getRawQuery() );
+            try {
+                return new URI( alternate.toString() );
+            } catch ( URISyntaxException e ) {
+                throw new RuntimeException( "Invalid URI syntax", e );
+            }
+        }
+        return null;
+    }
+
+    private boolean isSameEndpoint( URI endpoint, URI uri ) {
+        return endpoint.getScheme().equalsIgnoreCase( uri.getScheme() )
+               && endpoint.getHost().equalsIgnoreCase( uri.getHost() )
+               && endpoint.getPort() == uri.getPort();
     }
 
     /**
@@ -89,6 +228,7 @@ public class AbstractConfig {
      */
     public void setContext( String context ) {
         this.context = context;
+        encodedPaths.clear();
     }
 
     /**
@@ -120,6 +260,7 @@ public class AbstractConfig {
      */
     public void setEndpoints( URI[] endpoints ) {
         this.endpoints = endpoints;
+        endpointPrefixes.clear();
     }
 
     /**
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of in-flight requests to each endpoint with a limit that adapts to the capacity of the server.
+ * <p/>
+ * The limit follows an AIMD (additive increase, multiplicative decrease) scheme. While response latency stays close to
+ * the best latency observed for an endpoint (its no-load latency), the limit grows by roughly one request per
+ * round-trip. When the server signals overload (Atmos code 1040 or any 5xx response) or latency inflates past
+ * latencyTolerance times the no-load latency, the limit is multiplied by backoffRatio (at most once per round-trip).
+ * Requests in excess of the limit wait up to timeoutMillis for a slot before they are rejected.
+ * <p/>
+ * To enable, set an instance on the config:
+ * <pre>
+ *     config.setConcurrencyLimiter( new AdaptiveConcurrencyLimiter() );
+ * </pre>
+ * A single instance is shared by all clients using the same config and is thread-safe.
+ */
+public class AdaptiveConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 200;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    // latency jitter below this is never considered inflation
+    private static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    // the no-load latency is re-learned after this many samples so it can follow changes in the cluster
+    private static final int LATENCY_RESET_SAMPLES = 1000;
+
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+    private ConcurrentMap<String, EndpointLimit> endpointLimits = new ConcurrentHashMap<String, EndpointLimit>();
+
+    /**
+     * Waits for a request slot to the endpoint of the specified URI. The returned permit must be completed exactly
+     * once by calling {@link Permit#success()}, {@link Permit#overloaded()} or {@link Permit#ignore()}.
+     *
+     * @throws AtmosException if no slot becomes available within timeoutMillis or the thread is interrupted
+     */
+    public Permit acquire( URI uri ) {
+        EndpointLimit endpointLimit = getEndpointLimit( uri );
+        try {
+            if ( !endpointLimit.acquire( timeoutMillis ) )
+                throw new AtmosException( "Timed out waiting for a request slot to " + endpointLimit.endpoint
+                                          + " (limit: " + endpointLimit.getLimit() + ")" );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException( "Interrupted while waiting for a request slot to " + endpointLimit.endpoint, e );
+        }
+        return new Permit( endpointLimit, System.nanoTime() );
+    }
+
+    /**
+     * Returns the current limit for the endpoint of the specified URI.
+     */
+    public int getLimit( URI uri ) {
+        return getEndpointLimit( uri ).getLimit();
+    }
+
+    /**
+     * Returns the number of requests currently in flight to the endpoint of the specified URI.
+     */
+    public int getInFlight( URI uri ) {
+        return getEndpointLimit( uri ).getInFlight();
+    }
+
+    protected EndpointLimit getEndpointLimit( URI uri ) {
+        String endpoint = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        EndpointLimit endpointLimit = endpointLimits.get( endpoint );
+        if ( endpointLimit == null ) {
+            endpointLimit = new EndpointLimit( endpoint );
+            EndpointLimit existing = endpointLimits.putIfAbsent( endpoint, endpointLimit );
+            if ( existing != null ) endpointLimit = existing;
+        }
+        return endpointLimit;
+    }
+
+    /**
+     * Returns the limit used for an endpoint before any responses have been received from it.
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * Sets the limit used for an endpoint before any responses have been received from it.
+     * Default is 20.
+     */
+    public void setInitialLimit( int initialLimit ) {
+        this.initialLimit = initialLimit;
+    }
+
+    /**
+     * Returns the lowest value the limit will shrink to.
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Sets the lowest value the limit will shrink to.
+     * Default is 1.
+     */
+    public void setMinLimit( int minLimit ) {
+        this.minLimit = minLimit;
+    }
+
+    /**
+     * Returns the highest value the limit will grow to.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Sets the highest value the limit will grow to. This should not exceed the connection pool size of the client.
+     * Default is 200.
+     */
+    public void setMaxLimit( int maxLimit ) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Returns the time in milliseconds a request will wait for a slot before it is rejected.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Sets the time in milliseconds a request will wait for a slot before it is rejected. A value of 0 rejects
+     * requests immediately when the limit is reached.
+     * Default is 30 seconds.
+     */
+    public void setTimeoutMillis( long timeoutMillis ) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the multiple of the no-load latency above which latency is considered inflated.
+     */
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * Sets the multiple of the no-load latency above which latency is considered inflated (a sign of queuing on the
+     * server).
+     * Default is 2.0.
+     */
+    public void setLatencyTolerance( double latencyTolerance ) {
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * Returns the ratio the limit is multiplied by when overload is detected.
+     */
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Sets the ratio the limit is multiplied by when overload is detected.
+     * Default is 0.9.
+     */
+    public void setBackoffRatio( double backoffRatio ) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * A slot held by a single request. Complete it with one of {@link #success()}, {@link #overloaded()} or
+     * {@link #ignore()} when the response is received.
+     */
+    public static class Permit {
+        private EndpointLimit endpointLimit;
+        private long startNanos;
+        private boolean completed = false;
+
+        Permit( EndpointLimit endpointLimit, long startNanos ) {
+            this.endpointLimit = endpointLimit;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * The server processed the request (including 4xx errors); the round-trip time is used as a latency sample.
+         */
+        public void success() {
+            if ( complete() ) endpointLimit.onSuccess( startNanos, System.nanoTime() );
+        }
+
+        /**
+         * The server signaled overload (1040 or 5xx).
+         */
+        public void overloaded() {
+            if ( complete() ) endpointLimit.onOverload( startNanos );
+        }
+
+        /**
+         * The request failed without telling us anything about server capacity (i.e. an I/O error).
+         */
+        public void ignore() {
+            if ( complete() ) endpointLimit.release();
+        }
+
+        private boolean complete() {
+            if ( completed ) return false;
+            completed = true;
+            return true;
+        }
+    }
+
+    protected class EndpointLimit {
+        private final String endpoint;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition slotAvailable = lock.newCondition();
+        private double limit;
+        private int inFlight = 0;
+        private long noLoadLatency = Long.MAX_VALUE;
+        private int latencySamples = 0;
+        private long lastBackoffNanos = System.nanoTime();
+
+        EndpointLimit( String endpoint ) {
+            this.endpoint = endpoint;
+            this.limit = Math.max( minLimit, Math.min( maxLimit, initialLimit ) );
+        }
+
+        boolean acquire( long timeoutMillis ) throws InterruptedException {
+            long remaining = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            lock.lock();
+            try {
+                while ( inFlight >= (int) limit ) {
+                    if ( remaining <= 0 ) return false;
+                    remaining = slotAvailable.awaitNanos( remaining );
+                }
+                inFlight++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onSuccess( long startNanos, long endNanos ) {
+            long latency = endNanos - startNanos;
+            lock.lock();
+            try {
+                if ( ++latencySamples > LATENCY_RESET_SAMPLES ) {
+                    latencySamples = 0;
+                    noLoadLatency = latency;
+                } else if ( latency < noLoadLatency ) {
+                    noLoadLatency = latency;
+                }
+
+                if ( latency > noLoadLatency * latencyTolerance && latency > noLoadLatency + LATENCY_SLACK_NANOS ) {
+                    backoff( startNanos );
+                } else if ( inFlight * 2 >= limit ) {
+                    // only grow when we are actually using the current limit
+                    int oldLimit = (int) limit;
+                    limit = Math.min( maxLimit, limit + 1.0 / limit );
+                    if ( (int) limit > oldLimit ) slotAvailable.signalAll();
+                }
+                releaseLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onOverload( long startNanos ) {
+            lock.lock();
+            try {
+                backoff( startNanos );
+                releaseLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                releaseLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // only back off once per round-trip; responses to requests sent before the last backoff are stale signals
+        private void backoff( long startNanos ) {
+            if ( startNanos - lastBackoffNanos < 0 ) return;
+            limit = Math.max( minLimit, limit * backoffRatio );
+            lastBackoffNanos = System.nanoTime();
+        }
+
+        private void releaseLocked() {
+            inFlight--;
+            slotAvailable.signal();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos;
+
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which writes are sent with <code>Expect: 100-continue</code>. The expectation costs a round trip before the
+ * body is sent, which only pays off when the body is large enough that sending it to a server that will reject the
+ * request (i.e. bad auth, missing parent, 1040 server busy) would be wasteful.
+ * <p/>
+ * Bodies with a known length below thresholdBytes are always sent without the expectation. When adaptive is enabled,
+ * the outcome of every write that used the expectation is recorded per endpoint; once sampleSize such writes in a row
+ * have completed without an error response, the expectation is turned off for that endpoint since it is not saving
+ * anything there. An error response starts the count over, so an endpoint that had a bad spell (i.e. while it was
+ * busy) is still turned off once it has been healthy for sampleSize writes. If a large write without the expectation is later rejected by that endpoint, the expectation is
+ * turned back on and sampling starts over. An endpoint that answers 417 (Expectation Failed) does not support the
+ * expectation at all, so it is turned off for that endpoint immediately.
+ * <p/>
+ * Bodies of unknown length (i.e. streams without a content length) are treated as large.
+ */
+public class Expect100ContinuePolicy {
+    private static final Logger l4j = Logger.getLogger( Expect100ContinuePolicy.class );
+
+    public static final long DEFAULT_THRESHOLD_BYTES = 64 * 1024; // 64KB
+    public static final int DEFAULT_SAMPLE_SIZE = 100;
+
+    private long thresholdBytes = DEFAULT_THRESHOLD_BYTES;
+    private boolean adaptive = true;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+    private final ConcurrentMap<String, EndpointState> endpoints = new ConcurrentHashMap<String, EndpointState>();
+
+    /**
+     * Returns whether a write of contentLength bytes (-1 if unknown) to uri should be sent with
+     * <code>Expect: 100-continue</code>.
+     */
+    public boolean useExpect( URI uri, long contentLength ) {
+        if ( contentLength >= 0 && contentLength < thresholdBytes ) return false;
+        return !adaptive || !getState( uri ).disabled;
+    }
+
+    /**
+     * Records the HTTP status of a write of contentLength bytes (-1 if unknown) to uri. expect indicates whether the
+     * write was sent with <code>Expect: 100-continue</code>.
+     */
+    public void recordResponse( URI uri, boolean expect, long contentLength, int httpStatus ) {
+        if ( !adaptive ) return;
+
+        EndpointState state = getState( uri );
+        if ( expect ) {
+            if ( httpStatus == 417 ) {
+                if ( !state.disabled ) l4j.info( "Expect: 100-continue is not supported by " + uri.getHost() );
+                state.disabled = true;
+                return;
+            }
+            if ( httpStatus >= 400 ) {
+                state.successes.set( 0 );
+            } else if ( state.successes.incrementAndGet() >= sampleSize && !state.disabled ) {
+                l4j.info( "no early errors from " + uri.getHost() + " in " + sampleSize
+                          + " requests; disabling Expect: 100-continue for this endpoint" );
+                state.disabled = true;
+            }
+        } else if ( state.disabled && httpStatus >= 400 && httpStatus != 417
+                    && (contentLength < 0 || contentLength >= thresholdBytes) ) {
+            l4j.info( "large write to " + uri.getHost() + " was rejected (" + httpStatus
+                      + "); enabling Expect: 100-continue for this endpoint" );
+            state.successes.set( 0 );
+            state.disabled = false;
+        }
+    }
+
+    /**
+     * Returns whether the expectation has been turned off for uri's endpoint.
+     */
+    public boolean isDisabled( URI uri ) {
+        return getState( uri ).disabled;
+    }
+
+    protected EndpointState getState( URI uri ) {
+        String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        EndpointState state = endpoints.get( key );
+        if ( state == null ) {
+            state = new EndpointState();
+            EndpointState existing = endpoints.putIfAbsent( key, state );
+            if ( existing != null ) state = existing;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the body size below which writes are sent without the expectation.
+     */
+    public long getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    /**
+     * Sets the body size below which writes are sent without the expectation. Set to 0 to consider every body.
+     * Default is 64KB.
+     */
+    public void setThresholdBytes( long thresholdBytes ) {
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * Returns whether the expectation is turned off for endpoints that never reject writes early.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Sets whether the expectation is turned off for endpoints that never reject writes early.
+     * Default is true.
+     */
+    public void setAdaptive( boolean adaptive ) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Returns the number of consecutive error-free writes with the expectation after which it is turned off for an
+     * endpoint.
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Sets the number of writes with the expectation that must complete in a row without an error response before
+     * the expectation is turned off for an endpoint.
+     * Default is 100.
+     */
+    public void setSampleSize( int sampleSize ) {
+        this.sampleSize = sampleSize;
+    }
+
+    protected static class EndpointState {
+        /** Writes with the expectation since the last error response. */
+        final AtomicInteger successes = new AtomicInteger();
+        volatile boolean disabled;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos;
+
+import com.emc.util.ThreadUtil;
+import org.apache.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends a second (hedge) attempt of an idempotent read to a different endpoint when the first attempt has not
+ * answered within a percentile of recently observed latencies. Whichever attempt finishes first wins. This trims the
+ * latency tail caused by a single slow node at the cost of a small amount of extra load, which is capped by
+ * budgetPercent (the ratio of hedge attempts to reads).
+ * <p/>
+ * The hedge delay is not known until minSamples reads have completed; until then reads are not hedged. When an
+ * attempt wins, the other attempt is cancelled if it has not been sent yet. An attempt that is already on the wire is
+ * aborted: response streams it registered with {@link Attempt#track(InputStream)} fail on the next read, so the
+ * losing response is not downloaded, and its connection is closed by the call's own cleanup. Calls whose response
+ * has no body check {@link Attempt#checkAborted()} instead, so the losing result is discarded as soon as it
+ * arrives.
+ * <p/>
+ * To enable, set an instance on the config (hedging requires more than one endpoint):
+ * <pre>
+ *     config.setHedgedReadPolicy( new HedgedReadPolicy() );
+ * </pre>
+ */
+public class HedgedReadPolicy {
+    private static final Logger l4j = Logger.getLogger( HedgedReadPolicy.class );
+
+    public static final double DEFAULT_PERCENTILE = 95.0;
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 10;
+    public static final int DEFAULT_BUDGET_PERCENT = 10;
+    public static final int DEFAULT_MIN_SAMPLES = 50;
+
+    private static final int SAMPLE_WINDOW = 1000;
+    private static final int DELAY_REFRESH_INTERVAL = 100;
+    private static final long BUDGET_DECAY_INTERVAL = 10000;
+
+    private double percentile = DEFAULT_PERCENTILE;
+    private long minDelayMillis = DEFAULT_MIN_DELAY_MILLIS;
+    private int budgetPercent = DEFAULT_BUDGET_PERCENT;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+    private volatile ExecutorService executor;
+    private final ReentrantLock executorLock = new ReentrantLock();
+
+    private final ReentrantLock sampleLock = new ReentrantLock();
+    private final long[] samples = new long[SAMPLE_WINDOW];
+    private int sampleCount = 0;
+    private int sampleIndex = 0;
+    private int samplesSinceRefresh = 0;
+    private volatile long delayNanos = -1;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Executes a read, hedging it to hedgeUri if the attempt to primaryUri is slow.
+     */
+    public <T> T execute( URI primaryUri, URI hedgeUri, Call<T> call ) throws IOException {
+        countRead();
+
+        long delay = delayNanos;
+        if ( delay < 0 ) {
+            // not enough samples yet; just run the read in this thread
+            long start = System.nanoTime();
+            T result = call.call( primaryUri, new Attempt() );
+            addSample( System.nanoTime() - start );
+            return result;
+        }
+
+        CompletionService<T> completionService = new ExecutorCompletionService<T>( getExecutor() );
+        Attempt primaryAttempt = new Attempt(), hedgeAttempt = null;
+        Future<T> primary = completionService.submit( new AttemptTask<T>( call, primaryUri, primaryAttempt ) );
+        Future<T> hedge = null;
+        try {
+            Future<T> first = completionService.poll( delay, TimeUnit.NANOSECONDS );
+            if ( first == null ) {
+                if ( tryHedge() ) {
+                    l4j.debug( "no response from " + primaryUri.getHost() + " after " + delay + "ns; hedging to "
+                               + hedgeUri.getHost() );
+                    hedgeAttempt = new Attempt();
+                    hedge = completionService.submit( new AttemptTask<T>( call, hedgeUri, hedgeAttempt ) );
+                }
+                first = completionService.take();
+            }
+
+            try {
+                return first.get();
+            } catch ( ExecutionException e ) {
+                if ( hedge == null ) throw e;
+
+                // the first attempt to finish failed; the other one may still succeed
+                try {
+                    return completionService.take().get();
+                } catch ( ExecutionException e2 ) {
+                    throw e;
+                }
+            }
+        } catch ( ExecutionException e ) {
+            Throwable t = e.getCause();
+            if ( t instanceof RuntimeException ) throw (RuntimeException) t;
+            if ( t instanceof IOException ) throw (IOException) t;
+            if ( t instanceof Error ) throw (Error) t;
+            throw new AtmosException( "Error executing read", t );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException( "Interrupted while waiting for read", e );
+        } finally {
+            // the winner is complete by now, so this only stops the loser
+            primary.cancel( false );
+            primaryAttempt.abort();
+            if ( hedge != null ) {
+                hedge.cancel( false );
+                hedgeAttempt.abort();
+            }
+        }
+    }
+
+    /**
+     * Returns the current hedge delay in milliseconds, or -1 if not enough reads have completed to determine it.
+     */
+    public long getHedgeDelayMillis() {
+        long delay = delayNanos;
+        return delay < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis( delay );
+    }
+
+    protected void addSample( long latencyNanos ) {
+        long[] snapshot = null;
+        sampleLock.lock();
+        try {
+            samples[sampleIndex] = latencyNanos;
+            sampleIndex = (sampleIndex + 1) % samples.length;
+            if ( sampleCount < samples.length ) sampleCount++;
+            if ( sampleCount >= minSamples && (delayNanos < 0 || ++samplesSinceRefresh >= DELAY_REFRESH_INTERVAL) ) {
+                samplesSinceRefresh = 0;
+                snapshot = Arrays.copyOf( samples, sampleCount );
+            }
+        } finally {
+            sampleLock.unlock();
+        }
+
+        // sort outside of the lock
+        if ( snapshot != null ) {
+            Arrays.sort( snapshot );
+            int index = (int) Math.ceil( percentile / 100.0 * snapshot.length ) - 1;
+            long value = snapshot[Math.max( 0, Math.min( snapshot.length - 1, index ) )];
+            delayNanos = Math.max( TimeUnit.MILLISECONDS.toNanos( minDelayMillis ), value );
+        }
+    }
+
+    protected void countRead() {
+        // decay the counts so the budget reflects recent traffic
+        if ( reads.incrementAndGet() % BUDGET_DECAY_INTERVAL == 0 ) {
+            reads.addAndGet( -BUDGET_DECAY_INTERVAL / 2 );
+            hedges.set( hedges.get() / 2 );
+        }
+    }
+
+    protected boolean tryHedge() {
+        if ( hedges.get() * 100 >= reads.get() * budgetPercent ) return false;
+        hedges.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the percentile of recent read latencies used as the hedge delay.
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Sets the percentile of recent read latencies used as the hedge delay. A read that has not completed by this
+     * point is hedged.
+     * Default is 95.
+     */
+    public void setPercentile( double percentile ) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Returns the minimum hedge delay in milliseconds.
+     */
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    /**
+     * Sets the minimum hedge delay in milliseconds. Prevents hedging when all reads are fast.
+     * Default is 10ms.
+     */
+    public void setMinDelayMillis( long minDelayMillis ) {
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Returns the maximum number of hedge attempts as a percentage of reads.
+     */
+    public int getBudgetPercent() {
+        return budgetPercent;
+    }
+
+    /**
+     * Sets the maximum number of hedge attempts as a percentage of reads. This caps the extra load hedging puts on
+     * the cluster (particularly when all nodes are slow).
+     * Default is 10%.
+     */
+    public void setBudgetPercent( int budgetPercent ) {
+        this.budgetPercent = budgetPercent;
+    }
+
+    /**
+     * Returns the number of completed reads required before hedging starts.
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * Sets the number of completed reads required before hedging starts.
+     * Default is 50.
+     */
+    public void setMinSamples( int minSamples ) {
+        this.minSamples = Math.max( 1, Math.min( SAMPLE_WINDOW, minSamples ) );
+    }
+
+    /**
+     * Returns the executor used to run read attempts.
+     */
+    public ExecutorService getExecutor() {
+        ExecutorService executor = this.executor;
+        if ( executor == null ) {
+            executorLock.lock();
+            try {
+                if ( this.executor == null ) this.executor = ThreadUtil.newDaemonExecutor( "atmos-hedged-read" );
+                executor = this.executor;
+            } finally {
+                executorLock.unlock();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor used to run read attempts. By default, a cached pool of daemon threads is used.
+     */
+    public void setExecutor( ExecutorService executor ) {
+        this.executor = executor;
+    }
+
+    /**
+     * A read that can be sent to any endpoint.
+     */
+    public interface Call<T> {
+        /**
+         * Performs the read against the specified URI (the resolved request URI on a particular endpoint). The
+         * response stream should be passed through {@link Attempt#track(InputStream)} (or, without a response body,
+         * {@link Attempt#checkAborted()} called) so the read stops if the attempt loses.
+         */
+        T call( URI uri, Attempt attempt ) throws IOException;
+    }
+
+    /**
+     * One attempt of a read. Once aborted (because the other attempt won), streams returned by
+     * {@link #track(InputStream)} throw on every read.
+     */
+    public static class Attempt {
+        private volatile boolean aborted = false;
+
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * Aborts this attempt. Does not wait for the attempt to stop.
+         */
+        public void abort() {
+            aborted = true;
+        }
+
+        /**
+         * Returns a stream that reads from in until this attempt is aborted. The stream is not closed here, since it
+         * may be in use by another thread; the caller must still close it.
+         */
+        public InputStream track( InputStream in ) {
+            return new FilterInputStream( in ) {
+                @Override
+                public int read() throws IOException {
+                    checkAborted();
+                    return super.read();
+                }
+
+                @Override
+                public int read( byte[] b, int off, int len ) throws IOException {
+                    checkAborted();
+                    return super.read( b, off, len );
+                }
+
+                @Override
+                public long skip( long n ) throws IOException {
+                    checkAborted();
+                    return super.skip( n );
+                }
+            };
+        }
+
+        /**
+         * Throws InterruptedIOException if this attempt has been aborted. Calls without a response body to track
+         * (i.e. HEAD or metadata requests) check this before sending the request and once the response is closed.
+         */
+        public void checkAborted() throws InterruptedIOException {
+            if ( aborted ) throw new InterruptedIOException( "Read attempt aborted (another attempt won)" );
+        }
+    }
+
+    private class AttemptTask<T> implements Callable<T> {
+        private Call<T> call;
+        private URI uri;
+        private Attempt attempt;
+
+        AttemptTask( Call<T> call, URI uri, Attempt attempt ) {
+            this.call = call;
+            this.uri = uri;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public T call() throws Exception {
+            long start = System.nanoTime();
+            T result = call.call( uri, attempt );
+            addSample( System.nanoTime() - start );
+            return result;
+        }
+    }
+}
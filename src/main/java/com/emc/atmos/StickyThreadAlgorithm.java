@@ -31,19 +31,21 @@ import java.net.URI;
 /**
  * This implementation will tie a specific endpoint to each thread to avoid MDS sync issues. However, multiple threads
  * will be distributed between the configured endpoints.
+ * <p/>
+ * The endpoint is derived from a hash of the thread's ID, so no per-thread state is kept (with millions of virtual
+ * threads, a thread-local per thread is a leak) and a change in the configured endpoints takes effect immediately.
+ *
+ * @deprecated tying endpoints to threads means nothing when every task runs on its own (virtual) thread. Use
+ * {@link com.emc.atmos.api.ObjectAffinityAlgorithm}, which sends all requests for an object to the same endpoint from
+ * any thread.
  */
+@Deprecated
 public class StickyThreadAlgorithm implements LoadBalancingAlgorithm {
-    protected ThreadLocal<URI> threadEndpoint = new ThreadLocal<URI>();
-    protected int callCount = 0;
-
     @Override
     public URI getNextEndpoint( URI[] endpoints ) {
         // tie the endpoint to the current thread to eliminate MDS sync issues when using multiple endpoints
-        URI endpoint = threadEndpoint.get();
-        if ( endpoint == null ) {
-            endpoint = endpoints[callCount++ % endpoints.length];
-            threadEndpoint.set( endpoint );
-        }
-        return endpoint;
+        // (thread IDs are not consecutive, so they are mixed to spread threads evenly)
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return endpoints[(int) ((hash >>> 32) % endpoints.length)];
     }
 }
@@ -30,7 +30,10 @@ import com.emc.atmos.api.bean.GetAccessTokenResponse;
 import com.emc.atmos.api.request.*;
 import com.emc.util.HttpUtil;
 
+import javax.crypto.Mac;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -91,20 +94,43 @@ public abstract class AbstractAtmosApi implements AtmosApi {
         if ( identifier instanceof ObjectKey )
             throw new IllegalArgumentException( "You cannot create shareable URLs using a key; try using the object ID" );
 
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), null );
+        URI uri = resolve( identifier, null, "GET" );
+        return signShareableUrl( uri, expirationDate.getTime() / 1000, disposition, config.getTokenId(),
+                                 RestUtil.newMac( config.getSecretKey() ) );
+    }
+
+    @Override
+    public GetAccessTokenResponse getAccessToken( URL url ) {
+        return getAccessToken( RestUtil.lastPathElement( url.getPath() ) );
+    }
+
+    @Override
+    public void deleteAccessToken( URL url ) {
+        deleteAccessToken( RestUtil.lastPathElement( url.getPath() ) );
+    }
+
+    @Override
+    public PreSignedRequest preSignRequest( Request request, Date expiration ) throws MalformedURLException {
+        return signRequest( request, resolve( request ), expiration, config, RestUtil.newMac( config.getSecretKey() ) );
+    }
+
+    /**
+     * Builds a shareable URL for the object at uri, signed with mac (initialized with the secret key).
+     */
+    static URL signShareableUrl( URI uri, long expiresTime, String disposition, String tokenId, Mac mac )
+            throws MalformedURLException {
         String path = uri.getPath().toLowerCase();
-        long expiresTime = expirationDate.getTime() / 1000;
 
         String hashString = "GET\n"
                             + path + '\n'
-                            + config.getTokenId() + '\n'
+                            + tokenId + '\n'
                             + expiresTime;
         if ( disposition != null )
             hashString += '\n' + disposition;
 
-        String hash = RestUtil.sign( hashString, config.getSecretKey() );
+        String hash = RestUtil.sign( hashString, mac );
 
-        String query = "uid=" + HttpUtil.encodeUtf8( config.getTokenId() ) + "&expires=" + expiresTime
+        String query = "uid=" + HttpUtil.encodeUtf8( tokenId ) + "&expires=" + expiresTime
                        + "&signature=" + HttpUtil.encodeUtf8( hash );
         if ( disposition != null )
             query += "&disposition=" + HttpUtil.encodeUtf8( disposition );
@@ -113,19 +139,11 @@ public abstract class AbstractAtmosApi implements AtmosApi {
         return new URL( uri + "?" + query );
     }
 
-    @Override
-    public GetAccessTokenResponse getAccessToken( URL url ) {
-        return getAccessToken( RestUtil.lastPathElement( url.getPath() ) );
-    }
-
-    @Override
-    public void deleteAccessToken( URL url ) {
-        deleteAccessToken( RestUtil.lastPathElement( url.getPath() ) );
-    }
-
-    @Override
-    public PreSignedRequest preSignRequest( Request request, Date expiration ) throws MalformedURLException {
-        URI uri = config.resolvePath( request.getServiceRelativePath(), request.getQuery() );
+    /**
+     * Pre-signs a request already resolved to uri, signed with mac (initialized with the secret key).
+     */
+    static PreSignedRequest signRequest( Request request, URI uri, Date expiration, AtmosConfig config, Mac mac )
+            throws MalformedURLException {
         Map<String, List<Object>> headers = request.generateHeaders( config.isEncodeUtf8() );
 
         String contentType = null;
@@ -141,9 +159,44 @@ public abstract class AbstractAtmosApi implements AtmosApi {
                               uri.getQuery(),
                               headers,
                               config.getTokenId(),
-                              config.getSecretKey(),
+                              mac,
                               config.getServerClockSkew() );
 
         return new PreSignedRequest( uri.toURL(), request.getMethod(), contentType, headers, expiration );
     }
+
+    /**
+     * Resolves the URI for a request, passing the request context to the load balancing algorithm.
+     */
+    protected URI resolve( Request request ) {
+        RequestContext context = null;
+        if ( request instanceof ObjectRequest ) {
+            long contentLength = -1;
+            if ( request instanceof ContentRequest ) contentLength = getContentLength( (ContentRequest) request );
+            context = new RequestContext( ((ObjectRequest<?>) request).getIdentifier(), request.getMethod(),
+                                          contentLength );
+        }
+        return config.resolvePath( request.getServiceRelativePath(), request.getQuery(), context );
+    }
+
+    /**
+     * Resolves the URI for an operation on an object, passing the request context to the load balancing algorithm.
+     */
+    protected URI resolve( ObjectIdentifier identifier, String query, String method ) {
+        return config.resolvePath( identifier.getRelativeResourcePath(), query,
+                                   new RequestContext( identifier, method, -1 ) );
+    }
+
+    /**
+     * Returns the size of a request's body in bytes, or -1 if it is not known before the body is sent.
+     */
+    protected long getContentLength( ContentRequest request ) {
+        Object content = request.getContent();
+        if ( content == null ) return 0;
+        if ( content instanceof byte[] ) return ((byte[]) content).length;
+        if ( content instanceof BufferSegment ) return ((BufferSegment) content).getSize();
+        if ( content instanceof File ) return ((File) content).length();
+        if ( content instanceof InputStream ) return request.getContentLength();
+        return -1;
+    }
 }
@@ -81,6 +81,9 @@ public interface AtmosApi {
 
     /**
      * Creates a new object in the cloud using all of the options provided in the request object.
+     * <p/>
+     * If the content is an InputStream and the content length is negative (unknown), the content is sent in chunks
+     * (see {@link AtmosOutputStream}); the response is that of the first chunk.
      *
      * @param request The request object (click on the class name to get more information).
      *
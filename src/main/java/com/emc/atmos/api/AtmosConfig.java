@@ -27,6 +27,10 @@
 package com.emc.atmos.api;
 
 import com.emc.atmos.AbstractConfig;
+import com.emc.atmos.AdaptiveConcurrencyLimiter;
+import com.emc.atmos.Expect100ContinuePolicy;
+import com.emc.atmos.HedgedReadPolicy;
+import com.emc.atmos.LoadBalancingAlgorithm;
 
 import javax.xml.bind.DatatypeConverter;
 import java.net.URI;
@@ -45,10 +49,13 @@ public class AtmosConfig extends AbstractConfig {
     private int maxRetries = 2;
     private int retryBufferSize = 1048576; // 1MB default
     private boolean enableExpect100Continue = true;
+    private Expect100ContinuePolicy expect100ContinuePolicy = new Expect100ContinuePolicy();
     private URI proxyUri;
     private String proxyUser;
     private String proxyPassword;
     private boolean encodeUtf8 = true;
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private HedgedReadPolicy hedgedReadPolicy;
 
     /**
      * Creates a new instance with default parameters. tokenId, secretKey and at least one endpoint must be provided
@@ -68,6 +75,19 @@ public class AtmosConfig extends AbstractConfig {
         this.tokenId = tokenId;
     }
 
+    /**
+     * Resolves a path relative to the API context for a request on a specific object. If the configured
+     * loadBalancingAlgorithm is a {@link ContextAwareLoadBalancingAlgorithm}, it chooses the endpoint based on the
+     * request context; otherwise this is the same as {@link #resolvePath(String, String)}.
+     */
+    public URI resolvePath( String relativePath, String query, RequestContext context ) {
+        LoadBalancingAlgorithm algorithm = getLoadBalancingAlgorithm();
+        if ( context == null || !(algorithm instanceof ContextAwareLoadBalancingAlgorithm) )
+            return resolvePath( relativePath, query );
+        URI endpoint = ((ContextAwareLoadBalancingAlgorithm) algorithm).getNextEndpoint( getEndpoints(), context );
+        return resolvePath( endpoint, relativePath, query );
+    }
+
     /**
      * Returns whether the Expect: 100-continue header is enabled for object write requests
      */
@@ -79,7 +99,8 @@ public class AtmosConfig extends AbstractConfig {
      * Sets whether the Expect: 100-continue header should be used for object write requests. When enabled, all object
      * create and update requests will post the headers first (including Expect: 100-continue) and wait for a 100
      * Continue response before sending object data. This will allow Atmos to determine if the request is valid before
-     * sending a potentially large payload over the network.
+     * sending a potentially large payload over the network. Which writes actually use it is decided by the
+     * {@link #setExpect100ContinuePolicy(Expect100ContinuePolicy) Expect: 100-continue policy}.
      * Default is true.
      */
     public void setEnableExpect100Continue( boolean enableExpect100Continue ) {
@@ -258,4 +279,56 @@ public class AtmosConfig extends AbstractConfig {
     public void setEncodeUtf8(boolean encodeUtf8) {
         this.encodeUtf8 = encodeUtf8;
     }
+
+    /**
+     * Returns the adaptive concurrency limiter used to cap in-flight requests per endpoint (null if disabled).
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Sets an adaptive concurrency limiter to cap the number of in-flight requests per endpoint. The limit grows
+     * while latency stays flat and shrinks on 1040/5xx responses or latency inflation, so throughput follows the
+     * actual capacity of the cluster. This must be set before the client is constructed.
+     * Default is null (no limit).
+     */
+    public void setConcurrencyLimiter( AdaptiveConcurrencyLimiter concurrencyLimiter ) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Returns the policy used to hedge idempotent reads across endpoints (null if disabled).
+     */
+    public HedgedReadPolicy getHedgedReadPolicy() {
+        return hedgedReadPolicy;
+    }
+
+    /**
+     * Sets a policy to hedge idempotent reads (object reads, HEAD, system metadata and directory listings). When a
+     * read is slower than a percentile of recent reads, a duplicate is sent to another endpoint and the first
+     * response wins. Requires more than one endpoint.
+     * Default is null (no hedging).
+     */
+    public void setHedgedReadPolicy( HedgedReadPolicy hedgedReadPolicy ) {
+        this.hedgedReadPolicy = hedgedReadPolicy;
+    }
+
+    /**
+     * Returns the policy that decides which writes are sent with Expect: 100-continue (null to send all of them with
+     * it).
+     */
+    public Expect100ContinuePolicy getExpect100ContinuePolicy() {
+        return expect100ContinuePolicy;
+    }
+
+    /**
+     * Sets the policy that decides which writes are sent with Expect: 100-continue. Small bodies skip the extra round
+     * trip, and endpoints that never reject writes early stop using it. Set to null to send every write with the
+     * expectation. Has no effect if Expect: 100-continue is disabled.
+     * Default is a policy with a 64KB threshold that adapts per endpoint.
+     */
+    public void setExpect100ContinuePolicy( Expect100ContinuePolicy expect100ContinuePolicy ) {
+        this.expect100ContinuePolicy = expect100ContinuePolicy;
+    }
 }
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-only, random-access channel over an object, for libraries that expect to seek around a file (zip, parquet,
+ * etc.). Reads are served from an LRU cache of aligned blocks; a missing block is fetched with a ranged read. When
+ * blocks are read in order (or the first read is at the start of the object), the following readAheadBlocks blocks
+ * are fetched in the same request, so a sequential scan costs one round trip per (readAheadBlocks + 1) blocks instead
+ * of one per read call.
+ * <p/>
+ * The methods match those of java.nio.channels.SeekableByteChannel (which is not available in Java 6); on Java 7+ a
+ * subclass can simply declare that interface. Write methods throw NonWritableChannelException.
+ * <p/>
+ * The object's size is read once, when first needed. If the object is modified while the channel is open, reading a
+ * block that was not cached yet throws an AtmosException.
+ * <pre>
+ *     AtmosObjectChannel channel = new AtmosObjectChannel( atmos, id );
+ *     channel.position( channel.size() - 22 ).read( buffer ); // i.e. zip end of central directory
+ * </pre>
+ * Settings must be changed before the first read.
+ */
+public class AtmosObjectChannel implements ReadableByteChannel {
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024; // 256KB
+    public static final int DEFAULT_MAX_CACHED_BLOCKS = 64;
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+
+    private AtmosApi atmosApi;
+    private ObjectIdentifier identifier;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int maxCachedBlocks = DEFAULT_MAX_CACHED_BLOCKS;
+    private int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+    private boolean directBuffers = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Map<Long, ByteBuffer> blocks;
+    private volatile boolean open = true;
+    private long position = 0;
+    private long size = -1;
+    private String mtime;
+    private long lastBlock = -1;
+    private boolean sequential = false;
+    private final AtomicLong requestCount = new AtomicLong();
+
+    public AtmosObjectChannel( AtmosApi atmosApi, ObjectIdentifier identifier ) {
+        this.atmosApi = atmosApi;
+        this.identifier = identifier;
+    }
+
+    /**
+     * Reads into dst from the current position and advances the position by the number of bytes read. Returns -1 at
+     * the end of the object.
+     */
+    @Override
+    public int read( ByteBuffer dst ) throws IOException {
+        lock.lock();
+        try {
+            int count = read( dst, position );
+            if ( count > 0 ) position += count;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads into dst from the given position without changing the channel's position. Returns -1 if position is at
+     * or past the end of the object.
+     */
+    public int read( ByteBuffer dst, long position ) throws IOException {
+        if ( position < 0 ) throw new IllegalArgumentException( "negative position" );
+        lock.lock();
+        try {
+            checkOpen();
+            if ( position >= size() ) return -1;
+
+            int count = 0;
+            while ( dst.hasRemaining() && position < size ) {
+                long index = position / blockSize;
+                ByteBuffer block = getBlock( index ).duplicate();
+                block.position( (int) (position - index * blockSize) );
+                if ( block.remaining() > dst.remaining() ) block.limit( block.position() + dst.remaining() );
+                int length = block.remaining();
+                dst.put( block );
+                position += length;
+                count += length;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current position.
+     */
+    public long position() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the position. Setting a position past the end of the object is allowed; reads there return -1.
+     */
+    public AtmosObjectChannel position( long newPosition ) throws IOException {
+        if ( newPosition < 0 ) throw new IllegalArgumentException( "negative position" );
+        lock.lock();
+        try {
+            checkOpen();
+            position = newPosition;
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the object.
+     */
+    public long size() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            if ( size < 0 ) {
+                Map<String, Metadata> systemMetadata = atmosApi.getSystemMetadata( identifier, "size", "mtime" );
+                String sizeValue = value( systemMetadata, "size" );
+                if ( sizeValue == null ) throw new AtmosException( "Could not get size of " + identifier );
+                mtime = value( systemMetadata, "mtime" );
+                size = Long.parseLong( sizeValue );
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Not supported; this channel is read-only.
+     */
+    public int write( ByteBuffer src ) {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * Not supported; this channel is read-only.
+     */
+    public AtmosObjectChannel truncate( long size ) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            open = false;
+            if ( blocks != null ) blocks.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of read requests sent so far.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    // must hold lock
+    private ByteBuffer getBlock( long index ) {
+        if ( blocks == null ) {
+            blocks = new LinkedHashMap<Long, ByteBuffer>( 16, 0.75f, true ) {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<Long, ByteBuffer> eldest ) {
+                    return size() > maxCachedBlocks;
+                }
+            };
+        }
+
+        // consecutive blocks mean a sequential scan
+        if ( index == lastBlock + 1 ) sequential = true;
+        else if ( index != lastBlock ) sequential = false;
+        lastBlock = index;
+
+        ByteBuffer block = blocks.get( index );
+        if ( block != null ) return block;
+
+        long lastIndex = (size - 1) / blockSize;
+        long endIndex = index;
+        if ( sequential ) {
+            // read ahead, but stop at a block we already have and don't push out what we are about to read
+            int limit = Math.min( readAheadBlocks, maxCachedBlocks - 1 );
+            while ( endIndex < lastIndex && endIndex - index < limit && !blocks.containsKey( endIndex + 1 ) ) {
+                endIndex++;
+            }
+        }
+        fetch( index, endIndex );
+        return blocks.get( index );
+    }
+
+    // must hold lock
+    private void fetch( long firstIndex, long lastIndex ) {
+        Range range = new Range( firstIndex * blockSize, Math.min( size, (lastIndex + 1) * blockSize ) - 1 );
+        requestCount.incrementAndGet();
+        ReadObjectResponse<InputStream> response = atmosApi.readObjectStream( identifier, range );
+        InputStream in = response.getObject();
+        try {
+            String newMtime = value( response.getMetadata().getMetadata(), "mtime" );
+            if ( mtime != null && newMtime != null && !mtime.equals( newMtime ) )
+                throw new AtmosException( "Object " + identifier + " changed while open (mtime was " + mtime
+                                          + ", now " + newMtime + ")" );
+
+            byte[] buffer = directBuffers ? new byte[8192] : null;
+            for ( long index = firstIndex; index <= lastIndex; index++ ) {
+                int length = (int) (Math.min( size, (index + 1) * blockSize ) - index * blockSize);
+                ByteBuffer block;
+                if ( directBuffers ) {
+                    block = ByteBuffer.allocateDirect( length );
+                    while ( block.hasRemaining() ) {
+                        int c = in.read( buffer, 0, Math.min( buffer.length, block.remaining() ) );
+                        if ( c == -1 ) throw new EOFException( "Premature end of " + range + " of " + identifier );
+                        block.put( buffer, 0, c );
+                    }
+                    block.flip();
+                } else {
+                    byte[] bytes = new byte[length];
+                    int read = 0;
+                    while ( read < length ) {
+                        int c = in.read( bytes, read, length - read );
+                        if ( c == -1 ) throw new EOFException( "Premature end of " + range + " of " + identifier );
+                        read += c;
+                    }
+                    block = ByteBuffer.wrap( bytes );
+                }
+                blocks.put( index, block.asReadOnlyBuffer() );
+            }
+        } catch ( IOException e ) {
+            throw new AtmosException( "Could not read " + range + " of " + identifier, e );
+        } finally {
+            try {
+                in.close();
+            } catch ( IOException e ) {
+                // ignore
+            }
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if ( !open ) throw new ClosedChannelException();
+    }
+
+    private String value( Map<String, Metadata> metadata, String name ) {
+        Metadata m = metadata.get( name );
+        return m == null ? null : m.getValue();
+    }
+
+    public AtmosApi getAtmosApi() {
+        return atmosApi;
+    }
+
+    public ObjectIdentifier getIdentifier() {
+        return identifier;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the size of the blocks fetched and cached. Default is 256KB.
+     */
+    public void setBlockSize( int blockSize ) {
+        if ( blockSize <= 0 ) throw new IllegalArgumentException( "blockSize must be positive" );
+        this.blockSize = blockSize;
+    }
+
+    public int getMaxCachedBlocks() {
+        return maxCachedBlocks;
+    }
+
+    /**
+     * Sets the number of blocks kept in the cache; the least recently used block is dropped first. Memory use is
+     * bounded by maxCachedBlocks * blockSize. Default is 64.
+     */
+    public void setMaxCachedBlocks( int maxCachedBlocks ) {
+        if ( maxCachedBlocks <= 0 ) throw new IllegalArgumentException( "maxCachedBlocks must be positive" );
+        this.maxCachedBlocks = maxCachedBlocks;
+    }
+
+    public int getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+
+    /**
+     * Sets the number of blocks fetched ahead during sequential reads. Set to 0 to disable read-ahead. Default is 4.
+     */
+    public void setReadAheadBlocks( int readAheadBlocks ) {
+        this.readAheadBlocks = readAheadBlocks;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    /**
+     * Sets whether cached blocks are held off-heap (direct buffers). Default is false.
+     */
+    public void setDirectBuffers( boolean directBuffers ) {
+        this.directBuffers = directBuffers;
+    }
+}
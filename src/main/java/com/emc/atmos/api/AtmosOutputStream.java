@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.CreateObjectResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import com.emc.util.ThreadUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an object of unknown length. Written data is collected into chunks of chunkSize bytes; the first chunk
+ * creates the object (using the supplied create request for the identifier, metadata, ACL, etc.) and each following
+ * chunk is appended with a ranged update. This avoids staging content of unknown size on disk just to learn its
+ * length.
+ * <p/>
+ * By default, chunks are uploaded in the writing thread. If queueDepth is greater than zero, chunks are uploaded in
+ * order by a background task while the caller keeps writing; at most queueDepth chunks wait to be uploaded, so memory
+ * use is bounded by (queueDepth + 1) * chunkSize. Chunk buffers are reused.
+ * <p/>
+ * If the create request has a {@link RunningChecksum} as its wschecksum, it is updated with each chunk and sent with
+ * every request so the server can verify the content. Any other wschecksum is rejected, since a fixed value would not
+ * match the first chunk. Metadata set with {@link #setCloseMetadata(Metadata...)} is
+ * applied when the stream is closed (i.e. values only known after writing everything). Note that {@link #flush()}
+ * does not send a partial chunk, since that would only result in many small appends.
+ * <pre>
+ *     AtmosOutputStream out = new AtmosOutputStream( atmosApi, new CreateObjectRequest().identifier( path ) );
+ *     ... // write content
+ *     out.close();
+ *     ObjectId objectId = out.getObjectId();
+ * </pre>
+ * Settings must be changed before the first write.
+ */
+public class AtmosOutputStream extends OutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024; // 4MB
+
+    private static final Chunk END = new Chunk( null, 0 );
+
+    private AtmosApi atmosApi;
+    private CreateObjectRequest createRequest;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int queueDepth = 0;
+    private Executor executor;
+    private Metadata[] closeMetadata;
+
+    private RunningChecksum checksum;
+    private byte[] chunk;
+    private int count;
+    private int chunksSent = 0;
+    private boolean closed = false;
+
+    // async mode
+    private BlockingQueue<byte[]> freeChunks;
+    private BlockingQueue<Chunk> pendingChunks;
+    private int allocatedChunks;
+    private CountDownLatch uploaderDone;
+    private volatile Throwable failure;
+
+    // owned by the uploading thread (guarded by uploaderDone in async mode)
+    private volatile CreateObjectResponse createResponse;
+    private volatile long offset = 0;
+
+    /**
+     * Writes a new object with no identifier (an object ID will be assigned).
+     */
+    public AtmosOutputStream( AtmosApi atmosApi ) {
+        this( atmosApi, new CreateObjectRequest() );
+    }
+
+    /**
+     * Writes a new object as described by createRequest (its content is replaced with the first chunk).
+     *
+     * @throws IllegalArgumentException if createRequest has a wschecksum that is not a {@link RunningChecksum}
+     */
+    public AtmosOutputStream( AtmosApi atmosApi, CreateObjectRequest createRequest ) {
+        ChecksumValue wsChecksum = createRequest.getWsChecksum();
+        if ( wsChecksum != null && !(wsChecksum instanceof RunningChecksum) )
+            throw new IllegalArgumentException( "wschecksum must be a RunningChecksum to be sent with each chunk" );
+        this.atmosApi = atmosApi;
+        this.createRequest = createRequest;
+        this.checksum = (RunningChecksum) wsChecksum;
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        write( new byte[]{(byte) b}, 0, 1 );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        if ( closed ) throw new IOException( "Stream closed" );
+        checkFailure();
+        while ( len > 0 ) {
+            if ( chunk == null ) chunk = nextChunk();
+            int c = Math.min( len, chunk.length - count );
+            System.arraycopy( b, off, chunk, count, c );
+            count += c;
+            off += c;
+            len -= c;
+            if ( count == chunk.length ) sendChunk();
+        }
+    }
+
+    /**
+     * Sends any remaining data, waits for all chunks to be uploaded and applies the close metadata. If the stream was
+     * empty, an empty object is created.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( closed ) return;
+        closed = true;
+        try {
+            boolean uploaderFinished = true;
+            try {
+                checkFailure();
+                if ( count > 0 || chunksSent == 0 ) {
+                    if ( chunk == null ) chunk = new byte[0];
+                    sendChunk();
+                }
+            } finally {
+                // always stop the uploader, even after a failure, so it doesn't wait for chunks forever
+                if ( pendingChunks != null ) uploaderFinished = finishUploader();
+            }
+            if ( !uploaderFinished ) throw new InterruptedIOException( "Interrupted while waiting for upload" );
+            checkFailure();
+            if ( closeMetadata != null && closeMetadata.length > 0 )
+                atmosApi.setUserMetadata( createResponse.getObjectId(), closeMetadata );
+        } catch ( AtmosException e ) {
+            throw new IOException( "Could not complete object: " + e, e );
+        }
+    }
+
+    /**
+     * Returns the response to the create request (available once the first chunk is uploaded).
+     */
+    public CreateObjectResponse getCreateResponse() {
+        return createResponse;
+    }
+
+    /**
+     * Returns the ID of the object (available once the first chunk is uploaded).
+     */
+    public ObjectId getObjectId() {
+        return createResponse == null ? null : createResponse.getObjectId();
+    }
+
+    /**
+     * Returns the number of bytes written (and uploaded if the stream is closed).
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    private byte[] nextChunk() throws IOException {
+        if ( queueDepth <= 0 ) return new byte[chunkSize];
+
+        if ( pendingChunks == null ) {
+            freeChunks = new LinkedBlockingQueue<byte[]>();
+            pendingChunks = new LinkedBlockingQueue<Chunk>();
+            uploaderDone = new CountDownLatch( 1 );
+            getExecutor().execute( new Uploader() );
+        }
+        byte[] next = freeChunks.poll();
+        if ( next == null && allocatedChunks <= queueDepth ) {
+            allocatedChunks++;
+            return new byte[chunkSize];
+        }
+        try {
+            while ( next == null ) {
+                checkFailure();
+                next = freeChunks.poll( 100, TimeUnit.MILLISECONDS );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for a chunk to be uploaded" );
+        }
+        return next;
+    }
+
+    private void sendChunk() throws IOException {
+        if ( pendingChunks == null ) {
+            try {
+                upload( chunk, count );
+            } catch ( AtmosException e ) {
+                failure = e;
+                throw new IOException( "Could not write chunk at offset " + offset + ": " + e, e );
+            }
+        } else {
+            pendingChunks.add( new Chunk( chunk, count ) );
+            chunk = null;
+        }
+        chunksSent++;
+        count = 0;
+    }
+
+    private void upload( byte[] buffer, int length ) {
+        BufferSegment segment = new BufferSegment( buffer, 0, length );
+        if ( checksum != null ) checksum.update( buffer, 0, length );
+        if ( createResponse == null ) {
+            createRequest.content( segment );
+            createResponse = atmosApi.createObject( createRequest );
+        } else {
+            UpdateObjectRequest request = new UpdateObjectRequest().identifier( createResponse.getObjectId() );
+            request.range( new Range( offset, offset + length - 1 ) );
+            request.content( segment ).contentType( createRequest.getContentType() );
+            if ( checksum != null ) request.wsChecksum( checksum );
+            atmosApi.updateObject( request );
+        }
+        offset += length;
+    }
+
+    /**
+     * Queues the end marker and waits for the uploader to finish. Returns false if interrupted.
+     */
+    private boolean finishUploader() {
+        pendingChunks.add( END );
+        try {
+            uploaderDone.await();
+            return true;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if ( t == null ) return;
+        if ( t instanceof IOException ) throw (IOException) t;
+        throw new IOException( "Upload failed: " + t, t );
+    }
+
+    /**
+     * Uploads queued chunks in order. After a failure, chunks are still returned to the pool so the writer doesn't
+     * block; the failure is reported on the next write or close.
+     */
+    private class Uploader implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while ( true ) {
+                    Chunk next = pendingChunks.take();
+                    if ( next == END ) break;
+                    try {
+                        if ( failure == null ) upload( next.buffer, next.length );
+                    } catch ( Throwable t ) {
+                        failure = t;
+                    }
+                    freeChunks.add( next.buffer );
+                }
+            } catch ( InterruptedException e ) {
+                failure = new InterruptedIOException( "Interrupted while uploading" );
+            } finally {
+                uploaderDone.countDown();
+            }
+        }
+    }
+
+    private static final class DefaultExecutor {
+        static final Executor INSTANCE = ThreadUtil.newDaemonExecutor( "atmos-output" );
+    }
+
+    private static class Chunk {
+        final byte[] buffer;
+        final int length;
+
+        Chunk( byte[] buffer, int length ) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Returns the size of each chunk (append request).
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the size of each chunk (append request). Default is 4MB.
+     */
+    public void setChunkSize( int chunkSize ) {
+        if ( chunkSize <= 0 ) throw new IllegalArgumentException( "chunkSize must be positive" );
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the number of chunks that may wait to be uploaded in the background.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Sets the number of chunks that may wait to be uploaded in the background. Default is 0 (chunks are uploaded in
+     * the writing thread).
+     */
+    public void setQueueDepth( int queueDepth ) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Returns the executor used to upload chunks in the background.
+     */
+    public Executor getExecutor() {
+        return executor == null ? DefaultExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * Sets the executor used to upload chunks in the background. By default, a shared cached pool of daemon threads is
+     * used.
+     */
+    public void setExecutor( Executor executor ) {
+        this.executor = executor;
+    }
+
+    public Metadata[] getCloseMetadata() {
+        return closeMetadata;
+    }
+
+    /**
+     * Sets user metadata to apply to the object when the stream is closed.
+     */
+    public void setCloseMetadata( Metadata... closeMetadata ) {
+        this.closeMetadata = closeMetadata;
+    }
+}
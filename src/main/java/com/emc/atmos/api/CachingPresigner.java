@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.api.request.ContentRequest;
+import com.emc.atmos.api.request.ObjectRequest;
+import com.emc.atmos.api.request.PreSignedRequest;
+import com.emc.atmos.api.request.Request;
+
+import javax.crypto.Mac;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates shareable URLs and pre-signed requests like {@link AtmosApi#getShareableUrl(ObjectIdentifier, Date,
+ * String)} and {@link AtmosApi#preSignRequest(Request, Date)}, for callers that sign the same objects over and over
+ * (i.e. a web front end handing out links to hot content).
+ * <p/>
+ * Expiration dates are rounded up to the end of a window (windowSeconds, 5 minutes by default), so every caller
+ * asking for a link to the same object within a window gets the same link, and each link is signed only once and
+ * then served from a cache. A link is valid at least until the expiration asked for and at most windowSeconds
+ * longer. A cached link always points to the endpoint chosen when it was first signed. The HMAC key is set up once
+ * and cloned for each signing, and the batch methods sign any number of identifiers with a single clone.
+ * <p/>
+ * The cache holds up to maxCachedEntries links, grouped by the window they expire at. Expired windows are dropped
+ * whole, and if the cache is full of live links, the window that expires first is dropped to make room, so adding a
+ * link never scans the cache. Changing the token ID or secret key in the config empties the cache.
+ * <pre>
+ *     CachingPresigner presigner = new CachingPresigner( config );
+ *     URL url = presigner.getShareableUrl( id, new Date( System.currentTimeMillis() + 3600000 ) );
+ * </pre>
+ */
+public class CachingPresigner {
+    public static final int DEFAULT_WINDOW_SECONDS = 300; // 5 minutes
+    public static final int DEFAULT_MAX_CACHED_ENTRIES = 10000;
+
+    private AtmosConfig config;
+    private int windowSeconds = DEFAULT_WINDOW_SECONDS;
+    private int maxCachedEntries = DEFAULT_MAX_CACHED_ENTRIES;
+
+    private final AtomicReference<Signer> signer = new AtomicReference<Signer>();
+    private final ConcurrentSkipListMap<Long, ConcurrentHashMap<String, Object>> buckets
+            = new ConcurrentSkipListMap<Long, ConcurrentHashMap<String, Object>>();
+    private final AtomicInteger cacheSize = new AtomicInteger();
+
+    public CachingPresigner( AtmosConfig config ) {
+        this.config = config;
+    }
+
+    public URL getShareableUrl( ObjectIdentifier identifier, Date expiration ) throws MalformedURLException {
+        return getShareableUrl( identifier, expiration, null );
+    }
+
+    /**
+     * Returns a shareable URL for the object that expires at the end of the window containing expiration.
+     *
+     * @see AtmosApi#getShareableUrl(ObjectIdentifier, Date, String)
+     */
+    public URL getShareableUrl( ObjectIdentifier identifier, Date expiration, String disposition )
+            throws MalformedURLException {
+        return getShareableUrls( Collections.singletonList( identifier ), expiration, disposition ).get( 0 );
+    }
+
+    /**
+     * Returns shareable URLs for all of the objects (in the same order), all expiring at the end of the window
+     * containing expiration.
+     */
+    public List<URL> getShareableUrls( List<? extends ObjectIdentifier> identifiers, Date expiration,
+                                       String disposition ) throws MalformedURLException {
+        Signer signer = getSigner();
+        long expiresTime = roundUp( expiration.getTime() ) / 1000;
+        Mac mac = null;
+
+        List<URL> urls = new ArrayList<URL>( identifiers.size() );
+        for ( ObjectIdentifier identifier : identifiers ) {
+            if ( identifier instanceof ObjectKey )
+                throw new IllegalArgumentException( "You cannot create shareable URLs using a key; try using the object ID" );
+
+            String key = "GET\n" + identifier.getRelativeResourcePath() + '\n' + disposition;
+            Object url = lookup( expiresTime * 1000, key );
+            if ( url == null ) {
+                if ( mac == null ) mac = signer.newMac();
+                URI uri = config.resolvePath( identifier.getRelativeResourcePath(), null,
+                                              new RequestContext( identifier, "GET", -1 ) );
+                url = cache( expiresTime * 1000, key,
+                             AbstractAtmosApi.signShareableUrl( uri, expiresTime, disposition, signer.tokenId, mac ) );
+            }
+            urls.add( (URL) url );
+        }
+        return urls;
+    }
+
+    /**
+     * Pre-signs the request so that it expires at the end of the window containing expiration. Requests with the
+     * same method, path, query, content type and headers share one signature per window (pre-signed requests are
+     * immutable, so the same instance is returned to each of them).
+     *
+     * @see AtmosApi#preSignRequest(Request, Date)
+     */
+    public PreSignedRequest preSignRequest( Request request, Date expiration ) throws MalformedURLException {
+        return preSignRequests( Collections.singletonList( request ), expiration ).get( 0 );
+    }
+
+    /**
+     * Pre-signs all of the requests (in the same order), all expiring at the end of the window containing
+     * expiration.
+     */
+    public List<PreSignedRequest> preSignRequests( List<? extends Request> requests, Date expiration )
+            throws MalformedURLException {
+        Signer signer = getSigner();
+        Date expires = new Date( roundUp( expiration.getTime() ) );
+        Mac mac = null;
+
+        List<PreSignedRequest> signed = new ArrayList<PreSignedRequest>( requests.size() );
+        for ( Request request : requests ) {
+            String key = request.getMethod() + '\n' + request.getServiceRelativePath() + '?' + request.getQuery()
+                         + '\n' + request.generateHeaders( config.isEncodeUtf8() );
+            // the content type is signed separately from the other headers
+            if ( request instanceof ContentRequest ) key += '\n' + ((ContentRequest) request).getContentType();
+            Object preSigned = lookup( expires.getTime(), key );
+            if ( preSigned == null ) {
+                if ( mac == null ) mac = signer.newMac();
+                RequestContext context = null;
+                if ( request instanceof ObjectRequest )
+                    context = new RequestContext( ((ObjectRequest<?>) request).getIdentifier(), request.getMethod(),
+                                                  -1 );
+                URI uri = config.resolvePath( request.getServiceRelativePath(), request.getQuery(), context );
+                preSigned = cache( expires.getTime(), key,
+                                   AbstractAtmosApi.signRequest( request, uri, expires, config, mac ) );
+            }
+            signed.add( (PreSignedRequest) preSigned );
+        }
+        return signed;
+    }
+
+    /**
+     * Returns the number of links currently cached.
+     */
+    public int getCacheSize() {
+        return cacheSize.get();
+    }
+
+    public void clearCache() {
+        buckets.clear();
+        recount();
+    }
+
+    private long roundUp( long timeMs ) {
+        long windowMs = windowSeconds * 1000L;
+        if ( windowMs == 0 ) return timeMs;
+        return (timeMs + windowMs - 1) / windowMs * windowMs;
+    }
+
+    private Object lookup( long expiresMs, String key ) {
+        Map<String, Object> bucket = buckets.get( expiresMs );
+        return bucket == null ? null : bucket.get( key );
+    }
+
+    /**
+     * Adds a link to the window expiring at expiresMs, first dropping expired windows (and the window expiring first
+     * if the cache is still full). Returns the cached link, which is another thread's if it got there first.
+     */
+    private Object cache( long expiresMs, String key, Object value ) {
+        long now = System.currentTimeMillis();
+        boolean dropped = false;
+        Map.Entry<Long, ConcurrentHashMap<String, Object>> first;
+        while ( (first = buckets.firstEntry()) != null && first.getKey() <= now ) {
+            dropped |= buckets.remove( first.getKey(), first.getValue() );
+        }
+        if ( cacheSize.get() >= maxCachedEntries && (first = buckets.firstEntry()) != null )
+            dropped |= buckets.remove( first.getKey(), first.getValue() );
+        if ( dropped ) recount();
+
+        ConcurrentHashMap<String, Object> bucket = buckets.get( expiresMs );
+        if ( bucket == null ) {
+            ConcurrentHashMap<String, Object> fresh = new ConcurrentHashMap<String, Object>();
+            bucket = buckets.putIfAbsent( expiresMs, fresh );
+            if ( bucket == null ) bucket = fresh;
+        }
+        Object existing = bucket.putIfAbsent( key, value );
+        if ( existing != null ) return existing;
+        cacheSize.incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Recomputes the cache size from the windows (one step per window, not per link). This also corrects any
+     * count lost to a link added to a window while it was being dropped.
+     */
+    private void recount() {
+        int size = 0;
+        for ( Map<String, Object> bucket : buckets.values() ) {
+            size += bucket.size();
+        }
+        cacheSize.set( size );
+    }
+
+    /**
+     * Returns the signer for the config's current credentials, starting over (with an empty cache) if they changed.
+     */
+    private Signer getSigner() {
+        Signer current = signer.get();
+        if ( current == null || !current.matches( config.getTokenId(), config.getSecretKey() ) ) {
+            Signer fresh = new Signer( config.getTokenId(), config.getSecretKey() );
+            if ( signer.compareAndSet( current, fresh ) ) clearCache();
+            current = signer.get();
+        }
+        return current;
+    }
+
+    public AtmosConfig getConfig() {
+        return config;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Sets the window that expiration dates are rounded up to. Larger windows mean more cache hits and links that
+     * may outlive the expiration asked for by up to this long. 0 disables rounding. Default is 300 (5 minutes).
+     */
+    public void setWindowSeconds( int windowSeconds ) {
+        if ( windowSeconds < 0 ) throw new IllegalArgumentException( "windowSeconds must not be negative" );
+        this.windowSeconds = windowSeconds;
+    }
+
+    public int getMaxCachedEntries() {
+        return maxCachedEntries;
+    }
+
+    /**
+     * Sets the most links kept in the cache. Default is 10000.
+     */
+    public void setMaxCachedEntries( int maxCachedEntries ) {
+        this.maxCachedEntries = maxCachedEntries;
+    }
+
+    /**
+     * A Mac initialized once with the secret key. Macs are not thread-safe, so each signing thread gets a clone.
+     */
+    private static class Signer {
+        final String tokenId;
+        final byte[] secretKey;
+        final Mac prototype;
+
+        Signer( String tokenId, byte[] secretKey ) {
+            this.tokenId = tokenId;
+            this.secretKey = secretKey.clone();
+            this.prototype = RestUtil.newMac( secretKey );
+        }
+
+        boolean matches( String tokenId, byte[] secretKey ) {
+            return this.tokenId.equals( tokenId ) && Arrays.equals( this.secretKey, secretKey );
+        }
+
+        Mac newMac() {
+            try {
+                return (Mac) prototype.clone();
+            } catch ( CloneNotSupportedException e ) {
+                return RestUtil.newMac( secretKey );
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Content held in a list of fixed-size chunks borrowed from a {@link BufferPool}. Call {@link #release()} when done
+ * so the chunks can be reused; the content may not be accessed after that.
+ */
+public class ChunkedContent {
+    private final BufferPool pool;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private long size;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Reads a stream into pooled chunks. If length is known (>= 0), exactly the chunks needed are acquired up front
+     * and reading stops after length bytes; otherwise the stream is read to its end. The stream is not closed.
+     */
+    public static ChunkedContent read( InputStream in, long length, BufferPool pool ) throws IOException {
+        ChunkedContent content = new ChunkedContent( pool );
+        try {
+            content.fill( in, length );
+            return content;
+        } catch ( IOException e ) {
+            content.release();
+            throw e;
+        } catch ( RuntimeException e ) {
+            content.release();
+            throw e;
+        }
+    }
+
+    protected ChunkedContent( BufferPool pool ) {
+        this.pool = pool;
+    }
+
+    protected void fill( InputStream in, long length ) throws IOException {
+        int chunkSize = pool.getChunkSize();
+        if ( length >= 0 ) {
+            for ( long i = (length + chunkSize - 1) / chunkSize; i > 0; i-- ) {
+                chunks.add( pool.acquire() );
+            }
+        }
+
+        int chunkIndex = 0, position = 0;
+        while ( length < 0 || size < length ) {
+            if ( chunkIndex == chunks.size() ) chunks.add( pool.acquire() );
+            byte[] chunk = chunks.get( chunkIndex );
+            int count = chunk.length - position;
+            if ( length >= 0 ) count = (int) Math.min( count, length - size );
+
+            int c = in.read( chunk, position, count );
+            if ( c == -1 ) break;
+            position += c;
+            size += c;
+            if ( position == chunk.length ) {
+                chunkIndex++;
+                position = 0;
+            }
+        }
+
+        if ( length >= 0 && size < length )
+            throw new EOFException( "Premature end of stream (read " + size + " of " + length + ")" );
+
+        // an unknown length may leave an unused chunk at the end
+        while ( chunks.size() > (size + chunkSize - 1) / chunkSize ) {
+            pool.release( chunks.remove( chunks.size() - 1 ) );
+        }
+    }
+
+    /**
+     * Returns the size of the content in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of chunks holding the content.
+     */
+    public int getChunkCount() {
+        checkReleased();
+        return chunks.size();
+    }
+
+    /**
+     * Returns a buffer over each chunk, limited to the content it holds. The buffers share the chunks, so they are
+     * only valid until the content is released.
+     */
+    public ByteBuffer[] getBuffers() {
+        checkReleased();
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for ( int i = 0; i < buffers.length; i++ ) {
+            buffers[i] = ByteBuffer.wrap( chunks.get( i ), 0, chunkLength( i ) );
+        }
+        return buffers;
+    }
+
+    /**
+     * Copies the content into buffer at its current position.
+     *
+     * @throws BufferOverflowException if the buffer does not have enough space remaining (nothing is copied)
+     */
+    public void copyTo( ByteBuffer buffer ) {
+        checkReleased();
+        if ( buffer.remaining() < size ) throw new BufferOverflowException();
+        for ( int i = 0; i < chunks.size(); i++ ) {
+            buffer.put( chunks.get( i ), 0, chunkLength( i ) );
+        }
+    }
+
+    /**
+     * Writes the content to out.
+     */
+    public void writeTo( OutputStream out ) throws IOException {
+        checkReleased();
+        for ( int i = 0; i < chunks.size(); i++ ) {
+            out.write( chunks.get( i ), 0, chunkLength( i ) );
+        }
+    }
+
+    /**
+     * Returns a stream over the content. The stream is only valid until the content is released.
+     */
+    public InputStream getInputStream() {
+        checkReleased();
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Returns the content as a single array. Avoid this for large contents; it defeats the purpose of chunking.
+     */
+    public byte[] toByteArray() {
+        checkReleased();
+        if ( size > Integer.MAX_VALUE ) throw new UnsupportedOperationException( "content is too large for an array" );
+        byte[] bytes = new byte[(int) size];
+        copyTo( ByteBuffer.wrap( bytes ) );
+        return bytes;
+    }
+
+    /**
+     * Returns the chunks to the pool. Safe to call more than once.
+     */
+    public void release() {
+        if ( !released.compareAndSet( false, true ) ) return;
+        for ( byte[] chunk : chunks ) {
+            pool.release( chunk );
+        }
+        chunks.clear();
+    }
+
+    private int chunkLength( int index ) {
+        long start = (long) index * pool.getChunkSize();
+        return (int) Math.min( pool.getChunkSize(), size - start );
+    }
+
+    private void checkReleased() {
+        if ( released.get() ) throw new IllegalStateException( "content has been released" );
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private int chunkIndex, position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            checkReleased();
+            if ( len == 0 ) return 0;
+            while ( chunkIndex < chunks.size() && position == chunkLength( chunkIndex ) ) {
+                chunkIndex++;
+                position = 0;
+            }
+            if ( chunkIndex >= chunks.size() ) return -1;
+            int count = Math.min( len, chunkLength( chunkIndex ) - position );
+            System.arraycopy( chunks.get( chunkIndex ), position, b, off, count );
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if ( released.get() || chunkIndex >= chunks.size() ) return 0;
+            return chunkLength( chunkIndex ) - position;
+        }
+    }
+}
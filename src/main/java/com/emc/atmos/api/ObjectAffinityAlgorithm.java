@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.LoadBalancingAlgorithm;
+import com.emc.atmos.RoundRobinAlgorithm;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Routes all requests for the same object (or, by default, for all objects in the same directory) to the same
+ * endpoint. This keeps the node's caches warm and avoids MDS sync delays when an object is written and then read
+ * (from any thread), while still spreading objects across all endpoints.
+ * <p/>
+ * Objects are mapped onto endpoints with consistent hashing (each endpoint owns virtualNodes points on a hash ring),
+ * so adding or removing an endpoint only moves the objects on that endpoint. To keep a hot object or directory from
+ * overloading one node, the load on each endpoint (requests in the current window) is bounded to loadFactor times the
+ * average (but never below minLoad, so light traffic keeps full affinity); when an endpoint is at its bound, the
+ * next endpoint on the ring is used.
+ * <p/>
+ * Requests that don't operate on an object use round-robin.
+ * <pre>
+ *     config.setLoadBalancingAlgorithm( new ObjectAffinityAlgorithm() );
+ * </pre>
+ */
+public class ObjectAffinityAlgorithm implements ContextAwareLoadBalancingAlgorithm {
+    public static final int DEFAULT_VIRTUAL_NODES = 100;
+    public static final double DEFAULT_LOAD_FACTOR = 1.25;
+    public static final long DEFAULT_LOAD_WINDOW = 1000; // ms
+    public static final int DEFAULT_MIN_LOAD = 32;
+
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private double loadFactor = DEFAULT_LOAD_FACTOR;
+    private long loadWindow = DEFAULT_LOAD_WINDOW;
+    private int minLoad = DEFAULT_MIN_LOAD;
+    private boolean groupByParent = true;
+    private LoadBalancingAlgorithm fallback = new RoundRobinAlgorithm();
+
+    private volatile Ring ring;
+
+    @Override
+    public URI getNextEndpoint( URI[] endpoints ) {
+        return fallback.getNextEndpoint( endpoints );
+    }
+
+    @Override
+    public URI getNextEndpoint( URI[] endpoints, RequestContext context ) {
+        String key = getAffinityKey( context.getIdentifier() );
+        if ( key == null || endpoints.length == 1 ) return getNextEndpoint( endpoints );
+        return getRing( endpoints ).choose( hash( key ) );
+    }
+
+    /**
+     * Returns the key used to place the identifier on the ring. By default, files in the same directory share their
+     * parent path as key; directories use their own path.
+     */
+    protected String getAffinityKey( ObjectIdentifier identifier ) {
+        if ( identifier == null ) return null;
+        if ( identifier instanceof ObjectPath ) {
+            String path = ((ObjectPath) identifier).getPath();
+            if ( !groupByParent || path.endsWith( "/" ) ) return path;
+            return path.substring( 0, path.lastIndexOf( '/' ) + 1 );
+        }
+        if ( identifier instanceof ObjectKey ) {
+            ObjectKey key = (ObjectKey) identifier;
+            return key.getBucket() + "/" + key.getKey();
+        }
+        return identifier.toString();
+    }
+
+    private Ring getRing( URI[] endpoints ) {
+        Ring current = ring;
+        if ( current == null || !Arrays.equals( current.endpoints, endpoints ) ) {
+            current = new Ring( endpoints.clone() );
+            ring = current;
+        }
+        return current;
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche step (from MurmurHash3) so similar keys spread evenly.
+     */
+    static long hash( String key ) {
+        long h = 0xcbf29ce484222325L;
+        for ( int i = 0; i < key.length(); i++ ) {
+            h ^= key.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Immutable hash ring for one set of endpoints, plus the load counters for the current window.
+     */
+    private class Ring {
+        final URI[] endpoints;
+        final long[] points;
+        final int[] owners;
+        final AtomicLongArray loads;
+        final AtomicLong windowStart = new AtomicLong( System.currentTimeMillis() );
+
+        Ring( URI[] endpoints ) {
+            this.endpoints = endpoints;
+            int nodes = Math.max( 1, virtualNodes );
+            long[][] entries = new long[endpoints.length * nodes][];
+            for ( int i = 0; i < endpoints.length; i++ ) {
+                for ( int v = 0; v < nodes; v++ ) {
+                    entries[i * nodes + v] = new long[]{hash( endpoints[i] + "#" + v ), i};
+                }
+            }
+            Arrays.sort( entries, new Comparator<long[]>() {
+                @Override
+                public int compare( long[] a, long[] b ) {
+                    return a[0] < b[0] ? -1 : (a[0] == b[0] ? (int) (a[1] - b[1]) : 1);
+                }
+            } );
+            points = new long[entries.length];
+            owners = new int[entries.length];
+            for ( int i = 0; i < entries.length; i++ ) {
+                points[i] = entries[i][0];
+                owners[i] = (int) entries[i][1];
+            }
+            loads = new AtomicLongArray( endpoints.length );
+        }
+
+        URI choose( long hash ) {
+            resetWindowIfExpired();
+
+            long total = 0;
+            for ( int i = 0; i < endpoints.length; i++ ) total += loads.get( i );
+            long capacity = Math.max( minLoad, (long) Math.ceil( loadFactor * (total + 1) / endpoints.length ) );
+
+            int start = Arrays.binarySearch( points, hash );
+            if ( start < 0 ) start = -start - 1;
+
+            // walk clockwise from the key's position to the first endpoint that isn't at capacity
+            boolean[] checked = new boolean[endpoints.length];
+            int remaining = endpoints.length;
+            for ( int i = 0; i < points.length && remaining > 0; i++ ) {
+                int owner = owners[(start + i) % points.length];
+                if ( checked[owner] ) continue;
+                checked[owner] = true;
+                remaining--;
+                if ( loads.get( owner ) < capacity ) {
+                    loads.incrementAndGet( owner );
+                    return endpoints[owner];
+                }
+            }
+
+            // all at capacity (possible under races); use the key's own endpoint
+            int owner = owners[start % points.length];
+            loads.incrementAndGet( owner );
+            return endpoints[owner];
+        }
+
+        private void resetWindowIfExpired() {
+            long start = windowStart.get();
+            long now = System.currentTimeMillis();
+            if ( now - start >= loadWindow && windowStart.compareAndSet( start, now ) ) {
+                for ( int i = 0; i < endpoints.length; i++ ) loads.set( i, 0 );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of points each endpoint owns on the hash ring.
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Sets the number of points each endpoint owns on the hash ring. More points spread objects more evenly. Default
+     * is 100.
+     */
+    public void setVirtualNodes( int virtualNodes ) {
+        this.virtualNodes = virtualNodes;
+        this.ring = null;
+    }
+
+    /**
+     * Returns the maximum load of any endpoint relative to the average load.
+     */
+    public double getLoadFactor() {
+        return loadFactor;
+    }
+
+    /**
+     * Sets the maximum load of any endpoint relative to the average load (must be at least 1). Lower values spread
+     * hot objects sooner at the cost of affinity. Default is 1.25.
+     */
+    public void setLoadFactor( double loadFactor ) {
+        if ( loadFactor < 1 ) throw new IllegalArgumentException( "loadFactor must be at least 1" );
+        this.loadFactor = loadFactor;
+    }
+
+    /**
+     * Returns the length of the window in milliseconds over which endpoint load is counted.
+     */
+    public long getLoadWindow() {
+        return loadWindow;
+    }
+
+    /**
+     * Sets the length of the window in milliseconds over which endpoint load is counted. Default is 1000.
+     */
+    public void setLoadWindow( long loadWindow ) {
+        this.loadWindow = loadWindow;
+    }
+
+    /**
+     * Returns the number of requests per window an endpoint may always receive before its load is bounded.
+     */
+    public int getMinLoad() {
+        return minLoad;
+    }
+
+    /**
+     * Sets the number of requests per window an endpoint may always receive before its load is bounded. Default is
+     * 32.
+     */
+    public void setMinLoad( int minLoad ) {
+        this.minLoad = minLoad;
+    }
+
+    /**
+     * Returns whether files are routed by their parent directory (rather than their own path).
+     */
+    public boolean isGroupByParent() {
+        return groupByParent;
+    }
+
+    /**
+     * Sets whether files are routed by their parent directory (rather than their own path), so that directory
+     * listings and operations on the files in that directory go to the same node. Default is true.
+     */
+    public void setGroupByParent( boolean groupByParent ) {
+        this.groupByParent = groupByParent;
+    }
+
+    /**
+     * Returns the algorithm used for requests that don't operate on an object.
+     */
+    public LoadBalancingAlgorithm getFallback() {
+        return fallback;
+    }
+
+    /**
+     * Sets the algorithm used for requests that don't operate on an object. Default is round-robin.
+     */
+    public void setFallback( LoadBalancingAlgorithm fallback ) {
+        this.fallback = fallback;
+    }
+}
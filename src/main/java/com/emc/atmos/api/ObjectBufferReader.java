@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.BasicResponse;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.util.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads objects into buffers the caller controls instead of into a new array per read. Use
+ * {@link #read(ObjectIdentifier, Range, ByteBuffer)} to fill a (possibly direct) buffer you reuse, or
+ * {@link #read(ObjectIdentifier, Range)} to get the content in pooled chunks sized exactly from the Content-Length of
+ * the response. Either way, a multi-MB object no longer means a multi-MB allocation.
+ * <p/>
+ * Works with any {@link AtmosApi} implementation (reads go through {@link AtmosApi#readObjectStream}).
+ * <pre>
+ *     ObjectBufferReader reader = new ObjectBufferReader( atmos );
+ *     ChunkedContent content = reader.read( id, null ).getObject();
+ *     try {
+ *         content.writeTo( out );
+ *     } finally {
+ *         content.release();
+ *     }
+ * </pre>
+ */
+public class ObjectBufferReader {
+    private static final BufferPool DEFAULT_POOL = new BufferPool();
+
+    private AtmosApi api;
+    private BufferPool bufferPool = DEFAULT_POOL;
+
+    public ObjectBufferReader( AtmosApi api ) {
+        this.api = api;
+    }
+
+    /**
+     * Reads an object (or a range of it if range is not null) into buffer, starting at its current position. On
+     * return, the buffer's position is advanced past the content. If the content does not fit in the remaining space
+     * of the buffer, an AtmosException is thrown; when the response declares its length, this happens before anything
+     * is read.
+     */
+    public ReadObjectResponse<ByteBuffer> read( ObjectIdentifier identifier, Range range, ByteBuffer buffer ) {
+        ReadObjectResponse<InputStream> response = api.readObjectStream( identifier, range );
+        InputStream in = response.getObject();
+        try {
+            long length = response.getContentLength();
+            if ( length > buffer.remaining() )
+                throw new AtmosException( "Content (" + length + " bytes) does not fit in buffer ("
+                                          + buffer.remaining() + " bytes remaining)" );
+
+            if ( buffer.hasArray() ) {
+                readArray( in, buffer, length );
+            } else {
+                byte[] chunk = bufferPool.acquire();
+                try {
+                    readDirect( in, buffer, length, chunk );
+                } finally {
+                    bufferPool.release( chunk );
+                }
+            }
+
+            return copyResponse( response, new ReadObjectResponse<ByteBuffer>( buffer ) );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error reading object content", e );
+        } finally {
+            close( in );
+        }
+    }
+
+    /**
+     * Reads an object (or a range of it if range is not null) into chunks from the buffer pool. The caller must
+     * {@link ChunkedContent#release() release} the content when finished with it.
+     */
+    public ReadObjectResponse<ChunkedContent> read( ObjectIdentifier identifier, Range range ) {
+        ReadObjectResponse<InputStream> response = api.readObjectStream( identifier, range );
+        InputStream in = response.getObject();
+        try {
+            ChunkedContent content = ChunkedContent.read( in, response.getContentLength(), bufferPool );
+            return copyResponse( response, new ReadObjectResponse<ChunkedContent>( content ) );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error reading object content", e );
+        } finally {
+            close( in );
+        }
+    }
+
+    protected void readArray( InputStream in, ByteBuffer buffer, long length ) throws IOException {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        int count = length >= 0 ? (int) length : buffer.remaining();
+        int read = 0, c;
+        while ( read < count && (c = in.read( array, offset + read, count - read )) != -1 ) {
+            read += c;
+        }
+        buffer.position( buffer.position() + read );
+        checkEnd( in, length, read );
+    }
+
+    protected void readDirect( InputStream in, ByteBuffer buffer, long length, byte[] chunk ) throws IOException {
+        int count = length >= 0 ? (int) length : buffer.remaining();
+        int read = 0, c;
+        while ( read < count && (c = in.read( chunk, 0, Math.min( chunk.length, count - read ) )) != -1 ) {
+            buffer.put( chunk, 0, c );
+            read += c;
+        }
+        checkEnd( in, length, read );
+    }
+
+    private void checkEnd( InputStream in, long length, int read ) throws IOException {
+        if ( length >= 0 && read < length )
+            throw new AtmosException( "Premature end of content (read " + read + " of " + length + ")" );
+        if ( length < 0 && in.read() != -1 )
+            throw new AtmosException( "Content does not fit in buffer (" + read + " bytes)" );
+    }
+
+    private <T extends BasicResponse> T copyResponse( BasicResponse from, T to ) {
+        to.setHttpStatus( from.getHttpStatus() );
+        to.setHttpMessage( from.getHttpMessage() );
+        to.setHeaders( from.getHeaders() );
+        to.setContentType( from.getContentType() );
+        to.setContentLength( from.getContentLength() );
+        to.setLocation( from.getLocation() );
+        to.setLastModified( from.getLastModified() );
+        to.setDate( from.getDate() );
+        return to;
+    }
+
+    private void close( InputStream in ) {
+        try {
+            if ( in != null ) in.close();
+        } catch ( IOException e ) {
+            // ignore
+        }
+    }
+
+    public AtmosApi getApi() {
+        return api;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool chunks are borrowed from. Default is a pool of 64KB chunks shared by all readers.
+     */
+    public void setBufferPool( BufferPool bufferPool ) {
+        this.bufferPool = bufferPool;
+    }
+}
@@ -34,6 +34,7 @@ import javax.xml.bind.annotation.XmlValue;
  */
 public class ObjectId implements ObjectIdentifier {
     private String id;
+    private String relativeResourcePath;
 
     public ObjectId( String id ) {
         this.id = id;
@@ -47,7 +48,8 @@ public class ObjectId implements ObjectIdentifier {
     @Override
     @XmlTransient
     public String getRelativeResourcePath() {
-        return "objects/" + id;
+        if ( relativeResourcePath == null ) relativeResourcePath = "objects/" + id;
+        return relativeResourcePath;
     }
 
     @Override
@@ -32,6 +32,7 @@ package com.emc.atmos.api;
 public class ObjectKey implements ObjectIdentifier {
     private String bucket;
     private String key;
+    private String relativeResourcePath;
 
     public ObjectKey( String bucket, String key ) {
         this.bucket = bucket;
@@ -48,7 +49,8 @@ public class ObjectKey implements ObjectIdentifier {
 
     @Override
     public String getRelativeResourcePath() {
-        return "namespace/" + key;
+        if ( relativeResourcePath == null ) relativeResourcePath = "namespace/" + key;
+        return relativeResourcePath;
     }
 
     @Override
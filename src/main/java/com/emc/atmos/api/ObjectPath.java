@@ -35,6 +35,7 @@ import com.emc.atmos.api.bean.DirectoryEntry;
  */
 public class ObjectPath implements ObjectIdentifier {
     private String path;
+    private String relativeResourcePath;
 
     public ObjectPath( String path ) {
         this.path = cleanPath( path );
@@ -71,7 +72,9 @@ public class ObjectPath implements ObjectIdentifier {
 
     @Override
     public String getRelativeResourcePath() {
-        return "namespace" + path;
+        // identifiers are often reused for several calls; build the path once
+        if ( relativeResourcePath == null ) relativeResourcePath = "namespace" + path;
+        return relativeResourcePath;
     }
 
     @Override
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.multipart.MultipartEntity;
+import com.emc.atmos.api.multipart.MultipartPart;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.util.ThreadUtil;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reads many (possibly small, scattered and overlapping) ranges of an object with as few round trips as makes sense.
+ * The caller's ranges are sorted and merged when they overlap or are separated by no more than maxGapBytes (reading
+ * a small gap is cheaper than another request). Merged spans larger than maxRequestBytes are split. The resulting
+ * spans are then packed into requests: up to maxMultipartRanges spans (and maxRequestBytes) per request, so many small
+ * spans go out as one multipart request while large spans get a single-range request each. Requests are sent in
+ * parallel, up to parallelism at a time, and the results are mapped back to the caller's original ranges.
+ * <pre>
+ *     List&lt;byte[]&gt; data = new RangeReadPlanner( atmos ).read( id, ranges ); // data.get( i ) is ranges.get( i )
+ * </pre>
+ * Set maxMultipartRanges to 1 to never use multipart requests.
+ */
+public class RangeReadPlanner {
+    private static final Logger l4j = Logger.getLogger( RangeReadPlanner.class );
+
+    public static final long DEFAULT_MAX_GAP_BYTES = 64 * 1024; // 64KB
+    public static final long DEFAULT_MAX_REQUEST_BYTES = 4 * 1024 * 1024; // 4MB
+    public static final int DEFAULT_MAX_MULTIPART_RANGES = 32;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private AtmosApi api;
+    private long maxGapBytes = DEFAULT_MAX_GAP_BYTES;
+    private long maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+    private int maxMultipartRanges = DEFAULT_MAX_MULTIPART_RANGES;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private Executor executor;
+
+    public RangeReadPlanner( AtmosApi api ) {
+        this.api = api;
+    }
+
+    /**
+     * Plans the requests needed to read ranges without sending them.
+     */
+    public Plan plan( List<Range> ranges ) {
+        List<Range> sorted = new ArrayList<Range>( ranges );
+        for ( Range range : sorted ) {
+            if ( range.getFirst() < 0 || range.getLast() < range.getFirst() )
+                throw new IllegalArgumentException( "invalid range " + range );
+        }
+        Collections.sort( sorted, FIRST_BYTE_ORDER );
+
+        // coalesce overlapping, adjacent and nearby ranges
+        List<Range> spans = new ArrayList<Range>();
+        long first = -1, last = -1;
+        for ( Range range : sorted ) {
+            if ( first >= 0 && range.getFirst() - last - 1 <= maxGapBytes ) {
+                last = Math.max( last, range.getLast() );
+            } else {
+                if ( first >= 0 ) split( first, last, spans );
+                first = range.getFirst();
+                last = range.getLast();
+            }
+        }
+        if ( first >= 0 ) split( first, last, spans );
+
+        // pack spans into requests
+        List<List<Range>> requests = new ArrayList<List<Range>>();
+        List<Range> request = null;
+        long requestBytes = 0;
+        for ( Range span : spans ) {
+            if ( request == null || request.size() >= maxMultipartRanges
+                 || requestBytes + span.getSize() > maxRequestBytes ) {
+                request = new ArrayList<Range>();
+                requests.add( request );
+                requestBytes = 0;
+            }
+            request.add( span );
+            requestBytes += span.getSize();
+        }
+
+        return new Plan( requests );
+    }
+
+    /**
+     * Reads ranges of an object. The returned list holds the data for each range in the same order as ranges.
+     */
+    public List<byte[]> read( final ObjectIdentifier identifier, List<Range> ranges ) {
+        final Plan plan = plan( ranges );
+        if ( l4j.isDebugEnabled() )
+            l4j.debug( ranges.size() + " ranges planned as " + plan.getRequests().size() + " request(s) for "
+                       + plan.getRequestedBytes() + " bytes" );
+
+        // each worker takes the next unsent request until there are none left
+        final AtomicReferenceArray<List<Piece>> results = new AtomicReferenceArray<List<Piece>>(
+                plan.getRequests().size() );
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ( (index = next.getAndIncrement()) < plan.getRequests().size() ) {
+                    results.set( index, execute( identifier, plan.getRequests().get( index ) ) );
+                }
+            }
+        };
+
+        int workers = Math.min( parallelism, plan.getRequests().size() );
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+        for ( int i = 1; i < workers; i++ ) {
+            FutureTask<Object> task = new FutureTask<Object>( worker, null );
+            tasks.add( task );
+            getExecutor().execute( task );
+        }
+        try {
+            worker.run();
+        } catch ( RuntimeException e ) {
+            next.set( plan.getRequests().size() ); // stop the other workers
+            throw e;
+        }
+        for ( FutureTask<Object> task : tasks ) {
+            try {
+                task.get();
+            } catch ( InterruptedException e ) {
+                throw new AtmosException( "Interrupted while reading ranges", e );
+            } catch ( ExecutionException e ) {
+                next.set( plan.getRequests().size() );
+                if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+                throw new AtmosException( "Error reading ranges", e.getCause() );
+            }
+        }
+
+        List<Piece> pieces = new ArrayList<Piece>();
+        for ( int i = 0; i < results.length(); i++ ) {
+            pieces.addAll( results.get( i ) );
+        }
+        Collections.sort( pieces );
+
+        List<byte[]> data = new ArrayList<byte[]>( ranges.size() );
+        for ( Range range : ranges ) {
+            data.add( extract( range, pieces ) );
+        }
+        return data;
+    }
+
+    protected List<Piece> execute( ObjectIdentifier identifier, List<Range> request ) {
+        ReadObjectRequest readRequest = new ReadObjectRequest().identifier( identifier );
+        readRequest.setRanges( request );
+        List<Piece> pieces = new ArrayList<Piece>();
+        try {
+            if ( request.size() == 1 ) {
+                pieces.add( new Piece( request.get( 0 ).getFirst(),
+                                       api.readObject( readRequest, byte[].class ).getObject() ) );
+            } else {
+                for ( MultipartPart part : api.readObject( readRequest, MultipartEntity.class ).getObject() ) {
+                    pieces.add( new Piece( part.getContentRange().getFirst(), part.getData() ) );
+                }
+            }
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error reading ranges " + request, e );
+        }
+        return pieces;
+    }
+
+    private void split( long first, long last, List<Range> spans ) {
+        for ( long start = first; start <= last; start += maxRequestBytes ) {
+            spans.add( new Range( start, Math.min( last, start + maxRequestBytes - 1 ) ) );
+        }
+    }
+
+    private byte[] extract( Range range, List<Piece> pieces ) {
+        if ( range.getSize() > Integer.MAX_VALUE ) throw new AtmosException( "range " + range + " is too large" );
+        byte[] data = new byte[(int) range.getSize()];
+
+        // find the last piece starting at or before the range
+        int low = 0, high = pieces.size() - 1, index = -1;
+        while ( low <= high ) {
+            int mid = (low + high) >>> 1;
+            if ( pieces.get( mid ).first <= range.getFirst() ) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        long position = range.getFirst();
+        for ( int i = Math.max( index, 0 ); i < pieces.size() && position <= range.getLast(); i++ ) {
+            Piece piece = pieces.get( i );
+            if ( piece.first > position ) break;
+            long pieceLast = piece.first + piece.data.length - 1;
+            if ( pieceLast < position ) continue;
+            int count = (int) (Math.min( pieceLast, range.getLast() ) - position + 1);
+            System.arraycopy( piece.data, (int) (position - piece.first), data, (int) (position - range.getFirst()),
+                              count );
+            position += count;
+        }
+        if ( position <= range.getLast() )
+            throw new AtmosException( "Response did not cover range " + range + " (bytes from " + position
+                                      + " are missing)" );
+        return data;
+    }
+
+    public AtmosApi getApi() {
+        return api;
+    }
+
+    /**
+     * Returns the largest gap between two ranges that is read rather than split into separate spans.
+     */
+    public long getMaxGapBytes() {
+        return maxGapBytes;
+    }
+
+    /**
+     * Sets the largest gap between two ranges that is read rather than split into separate spans. Set to -1 to only
+     * merge overlapping ranges.
+     * Default is 64KB.
+     */
+    public void setMaxGapBytes( long maxGapBytes ) {
+        this.maxGapBytes = maxGapBytes;
+    }
+
+    /**
+     * Returns the most bytes read by a single request.
+     */
+    public long getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    /**
+     * Sets the most bytes read by a single request. Larger spans are split so they can be read in parallel.
+     * Default is 4MB.
+     */
+    public void setMaxRequestBytes( long maxRequestBytes ) {
+        if ( maxRequestBytes <= 0 ) throw new IllegalArgumentException( "maxRequestBytes must be positive" );
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * Returns the most ranges sent in a single (multipart) request.
+     */
+    public int getMaxMultipartRanges() {
+        return maxMultipartRanges;
+    }
+
+    /**
+     * Sets the most ranges sent in a single (multipart) request. Set to 1 to only send single-range requests.
+     * Default is 32.
+     */
+    public void setMaxMultipartRanges( int maxMultipartRanges ) {
+        if ( maxMultipartRanges <= 0 ) throw new IllegalArgumentException( "maxMultipartRanges must be positive" );
+        this.maxMultipartRanges = maxMultipartRanges;
+    }
+
+    /**
+     * Returns the most requests sent at the same time for one read.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the most requests sent at the same time for one read (one of them runs in the calling thread).
+     * Default is 4.
+     */
+    public void setParallelism( int parallelism ) {
+        if ( parallelism <= 0 ) throw new IllegalArgumentException( "parallelism must be positive" );
+        this.parallelism = parallelism;
+    }
+
+    public Executor getExecutor() {
+        return executor == null ? DefaultExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * Sets the executor used to send parallel requests. By default, a shared cached pool of daemon threads is used.
+     */
+    public void setExecutor( Executor executor ) {
+        this.executor = executor;
+    }
+
+    /**
+     * The requests planned for a set of ranges. Each request is a list of ranges; requests with more than one range
+     * are sent as multipart requests.
+     */
+    public static class Plan {
+        private List<List<Range>> requests;
+
+        public Plan( List<List<Range>> requests ) {
+            this.requests = requests;
+        }
+
+        public List<List<Range>> getRequests() {
+            return requests;
+        }
+
+        /**
+         * Returns the total number of bytes read by the requests, including merged gaps.
+         */
+        public long getRequestedBytes() {
+            long bytes = 0;
+            for ( List<Range> request : requests ) {
+                for ( Range range : request ) {
+                    bytes += range.getSize();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private static class Piece implements Comparable<Piece> {
+        final long first;
+        final byte[] data;
+
+        Piece( long first, byte[] data ) {
+            this.first = first;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo( Piece o ) {
+            return first < o.first ? -1 : (first == o.first ? 0 : 1);
+        }
+    }
+
+    private static final Comparator<Range> FIRST_BYTE_ORDER = new Comparator<Range>() {
+        @Override
+        public int compare( Range r1, Range r2 ) {
+            if ( r1.getFirst() != r2.getFirst() ) return r1.getFirst() < r2.getFirst() ? -1 : 1;
+            return r1.getLast() < r2.getLast() ? -1 : (r1.getLast() == r2.getLast() ? 0 : 1);
+        }
+    };
+
+    static final class DefaultExecutor {
+        static final Executor INSTANCE = ThreadUtil.newDaemonExecutor( "atmos-range" );
+    }
+}
@@ -92,16 +92,21 @@ public final class RestUtil {
     private static final Pattern OBJECTID_PATTERN = Pattern.compile( "/\\w+/objects/([0-9a-f-]{44,})" );
 
     public static String sign( String string, byte[] hashKey ) {
+        return sign( string, newMac( hashKey ) );
+    }
+
+    /**
+     * Signs a string with a Mac already initialized with the secret key (see {@link #newMac(byte[])}). Initializing
+     * the Mac is a good part of the cost of signing, so callers that sign a lot can keep one (or clones of one) around.
+     * Macs are not thread-safe.
+     */
+    public static String sign( String string, Mac mac ) {
         try {
             // Compute the signature hash
             l4j.debug( "Hashing: \n" + string );
 
             byte[] input = string.getBytes( "UTF-8" );
 
-            Mac mac = Mac.getInstance( "HmacSHA1" );
-            SecretKeySpec key = new SecretKeySpec( hashKey, "HmacSHA1" );
-            mac.init( key );
-
             byte[] hashBytes = mac.doFinal( input );
 
             // Encode the hash in Base64.
@@ -115,6 +120,19 @@ public final class RestUtil {
         }
     }
 
+    /**
+     * Returns a new HmacSHA1 Mac initialized with the given secret key.
+     */
+    public static Mac newMac( byte[] hashKey ) {
+        try {
+            Mac mac = Mac.getInstance( "HmacSHA1" );
+            mac.init( new SecretKeySpec( hashKey, "HmacSHA1" ) );
+            return mac;
+        } catch ( Exception e ) {
+            throw new RuntimeException( "Error initializing HmacSHA1", e );
+        }
+    }
+
     /**
      * Generates the HMAC-SHA1 signature used to authenticate the request using
      * the Java security APIs, then adds the uid and signature to the headers.
@@ -126,11 +144,20 @@ public final class RestUtil {
      */
     public static void signRequest( String method, String path, String query, Map<String, List<Object>> headers,
                                     String uid, byte[] hashKey, long serverClockSkew ) {
+        signRequest( method, path, query, headers, uid, newMac( hashKey ), serverClockSkew );
+    }
+
+    /**
+     * Same as {@link #signRequest(String, String, String, Map, String, byte[], long)}, with a Mac already initialized
+     * with the secret key.
+     */
+    public static void signRequest( String method, String path, String query, Map<String, List<Object>> headers,
+                                    String uid, Mac mac, long serverClockSkew ) {
 
         // Add date header
-        Date serverTime = new Date( System.currentTimeMillis() - serverClockSkew );
-        headers.put( HEADER_DATE, Arrays.asList( (Object) HttpUtil.headerFormat( serverTime ) ) );
-        headers.put( XHEADER_DATE, Arrays.asList( (Object) HttpUtil.headerFormat( serverTime ) ) );
+        String serverTime = HttpUtil.headerFormat( new Date( System.currentTimeMillis() - serverClockSkew ) );
+        headers.put( HEADER_DATE, Arrays.asList( (Object) serverTime ) );
+        headers.put( XHEADER_DATE, Arrays.asList( (Object) serverTime ) );
 
         // Add uid to headers
         if ( !headers.containsKey( XHEADER_UID ) )
@@ -166,7 +193,7 @@ public final class RestUtil {
             if ( i.hasNext() ) builder.append( "\n" );
         }
 
-        String hash = sign( builder.toString(), hashKey );
+        String hash = sign( builder.toString(), mac );
 
         // Add signature to headers
         headers.put( XHEADER_SIGNATURE, Arrays.asList( (Object) hash ) );
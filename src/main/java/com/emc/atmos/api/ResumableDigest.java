@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+/**
+ * Pure-java MD5, SHA-0 and SHA-1 implementation whose intermediate state can be exported and restored. A
+ * MessageDigest's state is opaque, which makes it impossible to continue a running checksum in another process (i.e.
+ * when resuming an upload).
+ */
+class ResumableDigest implements Cloneable {
+    private static final int BLOCK_SIZE = 64;
+
+    private ChecksumAlgorithm algorithm;
+    private int[] h;
+    private long count;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int[] w;
+
+    public ResumableDigest( ChecksumAlgorithm algorithm ) {
+        this.algorithm = algorithm;
+        if ( algorithm == ChecksumAlgorithm.MD5 ) {
+            h = new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476};
+            w = new int[16];
+        } else {
+            h = new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0};
+            w = new int[80];
+        }
+    }
+
+    /**
+     * Restores a digest from a state previously returned by {@link #getState()}.
+     */
+    public ResumableDigest( ChecksumAlgorithm algorithm, byte[] state ) {
+        this( algorithm );
+        int expectedLength = 8 + h.length * 4;
+        if ( state.length < expectedLength || state.length >= expectedLength + BLOCK_SIZE )
+            throw new IllegalArgumentException( "Invalid digest state" );
+        count = readLong( state, 0 );
+        for ( int i = 0; i < h.length; i++ ) {
+            h[i] = readInt( state, 8 + i * 4 );
+        }
+        int partial = (int) (count % BLOCK_SIZE);
+        if ( state.length != expectedLength + partial ) throw new IllegalArgumentException( "Invalid digest state" );
+        System.arraycopy( state, expectedLength, block, 0, partial );
+    }
+
+    public void update( byte[] buffer, int offset, int length ) {
+        int partial = (int) (count % BLOCK_SIZE);
+        count += length;
+
+        // fill the pending block first
+        if ( partial > 0 ) {
+            int c = Math.min( length, BLOCK_SIZE - partial );
+            System.arraycopy( buffer, offset, block, partial, c );
+            offset += c;
+            length -= c;
+            if ( partial + c < BLOCK_SIZE ) return;
+            process( block, 0 );
+        }
+
+        while ( length >= BLOCK_SIZE ) {
+            process( buffer, offset );
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+
+        System.arraycopy( buffer, offset, block, 0, length );
+    }
+
+    /**
+     * Returns the digest of the data so far. Does not reset or otherwise change the state of this digest.
+     */
+    public byte[] digest() {
+        ResumableDigest tmp = clone();
+
+        // pad with 0x80, zeros and the message length in bits
+        int partial = (int) (count % BLOCK_SIZE);
+        int padLength = (partial < 56 ? 56 : 120) - partial;
+        byte[] padding = new byte[padLength + 8];
+        padding[0] = (byte) 0x80;
+        long bits = count << 3;
+        for ( int i = 0; i < 8; i++ ) {
+            int shift = algorithm == ChecksumAlgorithm.MD5 ? i * 8 : (7 - i) * 8;
+            padding[padLength + i] = (byte) (bits >>> shift);
+        }
+        tmp.update( padding, 0, padding.length );
+
+        byte[] out = new byte[h.length * 4];
+        for ( int i = 0; i < h.length; i++ ) {
+            if ( algorithm == ChecksumAlgorithm.MD5 ) writeIntLE( tmp.h[i], out, i * 4 );
+            else writeInt( tmp.h[i], out, i * 4 );
+        }
+        return out;
+    }
+
+    /**
+     * Returns the intermediate state of this digest (byte count, chaining variables and any partial block).
+     */
+    public byte[] getState() {
+        int partial = (int) (count % BLOCK_SIZE);
+        byte[] state = new byte[8 + h.length * 4 + partial];
+        writeLong( count, state, 0 );
+        for ( int i = 0; i < h.length; i++ ) {
+            writeInt( h[i], state, 8 + i * 4 );
+        }
+        System.arraycopy( block, 0, state, 8 + h.length * 4, partial );
+        return state;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public ChecksumAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public ResumableDigest clone() {
+        try {
+            ResumableDigest clone = (ResumableDigest) super.clone();
+            clone.h = h.clone();
+            clone.block = block.clone();
+            clone.w = new int[w.length];
+            return clone;
+        } catch ( CloneNotSupportedException e ) {
+            throw new RuntimeException( "Clone failed", e );
+        }
+    }
+
+    private void process( byte[] buffer, int offset ) {
+        if ( algorithm == ChecksumAlgorithm.MD5 ) processMd5( buffer, offset );
+        else processSha( buffer, offset );
+    }
+
+    private static final int[] MD5_S = {
+            7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+            5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+            4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+            6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21};
+
+    private static final int[] MD5_K = new int[64];
+
+    static {
+        for ( int i = 0; i < 64; i++ ) {
+            MD5_K[i] = (int) (long) Math.floor( Math.abs( Math.sin( i + 1 ) ) * 4294967296.0 );
+        }
+    }
+
+    private void processMd5( byte[] buffer, int offset ) {
+        for ( int i = 0; i < 16; i++ ) {
+            w[i] = readIntLE( buffer, offset + i * 4 );
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3];
+        for ( int i = 0; i < 64; i++ ) {
+            int f, g;
+            if ( i < 16 ) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if ( i < 32 ) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) & 15;
+            } else if ( i < 48 ) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) & 15;
+            }
+            int tmp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft( a + f + MD5_K[i] + w[g], MD5_S[i] );
+            a = tmp;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+    }
+
+    private void processSha( byte[] buffer, int offset ) {
+        for ( int i = 0; i < 16; i++ ) {
+            w[i] = readInt( buffer, offset + i * 4 );
+        }
+        for ( int i = 16; i < 80; i++ ) {
+            int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            // the rotate is the only difference between SHA-1 and SHA-0
+            w[i] = algorithm == ChecksumAlgorithm.SHA0 ? x : Integer.rotateLeft( x, 1 );
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+        for ( int i = 0; i < 80; i++ ) {
+            int f, k;
+            if ( i < 20 ) {
+                f = (b & c) | (~b & d);
+                k = 0x5a827999;
+            } else if ( i < 40 ) {
+                f = b ^ c ^ d;
+                k = 0x6ed9eba1;
+            } else if ( i < 60 ) {
+                f = (b & c) | (b & d) | (c & d);
+                k = 0x8f1bbcdc;
+            } else {
+                f = b ^ c ^ d;
+                k = 0xca62c1d6;
+            }
+            int tmp = Integer.rotateLeft( a, 5 ) + f + e + k + w[i];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft( b, 30 );
+            b = a;
+            a = tmp;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+    }
+
+    private static int readInt( byte[] b, int off ) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static int readIntLE( byte[] b, int off ) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    private static long readLong( byte[] b, int off ) {
+        return ((long) readInt( b, off ) << 32) | (readInt( b, off + 4 ) & 0xffffffffL);
+    }
+
+    private static void writeInt( int v, byte[] b, int off ) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void writeIntLE( int v, byte[] b, int off ) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    private static void writeLong( long v, byte[] b, int off ) {
+        writeInt( (int) (v >>> 32), b, off );
+        writeInt( (int) v, b, off + 4 );
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Uploads a file in parts (a create followed by ranged appends) and records each committed part in a local checkpoint
+ * file. If the upload is interrupted (even if the JVM dies), calling {@link #upload()} again with the same file and
+ * checkpoint file will continue where it left off instead of starting over.
+ * <p/>
+ * When a checksum algorithm is set, a wschecksum is sent with every part and the running checksum state is saved in
+ * the checkpoint, so the server can still verify the complete object after a resume.
+ * <p/>
+ * On resume, the checkpoint is reconciled with the actual size of the object on the server. If the server has more
+ * data than the checkpoint (the process died after a part was committed but before the checkpoint was written), the
+ * checksum is advanced by reading the missing bytes from the local file. If the server has less data, the upload can
+ * only be resumed without a checksum.
+ * <pre>
+ *     ResumableUpload upload = new ResumableUpload( atmosApi, file, new File( file.getPath() + ".checkpoint" ) );
+ *     upload.setChecksumAlgorithm( ChecksumAlgorithm.SHA1 );
+ *     ObjectIdentifier identifier = upload.upload();
+ * </pre>
+ * Note that if the process dies after the object is created but before the first checkpoint is written, the created
+ * object will not be known to the next attempt.
+ */
+public class ResumableUpload {
+    private static final Logger l4j = Logger.getLogger( ResumableUpload.class );
+
+    public static final int DEFAULT_PART_SIZE = 4 * 1024 * 1024; // 4MB
+
+    private static final String PROP_OBJECT_ID = "objectId";
+    private static final String PROP_FILE_LENGTH = "file.length";
+    private static final String PROP_FILE_LAST_MODIFIED = "file.lastModified";
+    private static final String PROP_OFFSET = "offset";
+    private static final String PROP_CHECKSUM = "checksum";
+
+    private AtmosApi atmosApi;
+    private File file;
+    private File checkpointFile;
+    private ObjectIdentifier identifier;
+    private String contentType;
+    private Metadata[] userMetadata;
+    private ChecksumAlgorithm checksumAlgorithm;
+    private int partSize = DEFAULT_PART_SIZE;
+
+    public ResumableUpload( AtmosApi atmosApi, File file, File checkpointFile ) {
+        this.atmosApi = atmosApi;
+        this.file = file;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Uploads the file, resuming a previous attempt if the checkpoint file exists. The checkpoint file is deleted when
+     * the upload completes.
+     *
+     * @return the identifier of the object (the configured identifier or the ID of the created object)
+     */
+    public ObjectIdentifier upload() throws IOException {
+        long fileLength = file.length(), lastModified = file.lastModified();
+
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            byte[] buffer = new byte[(int) Math.min( partSize, Math.max( fileLength, 1 ) )];
+            ObjectId objectId;
+            long offset;
+            RunningChecksum checksum;
+
+            if ( checkpointFile.exists() ) {
+                Properties checkpoint = loadCheckpoint();
+                if ( fileLength != Long.parseLong( checkpoint.getProperty( PROP_FILE_LENGTH ) )
+                     || lastModified != Long.parseLong( checkpoint.getProperty( PROP_FILE_LAST_MODIFIED ) ) )
+                    throw new AtmosException( file + " has changed since the upload was started; delete "
+                                              + checkpointFile + " to start over" );
+
+                objectId = new ObjectId( checkpoint.getProperty( PROP_OBJECT_ID ) );
+                offset = Long.parseLong( checkpoint.getProperty( PROP_OFFSET ) );
+                String checksumState = checkpoint.getProperty( PROP_CHECKSUM );
+                checksum = checksumState == null ? null : new RunningChecksum( checksumState );
+
+                // reconcile with the server
+                long serverSize = getServerSize( objectId );
+                if ( serverSize > fileLength )
+                    throw new AtmosException( "Object " + objectId + " is larger than " + file );
+                if ( serverSize < offset ) {
+                    if ( checksum != null )
+                        throw new AtmosException( "Object " + objectId + " has " + serverSize + " bytes, but "
+                                                  + offset + " were committed; cannot resume with a checksum" );
+                } else if ( serverSize > offset && checksum != null ) {
+                    // the last part was committed, but the checkpoint was not written
+                    raf.seek( offset );
+                    while ( offset < serverSize ) {
+                        int c = (int) Math.min( buffer.length, serverSize - offset );
+                        raf.readFully( buffer, 0, c );
+                        checksum.update( buffer, 0, c );
+                        offset += c;
+                    }
+                }
+                offset = serverSize;
+                l4j.info( "resuming upload of " + file + " to " + objectId + " at offset " + offset );
+            } else {
+                checksum = createChecksum();
+
+                // send the first part with the create request
+                int c = (int) Math.min( buffer.length, fileLength );
+                raf.readFully( buffer, 0, c );
+                CreateObjectRequest request = new CreateObjectRequest().identifier( identifier );
+                request.content( new BufferSegment( buffer, 0, c ) ).contentType( contentType );
+                if ( userMetadata != null ) request.userMetadata( userMetadata );
+                if ( checksum != null ) {
+                    checksum.update( buffer, 0, c );
+                    request.wsChecksum( checksum );
+                }
+                objectId = atmosApi.createObject( request ).getObjectId();
+                offset = c;
+                saveCheckpoint( objectId, offset, checksum, fileLength, lastModified );
+            }
+
+            // append the remaining parts
+            raf.seek( offset );
+            while ( offset < fileLength ) {
+                int c = (int) Math.min( buffer.length, fileLength - offset );
+                raf.readFully( buffer, 0, c );
+                UpdateObjectRequest request = new UpdateObjectRequest().identifier( objectId );
+                request.range( new Range( offset, offset + c - 1 ) );
+                request.content( new BufferSegment( buffer, 0, c ) ).contentType( contentType );
+                if ( checksum != null ) {
+                    checksum.update( buffer, 0, c );
+                    request.wsChecksum( checksum );
+                }
+                atmosApi.updateObject( request );
+                offset += c;
+                saveCheckpoint( objectId, offset, checksum, fileLength, lastModified );
+            }
+
+            if ( !checkpointFile.delete() )
+                l4j.warn( "could not delete checkpoint file " + checkpointFile );
+
+            return identifier == null ? objectId : identifier;
+        } finally {
+            raf.close();
+        }
+    }
+
+    protected long getServerSize( ObjectId objectId ) {
+        Map<String, Metadata> systemMetadata = atmosApi.getSystemMetadata( objectId, "size" );
+        Metadata size = systemMetadata.get( "size" );
+        if ( size == null ) throw new AtmosException( "Could not get size of " + objectId );
+        return Long.parseLong( size.getValue() );
+    }
+
+    protected RunningChecksum createChecksum() {
+        if ( checksumAlgorithm == null ) return null;
+        try {
+            return new RunningChecksum( checksumAlgorithm, true );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new AtmosException( "Checksum algorithm not available: " + checksumAlgorithm, e );
+        }
+    }
+
+    protected Properties loadCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        InputStream in = new FileInputStream( checkpointFile );
+        try {
+            checkpoint.load( in );
+        } finally {
+            in.close();
+        }
+        if ( checkpoint.getProperty( PROP_OBJECT_ID ) == null || checkpoint.getProperty( PROP_OFFSET ) == null )
+            throw new AtmosException( "Invalid checkpoint file " + checkpointFile );
+        return checkpoint;
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and renames it over the old one so a crash can never leave a partial
+     * checkpoint behind.
+     */
+    protected void saveCheckpoint( ObjectId objectId, long offset, RunningChecksum checksum,
+                                   long fileLength, long lastModified ) throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty( PROP_OBJECT_ID, objectId.getId() );
+        checkpoint.setProperty( PROP_OFFSET, Long.toString( offset ) );
+        checkpoint.setProperty( PROP_FILE_LENGTH, Long.toString( fileLength ) );
+        checkpoint.setProperty( PROP_FILE_LAST_MODIFIED, Long.toString( lastModified ) );
+        if ( checksum != null ) checkpoint.setProperty( PROP_CHECKSUM, checksum.getState() );
+
+        File tempFile = new File( checkpointFile.getPath() + ".tmp" );
+        FileOutputStream out = new FileOutputStream( tempFile );
+        try {
+            checkpoint.store( out, "upload of " + file );
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if ( !tempFile.renameTo( checkpointFile ) ) {
+            // some platforms won't rename over an existing file
+            if ( !checkpointFile.delete() || !tempFile.renameTo( checkpointFile ) )
+                throw new IOException( "Could not write checkpoint file " + checkpointFile );
+        }
+    }
+
+    /**
+     * Returns the identifier to create the object with (null to create an object by ID).
+     */
+    public ObjectIdentifier getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Sets the identifier (path or key) to create the object with. If null, the object is created by ID.
+     * Default is null.
+     */
+    public void setIdentifier( ObjectIdentifier identifier ) {
+        this.identifier = identifier;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType( String contentType ) {
+        this.contentType = contentType;
+    }
+
+    public Metadata[] getUserMetadata() {
+        return userMetadata;
+    }
+
+    /**
+     * Sets the user metadata to create the object with.
+     */
+    public void setUserMetadata( Metadata... userMetadata ) {
+        this.userMetadata = userMetadata;
+    }
+
+    /**
+     * Returns the algorithm used for the wschecksum (null if no checksum is sent).
+     */
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Sets the algorithm used for the wschecksum. The checksum state is saved with each checkpoint so the checksum
+     * survives a resume.
+     * Default is null (no checksum).
+     */
+    public void setChecksumAlgorithm( ChecksumAlgorithm checksumAlgorithm ) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * Returns the size of each part in bytes.
+     */
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the size of each part in bytes. This is the amount of data that may need to be re-sent after a failure.
+     * Default is 4MB.
+     */
+    public void setPartSize( int partSize ) {
+        this.partSize = partSize;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+
+/**
+ * Reads an object (or a range of it) as a stream that survives connection failures. If reading from the response
+ * stream fails (i.e. a socket reset halfway through a large download), a ranged read is issued for the remainder of
+ * the data and reading continues transparently. With more than one endpoint and round-robin load balancing, the
+ * resumed read will go to a different node.
+ * <p/>
+ * To make sure the object was not changed between the original read and a resumed one, the mtime and size (and
+ * checksums, if the object has them) of each response must match the first response. Otherwise, an IOException is
+ * thrown rather than stitching together two different versions of the object.
+ * <p/>
+ * A resume is attempted up to maxRetries times in a row; the count is reset whenever data is successfully read.
+ * <pre>
+ *     InputStream in = new ResumingInputStream( atmosApi, objectId, null );
+ * </pre>
+ */
+public class ResumingInputStream extends InputStream {
+    private static final Logger l4j = Logger.getLogger( ResumingInputStream.class );
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 500; // ms
+
+    private AtmosApi atmosApi;
+    private ObjectIdentifier identifier;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private ReadObjectResponse<InputStream> response;
+    private InputStream stream;
+    private long position;
+    private long end; // inclusive; -1 until known
+    private String version;
+    private int retries = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens the object for reading. If range is null, the entire object is read.
+     */
+    public ResumingInputStream( AtmosApi atmosApi, ObjectIdentifier identifier, Range range ) {
+        this.atmosApi = atmosApi;
+        this.identifier = identifier;
+        this.position = range == null ? 0 : range.getFirst();
+        this.end = range == null ? -1 : range.getLast();
+
+        open( range );
+        this.version = getVersion( response );
+        if ( end < 0 ) {
+            Long size = getSize( response );
+            if ( size != null ) end = size - 1;
+            else if ( response.getContentLength() >= 0 ) end = response.getContentLength() - 1;
+        } else {
+            // clip to the end of the object
+            Long size = getSize( response );
+            if ( size != null ) end = Math.min( end, size - 1 );
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read( b, 0, 1 );
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( closed ) throw new IOException( "Stream closed" );
+        if ( len == 0 ) return 0;
+        while ( true ) {
+            if ( end >= 0 && position > end ) return -1;
+            IOException failure;
+            try {
+                int c = stream.read( b, off, len );
+                if ( c > 0 ) {
+                    position += c;
+                    retries = 0;
+                    return c;
+                }
+                if ( c == -1 && (end < 0 || position > end) ) return -1;
+                failure = new IOException( "Premature end of stream at offset " + position + " (expected "
+                                           + (end + 1) + " bytes)" );
+            } catch ( IOException e ) {
+                failure = e;
+            }
+            resume( failure );
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if ( closed ) return 0;
+        try {
+            return stream.available();
+        } catch ( IOException e ) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( closed ) return;
+        closed = true;
+        stream.close();
+    }
+
+    /**
+     * Returns the offset in the object of the next byte to be read.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    protected void resume( IOException failure ) throws IOException {
+        while ( true ) {
+            if ( retries >= maxRetries ) throw failure;
+            if ( end < 0 ) throw failure; // the size is unknown, so the remainder can't be requested
+            retries++;
+            l4j.info( "read of " + identifier + " failed at offset " + position + " (" + failure
+                      + "); resuming (retry #" + retries + ")" );
+
+            try {
+                stream.close();
+            } catch ( IOException e ) {
+                l4j.debug( "could not close failed stream", e );
+            }
+
+            try {
+                Thread.sleep( retryDelay * retries );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while resuming read" );
+            }
+
+            try {
+                open( new Range( position, end ) );
+            } catch ( AtmosException e ) {
+                // only server errors are worth retrying
+                if ( e.getHttpCode() < 500 ) throw new IOException( "Could not resume read: " + e, e );
+                failure = new IOException( "Could not resume read: " + e, e );
+                continue;
+            }
+
+            String newVersion = getVersion( response );
+            if ( version != null && !version.equals( newVersion ) ) {
+                stream.close();
+                throw new IOException( "Object " + identifier + " changed during read (was " + version + ", now "
+                                       + newVersion + ")" );
+            }
+            return;
+        }
+    }
+
+    protected void open( Range range ) {
+        response = atmosApi.readObjectStream( identifier, range );
+        stream = response.getObject();
+    }
+
+    /**
+     * Returns a string identifying the version of the object (mtime, size and checksums) to detect changes between
+     * reads.
+     */
+    protected String getVersion( ReadObjectResponse<InputStream> response ) {
+        Map<String, Metadata> metadata = response.getMetadata().getMetadata();
+        StringBuilder version = new StringBuilder();
+        version.append( "mtime=" ).append( value( metadata, "mtime" ) );
+        version.append( ",size=" ).append( value( metadata, "size" ) );
+        ChecksumValue wsChecksum = response.getMetadata().getWsChecksum();
+        if ( wsChecksum != null ) version.append( ",wschecksum=" ).append( wsChecksum );
+        if ( value( metadata, "mtime" ) == null && response.getLastModified() != null )
+            version.append( ",lastModified=" ).append( response.getLastModified().getTime() );
+        return version.toString();
+    }
+
+    private Long getSize( ReadObjectResponse<InputStream> response ) {
+        String size = value( response.getMetadata().getMetadata(), "size" );
+        return size == null ? null : Long.parseLong( size );
+    }
+
+    private String value( Map<String, Metadata> metadata, String name ) {
+        Metadata m = metadata.get( name );
+        return m == null ? null : m.getValue();
+    }
+
+    /**
+     * Returns the number of times in a row a read will be resumed before the failure is thrown to the caller.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times in a row a read will be resumed before the failure is thrown to the caller.
+     * Default is 3.
+     */
+    public void setMaxRetries( int maxRetries ) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the base delay in milliseconds before resuming a read.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the base delay in milliseconds before resuming a read. The delay is multiplied by the retry number.
+     * Default is 500ms.
+     */
+    public void setRetryDelay( long retryDelay ) {
+        this.retryDelay = retryDelay;
+    }
+}
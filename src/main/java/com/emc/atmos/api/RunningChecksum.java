@@ -32,16 +32,43 @@ import java.security.NoSuchAlgorithmException;
 
 /**
  * Used to store, update and compute checksums
+ * <p/>
+ * A checksum created as resumable can export its intermediate state with {@link #getState()}, to be restored later
+ * (even in another process) with {@link #RunningChecksum(String)}. This allows an upload with a wschecksum to be
+ * resumed. Resumable checksums are computed in Java rather than by the platform's (much faster) MessageDigest, so
+ * only use them where the state is needed.
  */
 public class RunningChecksum extends ChecksumValue {
     private ChecksumAlgorithm algorithm;
     private long offset;
     private MessageDigest digest;
+    private ResumableDigest resumableDigest;
 
     public RunningChecksum( ChecksumAlgorithm algorithm ) throws NoSuchAlgorithmException {
+        this( algorithm, false );
+    }
+
+    /**
+     * @param resumable whether {@link #getState()} is supported
+     */
+    public RunningChecksum( ChecksumAlgorithm algorithm, boolean resumable ) throws NoSuchAlgorithmException {
         this.algorithm = algorithm;
         this.offset = 0;
-        this.digest = MessageDigest.getInstance( algorithm.getDigestName() );
+        if ( resumable ) this.resumableDigest = new ResumableDigest( algorithm );
+        else this.digest = MessageDigest.getInstance( algorithm.getDigestName() );
+    }
+
+    /**
+     * Restores a running checksum from a state previously returned by {@link #getState()}.
+     *
+     * @throws IllegalArgumentException if the state is not valid
+     */
+    public RunningChecksum( String state ) {
+        int slash = state.indexOf( '/' );
+        if ( slash < 0 ) throw new IllegalArgumentException( "Invalid checksum state: " + state );
+        this.algorithm = ChecksumAlgorithm.valueOf( state.substring( 0, slash ) );
+        this.resumableDigest = new ResumableDigest( algorithm, fromHex( state.substring( slash + 1 ) ) );
+        this.offset = resumableDigest.getCount();
     }
 
     /**
@@ -52,7 +79,8 @@ public class RunningChecksum extends ChecksumValue {
      * @param length number of bytes to use from buffer starting at offset
      */
     public void update( byte[] buffer, int offset, int length ) {
-        this.digest.update( buffer, offset, length );
+        if ( digest != null ) this.digest.update( buffer, offset, length );
+        else this.resumableDigest.update( buffer, offset, length );
         this.offset += length;
     }
 
@@ -63,6 +91,17 @@ public class RunningChecksum extends ChecksumValue {
         this.update( segment.getBuffer(), segment.getOffset(), segment.getSize() );
     }
 
+    /**
+     * Returns the intermediate state of this checksum as a string of the form ALGORITHM/hex-state. The state can be
+     * persisted and passed to {@link #RunningChecksum(String)} to continue the checksum.
+     *
+     * @throws IllegalStateException if this checksum was not created as resumable
+     */
+    public String getState() {
+        if ( resumableDigest == null ) throw new IllegalStateException( "This checksum is not resumable" );
+        return algorithm.name() + "/" + toHex( resumableDigest.getState() );
+    }
+
     @Override
     public ChecksumAlgorithm getAlgorithm() {
         return algorithm;
@@ -75,19 +114,44 @@ public class RunningChecksum extends ChecksumValue {
 
     @Override
     public String getValue() {
+        byte[] currDigest;
+        if ( digest != null ) {
 
-        // Clone the digest so we can pad current value for output
-        MessageDigest tmpDigest;
-        try {
-            tmpDigest = (MessageDigest) digest.clone();
-        } catch ( CloneNotSupportedException e ) {
-            throw new RuntimeException( "Clone failed", e );
-        }
+            // Clone the digest so we can pad current value for output
+            MessageDigest tmpDigest;
+            try {
+                tmpDigest = (MessageDigest) digest.clone();
+            } catch ( CloneNotSupportedException e ) {
+                throw new RuntimeException( "Clone failed", e );
+            }
+            currDigest = tmpDigest.digest();
+        } else {
 
-        byte[] currDigest = tmpDigest.digest();
+            // digest() does not change the running state
+            currDigest = resumableDigest.digest();
+        }
 
         // convert to hex string
         BigInteger bigInt = new BigInteger( 1, currDigest );
         return String.format( "%0" + (currDigest.length << 1) + "x", bigInt );
     }
-}
\ No newline at end of file
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder hex = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes ) {
+            hex.append( Character.forDigit( (b >> 4) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex( String hex ) {
+        if ( hex.length() % 2 != 0 ) throw new IllegalArgumentException( "Invalid checksum state: " + hex );
+        byte[] bytes = new byte[hex.length() / 2];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            int hi = Character.digit( hex.charAt( i * 2 ), 16 ), lo = Character.digit( hex.charAt( i * 2 + 1 ), 16 );
+            if ( hi < 0 || lo < 0 ) throw new IllegalArgumentException( "Invalid checksum state: " + hex );
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+}
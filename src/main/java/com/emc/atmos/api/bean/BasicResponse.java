@@ -109,7 +109,7 @@ public class BasicResponse {
         this.lastModified = lastModified;
     }
 
-    protected String getFirstHeader( String headerName ) {
+    public String getFirstHeader( String headerName ) {
         if ( headers != null ) {
             List<String> values = headers.get( headerName );
             if ( values != null && !values.isEmpty() ) {
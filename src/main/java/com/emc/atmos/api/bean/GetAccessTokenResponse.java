@@ -29,9 +29,11 @@ package com.emc.atmos.api.bean;
 import com.emc.atmos.api.Acl;
 import com.emc.atmos.api.RestUtil;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 public class GetAccessTokenResponse extends BasicResponse {
     AccessToken token;
-    Acl acl;
+    private final AtomicReference<Acl> acl = new AtomicReference<Acl>();
 
     public GetAccessTokenResponse() {
     }
@@ -48,11 +50,11 @@ public class GetAccessTokenResponse extends BasicResponse {
         this.token = token;
     }
 
-    public synchronized Acl getAcl() {
-        if ( acl == null ) {
-            acl = new Acl( RestUtil.parseAclHeader( getFirstHeader( RestUtil.XHEADER_USER_ACL ) ),
-                           RestUtil.parseAclHeader( getFirstHeader( RestUtil.XHEADER_GROUP_ACL ) ) );
+    public Acl getAcl() {
+        if ( acl.get() == null ) {
+            acl.compareAndSet( null, new Acl( RestUtil.parseAclHeader( getFirstHeader( RestUtil.XHEADER_USER_ACL ) ),
+                                              RestUtil.parseAclHeader( getFirstHeader( RestUtil.XHEADER_GROUP_ACL ) ) ) );
         }
-        return acl;
+        return acl.get();
     }
 }
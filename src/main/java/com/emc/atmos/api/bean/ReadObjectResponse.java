@@ -33,10 +33,11 @@ import com.emc.atmos.api.RestUtil;
 
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ReadObjectResponse<T> extends BasicResponse {
     private T object;
-    private ObjectMetadata metadata;
+    private final AtomicReference<ObjectMetadata> metadata = new AtomicReference<ObjectMetadata>();
 
     public ReadObjectResponse() {
     }
@@ -57,8 +58,9 @@ public class ReadObjectResponse<T> extends BasicResponse {
         return getMetadata( true );
     }
 
-    public synchronized ObjectMetadata getMetadata( boolean decodeUtf8 ) {
-        if ( metadata == null ) {
+    public ObjectMetadata getMetadata( boolean decodeUtf8 ) {
+        // parsed lazily without locking; if threads race, the first parsed instance wins
+        if ( metadata.get() == null ) {
             Acl acl = new Acl( RestUtil.parseAclHeader( getFirstHeader( RestUtil.XHEADER_USER_ACL ) ),
                                RestUtil.parseAclHeader( getFirstHeader( RestUtil.XHEADER_GROUP_ACL ) ) );
 
@@ -75,11 +77,12 @@ public class ReadObjectResponse<T> extends BasicResponse {
                                            new ChecksumValueImpl( getFirstHeader( RestUtil.XHEADER_CONTENT_CHECKSUM ) );
             String retentionPeriod = getFirstHeader(RestUtil.XHEADER_RETENTION_PERIOD);
 
-            metadata = new ObjectMetadata( metaMap, acl, getContentType(), wsChecksum, serverChecksum );
-            if (retentionPeriod != null) metadata.setRetentionPeriod(Long.parseLong(retentionPeriod));
-            metadata.setRetentionPolicy(getFirstHeader(RestUtil.XHEADER_RETENTION_POLICY));
+            ObjectMetadata parsed = new ObjectMetadata( metaMap, acl, getContentType(), wsChecksum, serverChecksum );
+            if (retentionPeriod != null) parsed.setRetentionPeriod(Long.parseLong(retentionPeriod));
+            parsed.setRetentionPolicy(getFirstHeader(RestUtil.XHEADER_RETENTION_POLICY));
+            metadata.compareAndSet( null, parsed );
         }
-        return metadata;
+        return metadata.get();
     }
 
     public ChecksumValue getWsChecksum() {
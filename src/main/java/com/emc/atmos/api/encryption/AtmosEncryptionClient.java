@@ -30,10 +30,12 @@ import com.emc.atmos.AtmosException;
 import com.emc.atmos.api.*;
 import com.emc.atmos.api.bean.*;
 import com.emc.atmos.api.request.*;
+import com.emc.util.ThreadUtil;
 import com.emc.vipr.transform.*;
 import com.emc.vipr.transform.encryption.DoesNotNeedRekeyException;
 import com.emc.vipr.transform.encryption.EncryptionTransformFactory;
 
+import javax.crypto.Cipher;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -41,7 +43,13 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements client-side "Envelope Encryption" on top of the Atmos API.  With envelope
@@ -108,7 +116,8 @@ import java.util.*;
  * After you have your AtmosEncryptionClient constructed, you may use it like any other
  * AtmosApi instance with the following limitations:
  * <ul>
- * <li>Byte range (partial) reads are not supported
+ * <li>Byte range (partial) reads are only supported for objects that are encrypted but
+ * not compressed, and only for a single range
  * <li>Byte range (partial) updates including appends are not supported.
  * <li>Shareable URLs and access tokens are not supported because there is no way to
  * decompress and/or decrypt the content for the receiver.
@@ -121,14 +130,20 @@ public class AtmosEncryptionClient implements AtmosApi {
             + "appends are not supported by the encryption client";
     private static final String PARTIAL_READ_MSG = "Partial object reads are not "
             + "supported by the encryption client"; 
+    private static final String MULTI_RANGE_READ_MSG = "Only a single range can be "
+            + "read from an object by the encryption client";
     private static final String UNSUPPORTED_TYPE_MSG = "Only InputStream, String, and "
             + "byte[] content are supported";
 
     private static final int DEFAULT_BUFFER_SIZE = 4096*1024;
+    private static final int DEFAULT_PIPELINE_DEPTH = 2;
     
     private AtmosApi delegate;
     private TreeSet<TransformFactory<?, ?>> factories;
     private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private volatile Executor executor;
+    private final ReentrantLock executorLock = new ReentrantLock();
 
     /**
      * Creates a new AtmosEncryptionClient.
@@ -337,68 +352,77 @@ public class AtmosEncryptionClient implements AtmosApi {
             throw new AtmosException("Error transforming data: " + e, e);
         }
         
-        // Create the object
-        int c = 0;
-        int pos = 0;
-        byte[] buffer = new byte[bufferSize];
-        
-        // Read the first chunk and send it with the create request.
+        // Create the object.  The transformed stream is read ahead so the next segment
+        // is being transformed while the previous one is uploaded.
+        TransformPipeline pipeline = new TransformPipeline(in, bufferSize, pipelineDepth, 
+                getExecutor());
+        CreateObjectResponse resp;
+        boolean success = false;
         try {
-            c = fillBuffer(buffer, in);
-        } catch (IOException e) {
-            throw new AtmosException("Error reading input data: " + e, e);
-        }
-        if(c == -1) {
-            // EOF already
-            request.setContent(null);
-            
-            // Optmization -- send metadata now with create request and return
-            try {
-                in.close();
-            } catch (IOException e) {
-                throw new AtmosException("Error closing input: " + e, e);
-            }
-            for(OutputTransform ot : appliedTransforms) {
-                mMeta.putAll(ot.getEncodedMetadata());
-            }
-            Set<Metadata> metadata = request.getUserMetadata();
-            if(metadata == null) {
-                metadata = new HashSet<Metadata>();
+            BufferSegment segment = pipeline.next();
+            if(segment == null || segment.getSize() < bufferSize) {
+                // The whole transformed object fit in the first buffer, so the transform
+                // metadata is already known.  Send everything in one request.
+                pipeline.close();
+                request.setContent(segment);
+                request.setUserMetadata(transformMetadata(request.getUserMetadata(), mMeta, 
+                        appliedTransforms));
+                resp = delegate.createObject(request);
+                success = true;
+                return resp;
             }
-            updateMetadata(mMeta, metadata);
-            request.setUserMetadata(metadata);
             
-            return delegate.createObject(request);
-        } else {
-            request.setContent(new BufferSegment(buffer, 0, c));
-        }
-        CreateObjectResponse resp = delegate.createObject(request);
-        
-        pos = c;
-        
-        // Append until EOF.
-        try {
-            while((c = fillBuffer(buffer, in)) != -1) {
-                UpdateObjectRequest uor = new UpdateObjectRequest();
-                uor.setIdentifier(resp.getObjectId());
-                uor.setContentType(request.getContentType());
-                uor.setRange(new Range(pos, pos+c-1));
-                uor.setContent(new BufferSegment(buffer, 0, c));
-                pos += c;
-                delegate.updateObject(uor);
-            }
+            // Send the first chunk with the create request and append until EOF.
+            request.setContent(segment);
+            resp = delegate.createObject(request);
+            appendSegments(pipeline, resp.getObjectId(), request.getContentType(), 
+                    segment.getSize());
+            success = true;
         } catch (IOException e) {
             throw new AtmosException("Error reading input data: " + e, e);
+        } finally {
+            closePipeline(pipeline, success);
         }
-        
-        try {
-            in.close();
-        } catch (IOException e) {
-            throw new AtmosException("Error closing stream: " + e, e);
+
+        // Update the object with the transformed metadata.
+        Set<Metadata> metadata = transformMetadata(request.getUserMetadata(), mMeta, 
+                appliedTransforms);
+        delegate.setUserMetadata(resp.getObjectId(), 
+                metadata.toArray(new Metadata[metadata.size()]));
+
+        return resp;
+    }
+
+    /**
+     * Appends the remaining segments of the pipeline to the object, starting at pos.
+     */
+    private void appendSegments(TransformPipeline pipeline, ObjectIdentifier identifier, 
+            String contentType, long pos) throws IOException {
+        BufferSegment segment;
+        while((segment = pipeline.next()) != null) {
+            UpdateObjectRequest uor = new UpdateObjectRequest();
+            uor.setIdentifier(identifier);
+            uor.setContentType(contentType);
+            uor.setRange(new Range(pos, pos+segment.getSize()-1));
+            uor.setContent(segment);
+            pos += segment.getSize();
+            delegate.updateObject(uor);
         }
-        
+    }
+
+    /**
+     * Adds the metadata generated by the transforms (and the transform mode) to the
+     * object's metadata.  This can only be called once the transformed stream has been
+     * completely read.
+     * @param userMetadata the metadata from the request (may be null)
+     * @param mMeta the metadata map passed to the transforms.  The transformed metadata
+     * is added to this map.
+     * @param appliedTransforms the transforms applied to the content
+     * @return the complete set of metadata to store with the object
+     */
+    private Set<Metadata> transformMetadata(Set<Metadata> userMetadata, 
+            Map<String, String> mMeta, List<OutputTransform> appliedTransforms) {
         String transformConfig = "";
-        // Update the object with the transformed metadata.
         for(OutputTransform ot : appliedTransforms) {
             mMeta.putAll(ot.getEncodedMetadata());
             if(transformConfig.length() != 0) {
@@ -406,41 +430,63 @@ public class AtmosEncryptionClient implements AtmosApi {
             }
             transformConfig += ot.getTransformConfig();
         }
-        mMeta.put(TransformConstants.META_TRANSFORM_MODE, transformConfig);
+        if(transformConfig.length() != 0) {
+            mMeta.put(TransformConstants.META_TRANSFORM_MODE, transformConfig);
+        }
         
-        Set<Metadata> metadata = request.getUserMetadata();
-        if(metadata == null) {
-            metadata = new HashSet<Metadata>();
+        if(userMetadata == null) {
+            userMetadata = new HashSet<Metadata>();
         }
-        Collection<Metadata> updatedMetadata = updateMetadata(mMeta, metadata);
-        delegate.setUserMetadata(resp.getObjectId(), 
-                updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
+        return new HashSet<Metadata>(updateMetadata(mMeta, userMetadata));
+    }
 
-        return resp;
+    /**
+     * Waits for a background request and returns its result.
+     */
+    private <T> T getResult(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException("Interrupted waiting for request", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new AtmosException("Error executing request: " + e.getCause(), e.getCause());
+        }
     }
 
     /**
-     * Reading from a cipher stream only returns one block at a time.  Keep reading
-     * until the buffer is full.
-     * @param buffer the buffer to fill
-     * @param in the input stream to read from
-     * @return a buffer as full as possible
-     * @throws IOException if an error occurs reading from the stream.
+     * Closes the pipeline (and the input stream).  If the upload failed, errors closing
+     * the stream are ignored so they don't mask the original error.
      */
-    private int fillBuffer(byte[] buffer, InputStream in) throws IOException{
-        int read = 0;
-        while(read < buffer.length) {
-            int c = in.read(buffer, read, buffer.length-read);
-            if(c == -1 && read == 0) {
-                // EOF on first read
-                return -1;
-            } else if(c == -1) {
-                // EOF
-                return read;
+    private void closePipeline(TransformPipeline pipeline, boolean success) {
+        try {
+            pipeline.close();
+        } catch (IOException e) {
+            if(success) {
+                throw new AtmosException("Error closing stream: " + e, e);
             }
-            read += c;
         }
-        return read;
+    }
+
+    /**
+     * Returns the executor used to read transformed content ahead of uploads, creating
+     * a cached pool of daemon threads if one was not set.
+     */
+    private Executor getExecutor() {
+        Executor executor = this.executor;
+        if(executor == null) {
+            executorLock.lock();
+            try {
+                if(this.executor == null) this.executor = ThreadUtil.newDaemonExecutor("atmos-transform");
+                executor = this.executor;
+            } finally {
+                executorLock.unlock();
+            }
+        }
+        return executor;
     }
 
     /**
@@ -509,9 +555,9 @@ public class AtmosEncryptionClient implements AtmosApi {
     public <T> ReadObjectResponse<T> readObject(ReadObjectRequest request,
             Class<T> objectType) throws IOException {
         
-        // Partial reads not currently supported.
-        if(request.getRanges() != null && request.getRanges().size() > 0) {
-            throw new UnsupportedOperationException(PARTIAL_READ_MSG);            
+        // Only single-range partial reads are supported.
+        if(request.getRanges() != null && request.getRanges().size() > 1) {
+            throw new UnsupportedOperationException(MULTI_RANGE_READ_MSG);            
         }
         
         // Validate we have an object type we can handle.
@@ -522,11 +568,17 @@ public class AtmosEncryptionClient implements AtmosApi {
             throw new IllegalArgumentException(UNSUPPORTED_TYPE_MSG);
         }
         
-        // Execute the request, getting it as an InputStream
-        ReadObjectResponse<InputStream> rawResponse = null;
+        if(request.getRanges() != null && request.getRanges().size() == 1) {
+            return readRange(request.getIdentifier(), request.getRanges().get(0), 
+                    objectType);
+        }
+        
+        // Execute the request, getting it as an InputStream.  The stream belongs to the
+        // caller unless something fails before it is handed back.
+        ReadObjectResponse<InputStream> rawResponse = 
+                delegate.readObjectStream(request.getIdentifier(), null);
+        boolean success = false;
         try {
-            rawResponse = delegate.readObjectStream(request.getIdentifier(), null);
-            
             // Process metadata.
             Map<String,String> rawMeta = metaToMap(rawResponse.getMetadata().getMetadata().values());
             
@@ -535,7 +587,9 @@ public class AtmosEncryptionClient implements AtmosApi {
             
             if(transformModes == null) {
                 // Object is not encoded.
-                return rewrap(rawResponse, objectType);
+                ReadObjectResponse<T> response = rewrap(rawResponse, objectType);
+                success = true;
+                return response;
             }
             
             // Split
@@ -568,18 +622,120 @@ public class AtmosEncryptionClient implements AtmosApi {
                 }
             }
             
-            // Update response with decoded data
+            // Update response with decoded data.  The Content-Length of the response is
+            // the size of the stored (encoded) object, not of what the caller will read.
             rawResponse.setObject(streamToDecode);
             updateMetadata(rawMeta, rawResponse.getMetadata().getMetadata().values());
+            rawResponse.setContentLength(-1);
             
             // If a non-InputStream was requested, refactor the response.
-            return rewrap(rawResponse, objectType);
+            ReadObjectResponse<T> response = rewrap(rawResponse, objectType);
+            success = true;
+            return response;
         } finally {
-            rawResponse.getObject().close();
+            if(!success) rawResponse.getObject().close();
         }
 
     }
 
+    /**
+     * Reads a byte range of an object.  For encrypted objects, only the cipher blocks
+     * covering the range (plus the preceding block, which CBC needs to decrypt the
+     * first one) are read from the server and decrypted.  Compressed objects cannot be
+     * read partially since there is no way to map a range of the uncompressed data to
+     * the compressed stream.
+     * @param identifier the object to read
+     * @param range the range of the (decoded) object to read
+     * @param objectType the desired response format.
+     * @return the decoded range
+     * @throws IOException if there is an error reading the range
+     */
+    private <T> ReadObjectResponse<T> readRange(ObjectIdentifier identifier, Range range,
+            Class<T> objectType) throws IOException {
+        // The transform metadata determines how the range maps to the stored object.
+        Map<String, String> rawMeta = metaToMap(
+                delegate.getUserMetadata(identifier).values());
+        String transformModes = rawMeta.get(TransformConstants.META_TRANSFORM_MODE);
+        
+        if(transformModes == null) {
+            // Object is not encoded.
+            return rewrap(delegate.readObjectStream(identifier, range), objectType);
+        }
+        
+        // Only a single CBC encryption transform can be mapped to a range.
+        String[] modeParts = transformModes.split(":", 2);
+        String[] cipherParts = modeParts.length == 2 ? modeParts[1].split("/") : new String[0];
+        if(transformModes.indexOf('|') != -1 
+                || !TransformConstants.ENCRYPTION_CLASS.equals(modeParts[0])
+                || cipherParts.length != 3 || !"CBC".equalsIgnoreCase(cipherParts[1])) {
+            throw new UnsupportedOperationException(PARTIAL_READ_MSG + " for objects with " 
+                    + "transform mode " + transformModes);
+        }
+        
+        TransformFactory<?, ?> factory = null;
+        for(TransformFactory<?, ?> f : factories) {
+            if(f.canDecode(transformModes, rawMeta)) {
+                factory = f;
+                break;
+            }
+        }
+        if(factory == null) {
+            throw new AtmosException("No transformation found to handle '" + transformModes 
+                    + "'");
+        }
+        
+        int blockSize;
+        try {
+            blockSize = Cipher.getInstance(modeParts[1]).getBlockSize();
+        } catch (GeneralSecurityException e) {
+            throw new AtmosException("Could not determine cipher block size: " + e, e);
+        }
+        
+        long size = Long.parseLong(rawMeta.get(TransformConstants.META_ENCRYPTION_UNENC_SIZE));
+        if(range.getFirst() < 0 || range.getFirst() > range.getLast() 
+                || range.getFirst() >= size) {
+            throw new AtmosException("Range " + range + " is not satisfiable for an object " 
+                    + "of " + size + " bytes");
+        }
+        long last = Math.min(range.getLast(), size - 1);
+        
+        // PKCS5 padding always adds at least one byte, so the stored size is the next
+        // full block.
+        long storedSize = (size / blockSize + 1) * blockSize;
+        long firstBlock = range.getFirst() / blockSize;
+        long lastBlock = last / blockSize;
+        
+        // Start one block early so the first block of the range is chained from its
+        // real predecessor, and read one block past the range (a padded cipher holds
+        // back the last block it has seen).
+        long readFirst = firstBlock == 0 ? 0 : (firstBlock - 1) * blockSize;
+        long readLast = Math.min(storedSize - 1, (lastBlock + 2) * blockSize - 1);
+        
+        ReadObjectResponse<InputStream> rawResponse = delegate.readObjectStream(identifier, 
+                new Range(readFirst, readLast));
+        boolean success = false;
+        try {
+            InputTransform trans;
+            try {
+                trans = factory.getInputTransform(transformModes, rawResponse.getObject(), 
+                        rawMeta);
+            } catch (TransformException e) {
+                throw new AtmosException("Error transforming object data: " + e, e);
+            }
+            rawResponse.setObject(new CbcRangeInputStream(trans.getDecodedInputStream(), 
+                    range.getFirst() - readFirst, last - range.getFirst() + 1));
+            updateMetadata(trans.getDecodedMetadata(), 
+                    rawResponse.getMetadata().getMetadata().values());
+            rawResponse.setContentLength(last - range.getFirst() + 1);
+            
+            ReadObjectResponse<T> response = rewrap(rawResponse, objectType);
+            success = true;
+            return response;
+        } finally {
+            if(!success) rawResponse.getObject().close();
+        }
+    }
+
     /**
      * The transformation APIs require the use of InputStream objects.  If the user
      * requests a different objectType, transform the InputStream into the desired format.
@@ -607,7 +763,10 @@ public class AtmosEncryptionClient implements AtmosApi {
             }
             in.close();
             out.close();
-            
+
+            // Now that the content has been read, its length is known.
+            rawResponse.setContentLength(out.size());
+
             if(byte[].class.equals(objectType)) {
                 wrapped = new ReadObjectResponse<byte[]>();
                 ((ReadObjectResponse<byte[]>)wrapped).setObject(out.toByteArray());
@@ -639,12 +798,10 @@ public class AtmosEncryptionClient implements AtmosApi {
     public ReadObjectResponse<InputStream> readObjectStream(
             ObjectIdentifier identifier, Range range) {
         
-        // Partial reads not currently supported.
+        ReadObjectRequest request = new ReadObjectRequest().identifier(identifier);
         if(range != null) {
-            throw new UnsupportedOperationException(UNSUPPORTED_MSG);
+            request.ranges(range);
         }
-        
-        ReadObjectRequest request = new ReadObjectRequest().identifier(identifier);
         try {
             return readObject(request, InputStream.class);
         } catch (IOException e) {
@@ -703,17 +860,17 @@ public class AtmosEncryptionClient implements AtmosApi {
         }
 
         // Get the original list of metadata names.  This is used later to delete tags
-        // in case the transform mode changed and some tags are no longer relevant.
-        Map<String,Boolean> metaNameMap = delegate.getUserMetadataNames(
-                request.getIdentifier());
-        Set<String> metaNames = new HashSet<String>();
-        metaNames.addAll(metaNameMap.keySet());
-        for(Iterator<String> i = metaNames.iterator(); i.hasNext();) {
-            String s = i.next();
-            if(!s.startsWith(TransformConstants.METADATA_PREFIX)) {
-                i.remove();
-            }
-        }
+        // in case the transform mode changed and some tags are no longer relevant.  It
+        // is not needed until the end, so look it up while the content is uploaded.
+        final ObjectIdentifier identifier = request.getIdentifier();
+        FutureTask<Map<String, Boolean>> metaNamesTask = new FutureTask<Map<String, Boolean>>(
+                new Callable<Map<String, Boolean>>() {
+                    @Override
+                    public Map<String, Boolean> call() {
+                        return delegate.getUserMetadataNames(identifier);
+                    }
+                });
+        getExecutor().execute(metaNamesTask);
         
         // Make metadata into a Map.
         Map<String, String> mMeta = null;
@@ -745,90 +902,59 @@ public class AtmosEncryptionClient implements AtmosApi {
             throw new AtmosException("Error transforming data: " + e, e);
         }
 
-        // Overwrite the object
-        int c = 0;
-        int pos = 0;
-        byte[] buffer = new byte[bufferSize];
-        
-        // Read the first chunk and send it with the create request.
+        // Overwrite the object.  The transformed stream is read ahead so the next 
+        // segment is being transformed while the previous one is uploaded.
+        TransformPipeline pipeline = new TransformPipeline(in, bufferSize, pipelineDepth, 
+                getExecutor());
+        BasicResponse resp;
+        Set<Metadata> metadata = null;
+        boolean success = false;
         try {
-            c = fillBuffer(buffer, in);
-        } catch (IOException e) {
-            throw new AtmosException("Error reading input data: " + e, e);
-        }
-        if(c == -1) {
-            // EOF already
-            request.setContent(null);
-            
-            // Optmization -- send metadata now with create request and return
-            try {
-                in.close();
-            } catch (IOException e) {
-                throw new AtmosException("Error closing input: " + e, e);
-            }
-            for(OutputTransform ot : appliedTransforms) {
-                mMeta.putAll(ot.getEncodedMetadata());
-            }
-            Set<Metadata> metadata = request.getUserMetadata();
-            if(metadata == null) {
-                metadata = new HashSet<Metadata>();
-            }
-            updateMetadata(mMeta, metadata);
-            request.setUserMetadata(metadata);
-            
-            return delegate.updateObject(request);
-        } else {
-            request.setContent(new BufferSegment(buffer, 0, c));
-        }
-        BasicResponse resp = delegate.updateObject(request);
-        
-        pos = c;
-        
-        // Append until EOF.
-        try {
-            while((c = fillBuffer(buffer, in)) != -1) {
-                UpdateObjectRequest uor = new UpdateObjectRequest();
-                uor.setIdentifier(request.getIdentifier());
-                uor.setContentType(request.getContentType());
-                uor.setRange(new Range(pos, pos+c-1));
-                uor.setContent(new BufferSegment(buffer, 0, c));
-                pos += c;
-                delegate.updateObject(uor);
+            BufferSegment segment = pipeline.next();
+            if(segment == null || segment.getSize() < bufferSize) {
+                // The whole transformed object fit in the first buffer, so the transform
+                // metadata is already known.  Send everything in one request.
+                pipeline.close();
+                metadata = transformMetadata(request.getUserMetadata(), mMeta, 
+                        appliedTransforms);
+                request.setContent(segment);
+                request.setUserMetadata(metadata);
+                resp = delegate.updateObject(request);
+            } else {
+                // Send the first chunk with the update request and append until EOF.
+                request.setContent(segment);
+                resp = delegate.updateObject(request);
+                appendSegments(pipeline, identifier, request.getContentType(), 
+                        segment.getSize());
             }
+            success = true;
         } catch (IOException e) {
             throw new AtmosException("Error reading input data: " + e, e);
+        } finally {
+            closePipeline(pipeline, success);
+            if(!success) metaNamesTask.cancel(false);
         }
-        
-        try {
-            in.close();
-        } catch (IOException e) {
-            throw new AtmosException("Error closing stream: " + e, e);
+
+        if(metadata == null) {
+            // Update the object with the transformed metadata.
+            metadata = transformMetadata(request.getUserMetadata(), mMeta, 
+                    appliedTransforms);
+            delegate.setUserMetadata(identifier, 
+                    metadata.toArray(new Metadata[metadata.size()]));
         }
         
-        String transformConfig = "";
-        // Update the object with the transformed metadata.
-        for(OutputTransform ot : appliedTransforms) {
-            mMeta.putAll(ot.getEncodedMetadata());
-            if(transformConfig.length() != 0) {
-                transformConfig += "|";
+        // Delete any unused tags
+        Set<String> metaNames = new HashSet<String>();
+        metaNames.addAll(getResult(metaNamesTask).keySet());
+        for(Iterator<String> i = metaNames.iterator(); i.hasNext();) {
+            String s = i.next();
+            if(!s.startsWith(TransformConstants.METADATA_PREFIX)) {
+                i.remove();
             }
-            transformConfig += ot.getTransformConfig();
         }
-        mMeta.put(TransformConstants.META_TRANSFORM_MODE, transformConfig);
-        
-        Set<Metadata> metadata = request.getUserMetadata();
-        if(metadata == null) {
-            metadata = new HashSet<Metadata>();
-        }
-        Collection<Metadata> updatedMetadata = updateMetadata(mMeta, metadata);
-        delegate.setUserMetadata(request.getIdentifier(), 
-                updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
-        
         metaNames.removeAll(mMeta.keySet());
-        
-        // Delete any unused tags
         if(metaNames.size() > 0) {
-            delegate.deleteUserMetadata(request.getIdentifier(), 
+            delegate.deleteUserMetadata(identifier, 
                     metaNames.toArray(new String[metaNames.size()]));
         }
         
@@ -1163,4 +1289,33 @@ public class AtmosEncryptionClient implements AtmosApi {
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * @return the number of upload buffers
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the number of upload buffers.  While one buffer is being uploaded, the
+     * others are filled with transformed (encrypted/compressed) content in the
+     * background.  2 is double-buffered, 3 is triple-buffered.  1 disables read-ahead
+     * (transform and upload alternate in the calling thread).  Each buffer is
+     * bufferSize bytes.  Default is 2.
+     * @param pipelineDepth the number of upload buffers to use
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Sets the executor used to read transformed content ahead of uploads.  By default,
+     * a cached pool of daemon threads is used.  On JDK 21+, a virtual thread executor
+     * from {@link ThreadUtil#newVirtualThreadExecutor()} may be used instead.
+     * @param executor the executor to use
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.encryption;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Trims the output of a CBC decrypting stream to a byte range of the plaintext.
+ * <br>
+ * In CBC mode, plaintext block n only depends on ciphertext blocks n-1 and n, so a
+ * range can be decrypted by feeding the cipher the ciphertext starting one block
+ * before the block containing the first byte.  The first decrypted block is garbage
+ * (the cipher chains it from the object's IV instead of its real predecessor) and is
+ * skipped along with any leading bytes of the following block.
+ * <br>
+ * Reading stops once the range has been returned.  This matters because a padded
+ * cipher only releases a block once it has seen the next one and would fail on the
+ * padding check if it reached the end of a ciphertext range that does not include the
+ * final block.
+ */
+class CbcRangeInputStream extends FilterInputStream {
+    private long skip;
+    private long remaining;
+
+    /**
+     * @param decrypted the decrypting stream
+     * @param skip the number of decrypted bytes before the first byte of the range
+     * @param length the length of the range
+     */
+    public CbcRangeInputStream(InputStream decrypted, long skip, long length) {
+        super(decrypted);
+        this.skip = skip;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(skip > 0) skipToRange();
+        if(remaining <= 0) return -1;
+        if(len == 0) return 0;
+
+        int c = in.read(b, off, (int)Math.min(len, remaining));
+        if(c == -1) {
+            throw new IOException("Unexpected end of stream (" + remaining 
+                    + " bytes of range left)");
+        }
+        remaining -= c;
+        return c;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int)Math.max(1, Math.min(4096, n))];
+        long skipped = 0;
+        while(skipped < n) {
+            int c = read(buffer, 0, (int)Math.min(buffer.length, n - skipped));
+            if(c == -1) break;
+            skipped += c;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if(skip > 0) return 0;
+        return (int)Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void skipToRange() throws IOException {
+        byte[] buffer = new byte[(int)Math.min(4096, skip)];
+        while(skip > 0) {
+            int c = in.read(buffer, 0, (int)Math.min(buffer.length, skip));
+            if(c == -1) throw new IOException("Unexpected end of stream before range");
+            skip -= c;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.encryption;
+
+import com.emc.atmos.api.BufferSegment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads a transformed (encrypted and/or compressed) stream into fixed-size segments
+ * ahead of the consumer.  A background task fills the next buffer(s) while the caller
+ * is uploading the current one, so the transform (CPU) and the upload (network) overlap.
+ * <br>
+ * The pipeline owns <code>depth</code> buffers.  A segment returned by {@link #next()}
+ * stays valid until the following call to {@link #next()} (or {@link #close()}), at
+ * which point its buffer is handed back to the reader.  With a depth of 1, segments
+ * are read inline in the calling thread and no background task is used.
+ */
+class TransformPipeline {
+    private static final Object EOF = new Object();
+
+    private InputStream in;
+    private int depth;
+    private BlockingQueue<byte[]> free;
+    private BlockingQueue<Object> filled;
+    private CountDownLatch readerDone;
+    private volatile boolean closed = false;
+    private final ReentrantLock readerLock = new ReentrantLock();
+    private Thread readerThread;
+    private byte[] current;
+    private boolean eof = false;
+
+    /**
+     * Creates a new pipeline and, if depth is greater than 1, starts reading ahead
+     * using the given executor.
+     * @param in the (transformed) stream to read
+     * @param bufferSize the size of each segment
+     * @param depth the number of buffers.  2 is double-buffered, 3 is triple-buffered.
+     * @param executor the executor used to run the read-ahead task.
+     */
+    public TransformPipeline(InputStream in, int bufferSize, int depth, Executor executor) {
+        this.in = in;
+        this.depth = Math.max(1, depth);
+
+        free = new LinkedBlockingQueue<byte[]>();
+        for(int i = 0; i < this.depth; i++) {
+            free.add(new byte[bufferSize]);
+        }
+
+        if(this.depth > 1) {
+            // filled can never hold more than depth entries + EOF, so put() won't block
+            filled = new LinkedBlockingQueue<Object>();
+            readerDone = new CountDownLatch(1);
+            executor.execute(new Reader());
+        }
+    }
+
+    /**
+     * Returns the next segment of the stream or null at EOF.  This also releases the
+     * segment returned by the previous call.
+     * @throws IOException if the stream (or transform) could not be read.
+     */
+    public BufferSegment next() throws IOException {
+        if(eof) return null;
+        if(current != null) {
+            free.add(current);
+            current = null;
+        }
+
+        if(depth == 1) {
+            byte[] buffer = free.remove();
+            int c = fillBuffer(buffer, in);
+            if(c == -1) {
+                eof = true;
+                return null;
+            }
+            current = buffer;
+            return new BufferSegment(buffer, 0, c);
+        }
+
+        Object o;
+        try {
+            o = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for transformed data");
+        }
+        if(o == EOF) {
+            eof = true;
+            return null;
+        } else if(o instanceof IOException) {
+            throw (IOException)o;
+        } else if(o instanceof RuntimeException) {
+            throw (RuntimeException)o;
+        } else if(o instanceof Error) {
+            throw (Error)o;
+        } else if(o instanceof Throwable) {
+            throw new IOException("Error transforming data: " + o, (Throwable)o);
+        }
+        BufferSegment segment = (BufferSegment)o;
+        current = segment.getBuffer();
+        return segment;
+    }
+
+    /**
+     * Stops reading ahead (waiting for any in-progress read to finish) and closes
+     * the stream.
+     */
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        if(readerDone != null) {
+            readerLock.lock();
+            try {
+                if(readerThread != null) readerThread.interrupt();
+            } finally {
+                readerLock.unlock();
+            }
+            boolean interrupted = false;
+            while(true) {
+                try {
+                    readerDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+
+    /**
+     * Reading from a cipher stream only returns one block at a time.  Keep reading
+     * until the buffer is full.
+     * @param buffer the buffer to fill
+     * @param in the input stream to read from
+     * @return the number of bytes read or -1 on EOF
+     * @throws IOException if an error occurs reading from the stream.
+     */
+    static int fillBuffer(byte[] buffer, InputStream in) throws IOException {
+        int read = 0;
+        while(read < buffer.length) {
+            int c = in.read(buffer, read, buffer.length-read);
+            if(c == -1 && read == 0) {
+                // EOF on first read
+                return -1;
+            } else if(c == -1) {
+                // EOF
+                return read;
+            }
+            read += c;
+        }
+        return read;
+    }
+
+    private class Reader implements Runnable {
+        @Override
+        public void run() {
+            readerLock.lock();
+            try {
+                readerThread = Thread.currentThread();
+            } finally {
+                readerLock.unlock();
+            }
+            try {
+                while(!closed) {
+                    byte[] buffer = free.take();
+                    if(closed) break;
+                    int c = fillBuffer(buffer, in);
+                    if(c == -1) {
+                        filled.add(EOF);
+                        break;
+                    }
+                    filled.add(new BufferSegment(buffer, 0, c));
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Throwable t) {
+                filled.add(t);
+            } finally {
+                readerLock.lock();
+                try {
+                    readerThread = null;
+                    // don't leave the interrupt flag set on a pooled thread
+                    Thread.interrupted();
+                } finally {
+                    readerLock.unlock();
+                }
+                readerDone.countDown();
+            }
+        }
+    }
+}
@@ -27,12 +27,16 @@
 package com.emc.atmos.api.jersey;
 
 import com.emc.atmos.AtmosException;
+import com.emc.atmos.Expect100ContinuePolicy;
+import com.emc.atmos.HedgedReadPolicy;
 import com.emc.atmos.api.*;
 import com.emc.atmos.api.bean.*;
 import com.emc.atmos.api.multipart.MultipartEntity;
 import com.emc.atmos.api.request.*;
 import com.emc.util.HttpUtil;
+import com.emc.util.StreamUtil;
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.client.filter.ClientFilter;
@@ -191,7 +195,10 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public CreateObjectResponse createObject( CreateObjectRequest request ) {
-        ClientResponse response = build( request ).post( ClientResponse.class, getContent( request ) );
+        if ( request.getContent() instanceof InputStream && request.getContentLength() < 0 )
+            return createObjectChunked( request );
+
+        ClientResponse response = write( request );
 
         response.close();
 
@@ -199,16 +206,31 @@ public class AtmosApiClient extends AbstractAtmosApi {
     }
 
     @Override
-    public <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType ) throws IOException {
+    public <T> ReadObjectResponse<T> readObject( final ReadObjectRequest request, final Class<T> objectType )
+            throws IOException {
         if ( request.getRanges() != null && request.getRanges().size() > 1
              && !MultipartEntity.class.isAssignableFrom( objectType ) )
             l4j.warn( "multiple ranges imply a multi-part response. you should ask for MultipartEntity instead of " +
-                      objectType.getSimpleName() );
+                      objectType.getSimpleName() + " (or use RangeReadPlanner)" );
 
-        ClientResponse response = build( request ).get( ClientResponse.class );
-        ReadObjectResponse<T> ret = new ReadObjectResponse<T>( response.getEntity( objectType ) );
+        return hedge( resolve( request ), new HedgedReadPolicy.Call<ReadObjectResponse<T>>() {
+            @Override
+            public ReadObjectResponse<T> call( URI uri, HedgedReadPolicy.Attempt attempt ) throws IOException {
+                return readObject( request, objectType, uri, attempt );
+            }
+        } );
+    }
 
-        response.close();
+    protected <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType, URI uri,
+                                                    HedgedReadPolicy.Attempt attempt ) {
+        ClientResponse response = build( request, uri ).get( ClientResponse.class );
+        response.setEntityInputStream( attempt.track( response.getEntityInputStream() ) );
+        ReadObjectResponse<T> ret;
+        try {
+            ret = new ReadObjectResponse<T>( response.getEntity( objectType ) );
+        } finally {
+            response.close();
+        }
 
         return fillResponse( ret, response );
     }
@@ -222,7 +244,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public BasicResponse updateObject( UpdateObjectRequest request ) {
-        ClientResponse response = build( request ).put( ClientResponse.class, getContent( request ) );
+        ClientResponse response = write( request );
 
         response.close();
 
@@ -231,7 +253,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public void delete( ObjectIdentifier identifier ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), null );
+        URI uri = resolve( identifier, null, "DELETE" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -268,25 +290,42 @@ public class AtmosApiClient extends AbstractAtmosApi {
     }
 
     @Override
-    public ListDirectoryResponse listDirectory( ListDirectoryRequest request ) {
+    public ListDirectoryResponse listDirectory( final ListDirectoryRequest request ) {
         if ( !request.getPath().isDirectory() ) throw new AtmosException( "Path must be a directory" );
 
-        ClientResponse response = build( request ).get( ClientResponse.class );
+        ListDirectoryResponse ret = hedgeQuietly( resolve( request ), new HedgedReadPolicy.Call<ListDirectoryResponse>() {
+            @Override
+            public ListDirectoryResponse call( URI uri, HedgedReadPolicy.Attempt attempt ) {
+                return listDirectory( request, uri, attempt );
+            }
+        } );
 
-        request.setToken( response.getHeaders().getFirst( RestUtil.XHEADER_TOKEN ) );
+        // only the winning attempt's token can be applied to the request
+        request.setToken( ret.getFirstHeader( RestUtil.XHEADER_TOKEN ) );
         if ( request.getToken() != null )
             l4j.info( "Results truncated. Call listDirectory again for next page of results." );
 
-        ListDirectoryResponse ret = response.getEntity( ListDirectoryResponse.class );
+        return ret;
+    }
 
-        response.close();
+    protected ListDirectoryResponse listDirectory( ListDirectoryRequest request, URI uri,
+                                                  HedgedReadPolicy.Attempt attempt ) {
+        ClientResponse response = build( request, uri ).get( ClientResponse.class );
+        response.setEntityInputStream( attempt.track( response.getEntityInputStream() ) );
+
+        ListDirectoryResponse ret;
+        try {
+            ret = response.getEntity( ListDirectoryResponse.class );
+        } finally {
+            response.close();
+        }
 
         return fillResponse( ret, response );
     }
 
     @Override
     public void move( ObjectPath oldPath, ObjectPath newPath, boolean overwrite ) {
-        WebResource resource = client.resource( config.resolvePath( oldPath.getRelativeResourcePath(), "rename" ) );
+        WebResource resource = client.resource( resolve( oldPath, "rename", "POST" ) );
         WebResource.Builder builder = resource.getRequestBuilder();
         builder.header( RestUtil.XHEADER_PATH,
                        config.isEncodeUtf8() ? HttpUtil.encodeUtf8( newPath.getPath() ) : newPath.getPath() );
@@ -301,7 +340,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public Map<String, Boolean> getUserMetadataNames( ObjectIdentifier identifier ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "metadata/tags" );
+        URI uri = resolve( identifier, "metadata/tags", "GET" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -332,7 +371,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public Map<String, Metadata> getUserMetadata( ObjectIdentifier identifier, String... metadataNames ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "metadata/user" );
+        URI uri = resolve( identifier, "metadata/user", "GET" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -361,8 +400,20 @@ public class AtmosApiClient extends AbstractAtmosApi {
     }
 
     @Override
-    public Map<String, Metadata> getSystemMetadata( ObjectIdentifier identifier, String... metadataNames ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "metadata/system" );
+    public Map<String, Metadata> getSystemMetadata( final ObjectIdentifier identifier,
+                                                    final String... metadataNames ) {
+        URI uri = resolve( identifier, "metadata/system", "GET" );
+        return hedgeQuietly( uri, new HedgedReadPolicy.Call<Map<String, Metadata>>() {
+            @Override
+            public Map<String, Metadata> call( URI uri, HedgedReadPolicy.Attempt attempt ) throws IOException {
+                return getSystemMetadata( uri, identifier, attempt, metadataNames );
+            }
+        } );
+    }
+
+    protected Map<String, Metadata> getSystemMetadata( URI uri, ObjectIdentifier identifier,
+                                                       HedgedReadPolicy.Attempt attempt, String... metadataNames )
+            throws IOException {
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -377,9 +428,12 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
         if ( config.isEncodeUtf8() ) builder.header( RestUtil.XHEADER_UTF8, "true" );
 
+        // there is no body to track, so a losing attempt is stopped before it is sent or as soon as it returns
+        attempt.checkAborted();
         ClientResponse response = builder.get( ClientResponse.class );
 
         response.close();
+        attempt.checkAborted();
 
         return RestUtil.parseMetadataHeader( response.getHeaders().getFirst( RestUtil.XHEADER_META ),
                 false, config.isEncodeUtf8() );
@@ -397,8 +451,18 @@ public class AtmosApiClient extends AbstractAtmosApi {
     }
 
     @Override
-    public ObjectMetadata getObjectMetadata( ObjectIdentifier identifier ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), null );
+    public ObjectMetadata getObjectMetadata( final ObjectIdentifier identifier ) {
+        URI uri = resolve( identifier, null, "HEAD" );
+        return hedgeQuietly( uri, new HedgedReadPolicy.Call<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata call( URI uri, HedgedReadPolicy.Attempt attempt ) throws IOException {
+                return getObjectMetadata( uri, identifier, attempt );
+            }
+        } );
+    }
+
+    protected ObjectMetadata getObjectMetadata( URI uri, ObjectIdentifier identifier,
+                                                HedgedReadPolicy.Attempt attempt ) throws IOException {
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -406,6 +470,8 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
         if ( config.isEncodeUtf8() ) builder.header( RestUtil.XHEADER_UTF8, "true" );
 
+        // there is no body to track, so a losing attempt is stopped before it is sent or as soon as it returns
+        attempt.checkAborted();
         ClientResponse response = builder.head();
 
         Acl acl = new Acl( RestUtil.parseAclHeader( response.getHeaders().getFirst( RestUtil.XHEADER_USER_ACL ) ),
@@ -426,6 +492,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
         String retentionPeriod = response.getHeaders().getFirst(RestUtil.XHEADER_RETENTION_PERIOD);
 
         response.close();
+        attempt.checkAborted();
 
         ObjectMetadata metadata = new ObjectMetadata(metaMap, acl, response.getType().toString(), wsChecksum, serverChecksum);
         if (retentionPeriod != null) metadata.setRetentionPeriod(Long.parseLong(retentionPeriod));
@@ -435,7 +502,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public void setUserMetadata( ObjectIdentifier identifier, Metadata... metadata ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "metadata/user" );
+        URI uri = resolve( identifier, "metadata/user", "POST" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -459,7 +526,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public void deleteUserMetadata( ObjectIdentifier identifier, String... names ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "metadata/user" );
+        URI uri = resolve( identifier, "metadata/user", "DELETE" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -528,7 +595,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public Acl getAcl( ObjectIdentifier identifier ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "acl" );
+        URI uri = resolve( identifier, "acl", "GET" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -547,7 +614,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public void setAcl( ObjectIdentifier identifier, Acl acl ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "acl" );
+        URI uri = resolve( identifier, "acl", "POST" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -565,7 +632,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public ObjectInfo getObjectInfo( ObjectIdentifier identifier ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "info" );
+        URI uri = resolve( identifier, "info", "GET" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -576,7 +643,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public ObjectId createVersion( ObjectIdentifier identifier ) {
-        URI uri = config.resolvePath( identifier.getRelativeResourcePath(), "versions" );
+        URI uri = resolve( identifier, "versions", "POST" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         if ( identifier instanceof ObjectKey )
@@ -608,7 +675,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public void restoreVersion( ObjectId objectId, ObjectId versionId ) {
-        URI uri = config.resolvePath( objectId.getRelativeResourcePath(), "versions" );
+        URI uri = resolve( objectId, "versions", "PUT" );
         WebResource.Builder builder = client.resource( uri ).getRequestBuilder();
 
         builder.header( RestUtil.XHEADER_VERSION_OID, versionId ).put();
@@ -616,7 +683,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
 
     @Override
     public void deleteVersion( ObjectId versionId ) {
-        client.resource( config.resolvePath( versionId.getRelativeResourcePath(), "versions" ) ).delete();
+        client.resource( resolve( versionId, "versions", "DELETE" ) ).delete();
     }
 
     @Override
@@ -681,14 +748,43 @@ public class AtmosApiClient extends AbstractAtmosApi {
         return fillResponse( ret, response );
     }
 
+    /**
+     * Executes an idempotent read, hedging it to another endpoint if a hedged read policy is configured.
+     */
+    protected <T> T hedge( URI uri, HedgedReadPolicy.Call<T> call ) throws IOException {
+        HedgedReadPolicy policy = config.getHedgedReadPolicy();
+        URI alternateUri = policy == null ? null : config.resolveAlternatePath( uri );
+        if ( alternateUri == null ) return call.call( uri, new HedgedReadPolicy.Attempt() );
+        return policy.execute( uri, alternateUri, call );
+    }
+
+    /**
+     * Same as {@link #hedge(URI, HedgedReadPolicy.Call)} for calls that do not throw IOException.
+     */
+    protected <T> T hedgeQuietly( URI uri, HedgedReadPolicy.Call<T> call ) {
+        try {
+            return hedge( uri, call );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error executing read", e );
+        }
+    }
+
     protected WebResource.Builder build( Request request ) {
+        return build( request, resolve( request ) );
+    }
+
+    protected WebResource.Builder build( Request request, URI uri ) {
+        return build( request, uri, canExpect100Continue( request ) );
+    }
+
+    protected WebResource.Builder build( Request request, URI uri, boolean expect100Continue ) {
         WebResource resource;
-        if ( request.supports100Continue() && config.isEnableExpect100Continue() && client100 != null ) {
+        if ( expect100Continue && client100 != null ) {
             // use client with Expect: 100-continue
             l4j.debug( "Expect: 100-continue is enabled for this request" );
-            resource = client100.resource( config.resolvePath( request.getServiceRelativePath(), request.getQuery() ) );
+            resource = client100.resource( uri );
         } else {
-            resource = client.resource( config.resolvePath( request.getServiceRelativePath(), request.getQuery() ) );
+            resource = client.resource( uri );
         }
 
         WebResource.Builder builder = resource.getRequestBuilder();
@@ -705,6 +801,36 @@ public class AtmosApiClient extends AbstractAtmosApi {
         return addHeaders( builder, request.generateHeaders( config.isEncodeUtf8() ) );
     }
 
+    /**
+     * Sends an object write. The Expect: 100-continue policy decides whether the body waits for a 100 Continue
+     * response, and is told how the write turned out so it can adapt to the endpoint.
+     */
+    protected ClientResponse write( PutObjectRequest<?> request ) {
+        URI uri = resolve( request );
+        Expect100ContinuePolicy policy = config.getExpect100ContinuePolicy();
+        long contentLength = getContentLength( request );
+        boolean expect = canExpect100Continue( request ) && (policy == null || policy.useExpect( uri, contentLength ));
+        try {
+            ClientResponse response = build( request, uri, expect )
+                    .method( request.getMethod(), ClientResponse.class, getContent( request ) );
+            if ( policy != null ) policy.recordResponse( uri, expect, contentLength, response.getStatus() );
+            return response;
+        } catch ( RuntimeException orig ) {
+            Throwable t = orig;
+
+            // in this case, the exception was wrapped by Jersey
+            if ( t instanceof ClientHandlerException ) t = t.getCause();
+
+            if ( policy != null && t instanceof AtmosException )
+                policy.recordResponse( uri, expect, contentLength, ((AtmosException) t).getHttpCode() );
+            throw orig;
+        }
+    }
+
+    protected boolean canExpect100Continue( Request request ) {
+        return request.supports100Continue() && config.isEnableExpect100Continue() && client100 != null;
+    }
+
     protected WebResource.Builder addHeaders( WebResource.Builder builder, Map<String, List<Object>> headers ) {
         for ( String name : headers.keySet() ) {
             for ( Object value : headers.get( name ) ) {
@@ -732,6 +858,26 @@ public class AtmosApiClient extends AbstractAtmosApi {
         return response;
     }
 
+    /**
+     * Creates an object from an input stream of unknown length (contentLength < 0) by sending it in chunks; the first
+     * chunk creates the object and the rest are appended.
+     *
+     * @see AtmosOutputStream
+     */
+    protected CreateObjectResponse createObjectChunked( CreateObjectRequest request ) {
+        InputStream in = (InputStream) request.getContent();
+        AtmosOutputStream out = new AtmosOutputStream( this, request );
+        try {
+            StreamUtil.copy( in, out, Long.MAX_VALUE );
+            out.close();
+            return out.getCreateResponse();
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error sending content of unknown length", e );
+        } finally {
+            request.setContent( in );
+        }
+    }
+
     protected Object getContent( ContentRequest request ) {
         Object content = request.getContent();
         if ( content == null ) return new byte[0]; // need this to provide Content-Length: 0
@@ -739,7 +885,7 @@ public class AtmosApiClient extends AbstractAtmosApi {
         else if ( content instanceof InputStream ) {
             if ( request.getContentLength() < 0 )
                 throw new UnsupportedOperationException(
-                        "Content request with input stream must provide content length" );
+                        "Content request with input stream must provide content length (except for creates)" );
 
             if ( request.getContentLength() == 0 )
                 l4j.info( "Content request with input stream and zero-length will not send any data" );
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.jersey;
+
+import com.emc.atmos.AdaptiveConcurrencyLimiter;
+import com.emc.atmos.AtmosException;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+
+/**
+ * Holds a slot from the configured {@link AdaptiveConcurrencyLimiter} for the duration of each request attempt and
+ * reports the outcome back to it. This filter sits inside the retry filter, so each retry attempt competes for a slot
+ * and every 1040 or 5xx response is seen by the limiter. Note that the slot is released when the response headers are
+ * received; the time spent streaming a response body to the caller is not counted.
+ */
+public class ConcurrencyLimitFilter extends ClientFilter {
+    private AdaptiveConcurrencyLimiter limiter;
+
+    public ConcurrencyLimitFilter( AdaptiveConcurrencyLimiter limiter ) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public ClientResponse handle( ClientRequest request ) throws ClientHandlerException {
+        AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire( request.getURI() );
+        try {
+            ClientResponse response = getNext().handle( request );
+
+            // error responses only get here when exceptions are disabled for the request
+            if ( response.getStatus() >= 500 ) permit.overloaded();
+            else permit.success();
+
+            return response;
+        } catch ( RuntimeException orig ) {
+            Throwable t = orig;
+
+            // in this case, the exception was wrapped by Jersey
+            if ( t instanceof ClientHandlerException ) t = t.getCause();
+
+            if ( t instanceof AtmosException ) {
+                AtmosException ae = (AtmosException) t;
+                if ( ae.getHttpCode() >= 500 || ae.getErrorCode() == 1040 ) permit.overloaded();
+                else permit.success();
+            } else {
+                permit.ignore();
+            }
+            throw orig;
+        }
+    }
+}
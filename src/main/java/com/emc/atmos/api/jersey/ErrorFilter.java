@@ -32,52 +32,111 @@ import com.sun.jersey.api.client.ClientRequest;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.filter.ClientFilter;
 import org.apache.log4j.Logger;
-import org.jdom2.Document;
-import org.jdom2.Namespace;
-import org.jdom2.input.SAXBuilder;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
 
 public class ErrorFilter extends ClientFilter {
     private static final Logger log = Logger.getLogger( ErrorFilter.class );
 
     public static final String NO_EXCEPTIONS = "ErrorFilter.noExceptions";
 
+    // creating a factory means a service lookup, so share one (creating readers from it is thread-safe)
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
     @Override
     public ClientResponse handle( ClientRequest clientRequest ) throws ClientHandlerException {
         ClientResponse response = getNext().handle( clientRequest );
 
         if ( response.getStatus() > 299 && shouldThrowExceptions( clientRequest ) ) {
+            String reason = response.getStatusInfo().getReasonPhrase();
 
-            // JAXB will expect a namespace if we try to unmarshall, but some error responses don't include
-            // a namespace. In lieu of writing a SAXFilter to apply a default namespace in-line, this works just as well.
-            SAXBuilder sb = new SAXBuilder();
+            // HEAD responses and empty bodies have nothing to parse
+            if ( "HEAD".equals( clientRequest.getMethod() ) || response.getLength() == 0 || !response.hasEntity() ) {
+                response.close();
+                throw new AtmosException( reason, response.getStatus() );
+            }
 
-            Document d;
+            String[] error;
             try {
-                d = sb.build( response.getEntityInputStream() );
+                error = parseError( response.getEntityInputStream() );
             } catch ( Throwable t ) {
-                throw new AtmosException( response.getStatusInfo().getReasonPhrase(), response.getStatus() );
+                throw new AtmosException( reason, response.getStatus() );
+            } finally {
+                response.close();
             }
 
-            String code = d.getRootElement().getChildText( "Code" );
-            if ( code == null )
-                code = d.getRootElement().getChildText( "Code", Namespace.getNamespace( "http://www.emc.com/cos/" ) );
-            String message = d.getRootElement().getChildText( "Message" );
-            if ( message == null )
-                message = d.getRootElement().getChildText( "Message",
-                                                           Namespace.getNamespace( "http://www.emc.com/cos/" ) );
-
+            String code = error[0], message = error[1];
             if ( code == null && message == null ) {
                 // not an error from Atmos
-                throw new AtmosException( response.getStatusInfo().getReasonPhrase(), response.getStatus() );
+                throw new AtmosException( reason, response.getStatus() );
             }
 
-            log.debug( "Error: " + code + " message: " + message );
-            throw new AtmosException( message, response.getStatus(), Integer.parseInt( code ) );
+            if ( log.isDebugEnabled() ) log.debug( "Error: " + code + " message: " + message );
+            throw new AtmosException( message, response.getStatus(), parseCode( code ) );
         }
 
         return response;
     }
 
+    /**
+     * Scans an Atmos error document for the Code and Message children of the root element, ignoring namespaces
+     * (some error responses don't include one). Stops reading as soon as both are found.
+     *
+     * @return {code, message} (either may be null)
+     */
+    static String[] parseError( InputStream in ) throws XMLStreamException {
+        String code = null, message = null;
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader( in );
+        try {
+            int depth = 0;
+            while ( reader.hasNext() && (code == null || message == null) ) {
+                int event = reader.next();
+                if ( event == XMLStreamConstants.START_ELEMENT ) {
+                    if ( ++depth == 2 ) {
+                        String name = reader.getLocalName();
+                        if ( "Code".equals( name ) ) {
+                            code = reader.getElementText().trim();
+                            depth--;
+                        } else if ( "Message".equals( name ) ) {
+                            message = reader.getElementText();
+                            depth--;
+                        }
+                    }
+                } else if ( event == XMLStreamConstants.END_ELEMENT ) {
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new String[]{code, message};
+    }
+
+    /**
+     * Parses a numeric error code without throwing (returns 0 if the code is missing or not a number).
+     */
+    static int parseCode( String code ) {
+        if ( code == null || code.length() == 0 || code.length() > 9 ) return 0;
+        int value = 0;
+        for ( int i = 0; i < code.length(); i++ ) {
+            char c = code.charAt( i );
+            if ( c < '0' || c > '9' ) return 0;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+        factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+        return factory;
+    }
+
     private boolean shouldThrowExceptions( ClientRequest request ) {
         Boolean noExceptions = (Boolean) request.getProperties().get( NO_EXCEPTIONS );
         return !( noExceptions != null && noExceptions );
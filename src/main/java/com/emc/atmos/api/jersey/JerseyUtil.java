@@ -106,6 +106,7 @@ public class JerseyUtil {
         clientConfig.getClasses().add( MeasuredInputStreamWriter.class );
         clientConfig.getClasses().add( BufferSegmentWriter.class );
         clientConfig.getClasses().add( MultipartReader.class );
+        clientConfig.getClasses().add( ByteArrayReader.class );
 
         // Jersey providers for types we support
         clientConfig.getClasses().add( ByteArrayProvider.class );
@@ -132,6 +133,8 @@ public class JerseyUtil {
         // add filters
         client.addFilter( new ChecksumFilter() );
         client.addFilter( new ErrorFilter() );
+        if ( config.getConcurrencyLimiter() != null )
+            client.addFilter( new ConcurrencyLimitFilter( config.getConcurrencyLimiter() ) );
         if ( config.isEnableRetry() ) client.addFilter( new RetryFilter( config ) );
         client.addFilter( new AuthFilter( config ) );
     }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.jersey.provider;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Reads a byte array into a single allocation sized from the Content-Length header. Jersey's ByteArrayProvider grows
+ * a buffer while reading and then copies it, which for multi-MB objects means several large (humongous) allocations
+ * per read. If the length is unknown or the body is encoded, this falls back to a growing buffer.
+ */
+@Consumes({"application/octet-stream", "*/*"})
+public class ByteArrayReader implements MessageBodyReader<byte[]> {
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public boolean isReadable( Class<?> type, Type genericType, Annotation annotations[], MediaType mediaType ) {
+        return type == byte[].class;
+    }
+
+    @Override
+    public byte[] readFrom( Class<byte[]> type,
+                            Type genericType,
+                            Annotation annotations[],
+                            MediaType mediaType,
+                            MultivaluedMap<String, String> httpHeaders,
+                            InputStream entityStream ) throws IOException {
+        long length = -1;
+        String lengthHeader = httpHeaders.getFirst( HttpHeaders.CONTENT_LENGTH );
+        if ( lengthHeader != null && httpHeaders.getFirst( HttpHeaders.CONTENT_ENCODING ) == null ) {
+            try {
+                length = Long.parseLong( lengthHeader.trim() );
+            } catch ( NumberFormatException e ) {
+                length = -1;
+            }
+        }
+
+        if ( length < 0 || length > MAX_ARRAY_SIZE ) return readUnknown( entityStream );
+
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while ( offset < bytes.length ) {
+            int c = entityStream.read( bytes, offset, bytes.length - offset );
+            if ( c == -1 ) throw new EOFException( "Premature end of entity (read " + offset + " of " + length + ")" );
+            offset += c;
+        }
+        return bytes;
+    }
+
+    private byte[] readUnknown( InputStream entityStream ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( BUFFER_SIZE );
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int c;
+        while ( (c = entityStream.read( buffer )) != -1 ) {
+            out.write( buffer, 0, c );
+        }
+        return out.toByteArray();
+    }
+}
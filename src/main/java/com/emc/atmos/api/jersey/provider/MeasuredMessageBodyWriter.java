@@ -30,29 +30,61 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class to disable chunked encoding in requests by always specifying an accurate byte count in getSize().
  * Subclasses should provide a default constructor, which calls super() with an instance of the underlying writer
  * implementation to be wrapped.
  * <p/>
- * XXX: this is inefficient and should be replaced by a different mechanism.  However, it is the simplest solution to
- * the apache client's insistence on using chunked encoding for all requests with a size of -1 and Jersey's insistence
- * on returning -1 from all message body providers (as well as not allowing users to override the content-length
- * header).
+ * The entity is serialized once in getSize() and the result is held (keyed by entity identity) until the matching
+ * writeTo() call, which writes the held bytes and returns the buffer to a small pool. Instances are shared between
+ * threads, so no per-request state is kept in fields and no locks are taken. If writeTo() is called without a
+ * matching getSize(), the entity is streamed directly.
+ * <p/>
+ * A request that fails between getSize() and writeTo() leaves its serialized entity behind. Held entities older
+ * than the maximum pending age are evicted (and their buffers released) as later entities are measured; if a
+ * request is slower than that, its entity is simply serialized again.
+ * <p/>
+ * XXX: this is the simplest solution to the apache client's insistence on using chunked encoding for all requests
+ * with a size of -1 and Jersey's insistence on returning -1 from all message body providers (as well as not allowing
+ * users to override the content-length header).
  */
 public class MeasuredMessageBodyWriter<T> implements MessageBodyWriter<T> {
+    public static final long DEFAULT_MAX_PENDING_AGE = 60000; // 1 minute
+    private static final int MAX_POOLED = 16;
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
     protected MessageBodyWriter<T> wrapped;
-    private IOException delayedIOException;
-    private WebApplicationException delayedWebAppException;
+    private final ConcurrentMap<EntityKey, Serialized> pending = new ConcurrentHashMap<EntityKey, Serialized>();
+    private final Queue<EntityBuffer> pool = new ConcurrentLinkedQueue<EntityBuffer>();
+    private final AtomicInteger poolSize = new AtomicInteger();
+    private final long maxPendingAge;
+    private final AtomicLong nextEviction;
 
     public MeasuredMessageBodyWriter( MessageBodyWriter<T> wrapped ) {
+        this( wrapped, DEFAULT_MAX_PENDING_AGE );
+    }
+
+    /**
+     * @param maxPendingAge how long (in milliseconds) a serialized entity is held for its writeTo() call
+     */
+    public MeasuredMessageBodyWriter( MessageBodyWriter<T> wrapped, long maxPendingAge ) {
         this.wrapped = wrapped;
+        this.maxPendingAge = TimeUnit.MILLISECONDS.toNanos( maxPendingAge );
+        this.nextEviction = new AtomicLong( System.nanoTime() + this.maxPendingAge );
     }
 
     @Override
@@ -68,32 +100,148 @@ public class MeasuredMessageBodyWriter<T> implements MessageBodyWriter<T> {
                          MediaType mediaType,
                          MultivaluedMap<String, Object> httpHeaders,
                          OutputStream entityStream ) throws IOException, WebApplicationException {
-        if ( delayedIOException != null ) throw delayedIOException;
-        if ( delayedWebAppException != null ) throw delayedWebAppException;
-        entityStream.write( getBuffer( t, type, genericType, annotations, mediaType, httpHeaders ) );
+        Serialized serialized = pending.remove( new EntityKey( t ) );
+        if ( serialized == null || !equal( serialized.mediaType, mediaType ) ) {
+            wrapped.writeTo( t, type, genericType, annotations, mediaType, httpHeaders, entityStream );
+            return;
+        }
+
+        if ( serialized.ioException != null ) throw serialized.ioException;
+        if ( serialized.webAppException != null ) throw serialized.webAppException;
+        try {
+            entityStream.write( serialized.buffer.buf, 0, serialized.buffer.count );
+        } finally {
+            release( serialized.buffer );
+        }
     }
 
     @Override
     public long getSize( T t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType ) {
+        long now = System.nanoTime();
+        Serialized serialized = new Serialized( mediaType, now );
+        EntityBuffer buffer = acquire();
+        long size = -1;
         try {
-            return getBuffer( t, type, genericType, annotations, mediaType, null ).length;
+            wrapped.writeTo( t, type, genericType, annotations, mediaType, null, buffer );
+            serialized.buffer = buffer;
+            size = buffer.count;
         } catch ( IOException e ) {
-            delayedIOException = e;
+            serialized.ioException = e;
         } catch ( WebApplicationException e ) {
-            delayedWebAppException = e;
+            serialized.webAppException = e;
         }
-        return -1;
+        if ( serialized.buffer == null ) release( buffer );
+
+        // the same entity measured again replaces the result nobody wrote
+        discard( pending.put( new EntityKey( t ), serialized ) );
+
+        long eviction = nextEviction.get();
+        if ( now - eviction >= 0 && nextEviction.compareAndSet( eviction, now + maxPendingAge ) )
+            evictOlderThan( now - maxPendingAge );
+        return size;
     }
 
-    protected synchronized byte[] getBuffer( T t,
-                                             Class<?> type,
-                                             Type genericType,
-                                             Annotation[] annotations,
-                                             MediaType mediaType,
-                                             MultivaluedMap<String, Object> httpHeaders )
-            throws IOException, WebApplicationException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        wrapped.writeTo( t, type, genericType, annotations, mediaType, httpHeaders, baos );
-        return baos.toByteArray();
+    /**
+     * Returns the number of serialized entities waiting for writeTo().
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getMaxPendingAge() {
+        return TimeUnit.NANOSECONDS.toMillis( maxPendingAge );
+    }
+
+    private void evictOlderThan( long time ) {
+        for ( Map.Entry<EntityKey, Serialized> entry : pending.entrySet() ) {
+            Serialized serialized = entry.getValue();
+            // remove(key, value) guarantees only one of this and writeTo() gets the buffer
+            if ( serialized.created - time < 0 && pending.remove( entry.getKey(), serialized ) )
+                discard( serialized );
+        }
+    }
+
+    private void discard( Serialized serialized ) {
+        if ( serialized != null && serialized.buffer != null ) release( serialized.buffer );
+    }
+
+    private EntityBuffer acquire() {
+        EntityBuffer buffer = pool.poll();
+        if ( buffer == null ) return new EntityBuffer();
+        poolSize.decrementAndGet();
+        buffer.count = 0;
+        return buffer;
+    }
+
+    private void release( EntityBuffer buffer ) {
+        if ( buffer.buf.length > MAX_POOLED_SIZE || poolSize.incrementAndGet() > MAX_POOLED ) {
+            poolSize.decrementAndGet();
+            return;
+        }
+        pool.offer( buffer );
+    }
+
+    private static boolean equal( Object a, Object b ) {
+        return a == null ? b == null : a.equals( b );
+    }
+
+    /**
+     * Identity key for an entity (entities may not implement equals/hashCode and equal entities may still be
+     * distinct requests).
+     */
+    private static final class EntityKey {
+        private final Object entity;
+
+        EntityKey( Object entity ) {
+            this.entity = entity;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            return o instanceof EntityKey && ((EntityKey) o).entity == entity;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode( entity );
+        }
+    }
+
+    private static final class Serialized {
+        private final MediaType mediaType;
+        private final long created;
+        private EntityBuffer buffer;
+        private IOException ioException;
+        private WebApplicationException webAppException;
+
+        Serialized( MediaType mediaType, long created ) {
+            this.mediaType = mediaType;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Unsynchronized growable byte buffer (only ever used by one thread at a time).
+     */
+    private static final class EntityBuffer extends OutputStream {
+        private byte[] buf = new byte[1024];
+        private int count;
+
+        @Override
+        public void write( int b ) {
+            ensureCapacity( count + 1 );
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+            ensureCapacity( count + len );
+            System.arraycopy( b, off, buf, count, len );
+            count += len;
+        }
+
+        private void ensureCapacity( int capacity ) {
+            if ( capacity > buf.length ) buf = Arrays.copyOf( buf, Math.max( buf.length << 1, capacity ) );
+        }
     }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.reactive;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.AtmosApi;
+import com.emc.atmos.api.ObjectIdentifier;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.util.ThreadUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the content of an object (or a range of it) as a sequence of ByteBuffers. Each buffer is fetched with a
+ * ranged read only when the subscriber has requested it, so memory use is bounded by the subscriber's demand (times
+ * the chunk size) regardless of the size of the object. Reads happen on the configured executor, never on the thread
+ * calling {@link Subscription#request(long)}.
+ * <p/>
+ * The size and mtime of the object are read when the first element is requested. If the mtime changes while the
+ * content is being published, the subscriber receives an error rather than a mix of two versions of the object.
+ * <pre>
+ *     new ObjectPublisher( atmosApi, objectId ).subscribe( subscriber );
+ * </pre>
+ */
+public class ObjectPublisher implements Publisher<ByteBuffer> {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1MB
+
+    private AtmosApi atmosApi;
+    private ObjectIdentifier identifier;
+    private Range range;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private Executor executor;
+
+    /**
+     * Publishes the entire object.
+     */
+    public ObjectPublisher( AtmosApi atmosApi, ObjectIdentifier identifier ) {
+        this( atmosApi, identifier, null );
+    }
+
+    /**
+     * Publishes the specified range of the object. If range is null, the entire object is published.
+     */
+    public ObjectPublisher( AtmosApi atmosApi, ObjectIdentifier identifier, Range range ) {
+        this.atmosApi = atmosApi;
+        this.identifier = identifier;
+        this.range = range;
+    }
+
+    @Override
+    public void subscribe( Subscriber<? super ByteBuffer> subscriber ) {
+        if ( subscriber == null ) throw new NullPointerException( "subscriber is null" );
+        ReadSubscription subscription = new ReadSubscription( subscriber );
+        subscriber.onSubscribe( subscription );
+    }
+
+    /**
+     * Returns the size of each published buffer (the last one may be smaller).
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the size of each published buffer (the last one may be smaller). Default is 1MB.
+     */
+    public void setChunkSize( int chunkSize ) {
+        if ( chunkSize <= 0 ) throw new IllegalArgumentException( "chunkSize must be positive" );
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the executor used to read the object.
+     */
+    public Executor getExecutor() {
+        return executor == null ? DefaultExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * Sets the executor used to read the object. By default, a shared cached pool of daemon threads is used.
+     */
+    public void setExecutor( Executor executor ) {
+        this.executor = executor;
+    }
+
+    /**
+     * Emits one chunk per unit of demand. Signals are serialized by draining on at most one executor task at a time.
+     */
+    private class ReadSubscription implements Subscription, Runnable {
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean started;
+        private long position;
+        private long end; // inclusive
+        private String mtime;
+
+        ReadSubscription( Subscriber<? super ByteBuffer> subscriber ) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request( long n ) {
+            if ( n <= 0 ) {
+                invalidRequest = new IllegalArgumentException( "request must be positive (was " + n + ")" );
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n; // cap at "unbounded"
+                } while ( !demand.compareAndSet( current, next ) );
+            }
+            if ( work.getAndIncrement() == 0 ) getExecutor().execute( this );
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    drain();
+                } catch ( Throwable t ) {
+                    cancelled = true;
+                    subscriber.onError( t );
+                }
+                missed = work.addAndGet( -missed );
+            } while ( missed != 0 );
+        }
+
+        private void drain() {
+            if ( cancelled ) return;
+            if ( invalidRequest != null ) {
+                cancelled = true;
+                subscriber.onError( invalidRequest );
+                return;
+            }
+            if ( !started ) {
+                start();
+                started = true;
+            }
+            while ( !cancelled && demand.get() > 0 && position <= end ) {
+                long last = Math.min( position + chunkSize - 1, end );
+                byte[] chunk = readChunk( new Range( position, last ) );
+                if ( chunk.length != last - position + 1 )
+                    throw new AtmosException( "Expected " + (last - position + 1) + " bytes at offset " + position
+                                              + " of " + identifier + ", but got " + chunk.length );
+                position = last + 1;
+                if ( demand.get() != Long.MAX_VALUE ) demand.decrementAndGet();
+                subscriber.onNext( ByteBuffer.wrap( chunk ) );
+            }
+            if ( !cancelled && position > end ) {
+                cancelled = true;
+                subscriber.onComplete();
+            }
+        }
+
+        private void start() {
+            Map<String, Metadata> systemMetadata = atmosApi.getSystemMetadata( identifier, "size", "mtime" );
+            String size = value( systemMetadata, "size" );
+            if ( size == null ) throw new AtmosException( "Could not get size of " + identifier );
+            mtime = value( systemMetadata, "mtime" );
+            position = range == null ? 0 : range.getFirst();
+            long lastByte = Long.parseLong( size ) - 1;
+            end = range == null ? lastByte : Math.min( range.getLast(), lastByte );
+        }
+
+        private byte[] readChunk( Range chunkRange ) {
+            ReadObjectRequest request = new ReadObjectRequest().identifier( identifier ).ranges( chunkRange );
+            ReadObjectResponse<byte[]> response;
+            try {
+                response = atmosApi.readObject( request, byte[].class );
+            } catch ( IOException e ) {
+                throw new AtmosException( "Could not read " + chunkRange + " of " + identifier, e );
+            }
+            String newMtime = value( response.getMetadata().getMetadata(), "mtime" );
+            if ( mtime != null && newMtime != null && !mtime.equals( newMtime ) )
+                throw new AtmosException( "Object " + identifier + " changed during read (mtime was " + mtime
+                                          + ", now " + newMtime + ")" );
+            return response.getObject();
+        }
+
+        private String value( Map<String, Metadata> metadata, String name ) {
+            Metadata m = metadata.get( name );
+            return m == null ? null : m.getValue();
+        }
+    }
+
+    /**
+     * Lazily created pool shared by all publishers and subscribers that do not have an executor set.
+     */
+    static final class DefaultExecutor {
+        static final Executor INSTANCE = ThreadUtil.newDaemonExecutor( "atmos-reactive" );
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.reactive;
+
+import com.emc.atmos.api.AtmosApi;
+import com.emc.atmos.api.BufferSegment;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.ObjectIdentifier;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes a stream of ByteBuffers of unknown total length to a new object. Buffers are collected into parts of
+ * partSize bytes; the first part creates the object and each subsequent part is appended with a ranged update, in
+ * order. Only one part is uploaded at a time and no more buffers are requested while a part is being uploaded, so
+ * memory use is bounded by partSize (plus one buffer) regardless of the size of the object. Uploads happen on the
+ * configured executor, never on the publisher's thread.
+ * <p/>
+ * The result of the upload is available from {@link #getResult()}. If the stream fails or an upload fails, the
+ * result fails with the cause and the subscription is cancelled; any parts already written remain in the object.
+ * <pre>
+ *     ObjectSubscriber subscriber = new ObjectSubscriber( atmosApi, null );
+ *     publisher.subscribe( subscriber );
+ *     ObjectId objectId = subscriber.getResult().get();
+ * </pre>
+ */
+public class ObjectSubscriber implements Subscriber<ByteBuffer> {
+    public static final int DEFAULT_PART_SIZE = 4 * 1024 * 1024; // 4MB
+
+    private AtmosApi atmosApi;
+    private ObjectIdentifier identifier;
+    private String contentType;
+    private Metadata[] userMetadata;
+    private int partSize = DEFAULT_PART_SIZE;
+    private Executor executor;
+
+    private final Result result = new Result();
+    private final ReentrantLock lock = new ReentrantLock();
+    private Subscription subscription;
+    private byte[] buffer = new byte[0];
+    private int count = 0;
+    private ObjectId objectId;
+    private long offset = 0;
+    private boolean uploading = false;
+    private boolean completed = false;
+
+    /**
+     * Writes to a new object. If identifier is null, the object is created by ID only; otherwise it is created with
+     * the specified identifier (i.e. an ObjectPath).
+     */
+    public ObjectSubscriber( AtmosApi atmosApi, ObjectIdentifier identifier ) {
+        this.atmosApi = atmosApi;
+        this.identifier = identifier;
+    }
+
+    @Override
+    public void onSubscribe( Subscription subscription ) {
+        lock.lock();
+        try {
+            if ( this.subscription != null || result.isDone() ) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+        } finally {
+            lock.unlock();
+        }
+        subscription.request( 1 );
+    }
+
+    @Override
+    public void onNext( ByteBuffer item ) {
+        if ( result.isDone() ) return; // already failed
+        int length = item.remaining();
+        ensureCapacity( count + length );
+        item.get( buffer, count, length );
+        count += length;
+
+        if ( count >= partSize ) {
+            lock.lock();
+            try {
+                uploading = true;
+            } finally {
+                lock.unlock();
+            }
+            getExecutor().execute( new Upload() );
+        } else {
+            getSubscription().request( 1 );
+        }
+    }
+
+    @Override
+    public void onError( Throwable throwable ) {
+        result.fail( throwable );
+    }
+
+    @Override
+    public void onComplete() {
+        lock.lock();
+        try {
+            completed = true;
+            if ( uploading ) return; // the in-flight upload will finish the object
+            uploading = true;
+        } finally {
+            lock.unlock();
+        }
+        getExecutor().execute( new Upload() );
+    }
+
+    /**
+     * Returns the ID of the written object once the stream has completed and all parts are written.
+     */
+    public Future<ObjectId> getResult() {
+        return result;
+    }
+
+    private Subscription getSubscription() {
+        lock.lock();
+        try {
+            return subscription;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureCapacity( int capacity ) {
+        if ( capacity > buffer.length ) buffer = Arrays.copyOf( buffer, Math.max( capacity, partSize ) );
+    }
+
+    /**
+     * Writes the collected part, then either requests more buffers or (if the stream has completed) finishes the
+     * object.
+     */
+    private class Upload implements Runnable {
+        @Override
+        public void run() {
+            try {
+                writePart();
+
+                boolean done;
+                lock.lock();
+                try {
+                    done = completed;
+                    if ( !done ) uploading = false;
+                } finally {
+                    lock.unlock();
+                }
+
+                if ( done ) result.complete( objectId );
+                else getSubscription().request( 1 );
+            } catch ( Throwable t ) {
+                getSubscription().cancel();
+                result.fail( t );
+            }
+        }
+
+        private void writePart() {
+            if ( objectId == null ) {
+                CreateObjectRequest request = new CreateObjectRequest().identifier( identifier );
+                request.content( new BufferSegment( buffer, 0, count ) ).contentType( contentType );
+                if ( userMetadata != null ) request.userMetadata( userMetadata );
+                objectId = atmosApi.createObject( request ).getObjectId();
+            } else if ( count > 0 ) {
+                UpdateObjectRequest request = new UpdateObjectRequest().identifier( objectId );
+                request.range( new Range( offset, offset + count - 1 ) );
+                request.content( new BufferSegment( buffer, 0, count ) ).contentType( contentType );
+                atmosApi.updateObject( request );
+            }
+            offset += count;
+            count = 0;
+        }
+    }
+
+    /**
+     * A future completed by the subscriber (FutureTask exposes set/setException to subclasses only).
+     */
+    private static class Result extends FutureTask<ObjectId> {
+        Result() {
+            super( new Callable<ObjectId>() {
+                @Override
+                public ObjectId call() {
+                    throw new UnsupportedOperationException();
+                }
+            } );
+        }
+
+        void complete( ObjectId objectId ) {
+            set( objectId );
+        }
+
+        void fail( Throwable t ) {
+            setException( t );
+        }
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Sets the content type of the object.
+     */
+    public void setContentType( String contentType ) {
+        this.contentType = contentType;
+    }
+
+    public Metadata[] getUserMetadata() {
+        return userMetadata;
+    }
+
+    /**
+     * Sets user metadata to assign to the object when it is created.
+     */
+    public void setUserMetadata( Metadata... userMetadata ) {
+        this.userMetadata = userMetadata;
+    }
+
+    /**
+     * Returns the number of bytes collected before each upload.
+     */
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the number of bytes collected before each upload (the first part creates the object; each subsequent part
+     * is appended). Default is 4MB.
+     */
+    public void setPartSize( int partSize ) {
+        if ( partSize <= 0 ) throw new IllegalArgumentException( "partSize must be positive" );
+        this.partSize = partSize;
+    }
+
+    /**
+     * Returns the executor used to upload parts.
+     */
+    public Executor getExecutor() {
+        return executor == null ? ObjectPublisher.DefaultExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * Sets the executor used to upload parts. By default, a shared cached pool of daemon threads is used.
+     */
+    public void setExecutor( Executor executor ) {
+        this.executor = executor;
+    }
+}
@@ -28,14 +28,18 @@ package com.emc.atmos.api.request;
 
 import java.io.Serializable;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Represents a request that has been pre-signed and is valid until <code>expiration</code>.
  * <p/>
- * Immutable.
+ * Immutable (the headers and expiration are copied on the way in, and the headers cannot be modified), so one
+ * instance can safely be handed to many callers.
  */
 public class PreSignedRequest implements Serializable {
     private static final long serialVersionUID = -5841074558608401979L;
@@ -54,8 +58,8 @@ public class PreSignedRequest implements Serializable {
         this.url = url;
         this.method = method;
         this.contentType = contentType;
-        this.headers = headers;
-        this.expiration = expiration;
+        this.headers = copy( headers );
+        this.expiration = expiration == null ? null : new Date( expiration.getTime() );
     }
 
     /**
@@ -80,7 +84,7 @@ public class PreSignedRequest implements Serializable {
     }
 
     /**
-     * Gets the headers to use in the request.
+     * Gets the headers to use in the request. The returned map is unmodifiable.
      */
     public Map<String, List<Object>> getHeaders() {
         return headers;
@@ -90,6 +94,17 @@ public class PreSignedRequest implements Serializable {
      * Gets the date this request expires (is no longer valid).
      */
     public Date getExpiration() {
-        return expiration;
+        return expiration == null ? null : new Date( expiration.getTime() );
+    }
+
+    private static Map<String, List<Object>> copy( Map<String, List<Object>> headers ) {
+        if ( headers == null ) return null;
+        Map<String, List<Object>> copy = new LinkedHashMap<String, List<Object>>();
+        for ( Map.Entry<String, List<Object>> header : headers.entrySet() ) {
+            List<Object> values = header.getValue() == null ? null
+                                  : Collections.unmodifiableList( new ArrayList<Object>( header.getValue() ) );
+            copy.put( header.getKey(), values );
+        }
+        return Collections.unmodifiableMap( copy );
     }
 }
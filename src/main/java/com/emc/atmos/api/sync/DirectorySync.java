@@ -0,0 +1,579 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.sync;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.AtmosApi;
+import com.emc.atmos.api.ObjectPath;
+import com.emc.atmos.api.bean.DirectoryEntry;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.adapter.Iso8601Adapter;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.ListDirectoryRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import com.emc.util.StreamUtil;
+import com.emc.util.ThreadUtil;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Incrementally syncs a local directory tree into an Atmos namespace directory (UPLOAD) or the other way around
+ * (DOWNLOAD). Only files that differ are transferred.
+ * <p/>
+ * Both trees are walked in parallel, one task per directory; each remote directory is listed (in pages) with its
+ * entries' size, mtime and sync metadata, so no per-object calls are needed to compare. A file is transferred when it
+ * is missing on the target, its size differs or its modification time differs. With verifyChecksums, files that
+ * look the same are also compared by MD5. Comparisons, checksums and transfers all run on one pool of threadCount
+ * threads fed by a bounded queue (when the queue is full, the walking thread does the work itself), so memory use
+ * stays flat no matter how large the tree is.
+ * <p/>
+ * Uploaded objects carry the local modification time and MD5 as user metadata ({@link #META_MTIME},
+ * {@link #META_MD5}); downloaded files get their modification time from that metadata (or from the object's mtime)
+ * so the next sync sees them as unchanged. Files up to smallFileSize are read once and created with all metadata in
+ * a single request; larger files are streamed and their MD5 is set afterwards. Downloads are written to a temporary
+ * file and renamed into place, so an interrupted sync never leaves a partial file.
+ * <p/>
+ * A sync that is interrupted simply resumes on the next run, since transferred files compare as unchanged. With a
+ * {@link SyncState} journal, checksums of unchanged local files are not recomputed either. Files that exist only on
+ * the target are left alone.
+ * <pre>
+ *     DirectorySync sync = new DirectorySync( atmos, new File( "/data" ), new ObjectPath( "/backup/data/" ),
+ *                                             DirectorySync.Direction.UPLOAD );
+ *     sync.setState( new SyncState( new File( "/var/lib/backup/data.journal" ) ) );
+ *     SyncResult result = sync.run();
+ * </pre>
+ */
+public class DirectorySync {
+    private static final Logger l4j = Logger.getLogger( DirectorySync.class );
+
+    public static final String META_MTIME = "atmos-sync-mtime";
+    public static final String META_MD5 = "atmos-sync-md5";
+
+    public static final int DEFAULT_THREAD_COUNT = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final long DEFAULT_SMALL_FILE_SIZE = 1024 * 1024; // 1MB
+
+    private static final String TEMP_SUFFIX = ".atmos-sync";
+
+    public static enum Direction {
+        UPLOAD, DOWNLOAD
+    }
+
+    private AtmosApi atmosApi;
+    private File localRoot;
+    private ObjectPath remoteRoot;
+    private Direction direction;
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long smallFileSize = DEFAULT_SMALL_FILE_SIZE;
+    private boolean verifyChecksums = false;
+    private SyncState state;
+
+    private ThreadPoolExecutor executor;
+    private SyncResult result;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ReentrantLock doneLock = new ReentrantLock();
+    private final Condition done = doneLock.newCondition();
+
+    public DirectorySync( AtmosApi atmosApi, File localRoot, ObjectPath remoteRoot, Direction direction ) {
+        if ( !remoteRoot.isDirectory() )
+            throw new IllegalArgumentException( "remote root must be a directory (end with a slash)" );
+        this.atmosApi = atmosApi;
+        this.localRoot = localRoot;
+        this.remoteRoot = remoteRoot;
+        this.direction = direction;
+    }
+
+    /**
+     * Runs the sync and waits for it to finish. Failures of individual files and directories are collected in the
+     * result rather than stopping the sync.
+     */
+    public SyncResult run() {
+        result = new SyncResult();
+        executor = new ThreadPoolExecutor( threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>( queueSize ),
+                                           ThreadUtil.newDaemonThreadFactory( "atmos-sync" ),
+                                           new ThreadPoolExecutor.CallerRunsPolicy() );
+        try {
+            if ( direction == Direction.DOWNLOAD && !localRoot.isDirectory() && !localRoot.mkdirs() )
+                throw new AtmosException( "Could not create " + localRoot );
+
+            submit( "", new Runnable() {
+                @Override
+                public void run() {
+                    syncDirectory( "", true );
+                }
+            } );
+
+            doneLock.lock();
+            try {
+                while ( pending.get() > 0 ) {
+                    done.await();
+                }
+            } finally {
+                doneLock.unlock();
+            }
+        } catch ( InterruptedException e ) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new AtmosException( "Interrupted while syncing", e );
+        } finally {
+            executor.shutdown();
+            if ( state != null ) {
+                try {
+                    state.flush();
+                } catch ( IOException e ) {
+                    l4j.warn( "could not flush sync journal", e );
+                }
+            }
+        }
+
+        l4j.info( "sync of " + localRoot + (direction == Direction.UPLOAD ? " to " : " from ") + remoteRoot
+                  + " finished: " + result );
+        return result;
+    }
+
+    protected void submit( final String path, final Runnable task ) {
+        pending.incrementAndGet();
+        executor.execute( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch ( Throwable t ) {
+                    l4j.warn( "could not sync " + path, t );
+                    result.failures.put( path, t );
+                } finally {
+                    if ( pending.decrementAndGet() == 0 ) {
+                        doneLock.lock();
+                        try {
+                            done.signalAll();
+                        } finally {
+                            doneLock.unlock();
+                        }
+                    }
+                }
+            }
+        } );
+    }
+
+    /**
+     * Compares one directory (path is relative to the roots and ends with a slash, or is empty for the roots) and
+     * submits transfers for its files and tasks for its subdirectories.
+     */
+    protected void syncDirectory( final String path, boolean remoteExists ) {
+        result.directoriesScanned.incrementAndGet();
+        File directory = localFile( path );
+
+        Map<String, File> localFiles = new HashMap<String, File>();
+        File[] children = directory.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                if ( !child.getName().endsWith( TEMP_SUFFIX ) ) localFiles.put( child.getName(), child );
+            }
+        }
+
+        Map<String, DirectoryEntry> remoteEntries = new HashMap<String, DirectoryEntry>();
+        if ( remoteExists ) {
+            try {
+                remoteEntries = listRemote( path );
+            } catch ( AtmosException e ) {
+                if ( e.getErrorCode() != 1003 || direction == Direction.DOWNLOAD ) throw e;
+                atmosApi.createDirectory( remotePath( path ) );
+            }
+        }
+
+        if ( direction == Direction.UPLOAD ) {
+            for ( File file : localFiles.values() ) {
+                DirectoryEntry entry = remoteEntries.get( file.getName() );
+                if ( file.isDirectory() ) {
+                    String childPath = path + file.getName() + "/";
+                    if ( entry != null && !entry.isDirectory() ) {
+                        conflict( childPath, "is a directory locally but not in Atmos" );
+                        continue;
+                    }
+                    if ( entry == null ) atmosApi.createDirectory( remotePath( childPath ) );
+                    submitDirectory( childPath, entry != null );
+                } else if ( file.isFile() ) {
+                    if ( entry != null && entry.isDirectory() ) {
+                        conflict( path + file.getName(), "is a directory in Atmos but not locally" );
+                        continue;
+                    }
+                    result.filesScanned.incrementAndGet();
+                    compareForUpload( path + file.getName(), file, entry );
+                }
+            }
+        } else {
+            for ( DirectoryEntry entry : remoteEntries.values() ) {
+                File file = new File( directory, entry.getFilename() );
+                if ( entry.isDirectory() ) {
+                    if ( !file.isDirectory() && !file.mkdir() ) {
+                        conflict( path + entry.getFilename() + "/", "could not be created locally" );
+                        continue;
+                    }
+                    submitDirectory( path + entry.getFilename() + "/", true );
+                } else if ( file.isDirectory() ) {
+                    conflict( path + entry.getFilename(), "is a directory locally but not in Atmos" );
+                } else {
+                    result.filesScanned.incrementAndGet();
+                    compareForDownload( path + entry.getFilename(), file.exists() ? file : null, entry );
+                }
+            }
+        }
+    }
+
+    private void conflict( String path, String problem ) {
+        AtmosException e = new AtmosException( path + " " + problem );
+        l4j.warn( "could not sync " + path + ": " + e.getMessage() );
+        result.failures.put( path, e );
+    }
+
+    private void submitDirectory( final String path, final boolean remoteExists ) {
+        submit( path, new Runnable() {
+            @Override
+            public void run() {
+                syncDirectory( path, remoteExists );
+            }
+        } );
+    }
+
+    protected void compareForUpload( final String path, final File file, final DirectoryEntry entry ) {
+        final long size = file.length(), mtime = file.lastModified();
+        if ( entry == null || size != remoteSize( entry ) || !("" + mtime).equals( userMeta( entry, META_MTIME ) ) ) {
+            submit( path, new Runnable() {
+                @Override
+                public void run() {
+                    upload( path, file, entry != null );
+                }
+            } );
+        } else if ( verifyChecksums ) {
+            submit( path, new Runnable() {
+                @Override
+                public void run() {
+                    if ( !localMd5( path, file ).equals( userMeta( entry, META_MD5 ) ) ) upload( path, file, true );
+                }
+            } );
+        }
+    }
+
+    protected void compareForDownload( final String path, final File file, final DirectoryEntry entry ) {
+        final long mtime = remoteMtime( entry );
+        if ( file == null || !file.isFile() || file.length() != remoteSize( entry )
+             || file.lastModified() / 1000 != mtime / 1000 ) {
+            submit( path, new Runnable() {
+                @Override
+                public void run() {
+                    download( path, entry, mtime );
+                }
+            } );
+        } else if ( verifyChecksums && userMeta( entry, META_MD5 ) != null ) {
+            submit( path, new Runnable() {
+                @Override
+                public void run() {
+                    if ( !localMd5( path, file ).equals( userMeta( entry, META_MD5 ) ) )
+                        download( path, entry, mtime );
+                }
+            } );
+        }
+    }
+
+    protected void upload( String path, File file, boolean exists ) {
+        long size = file.length(), mtime = file.lastModified();
+        ObjectPath objectPath = remotePath( path );
+        Metadata mtimeMeta = new Metadata( META_MTIME, "" + mtime, false );
+        String md5;
+        try {
+            if ( size <= smallFileSize ) {
+                // read once, then send content and all metadata in one request
+                byte[] data = StreamUtil.readAsBytes( new FileInputStream( file ) );
+                MessageDigest digest = newMd5();
+                digest.update( data );
+                md5 = toHex( digest.digest() );
+                write( objectPath, exists, data, data.length, mtimeMeta, new Metadata( META_MD5, md5, false ) );
+                size = data.length;
+            } else {
+                MessageDigest digest = newMd5();
+                InputStream in = new DigestInputStream( new FileInputStream( file ), digest );
+                try {
+                    write( objectPath, exists, in, size, mtimeMeta );
+                } finally {
+                    in.close();
+                }
+                md5 = toHex( digest.digest() );
+                atmosApi.setUserMetadata( objectPath, new Metadata( META_MD5, md5, false ) );
+            }
+        } catch ( IOException e ) {
+            throw new AtmosException( "Could not read " + file, e );
+        }
+
+        result.filesTransferred.incrementAndGet();
+        result.bytesTransferred.addAndGet( size );
+        record( path, size, mtime, md5 );
+    }
+
+    private void write( ObjectPath path, boolean exists, Object content, long size, Metadata... metadata ) {
+        if ( exists ) {
+            // an update without a range replaces the whole object
+            atmosApi.updateObject( new UpdateObjectRequest().identifier( path ).content( content )
+                                                            .contentLength( size ).userMetadata( metadata ) );
+        } else {
+            atmosApi.createObject( new CreateObjectRequest().identifier( path ).content( content )
+                                                            .contentLength( size ).userMetadata( metadata ) );
+        }
+    }
+
+    protected void download( String path, DirectoryEntry entry, long mtime ) {
+        File file = localFile( path );
+        File temp = new File( file.getParentFile(), file.getName() + TEMP_SUFFIX );
+        MessageDigest digest = newMd5();
+        long size;
+        try {
+            InputStream in = new DigestInputStream( atmosApi.readObjectStream( remotePath( path ), null ).getObject(),
+                                                    digest );
+            try {
+                OutputStream out = new FileOutputStream( temp );
+                try {
+                    size = StreamUtil.copy( in, out, Long.MAX_VALUE );
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            String md5 = toHex( digest.digest() ), expectedMd5 = userMeta( entry, META_MD5 );
+            if ( verifyChecksums && expectedMd5 != null && !expectedMd5.equals( md5 ) )
+                throw new AtmosException( "Checksum mismatch for " + path + " (expected " + expectedMd5 + ", got "
+                                          + md5 + ")" );
+
+            if ( file.exists() && !file.delete() ) throw new IOException( "Could not replace " + file );
+            if ( !temp.renameTo( file ) ) throw new IOException( "Could not rename " + temp + " to " + file );
+            if ( !file.setLastModified( mtime ) ) l4j.warn( "could not set modification time of " + file );
+
+            result.filesTransferred.incrementAndGet();
+            result.bytesTransferred.addAndGet( size );
+            record( path, size, file.lastModified(), md5 );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Could not download " + path + " to " + file, e );
+        } finally {
+            if ( temp.exists() && !temp.delete() ) l4j.warn( "could not delete " + temp );
+        }
+    }
+
+    protected Map<String, DirectoryEntry> listRemote( String path ) {
+        Map<String, DirectoryEntry> entries = new HashMap<String, DirectoryEntry>();
+        ListDirectoryRequest request = new ListDirectoryRequest().path( remotePath( path ) ).includeMetadata( true );
+        request.systemMetadataNames( "size", "mtime" ).userMetadataNames( META_MTIME, META_MD5 );
+        do {
+            for ( DirectoryEntry entry : atmosApi.listDirectory( request ).getEntries() ) {
+                entries.put( entry.getFilename(), entry );
+            }
+        } while ( request.getToken() != null );
+        return entries;
+    }
+
+    protected String localMd5( String path, File file ) {
+        long size = file.length(), mtime = file.lastModified();
+        String md5 = state == null ? null : state.getMd5( path, size, mtime );
+        if ( md5 != null ) return md5;
+
+        MessageDigest digest = newMd5();
+        try {
+            InputStream in = new DigestInputStream( new FileInputStream( file ), digest );
+            try {
+                StreamUtil.copy( in, new NullOutputStream(), Long.MAX_VALUE );
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            throw new AtmosException( "Could not read " + file, e );
+        }
+        md5 = toHex( digest.digest() );
+        record( path, size, mtime, md5 );
+        return md5;
+    }
+
+    private void record( String path, long size, long mtime, String md5 ) {
+        if ( state == null ) return;
+        try {
+            state.record( path, size, mtime, md5 );
+        } catch ( IOException e ) {
+            l4j.warn( "could not write sync journal", e );
+        }
+    }
+
+    private File localFile( String path ) {
+        return path.length() == 0 ? localRoot : new File( localRoot, path );
+    }
+
+    private ObjectPath remotePath( String path ) {
+        return path.length() == 0 ? remoteRoot : new ObjectPath( remoteRoot, path );
+    }
+
+    private long remoteSize( DirectoryEntry entry ) {
+        String size = meta( entry.getSystemMetadataMap(), "size" );
+        return size == null ? -1 : Long.parseLong( size );
+    }
+
+    private long remoteMtime( DirectoryEntry entry ) {
+        String mtime = userMeta( entry, META_MTIME );
+        if ( mtime != null ) {
+            try {
+                return Long.parseLong( mtime );
+            } catch ( NumberFormatException e ) {
+                // fall back to the object's mtime
+            }
+        }
+        mtime = meta( entry.getSystemMetadataMap(), "mtime" );
+        try {
+            return mtime == null ? 0 : new Iso8601Adapter().unmarshal( mtime ).getTime();
+        } catch ( Exception e ) {
+            return 0;
+        }
+    }
+
+    private String userMeta( DirectoryEntry entry, String name ) {
+        return meta( entry.getUserMetadataMap(), name );
+    }
+
+    private String meta( Map<String, Metadata> metadata, String name ) {
+        if ( metadata == null ) return null;
+        Metadata m = metadata.get( name );
+        return m == null ? null : m.getValue();
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance( "MD5" );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( "MD5 is not supported", e );
+        }
+    }
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder hex = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes ) {
+            hex.append( Character.forDigit( (b >> 4) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return hex.toString();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write( int b ) {
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+        }
+    }
+
+    public AtmosApi getAtmosApi() {
+        return atmosApi;
+    }
+
+    public File getLocalRoot() {
+        return localRoot;
+    }
+
+    public ObjectPath getRemoteRoot() {
+        return remoteRoot;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the number of threads that list, compare and transfer. Default is 8.
+     */
+    public void setThreadCount( int threadCount ) {
+        this.threadCount = threadCount;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the number of tasks that may wait for a thread. Default is 1000.
+     */
+    public void setQueueSize( int queueSize ) {
+        this.queueSize = queueSize;
+    }
+
+    public long getSmallFileSize() {
+        return smallFileSize;
+    }
+
+    /**
+     * Sets the size up to which files are read into memory and uploaded with all metadata in one request.
+     * Default is 1MB.
+     */
+    public void setSmallFileSize( long smallFileSize ) {
+        this.smallFileSize = smallFileSize;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    /**
+     * Sets whether files with matching size and modification time are also compared by MD5, and whether downloads
+     * are verified against the MD5 recorded at upload. Default is false.
+     */
+    public void setVerifyChecksums( boolean verifyChecksums ) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    public SyncState getState() {
+        return state;
+    }
+
+    /**
+     * Sets a journal used to avoid recomputing checksums of unchanged local files. Default is null (no journal).
+     */
+    public void setState( SyncState state ) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.sync;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.BasicResponse;
+import com.emc.atmos.api.bean.CreateObjectResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ObjectMetadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.PutObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import com.emc.util.ThreadUtil;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Copies objects from one Atmos (cluster or subtenant) to one or more others without holding whole objects in
+ * memory.
+ * <p/>
+ * Each source object is read once as a stream. The response headers supply the user metadata (with listable flags),
+ * ACL and content type, so no extra metadata calls are made; these are sent with the content in a single create (or
+ * update) request to every destination. The content is read in chunks of chunkSize and handed to one request per
+ * destination through a queue of up to queueDepth chunks, so the heap used per object is bounded by
+ * destinations x (queueDepth + 1) x chunkSize regardless of object size, and the copy runs as fast as the slowest
+ * destination accepts data. A destination that fails is dropped and the others carry on.
+ * <p/>
+ * With verifyChecksums (the default), the MD5 of the content read is checked against the source's server-generated
+ * checksum (if it has one) before the writes are completed, and each destination is asked to generate an MD5 which
+ * must match. If the source turns out to be bad (short, or failing its checksum), the failure is reported for every
+ * destination and any replica that was already committed is deleted. System metadata is never copied.
+ * <p/>
+ * At most maxConcurrent objects are replicated at the same time, whether by {@link #replicateAll(List)} or by
+ * callers of {@link #replicate(ObjectIdentifier, ObjectIdentifier)} in their own threads.
+ * <pre>
+ *     ObjectReplicator replicator = new ObjectReplicator( sourceAtmos, Arrays.asList( siteB, siteC ) );
+ *     for ( ReplicationResult result : replicator.replicateAll( paths ) ) {
+ *         if ( !result.isSuccessful() ) log.warn( result.getSourceId() + ": " + result.getFailures() );
+ *     }
+ * </pre>
+ */
+public class ObjectReplicator {
+    private static final Logger l4j = Logger.getLogger( ObjectReplicator.class );
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1MB
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+    public static final int DEFAULT_MAX_CONCURRENT = 8;
+
+    /**
+     * Metadata that Atmos returns alongside user metadata but maintains itself.
+     */
+    static final Set<String> SYSTEM_METADATA = new HashSet<String>( Arrays.asList(
+            "atime", "mtime", "ctime", "itime", "type", "uid", "gid", "objectid", "objname", "size", "nlink",
+            "policyname" ) );
+
+    private AtmosApi source;
+    private List<AtmosApi> destinations;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private boolean verifyChecksums = true;
+    private boolean copyAcl = true;
+    private boolean overwrite = false;
+    private Executor executor;
+
+    private Semaphore permits = new Semaphore( DEFAULT_MAX_CONCURRENT );
+
+    public ObjectReplicator( AtmosApi source, List<AtmosApi> destinations ) {
+        if ( destinations.isEmpty() ) throw new IllegalArgumentException( "at least one destination is required" );
+        this.source = source;
+        this.destinations = new ArrayList<AtmosApi>( destinations );
+    }
+
+    /**
+     * Replicates each of the given objects to every destination, up to maxConcurrent at a time (one of them in the
+     * calling thread). Namespace paths and keys keep their identifiers; objects identified by ObjectId get a new ID
+     * on each destination (see {@link ReplicationResult#getTargetIds()}).
+     *
+     * @return the results in the order of sourceIds
+     */
+    public List<ReplicationResult> replicateAll( final List<? extends ObjectIdentifier> sourceIds ) {
+        final AtomicReferenceArray<ReplicationResult> results
+                = new AtomicReferenceArray<ReplicationResult>( sourceIds.size() );
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ( (index = next.getAndIncrement()) < sourceIds.size() ) {
+                    ObjectIdentifier sourceId = sourceIds.get( index );
+                    results.set( index, replicate( sourceId, sourceId instanceof ObjectId ? null : sourceId ) );
+                }
+            }
+        };
+
+        int workers = Math.min( maxConcurrent, sourceIds.size() );
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+        for ( int i = 1; i < workers; i++ ) {
+            FutureTask<Object> task = new FutureTask<Object>( worker, null );
+            tasks.add( task );
+            getExecutor().execute( task );
+        }
+        try {
+            worker.run();
+        } catch ( RuntimeException e ) {
+            next.set( sourceIds.size() ); // stop the other workers
+            throw e;
+        }
+        for ( FutureTask<Object> task : tasks ) {
+            try {
+                task.get();
+            } catch ( InterruptedException e ) {
+                next.set( sourceIds.size() );
+                throw new AtmosException( "Interrupted while replicating objects", e );
+            } catch ( ExecutionException e ) {
+                next.set( sourceIds.size() );
+                if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+                throw new AtmosException( "Error replicating objects", e.getCause() );
+            }
+        }
+
+        List<ReplicationResult> resultList = new ArrayList<ReplicationResult>( sourceIds.size() );
+        for ( int i = 0; i < results.length(); i++ ) {
+            resultList.add( results.get( i ) );
+        }
+        return resultList;
+    }
+
+    /**
+     * Replicates one object to every destination. Failures (of the source or of individual destinations) are
+     * reported in the result rather than thrown.
+     *
+     * @param sourceId the object to read from the source
+     * @param targetId the identifier to create on each destination (an ObjectPath or ObjectKey), or null to create
+     *                 a new object on each destination
+     */
+    public ReplicationResult replicate( ObjectIdentifier sourceId, ObjectIdentifier targetId ) {
+        if ( targetId instanceof ObjectId )
+            throw new IllegalArgumentException( "an object ID cannot be chosen; use null to create a new object" );
+
+        List<ObjectIdentifier> targetIds = new ArrayList<ObjectIdentifier>( destinations.size() );
+        for ( int i = 0; i < destinations.size(); i++ ) targetIds.add( null );
+        ReplicationResult result = new ReplicationResult( sourceId, targetIds );
+
+        try {
+            permits.acquire();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException( "Interrupted while waiting to replicate " + sourceId, e );
+        }
+        try {
+            copy( sourceId, targetId, result, targetIds );
+        } finally {
+            permits.release();
+        }
+        return result;
+    }
+
+    private void copy( ObjectIdentifier sourceId, ObjectIdentifier targetId, ReplicationResult result,
+                       List<ObjectIdentifier> targetIds ) {
+        ReadObjectResponse<InputStream> response;
+        try {
+            response = source.readObjectStream( sourceId, null );
+        } catch ( RuntimeException e ) {
+            for ( int i = 0; i < destinations.size(); i++ ) result.addFailure( i, e );
+            return;
+        }
+
+        ObjectMetadata metadata = response.getMetadata();
+        long contentLength = response.getContentLength();
+        InputStream in = response.getObject();
+
+        List<ChunkPipe> pipes = new ArrayList<ChunkPipe>();
+        List<FutureTask<Written>> writes = new ArrayList<FutureTask<Written>>();
+        for ( AtmosApi destination : destinations ) {
+            ChunkPipe pipe = new ChunkPipe( queueDepth );
+            FutureTask<Written> write = new FutureTask<Written>(
+                    new Writer( destination, targetId, metadata, contentLength, pipe ) );
+            pipes.add( pipe );
+            writes.add( write );
+            getExecutor().execute( write );
+        }
+
+        RunningChecksum checksum = newMd5();
+        long bytesRead = 0;
+        IOException sourceError = null;
+        try {
+            boolean open = true;
+            try {
+                byte[] chunk;
+                while ( open && (chunk = readChunk( in )) != null ) {
+                    checksum.update( chunk, 0, chunk.length );
+                    bytesRead += chunk.length;
+
+                    open = false;
+                    for ( ChunkPipe pipe : pipes ) {
+                        open |= pipe.put( chunk );
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            // hold back the end of the content until the source checks out, so bad data is not committed (when the
+            // length is known, a destination may already have sent all of it; such replicas are deleted below)
+            if ( open ) {
+                if ( contentLength >= 0 && bytesRead != contentLength )
+                    throw new IOException( "Read " + bytesRead + " bytes but the source reported " + contentLength );
+                ChecksumValue sourceChecksum = metadata.getServerChecksum();
+                if ( verifyChecksums && sourceChecksum != null
+                     && sourceChecksum.getAlgorithm() == ChecksumAlgorithm.MD5
+                     && !sourceChecksum.getValue().equalsIgnoreCase( checksum.getValue() ) )
+                    throw new IOException( "Source checksum mismatch (expected " + sourceChecksum.getValue()
+                                           + ", got " + checksum.getValue() + ")" );
+
+                for ( ChunkPipe pipe : pipes ) {
+                    pipe.finish();
+                }
+            }
+        } catch ( IOException e ) {
+            sourceError = e;
+        } catch ( RuntimeException e ) {
+            sourceError = new IOException( "Error reading source", e );
+        }
+        if ( sourceError != null ) {
+            l4j.warn( "Reading " + sourceId + " failed", sourceError );
+            failAll( pipes, sourceError );
+        }
+
+        result.setBytesRead( bytesRead );
+        result.setMd5( checksum.getValue() );
+
+        for ( int i = 0; i < writes.size(); i++ ) {
+            try {
+                Written written = writes.get( i ).get();
+                if ( sourceError != null ) {
+                    discard( i, written.identifier );
+                    result.addFailure( i, sourceError );
+                    continue;
+                }
+                targetIds.set( i, written.identifier );
+                if ( verifyChecksums && written.checksum == null )
+                    throw new AtmosException( "Destination did not generate a checksum" );
+                if ( verifyChecksums && !checksum.getValue().equalsIgnoreCase( written.checksum ) )
+                    throw new AtmosException( "Destination checksum mismatch (expected " + checksum.getValue()
+                                              + ", got " + written.checksum + ")" );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                for ( int j = i; j < writes.size(); j++ ) result.addFailure( j, e );
+                return;
+            } catch ( ExecutionException e ) {
+                if ( sourceError != null ) {
+                    result.addFailure( i, sourceError );
+                } else {
+                    l4j.warn( "Replicating " + sourceId + " to destination " + i + " failed", e.getCause() );
+                    result.addFailure( i, e.getCause() );
+                }
+            } catch ( AtmosException e ) {
+                l4j.warn( "Replica of " + sourceId + " on destination " + i + " could not be verified", e );
+                result.addFailure( i, e );
+            }
+        }
+    }
+
+    /**
+     * Deletes a replica that was committed before the source turned out to be bad.
+     */
+    private void discard( int destination, ObjectIdentifier identifier ) {
+        try {
+            destinations.get( destination ).delete( identifier );
+        } catch ( RuntimeException e ) {
+            l4j.warn( "Could not delete bad replica " + identifier + " on destination " + destination, e );
+        }
+    }
+
+    private void failAll( List<ChunkPipe> pipes, IOException e ) {
+        for ( ChunkPipe pipe : pipes ) {
+            pipe.fail( e );
+        }
+    }
+
+    /**
+     * Reads up to chunkSize bytes (fewer only at the end of the stream), or returns null at the end of the stream.
+     */
+    private byte[] readChunk( InputStream in ) throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        int length = 0, read;
+        while ( length < chunkSize && (read = in.read( chunk, length, chunkSize - length )) != -1 ) {
+            length += read;
+        }
+        if ( length == 0 ) return null;
+        return length == chunkSize ? chunk : Arrays.copyOf( chunk, length );
+    }
+
+    private static RunningChecksum newMd5() {
+        try {
+            return new RunningChecksum( ChecksumAlgorithm.MD5 );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( "MD5 is not supported", e );
+        }
+    }
+
+    public List<AtmosApi> getDestinations() {
+        return Collections.unmodifiableList( destinations );
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the size of the chunks read from the source and handed to the destinations. Default is 1MB.
+     */
+    public void setChunkSize( int chunkSize ) {
+        if ( chunkSize <= 0 ) throw new IllegalArgumentException( "chunkSize must be positive" );
+        this.chunkSize = chunkSize;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Sets how many chunks the source may read ahead of the slowest destination. Default is 4.
+     */
+    public void setQueueDepth( int queueDepth ) {
+        if ( queueDepth <= 0 ) throw new IllegalArgumentException( "queueDepth must be positive" );
+        this.queueDepth = queueDepth;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Sets the most objects replicated at the same time. Set this before replicating. Default is 8.
+     */
+    public void setMaxConcurrent( int maxConcurrent ) {
+        if ( maxConcurrent <= 0 ) throw new IllegalArgumentException( "maxConcurrent must be positive" );
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore( maxConcurrent );
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    /**
+     * Sets whether the content is verified by MD5 against the source's server checksum (if any) and a checksum
+     * generated by each destination. Default is true.
+     */
+    public void setVerifyChecksums( boolean verifyChecksums ) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    public boolean isCopyAcl() {
+        return copyAcl;
+    }
+
+    /**
+     * Sets whether the source object's ACL is applied to the replicas. Turn this off when the destinations do not
+     * have the same users and groups (the replicas then get the destination's default ACL). Default is true.
+     */
+    public void setCopyAcl( boolean copyAcl ) {
+        this.copyAcl = copyAcl;
+    }
+
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    /**
+     * Sets whether existing target objects (by path or key) are overwritten. Overwritten replicas keep any user
+     * metadata the source does not have. When false, an existing target is a failure for that destination.
+     * Default is false.
+     */
+    public void setOverwrite( boolean overwrite ) {
+        this.overwrite = overwrite;
+    }
+
+    public Executor getExecutor() {
+        return executor == null ? DefaultExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * Sets the executor that runs destination writes and parallel replications. Each object in progress keeps one
+     * thread per destination busy, so the executor must not queue tasks behind a fixed number of threads. By
+     * default, a shared cached pool of daemon threads is used.
+     */
+    public void setExecutor( Executor executor ) {
+        this.executor = executor;
+    }
+
+    private static class Written {
+        final ObjectIdentifier identifier;
+        final String checksum;
+
+        Written( ObjectIdentifier identifier, String checksum ) {
+            this.identifier = identifier;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Sends the content from one pipe to one destination, with the source's metadata.
+     */
+    private class Writer implements Callable<Written> {
+        private AtmosApi destination;
+        private ObjectIdentifier targetId;
+        private ObjectMetadata metadata;
+        private long contentLength;
+        private ChunkPipe pipe;
+
+        Writer( AtmosApi destination, ObjectIdentifier targetId, ObjectMetadata metadata, long contentLength,
+                ChunkPipe pipe ) {
+            this.destination = destination;
+            this.targetId = targetId;
+            this.metadata = metadata;
+            this.contentLength = contentLength;
+            this.pipe = pipe;
+        }
+
+        @Override
+        public Written call() {
+            try {
+                if ( targetId != null && overwrite && destination.objectExists( targetId ) ) {
+                    BasicResponse response = destination.updateObject(
+                            prepare( new UpdateObjectRequest().identifier( targetId ) ) );
+                    return new Written( targetId, checksumOf( response ) );
+                } else {
+                    CreateObjectResponse response = destination.createObject(
+                            prepare( new CreateObjectRequest().identifier( targetId ) ) );
+                    return new Written( targetId == null ? response.getObjectId() : targetId,
+                                        checksumOf( response ) );
+                }
+            } finally {
+                pipe.close();
+            }
+        }
+
+        private <T extends PutObjectRequest<T>> T prepare( T request ) {
+            List<Metadata> userMetadata = new ArrayList<Metadata>();
+            for ( Metadata meta : metadata.getMetadata().values() ) {
+                if ( !SYSTEM_METADATA.contains( meta.getName() ) ) userMetadata.add( meta );
+            }
+            Acl acl = metadata.getAcl();
+            if ( !copyAcl || (acl.getUserAcl().isEmpty() && acl.getGroupAcl().isEmpty()) ) acl = null;
+
+            request.content( pipe ).contentLength( contentLength ).contentType( metadata.getContentType() );
+            request.userMetadata( userMetadata.toArray( new Metadata[userMetadata.size()] ) ).acl( acl );
+            if ( verifyChecksums ) request.serverGeneratedChecksumAlgorithm( ChecksumAlgorithm.MD5 );
+            return request;
+        }
+
+        private String checksumOf( BasicResponse response ) {
+            String header = response.getFirstHeader( RestUtil.XHEADER_CONTENT_CHECKSUM );
+            return header == null ? null : new ChecksumValueImpl( header ).getValue();
+        }
+    }
+
+    /**
+     * Hands the source's chunks to one destination request. The bounded queue keeps the source from running more
+     * than its capacity ahead of this destination. Once the request is done (or has failed), the pipe is closed and
+     * the source stops feeding it.
+     */
+    static class ChunkPipe extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> queue;
+        private volatile boolean closed = false;
+        private volatile IOException error;
+        private byte[] current;
+        private int position;
+
+        ChunkPipe( int capacity ) {
+            this.queue = new ArrayBlockingQueue<byte[]>( capacity );
+        }
+
+        /**
+         * Waits for room and queues the chunk. Returns false if the consumer has gone away.
+         */
+        boolean put( byte[] chunk ) throws InterruptedIOException {
+            try {
+                while ( !closed ) {
+                    if ( queue.offer( chunk, 100, TimeUnit.MILLISECONDS ) ) return true;
+                }
+                return false;
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for a destination" );
+            }
+        }
+
+        void finish() throws InterruptedIOException {
+            put( END );
+        }
+
+        /**
+         * Makes the consumer's next read throw the given error. Does not wait for room.
+         */
+        void fail( IOException e ) {
+            error = e;
+            queue.clear();
+            queue.offer( END );
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read( b, 0, 1 );
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( len == 0 ) return 0;
+            if ( current == null || (position == current.length && current != END) ) {
+                try {
+                    current = queue.take();
+                    position = 0;
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted while waiting for source content" );
+                }
+            }
+            if ( current == END ) {
+                if ( error != null ) throw error;
+                return -1;
+            }
+            int count = Math.min( len, current.length - position );
+            System.arraycopy( current, position, b, off, count );
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    static final class DefaultExecutor {
+        static final Executor INSTANCE = ThreadUtil.newDaemonExecutor( "atmos-replicate" );
+    }
+}
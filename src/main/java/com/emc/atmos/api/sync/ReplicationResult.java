@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.sync;
+
+import com.emc.atmos.api.ObjectIdentifier;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The outcome of replicating one source object with an {@link ObjectReplicator}. Destinations are identified by
+ * their index in the replicator's destination list.
+ */
+public class ReplicationResult {
+    private ObjectIdentifier sourceId;
+    private long bytesRead;
+    private String md5;
+    private List<ObjectIdentifier> targetIds;
+    private Map<Integer, Throwable> failures = new TreeMap<Integer, Throwable>();
+
+    ReplicationResult( ObjectIdentifier sourceId, List<ObjectIdentifier> targetIds ) {
+        this.sourceId = sourceId;
+        this.targetIds = targetIds;
+    }
+
+    public ObjectIdentifier getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * Returns the number of content bytes read from the source.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    void setBytesRead( long bytesRead ) {
+        this.bytesRead = bytesRead;
+    }
+
+    /**
+     * Returns the MD5 (hex) of the content read from the source, or null if the source could not be read.
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    void setMd5( String md5 ) {
+        this.md5 = md5;
+    }
+
+    /**
+     * Returns the identifier of the replica on each destination (by destination index). The entry for a failed
+     * destination is null; for a destination that failed verification it is the unverified replica, if one was
+     * written.
+     */
+    public List<ObjectIdentifier> getTargetIds() {
+        return Collections.unmodifiableList( targetIds );
+    }
+
+    /**
+     * Returns the destinations (by index) that were not replicated to and why.
+     */
+    public Map<Integer, Throwable> getFailures() {
+        return Collections.unmodifiableMap( failures );
+    }
+
+    void addFailure( int destination, Throwable cause ) {
+        failures.put( destination, cause );
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationResult{sourceId=" + sourceId + ", bytesRead=" + bytesRead + ", targetIds=" + targetIds
+               + ", failures=" + failures.keySet() + "}";
+    }
+}
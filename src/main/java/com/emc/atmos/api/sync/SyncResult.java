@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.sync;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and failures of a {@link DirectorySync} run. Updated while the sync runs.
+ */
+public class SyncResult {
+    final AtomicLong directoriesScanned = new AtomicLong();
+    final AtomicLong filesScanned = new AtomicLong();
+    final AtomicLong filesTransferred = new AtomicLong();
+    final AtomicLong bytesTransferred = new AtomicLong();
+    final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+
+    public long getDirectoriesScanned() {
+        return directoriesScanned.get();
+    }
+
+    /**
+     * Returns the number of files compared (on the source side).
+     */
+    public long getFilesScanned() {
+        return filesScanned.get();
+    }
+
+    public long getFilesTransferred() {
+        return filesTransferred.get();
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * Returns the relative paths that could not be synced and why.
+     */
+    public Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap( failures );
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "SyncResult{directoriesScanned=" + directoriesScanned + ", filesScanned=" + filesScanned
+               + ", filesTransferred=" + filesTransferred + ", bytesTransferred=" + bytesTransferred
+               + ", failures=" + failures.size() + "}";
+    }
+}
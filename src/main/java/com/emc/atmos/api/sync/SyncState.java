@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.sync;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A journal of files that have been synced, kept so an interrupted or repeated sync can resume without redoing work.
+ * Each line records a file's relative path, size, modification time and MD5; a later sync trusts the recorded MD5
+ * as long as the size and modification time still match, so checksums are only computed for files that changed.
+ * <p/>
+ * Lines are appended as files complete and flushed every flushInterval lines (and on close). A line lost in a crash
+ * only means the file is compared again. When loading, the last line for a path wins.
+ * <p/>
+ * Since every sync appends a line per file, a journal reused for many syncs of the same tree mostly holds stale
+ * lines. Once it has more than compactionFactor lines per path (and at least a thousand lines), it is rewritten as a
+ * snapshot with one line per path. The snapshot is written to a temporary file that then replaces the journal.
+ */
+public class SyncState {
+    private static final Logger l4j = Logger.getLogger( SyncState.class );
+
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final int DEFAULT_COMPACTION_FACTOR = 4;
+
+    // small journals are not worth rewriting
+    private static final int MIN_COMPACTION_LINES = 1000;
+
+    private File file;
+    private int flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private int compactionFactor = DEFAULT_COMPACTION_FACTOR;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Writer writer;
+    private int unflushed;
+    private long lines;
+
+    /**
+     * Loads the journal from file if it exists (compacting it if needed). Recorded entries are appended to the same
+     * file.
+     */
+    public SyncState( File file ) throws IOException {
+        this.file = file;
+        if ( file.exists() ) {
+            load();
+            writeLock.lock();
+            try {
+                if ( needsCompaction() ) compact();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the MD5 recorded for path if its size and modification time still match, otherwise null.
+     */
+    public String getMd5( String path, long size, long mtime ) {
+        Entry entry = entries.get( path );
+        if ( entry == null || entry.size != size || entry.mtime != mtime ) return null;
+        return entry.md5;
+    }
+
+    /**
+     * Records that path (with the given size, modification time and MD5) is in sync.
+     */
+    public void record( String path, long size, long mtime, String md5 ) throws IOException {
+        Entry entry = new Entry( size, mtime, md5 );
+        entries.put( path, entry );
+        writeLock.lock();
+        try {
+            if ( writer == null )
+                writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file, true ), "UTF-8" ) );
+            writer.write( line( path, entry ) );
+            lines++;
+            if ( needsCompaction() ) compact();
+            else if ( ++unflushed >= flushInterval ) flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes any buffered lines to the journal.
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if ( writer != null ) writer.flush();
+            unflushed = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if ( writer != null ) writer.close();
+            writer = null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of paths in the journal.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lines in the journal file (including lines not yet flushed).
+     */
+    public long getLineCount() {
+        writeLock.lock();
+        try {
+            return lines;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Sets how many lines are buffered before the journal is flushed. Default is 1000.
+     */
+    public void setFlushInterval( int flushInterval ) {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getCompactionFactor() {
+        return compactionFactor;
+    }
+
+    /**
+     * Sets how many lines per path the journal may grow to before it is rewritten with one line per path. Default is
+     * 4.
+     */
+    public void setCompactionFactor( int compactionFactor ) {
+        if ( compactionFactor < 1 ) throw new IllegalArgumentException( "compactionFactor must be at least 1" );
+        this.compactionFactor = compactionFactor;
+    }
+
+    // must hold writeLock
+    private boolean needsCompaction() {
+        return lines >= MIN_COMPACTION_LINES && lines > (long) compactionFactor * entries.size();
+    }
+
+    /**
+     * Rewrites the journal as a snapshot of the current entries. Must hold writeLock.
+     */
+    private void compact() throws IOException {
+        if ( writer != null ) writer.close();
+        writer = null;
+        unflushed = 0;
+
+        File temp = new File( file.getPath() + ".tmp" );
+        Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" ) );
+        long count = 0;
+        try {
+            for ( Map.Entry<String, Entry> entry : entries.entrySet() ) {
+                out.write( line( entry.getKey(), entry.getValue() ) );
+                count++;
+            }
+        } finally {
+            out.close();
+        }
+
+        // renameTo will not replace an existing file on some platforms
+        if ( !temp.renameTo( file ) && !(file.delete() && temp.renameTo( file )) )
+            throw new IOException( "Could not replace sync journal " + file + " with " + temp );
+        l4j.debug( "compacted sync journal " + file + " from " + lines + " to " + count + " lines" );
+        lines = count;
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                lines++;
+                String[] fields = line.split( "\t", -1 );
+                if ( fields.length != 4 ) {
+                    l4j.warn( "ignoring malformed line in sync journal " + file + ": " + line );
+                    continue;
+                }
+                try {
+                    entries.put( unescape( fields[0] ), new Entry( Long.parseLong( fields[1] ),
+                                                                   Long.parseLong( fields[2] ),
+                                                                   fields[3].length() == 0 ? null : fields[3] ) );
+                } catch ( NumberFormatException e ) {
+                    l4j.warn( "ignoring malformed line in sync journal " + file + ": " + line );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String line( String path, Entry entry ) {
+        return escape( path ) + '\t' + entry.size + '\t' + entry.mtime + '\t' + (entry.md5 == null ? "" : entry.md5)
+               + '\n';
+    }
+
+    // paths may contain tabs and newlines
+    private static String escape( String path ) {
+        return path.replace( "\\", "\\\\" ).replace( "\t", "\\t" ).replace( "\n", "\\n" ).replace( "\r", "\\r" );
+    }
+
+    private static String unescape( String path ) {
+        StringBuilder result = new StringBuilder( path.length() );
+        for ( int i = 0; i < path.length(); i++ ) {
+            char c = path.charAt( i );
+            if ( c == '\\' && i + 1 < path.length() ) {
+                char n = path.charAt( ++i );
+                result.append( n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n );
+            } else {
+                result.append( c );
+            }
+        }
+        return result.toString();
+    }
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final String md5;
+
+        Entry( long size, long mtime, String md5 ) {
+            this.size = size;
+            this.mtime = mtime;
+            this.md5 = md5;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size byte arrays. Chunks are kept well below the G1 humongous-object threshold (half a region, at
+ * least 512KB) so large contents never need a contiguous multi-MB allocation. At most maxPooled chunks are retained;
+ * chunks released beyond that are left to the garbage collector.
+ */
+public class BufferPool {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024; // 64KB
+    public static final int DEFAULT_MAX_POOLED = 256; // 16MB of 64KB chunks
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool() {
+        this( DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED );
+    }
+
+    public BufferPool( int chunkSize, int maxPooled ) {
+        if ( chunkSize <= 0 ) throw new IllegalArgumentException( "chunkSize must be positive" );
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a pooled chunk if one is available, otherwise allocates a new one. The contents of a pooled chunk are
+     * not cleared.
+     */
+    public byte[] acquire() {
+        byte[] chunk = free.poll();
+        if ( chunk == null ) return new byte[chunkSize];
+        pooled.decrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Returns a chunk to the pool. Chunks of the wrong size and chunks beyond maxPooled are dropped.
+     */
+    public void release( byte[] chunk ) {
+        if ( chunk == null || chunk.length != chunkSize ) return;
+        if ( pooled.incrementAndGet() > maxPooled ) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer( chunk );
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * Returns the number of chunks currently available in the pool.
+     */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+}
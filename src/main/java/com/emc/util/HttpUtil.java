@@ -37,10 +37,25 @@ import java.util.TimeZone;
 
 public final class HttpUtil {
     private static final String HEADER_FORMAT = "EEE, d MMM yyyy HH:mm:ss z";
-    private static final ThreadLocal<DateFormat> headerFormat = new ThreadLocal<DateFormat>();
 
-    public static synchronized String headerFormat( Date date ) {
-        return getHeaderFormat().format( date );
+    // the header format has 1-second resolution, so the last formatted value can be reused for the rest of that second
+    private static volatile CachedDate cachedHeaderDate = new CachedDate( Long.MIN_VALUE, null );
+
+    /**
+     * Formats a date for use in an HTTP header (RFC 1123 format, UTC). Lock-free; the formatted value is cached per
+     * second.
+     */
+    public static String headerFormat( Date date ) {
+        long second = floorSecond( date.getTime() );
+        CachedDate cached = cachedHeaderDate;
+        if ( cached.second == second ) return cached.value;
+
+        // a miss only happens once per second, so a new formatter is cheaper than keeping one per thread
+        DateFormat format = new SimpleDateFormat( HEADER_FORMAT, Locale.ENGLISH );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        String value = format.format( date );
+        cachedHeaderDate = new CachedDate( second, value );
+        return value;
     }
 
     public static String encodeUtf8( String value ) {
@@ -61,13 +76,18 @@ public final class HttpUtil {
         }
     }
 
-    private static DateFormat getHeaderFormat() {
-        DateFormat format = headerFormat.get();
-        if ( format == null ) {
-            format = new SimpleDateFormat( HEADER_FORMAT, Locale.ENGLISH );
-            format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
-            headerFormat.set( format );
+    private static long floorSecond( long millis ) {
+        long second = millis / 1000;
+        return millis < 0 && millis % 1000 != 0 ? second - 1 : second;
+    }
+
+    private static final class CachedDate {
+        final long second;
+        final String value;
+
+        CachedDate( long second, String value ) {
+            this.second = second;
+            this.value = value;
         }
-        return format;
     }
 }
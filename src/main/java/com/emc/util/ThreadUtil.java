@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor helpers for the background work done by the client (hedged reads, transform pipelines, bulk operations).
+ * <p/>
+ * On a JVM with virtual threads (JDK 21+), {@link #newVirtualThreadExecutor()} returns a thread-per-task executor
+ * that can be passed to any of the client's setExecutor methods. The client's own locking is done with
+ * {@link java.util.concurrent.locks.ReentrantLock} (never by blocking inside a synchronized block), so virtual
+ * threads are not pinned to their carriers.
+ */
+public final class ThreadUtil {
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    /**
+     * Returns whether this JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task.
+     *
+     * @throws UnsupportedOperationException if this JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        if ( NEW_VIRTUAL_THREAD_EXECUTOR == null )
+            throw new UnsupportedOperationException( "Virtual threads are not supported by this JVM" );
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke( null );
+        } catch ( IllegalAccessException e ) {
+            throw new UnsupportedOperationException( "Virtual threads are not accessible", e );
+        } catch ( InvocationTargetException e ) {
+            throw new RuntimeException( "Could not create virtual thread executor", e.getCause() );
+        }
+    }
+
+    /**
+     * Returns a cached pool of daemon threads named namePrefix-N.
+     */
+    public static ExecutorService newDaemonExecutor( String namePrefix ) {
+        return Executors.newCachedThreadPool( newDaemonThreadFactory( namePrefix ) );
+    }
+
+    /**
+     * Returns a factory of daemon threads named namePrefix-N, for executors that need a different pool shape.
+     */
+    public static ThreadFactory newDaemonThreadFactory( final String namePrefix ) {
+        return new ThreadFactory() {
+            private AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread( Runnable r ) {
+                Thread thread = new Thread( r, namePrefix + "-" + threadCount.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+        } catch ( NoSuchMethodException e ) {
+            return null;
+        }
+    }
+
+    private ThreadUtil() {
+    }
+}
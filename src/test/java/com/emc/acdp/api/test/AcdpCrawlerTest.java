@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.acdp.api.test;
+
+import com.emc.acdp.AcdpException;
+import com.emc.acdp.api.AcdpAdminApi;
+import com.emc.acdp.api.AcdpCrawler;
+import com.emc.cdp.services.rest.model.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AcdpCrawlerTest {
+    @Test
+    public void testAccountsPagedInParallel() throws Exception {
+        Tenant tenant = new Tenant( 250 );
+        AcdpCrawler crawler = new AcdpCrawler( tenant.api() );
+        crawler.setPageSize( 10 );
+        crawler.setParallelism( 4 );
+        crawler.setQueueSize( 5 );
+
+        Set<String> ids = new HashSet<String>();
+        AcdpCrawler.Results<Account> accounts = crawler.accounts( false );
+        while ( accounts.hasNext() ) Assert.assertTrue( ids.add( accounts.next().getId() ) );
+
+        Assert.assertEquals( 250, ids.size() );
+        Assert.assertEquals( 25, tenant.calls.get() );
+        Assert.assertTrue( "max " + tenant.maxActive.get(), tenant.maxActive.get() <= 4 );
+        Assert.assertTrue( "max " + tenant.maxActive.get(), tenant.maxActive.get() > 1 );
+    }
+
+    @Test
+    public void testTotalNotReported() throws Exception {
+        Tenant tenant = new Tenant( 23 );
+        tenant.reportTotals = false;
+        AcdpCrawler crawler = new AcdpCrawler( tenant.api() );
+        crawler.setPageSize( 5 );
+
+        Set<String> ids = new HashSet<String>();
+        AcdpCrawler.Results<Identity> identities = crawler.identities( true, false );
+        while ( identities.hasNext() ) Assert.assertTrue( ids.add( identities.next().getId() ) );
+
+        Assert.assertEquals( 23, ids.size() );
+        Assert.assertEquals( 5, tenant.calls.get() );
+    }
+
+    @Test
+    public void testTokensFanOut() throws Exception {
+        Tenant tenant = new Tenant( 20 );
+        AcdpCrawler crawler = new AcdpCrawler( tenant.api() );
+        crawler.setPageSize( 4 );
+
+        Set<String> ids = new HashSet<String>();
+        AcdpCrawler.Results<AcdpCrawler.Item<Token>> tokens = crawler.tokens();
+        while ( tokens.hasNext() ) {
+            AcdpCrawler.Item<Token> token = tokens.next();
+            Assert.assertTrue( token.getItem().getId().startsWith( token.getAccountId() + "/"
+                                                                   + token.getSubscriptionId() + "/"
+                                                                   + token.getTokenGroupId() + "/" ) );
+            Assert.assertTrue( ids.add( token.getItem().getId() ) );
+        }
+        Assert.assertEquals( 20 * 2 * 3 * Tenant.TOKENS, ids.size() );
+
+        int groups = 0;
+        AcdpCrawler.Results<AcdpCrawler.Item<TokenGroup>> tokenGroups = crawler.tokenGroups();
+        while ( tokenGroups.hasNext() ) {
+            Assert.assertNull( tokenGroups.next().getTokenGroupId() );
+            groups++;
+        }
+        Assert.assertEquals( 20 * 2 * 3, groups );
+    }
+
+    @Test
+    public void testErrorEndsCrawl() throws Exception {
+        Tenant tenant = new Tenant( 50 );
+        tenant.failAccount = "a17";
+        AcdpCrawler crawler = new AcdpCrawler( tenant.api() );
+        crawler.setPageSize( 10 );
+
+        AcdpCrawler.Results<AcdpCrawler.Item<TokenGroup>> tokenGroups = crawler.tokenGroups();
+        try {
+            while ( tokenGroups.hasNext() ) tokenGroups.next();
+            Assert.fail( "crawl should fail" );
+        } catch ( AcdpException e ) {
+            Assert.assertEquals( 500, e.getHttpCode() );
+        }
+        try {
+            tokenGroups.hasNext();
+            Assert.fail( "crawl should stay failed" );
+        } catch ( AcdpException e ) {
+            // expected
+        }
+    }
+
+    static class Tenant implements InvocationHandler {
+        static final int TOKENS = 6;
+
+        int accountCount;
+        volatile boolean reportTotals = true;
+        volatile String failAccount;
+        AtomicInteger calls = new AtomicInteger(), active = new AtomicInteger(), maxActive = new AtomicInteger();
+
+        Tenant( int accountCount ) {
+            this.accountCount = accountCount;
+        }
+
+        AcdpAdminApi api() {
+            return (AcdpAdminApi) Proxy.newProxyInstance( getClass().getClassLoader(),
+                                                          new Class<?>[]{AcdpAdminApi.class}, this );
+        }
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            int now = active.incrementAndGet();
+            try {
+                int max;
+                while ( now > (max = maxActive.get()) && !maxActive.compareAndSet( max, now ) ) ;
+                calls.incrementAndGet();
+                Thread.sleep( 5 );
+                return answer( method.getName(), args );
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        private Object answer( String name, Object[] args ) {
+            if ( "listAccounts".equals( name ) ) {
+                AccountList list = new AccountList();
+                for ( int i = first( args[1] ); i < end( args[1], args[2], accountCount ); i++ ) {
+                    Account account = new Account();
+                    account.setId( "a" + i );
+                    list.getAccounts().add( account );
+                }
+                list.setTotalResults( reportTotals ? accountCount : 0 );
+                return list;
+            } else if ( "listIdentities".equals( name ) ) {
+                IdentityList list = new IdentityList();
+                for ( int i = first( args[2] ); i < end( args[2], args[3], accountCount ); i++ ) {
+                    Identity identity = new Identity();
+                    identity.setId( "user" + i );
+                    list.getIdentities().add( identity );
+                }
+                list.setTotalResults( reportTotals ? accountCount : 0 );
+                return list;
+            } else if ( "getAccountSubscriptions".equals( name ) ) {
+                SubscriptionList list = new SubscriptionList();
+                for ( int i = 0; i < 2; i++ ) {
+                    Subscription subscription = new Subscription();
+                    subscription.setId( "s" + i );
+                    list.getSubscriptions().add( subscription );
+                }
+                return list;
+            } else if ( "listTokenGroups".equals( name ) ) {
+                if ( args[0].equals( failAccount ) ) throw new AcdpException( "internal error", 500 );
+                TokenGroupList list = new TokenGroupList();
+                for ( int i = first( args[2] ); i < end( args[2], args[3], 3 ); i++ ) {
+                    TokenGroup group = new TokenGroup();
+                    group.setId( "g" + i );
+                    list.getTokenGroups().add( group );
+                }
+                list.setTotalResults( 3 );
+                return list;
+            } else if ( "listTokens".equals( name ) ) {
+                TokenList list = new TokenList();
+                for ( int i = first( args[3] ); i < end( args[3], args[4], TOKENS ); i++ ) {
+                    Token token = new Token();
+                    token.setId( args[0] + "/" + args[1] + "/" + args[2] + "/t" + i );
+                    list.getTokens().add( token );
+                }
+                list.setTotalResults( TOKENS );
+                return list;
+            }
+            throw new UnsupportedOperationException( name );
+        }
+
+        private static int first( Object start ) {
+            return (Integer) start - 1;
+        }
+
+        private static int end( Object start, Object count, int total ) {
+            return Math.min( total, (Integer) start - 1 + (Integer) count );
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.acdp.api.test;
+
+import com.emc.acdp.api.AcdpAdminConfig;
+import com.emc.acdp.api.jersey.JerseyUtil;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandler;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AuthFilterTest {
+    private static final String BASE = "http://localhost:8080/cdp-rest/v1/admin/accounts";
+
+    private AcdpAdminConfig config;
+    private Server server;
+    private Client client;
+
+    @Before
+    public void setUp() {
+        config = new AcdpAdminConfig( "http", "localhost", 8080, "admin", "secret" );
+        server = new Server();
+        client = new Client( server );
+        server.client = client;
+        JerseyUtil.configureClient( client, config );
+    }
+
+    @Test
+    public void testSingleFlightLogin() throws Exception {
+        assertOneLoginFor16Threads();
+        Assert.assertEquals( "token-1", config.getSessionToken() );
+
+        // session expires on the server
+        server.validToken = "elsewhere";
+        assertOneLoginFor16Threads();
+        Assert.assertEquals( "token-2", config.getSessionToken() );
+    }
+
+    @Test
+    public void testCallerRequestIsNotModified() throws Exception {
+        String result = client.resource( BASE + "?start=1" ).type( "application/xml" )
+                              .post( String.class, "<account/>" );
+        Assert.assertEquals( "ok", result );
+        Assert.assertEquals( 1, server.logins.get() );
+        Received received = server.received.get( 0 );
+        Assert.assertEquals( "POST", received.method );
+        Assert.assertEquals( "application/xml", received.contentType );
+        Assert.assertEquals( BASE + "?start=1&cdp_session=token-1", received.uri );
+
+        // a rejected session is replaced, not appended to
+        server.validToken = "elsewhere";
+        server.received.clear();
+        client.resource( BASE + "?start=1" ).type( "application/xml" ).post( String.class, "<account/>" );
+        Assert.assertEquals( 2, server.logins.get() );
+        Assert.assertEquals( BASE + "?start=1&cdp_session=token-1", server.received.get( 0 ).uri );
+        Assert.assertEquals( BASE + "?start=1&cdp_session=token-2", server.received.get( 1 ).uri );
+        Assert.assertEquals( "application/xml", server.received.get( 1 ).contentType );
+    }
+
+    @Test
+    public void testProactiveRefresh() throws Exception {
+        config.setSessionRefreshAge( 50 );
+        client.resource( BASE ).get( String.class );
+        client.resource( BASE ).get( String.class );
+        Assert.assertEquals( 1, server.logins.get() );
+
+        Thread.sleep( 100 );
+        client.resource( BASE ).get( String.class );
+        Assert.assertEquals( 2, server.logins.get() );
+        Assert.assertEquals( "token-2", config.getSessionToken() );
+        Assert.assertEquals( 3, server.received.size() ); // no rejected requests
+    }
+
+    private void assertOneLoginFor16Threads() throws Exception {
+        final int logins = server.logins.get();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int i = 0; i < 16; i++ ) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Assert.assertEquals( "ok", client.resource( BASE ).get( String.class ) );
+                    } catch ( Throwable t ) {
+                        errors.add( t );
+                    }
+                }
+            };
+            thread.start();
+            threads.add( thread );
+        }
+        start.countDown();
+        for ( Thread thread : threads ) thread.join();
+        Assert.assertEquals( errors.toString(), 0, errors.size() );
+        Assert.assertEquals( logins + 1, server.logins.get() );
+    }
+
+    static class Received {
+        final String method, uri, contentType;
+
+        Received( String method, String uri, String contentType ) {
+            this.method = method;
+            this.uri = uri;
+            this.contentType = contentType;
+        }
+    }
+
+    static class Server implements ClientHandler {
+        Client client;
+        AtomicInteger logins = new AtomicInteger();
+        List<Received> received = Collections.synchronizedList( new ArrayList<Received>() );
+        volatile String validToken;
+
+        @Override
+        public ClientResponse handle( ClientRequest request ) throws ClientHandlerException {
+            try {
+                if ( request.getURI().getPath().endsWith( "/admin/login" ) ) {
+                    Assert.assertEquals( "POST", request.getMethod() );
+                    Assert.assertNull( request.getURI().getQuery() );
+                    Thread.sleep( 50 );
+                    validToken = "token-" + logins.incrementAndGet();
+                    return response( 200, validToken );
+                }
+                Object type = request.getHeaders().getFirst( "Content-Type" );
+                received.add( new Received( request.getMethod(), request.getURI().toString(),
+                                            type == null ? null : type.toString() ) );
+                if ( !request.getURI().getQuery().endsWith( "cdp_session=" + validToken ) )
+                    return response( 401, "<error><code>SESSION</code><message>session expired</message></error>" );
+                return response( 200, "ok" );
+            } catch ( Exception e ) {
+                throw new ClientHandlerException( e );
+            }
+        }
+
+        private ClientResponse response( int status, String body ) throws UnsupportedEncodingException {
+            byte[] bytes = body.getBytes( "UTF-8" );
+            InBoundHeaders headers = new InBoundHeaders();
+            headers.putSingle( "Content-Length", "" + bytes.length );
+            headers.putSingle( "Content-Type", status == 200 ? "text/plain" : "text/xml" );
+            return new ClientResponse( status, headers, new ByteArrayInputStream( bytes ),
+                                       client.getMessageBodyWorkers() );
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.acdp.api.test;
+
+import com.emc.acdp.AcdpException;
+import com.emc.acdp.api.AcdpAdminApi;
+import com.emc.acdp.api.BulkProvisioner;
+import com.emc.cdp.services.rest.model.Account;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BulkProvisionerTest {
+    @Test
+    public void testPipeline() throws Exception {
+        Cdp cdp = new Cdp();
+        BulkProvisioner provisioner = new BulkProvisioner( cdp.api() );
+        provisioner.setConcurrency( BulkProvisioner.Stage.CREATE_ACCOUNT, 3 );
+        provisioner.setConcurrency( BulkProvisioner.Stage.PROVISION_SUBSCRIPTION, 2 );
+
+        List<BulkProvisioner.Job> jobs = new ArrayList<BulkProvisioner.Job>();
+        for ( int i = 0; i < 30; i++ ) {
+            jobs.add( new BulkProvisioner.Job( account( "customer" + i ) )
+                              .subscription( "storageservice", false )
+                              .invite( "owner" + i + "@example.com", "account_manager" )
+                              .assign( "user" + i, "Passw0rd!", "First", "Last", "user" + i + "@example.com",
+                                       "account_user" ) );
+        }
+        List<BulkProvisioner.Result> results = provisioner.run( jobs );
+
+        Assert.assertEquals( 30, results.size() );
+        Assert.assertEquals( 30, provisioner.getCompletedCount() );
+        Assert.assertEquals( 0, provisioner.getFailedCount() );
+        for ( int i = 0; i < 30; i++ ) {
+            BulkProvisioner.Result result = results.get( i );
+            Assert.assertTrue( result.toString(), result.isSuccessful() );
+            Assert.assertSame( jobs.get( i ), result.getJob() );
+            String accountId = cdp.accountIds.get( "customer" + i );
+            Assert.assertEquals( accountId, result.getAccountId() );
+            Assert.assertEquals( "sub-" + accountId, result.getSubscriptionId() );
+            Assert.assertEquals( Collections.singletonMap( "owner" + i + "@example.com", "inv-" + accountId ),
+                                 result.getInvitationIds() );
+            Assert.assertEquals( EnumSet.allOf( BulkProvisioner.Stage.class ), result.getCompletedStages() );
+            Assert.assertEquals( Arrays.asList( "createSubscription", "provisionSubscription" ),
+                                 cdp.subscriptionCalls( accountId ) );
+        }
+        Assert.assertEquals( 3, cdp.maxActive( "createAccount" ) );
+        Assert.assertEquals( 2, cdp.maxActive( "provisionSubscription" ) );
+    }
+
+    @Test
+    public void testRetriesAndFailures() throws Exception {
+        Cdp cdp = new Cdp();
+        cdp.failures.put( "provisionSubscription:retried", new LinkedList<Integer>( Arrays.asList( 503, 503 ) ) );
+        cdp.failures.put( "provisionSubscription:rejected", new LinkedList<Integer>( Arrays.asList( 400 ) ) );
+        cdp.failures.put( "createSubscription:nosub", new LinkedList<Integer>( Arrays.asList( 500 ) ) );
+        cdp.failures.put( "createAccount:noaccount", new LinkedList<Integer>( Arrays.asList( 500 ) ) );
+        BulkProvisioner provisioner = new BulkProvisioner( cdp.api() );
+        provisioner.setRetryDelay( 1 );
+
+        List<BulkProvisioner.Job> jobs = new ArrayList<BulkProvisioner.Job>();
+        for ( String name : Arrays.asList( "retried", "rejected", "nosub", "noaccount" ) ) {
+            jobs.add( new BulkProvisioner.Job( account( name ) ).subscription( "storageservice", true )
+                                                                .invite( name + "@example.com", "account_manager" ) );
+        }
+        List<BulkProvisioner.Result> results = provisioner.run( jobs );
+
+        // an idempotent stage is retried on server errors
+        Assert.assertTrue( results.get( 0 ).toString(), results.get( 0 ).isSuccessful() );
+        Assert.assertEquals( 3, cdp.calls( "provisionSubscription:retried" ) );
+
+        // but not on client errors
+        BulkProvisioner.Result rejected = results.get( 1 );
+        Assert.assertEquals( Collections.singleton( new BulkProvisioner.Task(
+                BulkProvisioner.Stage.PROVISION_SUBSCRIPTION, null ) ), rejected.getFailures().keySet() );
+        Assert.assertEquals( 1, cdp.calls( "provisionSubscription:rejected" ) );
+
+        // creates are never retried; dependent stages are skipped, independent ones still run
+        BulkProvisioner.Result nosub = results.get( 2 );
+        Assert.assertEquals( EnumSet.of( BulkProvisioner.Stage.CREATE_SUBSCRIPTION ), nosub.getFailedStages() );
+        Assert.assertEquals( 1, cdp.calls( "createSubscription:nosub" ) );
+        Assert.assertEquals( 0, cdp.calls( "provisionSubscription:nosub" ) );
+        Assert.assertEquals( EnumSet.of( BulkProvisioner.Stage.CREATE_ACCOUNT, BulkProvisioner.Stage.INVITE ),
+                             nosub.getCompletedStages() );
+
+        BulkProvisioner.Result noaccount = results.get( 3 );
+        Assert.assertNull( noaccount.getAccountId() );
+        Assert.assertTrue( noaccount.isDone() );
+        Assert.assertTrue( noaccount.getCompletedStages().isEmpty() );
+        Assert.assertEquals( 1, cdp.calls( "createAccount:noaccount" ) );
+
+        Assert.assertEquals( 4, provisioner.getCompletedCount() );
+        Assert.assertEquals( 3, provisioner.getFailedCount() );
+    }
+
+    @Test
+    public void testFailuresPerInvitationAndAssignee() throws Exception {
+        Cdp cdp = new Cdp();
+        cdp.failures.put( "createAccountInvitation:acme:bad@example.com",
+                          new LinkedList<Integer>( Arrays.asList( 400 ) ) );
+        cdp.failures.put( "addAccountAssignee:acme:bob", new LinkedList<Integer>( Arrays.asList( 400 ) ) );
+        BulkProvisioner provisioner = new BulkProvisioner( cdp.api() );
+
+        BulkProvisioner.Job job = new BulkProvisioner.Job( account( "acme" ) )
+                .invite( "good@example.com", "account_manager" ).invite( "bad@example.com", "account_manager" )
+                .assign( "alice", "Passw0rd!", "Alice", "A", "alice@example.com", "account_user" )
+                .assign( "bob", "Passw0rd!", "Bob", "B", "bob@example.com", "account_user" );
+        BulkProvisioner.Result result = provisioner.run( Arrays.asList( job ) ).get( 0 );
+
+        BulkProvisioner.Task badInvite = new BulkProvisioner.Task( BulkProvisioner.Stage.INVITE, "bad@example.com" );
+        BulkProvisioner.Task bob = new BulkProvisioner.Task( BulkProvisioner.Stage.ASSIGN_IDENTITY, "bob" );
+        Assert.assertEquals( new HashSet<BulkProvisioner.Task>( Arrays.asList( badInvite, bob ) ),
+                             result.getFailures().keySet() );
+        Assert.assertEquals( new HashSet<BulkProvisioner.Task>( Arrays.asList(
+                new BulkProvisioner.Task( BulkProvisioner.Stage.CREATE_ACCOUNT, null ),
+                new BulkProvisioner.Task( BulkProvisioner.Stage.INVITE, "good@example.com" ),
+                new BulkProvisioner.Task( BulkProvisioner.Stage.ASSIGN_IDENTITY, "alice" ) ) ),
+                             result.getCompletedTasks() );
+
+        // a stage is only complete when all of its tasks are
+        Assert.assertEquals( EnumSet.of( BulkProvisioner.Stage.CREATE_ACCOUNT ), result.getCompletedStages() );
+        Assert.assertEquals( EnumSet.of( BulkProvisioner.Stage.INVITE, BulkProvisioner.Stage.ASSIGN_IDENTITY ),
+                             result.getFailedStages() );
+        Assert.assertEquals( Collections.singleton( "good@example.com" ), result.getInvitationIds().keySet() );
+    }
+
+    private static Account account( String name ) {
+        Account account = new Account();
+        account.setName( name );
+        account.setType( "web" );
+        return account;
+    }
+
+    static class Cdp implements InvocationHandler {
+        Map<String, String> accountIds = new ConcurrentHashMap<String, String>();
+        Map<String, String> names = new ConcurrentHashMap<String, String>();
+        Map<String, Queue<Integer>> failures = new ConcurrentHashMap<String, Queue<Integer>>();
+        ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+        Map<String, List<String>> subscriptionCalls = new ConcurrentHashMap<String, List<String>>();
+        ConcurrentHashMap<String, AtomicInteger> active = new ConcurrentHashMap<String, AtomicInteger>();
+        ConcurrentHashMap<String, AtomicInteger> maxActive = new ConcurrentHashMap<String, AtomicInteger>();
+        AtomicInteger nextId = new AtomicInteger();
+
+        AcdpAdminApi api() {
+            return (AcdpAdminApi) Proxy.newProxyInstance( getClass().getClassLoader(),
+                                                          new Class<?>[]{AcdpAdminApi.class}, this );
+        }
+
+        int calls( String key ) {
+            AtomicInteger count = calls.get( key );
+            return count == null ? 0 : count.get();
+        }
+
+        int maxActive( String method ) {
+            return maxActive.get( method ).get();
+        }
+
+        List<String> subscriptionCalls( String accountId ) {
+            return subscriptionCalls.get( accountId );
+        }
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            String name = method.getName();
+            String account = name.equals( "createAccount" ) ? ((Account) args[0]).getName() : names.get( args[0] );
+            String key = name + ":" + account;
+            if ( "createAccountInvitation".equals( name ) || "addAccountAssignee".equals( name ) )
+                key += ":" + args[1]; // the email or identity ID
+            counter( calls, key ).incrementAndGet();
+
+            int now = counter( active, name ).incrementAndGet();
+            try {
+                AtomicInteger max = counter( maxActive, name );
+                int current;
+                while ( now > (current = max.get()) && !max.compareAndSet( current, now ) ) ;
+                Thread.sleep( 10 );
+
+                Queue<Integer> failure = failures.get( key );
+                Integer status = failure == null ? null : failure.poll();
+                if ( status != null ) throw new AcdpException( "failed", status );
+
+                if ( "createAccount".equals( name ) ) {
+                    String id = "acct" + nextId.incrementAndGet();
+                    accountIds.put( account, id );
+                    names.put( id, account );
+                    subscriptionCalls.put( id, Collections.synchronizedList( new ArrayList<String>() ) );
+                    return id;
+                } else if ( "createSubscription".equals( name ) ) {
+                    subscriptionCalls.get( args[0] ).add( name );
+                    return "sub-" + args[0];
+                } else if ( "provisionSubscription".equals( name ) ) {
+                    Assert.assertEquals( "sub-" + args[0], args[1] );
+                    subscriptionCalls.get( args[0] ).add( name );
+                    return null;
+                } else if ( "createAccountInvitation".equals( name ) ) {
+                    return "inv-" + args[0];
+                } else if ( "addAccountAssignee".equals( name ) ) {
+                    return null;
+                }
+                throw new UnsupportedOperationException( name );
+            } finally {
+                counter( active, name ).decrementAndGet();
+            }
+        }
+
+        private static AtomicInteger counter( ConcurrentHashMap<String, AtomicInteger> counters, String key ) {
+            counters.putIfAbsent( key, new AtomicInteger() );
+            return counters.get( key );
+        }
+    }
+}
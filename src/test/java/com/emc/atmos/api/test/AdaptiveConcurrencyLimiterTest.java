@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AdaptiveConcurrencyLimiter;
+import com.emc.atmos.AtmosException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AdaptiveConcurrencyLimiterTest {
+    private static final URI ENDPOINT = URI.create( "http://10.0.0.101:80/rest/objects" );
+
+    @Test
+    public void testGrowWithFlatLatency() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+        limiter.setInitialLimit( 4 );
+
+        for ( int i = 0; i < 50; i++ ) {
+            List<AdaptiveConcurrencyLimiter.Permit> permits = acquire( limiter, limiter.getLimit( ENDPOINT ) );
+            for ( AdaptiveConcurrencyLimiter.Permit permit : permits ) permit.success();
+        }
+
+        Assert.assertTrue( "limit did not grow", limiter.getLimit( ENDPOINT ) > 4 );
+        Assert.assertEquals( 0, limiter.getInFlight( ENDPOINT ) );
+    }
+
+    @Test
+    public void testShrinkOnOverload() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+        limiter.setInitialLimit( 100 );
+        limiter.setMinLimit( 10 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            limiter.acquire( ENDPOINT ).overloaded();
+        }
+
+        Assert.assertEquals( 10, limiter.getLimit( ENDPOINT ) );
+        Assert.assertEquals( 0, limiter.getInFlight( ENDPOINT ) );
+    }
+
+    @Test
+    public void testOneBackoffPerRoundTrip() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+        limiter.setInitialLimit( 100 );
+        limiter.setBackoffRatio( 0.5 );
+
+        // all of these were sent before the first overload signal, so only one should count
+        List<AdaptiveConcurrencyLimiter.Permit> permits = acquire( limiter, 20 );
+        for ( AdaptiveConcurrencyLimiter.Permit permit : permits ) permit.overloaded();
+
+        Assert.assertEquals( 50, limiter.getLimit( ENDPOINT ) );
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+        limiter.setInitialLimit( 2 );
+        limiter.setTimeoutMillis( 0 );
+
+        List<AdaptiveConcurrencyLimiter.Permit> permits = acquire( limiter, 2 );
+        try {
+            limiter.acquire( ENDPOINT );
+            Assert.fail( "third request should be rejected" );
+        } catch ( AtmosException e ) {
+            // expected
+        }
+
+        // completing a permit twice must not free two slots
+        permits.get( 0 ).ignore();
+        permits.get( 0 ).ignore();
+        Assert.assertEquals( 1, limiter.getInFlight( ENDPOINT ) );
+        limiter.acquire( ENDPOINT );
+
+        // other endpoints are limited separately
+        limiter.acquire( URI.create( "http://10.0.0.102:80/rest/objects" ) );
+    }
+
+    private List<AdaptiveConcurrencyLimiter.Permit> acquire( AdaptiveConcurrencyLimiter limiter, int count ) {
+        List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<AdaptiveConcurrencyLimiter.Permit>();
+        for ( int i = 0; i < count; i++ ) {
+            permits.add( limiter.acquire( ENDPOINT ) );
+        }
+        return permits;
+    }
+}
@@ -27,7 +27,6 @@
 package com.emc.atmos.api.test;
 
 import com.emc.atmos.AtmosException;
-import com.emc.atmos.StickyThreadAlgorithm;
 import com.emc.atmos.api.*;
 import com.emc.atmos.api.bean.*;
 import com.emc.atmos.api.jersey.AtmosApiBasicClient;
@@ -96,7 +95,7 @@ public class AtmosApiClientTest {
         config.setDisableSslValidation( false );
         config.setEnableExpect100Continue( false );
         config.setEnableRetry( false );
-        config.setLoadBalancingAlgorithm( new StickyThreadAlgorithm() );
+        config.setLoadBalancingAlgorithm( new ObjectAffinityAlgorithm() );
         return config;
     }
 
@@ -353,6 +353,34 @@ public class AtmosEncryptionClientTest {
         assertNotNull("Missing metadata signature",
                 objectData.get(TransformConstants.META_ENCRYPTION_META_SIG).getValue());
     }
+
+
+    @Test
+    public void testCreateEncryptStreamPipelined() throws Exception {
+        AtmosEncryptionClient eclient = getBasicEncryptionClient();
+        eclient.setBufferSize(99999);
+        eclient.setPipelineDepth(3);
+        
+        // Get some data to encrypt.
+        InputStream classin = this.getClass().getClassLoader()
+                .getResourceAsStream("uncompressed.txt");
+
+        ObjectId id = eclient.createObject(classin, "text/plain");
+        cleanup.add(id);
+        
+        classin.close();
+        
+        // Read back and test
+        ReadObjectRequest ror = new ReadObjectRequest();
+        ror.setIdentifier(id);
+        ReadObjectResponse<byte[]> resp = eclient.readObject(ror, byte[].class);
+        Map<String, Metadata> objectData = resp.getMetadata().getMetadata();
+
+        assertEquals("Uncompressed digest incorrect",
+                "027e997e6b1dfc97b93eb28dc9a6804096d85873",
+                objectData.get(TransformConstants.META_ENCRYPTION_UNENC_SHA1).getValue());
+        assertEquals("Uncompressed size incorrect", 2516125, resp.getObject().length);
+    }
     
     // Test creating a compressed and encrypted object
     @Test
@@ -557,8 +585,8 @@ public class AtmosEncryptionClientTest {
     }
 
     
-    // Test partial read (should fail)
-    @Test(expected=UnsupportedOperationException.class)
+    // Test partial read of an encrypted object
+    @Test
     public void testPartialRead() throws Exception {
         AtmosEncryptionClient eclient = getKeystoreEncryptionClient(oldKeyAlias);
         
@@ -567,6 +595,43 @@ public class AtmosEncryptionClientTest {
         ObjectId id = eclient.createObject(content, "text/plain");
         cleanup.add(id);
         
+        // Partial read
+        assertEquals("Wrong range content", "e", 
+                new String(eclient.readObject(id, new Range(1, 1), byte[].class)));
+    }
+    
+    // Test partial reads spanning cipher blocks
+    @Test
+    public void testPartialReadBlocks() throws Exception {
+        AtmosEncryptionClient eclient = getBasicEncryptionClient();
+        
+        byte[] content = new byte[1000];
+        new Random().nextBytes(content);
+        
+        ObjectId id = eclient.createObject(content, "application/octet-stream");
+        cleanup.add(id);
+        
+        Range[] ranges = { new Range(0, 15), new Range(15, 16), new Range(16, 500),
+                new Range(100, 999), new Range(990, 1500) };
+        for(Range range : ranges) {
+            int last = (int) Math.min(range.getLast(), content.length - 1);
+            byte[] expected = new byte[last - (int) range.getFirst() + 1];
+            System.arraycopy(content, (int) range.getFirst(), expected, 0, expected.length);
+            Assert.assertArrayEquals("Wrong content for range " + range, expected,
+                    eclient.readObject(id, range, byte[].class));
+        }
+    }
+    
+    // Test partial read of a compressed object (should fail)
+    @Test(expected=UnsupportedOperationException.class)
+    public void testPartialReadCompressed() throws Exception {
+        AtmosEncryptionClient eclient = getBasicEncryptionClientWithCompression();
+        
+        String content = "Hello World!";
+        
+        ObjectId id = eclient.createObject(content, "text/plain");
+        cleanup.add(id);
+        
         // Partial read
         eclient.readObject(id, new Range(1, 1), byte[].class);
     }
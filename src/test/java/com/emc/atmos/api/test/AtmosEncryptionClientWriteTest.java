@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.encryption.AtmosEncryptionClient;
+import com.emc.atmos.api.encryption.CompressionConfig;
+import com.emc.atmos.api.encryption.EncryptionConfig;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.PutObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.encryption.KeyUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checks the requests the encryption client sends for creates and updates: content whose transformed size is less
+ * than the buffer size goes in a single request with all of its metadata, anything else is appended and the metadata
+ * set afterwards.
+ */
+public class AtmosEncryptionClientWriteTest {
+    private static final int BUFFER_SIZE = 1024;
+
+    private EncryptionConfig encryption;
+    private MemoryAtmos atmos;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties keys = new Properties();
+        keys.load( getClass().getClassLoader().getResourceAsStream( "keys.properties" ) );
+        KeyPair masterKey = KeyUtils.rsaKeyPairFromBase64( keys.getProperty( "masterkey.public" ),
+                                                           keys.getProperty( "masterkey.private" ) );
+        encryption = new EncryptionConfig( masterKey, new HashSet<KeyPair>(), null, 128 );
+        atmos = new MemoryAtmos();
+    }
+
+    @Test
+    public void testCreateSizes() throws Exception {
+        AtmosEncryptionClient client = client( null );
+        // AES/CBC/PKCS5 pads to the next full block, so 1007 bytes is the largest content that fits in one request
+        int[] sizes = {0, BUFFER_SIZE - 17, BUFFER_SIZE - 1, BUFFER_SIZE, BUFFER_SIZE + 1};
+        for ( int size : sizes ) {
+            atmos.calls.clear();
+            atmos.requests.clear();
+            byte[] content = MemoryAtmos.randomContent( size );
+            ObjectId id = client.createObject( new CreateObjectRequest().content( content )
+                                                       .userMetadata( new Metadata( "name", "value", false ) ) )
+                                .getObjectId();
+
+            int encodedSize = (size / 16 + 1) * 16;
+            Assert.assertEquals( encodedSize, atmos.content( id ).length );
+            if ( encodedSize < BUFFER_SIZE ) {
+                Assert.assertEquals( "size " + size, Arrays.asList( "createObject" ), atmos.calls );
+                assertTransformMetadata( atmos.requests.get( 0 ), "ENC:", size );
+            } else if ( encodedSize == BUFFER_SIZE ) {
+                Assert.assertEquals( "size " + size, Arrays.asList( "createObject", "setUserMetadata" ), atmos.calls );
+            } else {
+                Assert.assertEquals( "size " + size, Arrays.asList( "createObject", "updateObject", "setUserMetadata" ),
+                                     atmos.calls );
+            }
+
+            MemoryAtmos.StoredObject object = atmos.object( id );
+            Assert.assertEquals( "value", object.getUserMetadata( "name" ) );
+            Assert.assertEquals( "" + size, object.getUserMetadata( TransformConstants.META_ENCRYPTION_UNENC_SIZE ) );
+            Assert.assertTrue( object.getUserMetadata( TransformConstants.META_TRANSFORM_MODE ).startsWith( "ENC:" ) );
+            Assert.assertArrayEquals( "size " + size, content, client.readObject( id, byte[].class ) );
+        }
+    }
+
+    @Test
+    public void testCreateEmpty() throws Exception {
+        AtmosEncryptionClient client = client( new CompressionConfig( CompressionMode.Deflate, 5 ) );
+        ObjectId id = client.createObject(
+                new CreateObjectRequest().userMetadata( new Metadata( "name", "value", true ) ) ).getObjectId();
+
+        Assert.assertEquals( Arrays.asList( "createObject" ), atmos.calls );
+        PutObjectRequest<?> request = atmos.requests.get( 0 );
+        Assert.assertTrue( request.getUserMetadata().contains( new Metadata( "name", "value", true ) ) );
+        assertTransformMetadata( request, "COMP:", 0 );
+        Assert.assertEquals( "0",
+                             atmos.object( id ).getUserMetadata( TransformConstants.META_COMPRESSION_UNCOMP_SIZE ) );
+        Assert.assertEquals( 0, client.readObject( id, byte[].class ).length );
+    }
+
+    @Test
+    public void testUpdateSingleRequest() throws Exception {
+        ObjectId id = client( null ).createObject( MemoryAtmos.randomContent( 100 ), null );
+        atmos.calls.clear();
+        atmos.requests.clear();
+
+        AtmosEncryptionClient client = client( null );
+        byte[] content = MemoryAtmos.randomContent( 500 );
+        client.updateObject( id, content );
+
+        // the old tag names are looked up in the background; with the same transforms there are none to delete
+        Assert.assertEquals( 1, Collections.frequency( atmos.calls, "getUserMetadataNames" ) );
+        Assert.assertEquals( Arrays.asList( "updateObject" ), withoutLookups( atmos.calls ) );
+        assertTransformMetadata( atmos.requests.get( 0 ), "ENC:", 500 );
+        Assert.assertEquals( "500",
+                             atmos.object( id ).getUserMetadata( TransformConstants.META_ENCRYPTION_UNENC_SIZE ) );
+        Assert.assertArrayEquals( content, client.readObject( id, byte[].class ) );
+    }
+
+    @Test
+    public void testUpdateCompressedToEncrypted() throws Exception {
+        AtmosEncryptionClient compressing = client( new CompressionConfig( CompressionMode.Deflate, 5 ) );
+        CreateObjectRequest create = new CreateObjectRequest().content( new byte[500] );
+        ObjectId id = compressing.createObject( create.userMetadata( new Metadata( "name", "value", false ) ) )
+                                 .getObjectId();
+        Assert.assertNotNull( atmos.object( id ).getUserMetadata( TransformConstants.META_COMPRESSION_UNCOMP_SIZE ) );
+        atmos.calls.clear();
+        atmos.requests.clear();
+
+        AtmosEncryptionClient client = client( null );
+        byte[] content = MemoryAtmos.randomContent( 500 );
+        client.updateObject( id, content );
+
+        Assert.assertEquals( Arrays.asList( "updateObject", "deleteUserMetadata" ), withoutLookups( atmos.calls ) );
+        assertTransformMetadata( atmos.requests.get( 0 ), "ENC:", 500 );
+        MemoryAtmos.StoredObject object = atmos.object( id );
+        for ( String name : object.userMetadata.keySet() ) {
+            Assert.assertFalse( name, name.startsWith( "x-emc-comp-" ) );
+        }
+        Assert.assertEquals( "value", object.getUserMetadata( "name" ) );
+        Assert.assertFalse( object.getUserMetadata( TransformConstants.META_TRANSFORM_MODE ).contains( "COMP" ) );
+        Assert.assertArrayEquals( content, client.readObject( id, byte[].class ) );
+
+        // back to compressed (which only adds tags), this time too big for one request
+        atmos.calls.clear();
+        content = MemoryAtmos.randomContent( BUFFER_SIZE * 4 );
+        compressing.updateObject( new UpdateObjectRequest().identifier( id ).content( content ) );
+        List<String> calls = withoutLookups( atmos.calls );
+        Assert.assertTrue( calls.toString(), calls.size() > 2 );
+        Assert.assertEquals( "updateObject", calls.get( 0 ) );
+        Assert.assertEquals( "setUserMetadata", calls.get( calls.size() - 1 ) );
+        Assert.assertFalse( calls.contains( "deleteUserMetadata" ) );
+        Assert.assertEquals( "" + content.length,
+                             atmos.object( id ).getUserMetadata( TransformConstants.META_COMPRESSION_UNCOMP_SIZE ) );
+        Assert.assertArrayEquals( content, compressing.readObject( id, byte[].class ) );
+    }
+
+    private AtmosEncryptionClient client( CompressionConfig compression ) {
+        AtmosEncryptionClient client = new AtmosEncryptionClient( atmos.api(), encryption, compression );
+        client.setBufferSize( BUFFER_SIZE );
+        return client;
+    }
+
+    private List<String> withoutLookups( List<String> calls ) {
+        List<String> filtered = new ArrayList<String>( calls );
+        filtered.removeAll( Collections.singleton( "getUserMetadataNames" ) );
+        return filtered;
+    }
+
+    /**
+     * Asserts the request itself carried the transform metadata (so no follow-up request was needed).
+     */
+    private void assertTransformMetadata( PutObjectRequest<?> request, String modePrefix, long size ) {
+        String mode = null, encryptedSize = null, compressedSize = null;
+        for ( Metadata metadata : request.getUserMetadata() ) {
+            if ( TransformConstants.META_TRANSFORM_MODE.equals( metadata.getName() ) ) mode = metadata.getValue();
+            if ( TransformConstants.META_ENCRYPTION_UNENC_SIZE.equals( metadata.getName() ) )
+                encryptedSize = metadata.getValue();
+            if ( TransformConstants.META_COMPRESSION_UNCOMP_SIZE.equals( metadata.getName() ) )
+                compressedSize = metadata.getValue();
+        }
+        Assert.assertNotNull( "no transform mode", mode );
+        Assert.assertTrue( mode, mode.startsWith( modePrefix ) );
+        if ( modePrefix.startsWith( "ENC" ) ) Assert.assertEquals( "" + size, encryptedSize );
+        if ( modePrefix.startsWith( "COMP" ) ) Assert.assertEquals( "" + size, compressedSize );
+    }
+}
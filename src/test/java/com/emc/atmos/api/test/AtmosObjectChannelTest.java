@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.AtmosObjectChannel;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class AtmosObjectChannelTest {
+    private static final ObjectId ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        AtmosObjectChannel channel = new AtmosObjectChannel( new MemoryAtmos( content ).api(), ID );
+        channel.setBlockSize( 1000 );
+
+        Assert.assertEquals( 10000, channel.size() );
+        Random random = new Random( 7 );
+        for ( int i = 0; i < 100; i++ ) {
+            int position = random.nextInt( content.length );
+            ByteBuffer buffer = ByteBuffer.allocate( random.nextInt( 3000 ) + 1 );
+            int expected = Math.min( buffer.capacity(), content.length - position );
+
+            Assert.assertEquals( expected, channel.position( position ).read( buffer ) );
+            Assert.assertEquals( position + expected, channel.position() );
+            Assert.assertArrayEquals( Arrays.copyOfRange( content, position, position + expected ),
+                                      Arrays.copyOf( buffer.array(), expected ) );
+        }
+
+        // positional reads leave the position alone
+        channel.position( 5 );
+        ByteBuffer buffer = ByteBuffer.allocate( 10 );
+        Assert.assertEquals( 10, channel.read( buffer, 9995 - 5 ) );
+        Assert.assertEquals( 5, channel.position() );
+
+        Assert.assertEquals( -1, channel.position( 10000 ).read( ByteBuffer.allocate( 1 ) ) );
+        Assert.assertEquals( -1, channel.position( 20000 ).read( ByteBuffer.allocate( 1 ) ) );
+        Assert.assertTrue( "all blocks should be cached", channel.getRequestCount() <= 10 );
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos( content );
+        AtmosObjectChannel channel = new AtmosObjectChannel( atmos.api(), ID );
+        channel.setBlockSize( 1000 );
+        channel.setReadAheadBlocks( 4 );
+
+        ByteBuffer all = ByteBuffer.allocate( content.length );
+        ByteBuffer small = ByteBuffer.allocate( 100 );
+        while ( channel.read( small ) > 0 ) {
+            small.flip();
+            all.put( small );
+            small.clear();
+        }
+        Assert.assertArrayEquals( content, all.array() );
+        // starting at the beginning counts as sequential
+        Assert.assertEquals( Arrays.asList( new Range( 0, 4999 ), new Range( 5000, 9999 ) ), atmos.reads );
+    }
+
+    @Test
+    public void testNoReadAheadForRandomAccess() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos( MemoryAtmos.randomContent( 10000 ) );
+        AtmosObjectChannel channel = new AtmosObjectChannel( atmos.api(), ID );
+        channel.setBlockSize( 1000 );
+        channel.setMaxCachedBlocks( 2 );
+
+        channel.read( ByteBuffer.allocate( 10 ), 9990 );
+        channel.read( ByteBuffer.allocate( 10 ), 0 );
+        channel.read( ByteBuffer.allocate( 10 ), 9995 );
+        channel.read( ByteBuffer.allocate( 10 ), 5000 );
+        channel.read( ByteBuffer.allocate( 10 ), 9000 ); // still cached (most recently used before 5000)
+        channel.read( ByteBuffer.allocate( 10 ), 100 ); // evicted
+        Assert.assertEquals( Arrays.asList( new Range( 9000, 9999 ), new Range( 0, 999 ), new Range( 5000, 5999 ),
+                                            new Range( 0, 999 ) ), atmos.reads );
+    }
+
+    @Test
+    public void testDirectBuffers() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 50000 );
+        AtmosObjectChannel channel = new AtmosObjectChannel( new MemoryAtmos( content ).api(), ID );
+        channel.setDirectBuffers( true );
+        channel.setBlockSize( 20000 );
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect( 30000 );
+        Assert.assertEquals( 30000, channel.position( 15000 ).read( buffer ) );
+        buffer.flip();
+        byte[] result = new byte[30000];
+        buffer.get( result );
+        Assert.assertArrayEquals( Arrays.copyOfRange( content, 15000, 45000 ), result );
+    }
+
+    @Test
+    public void testReadOnlyAndClose() throws Exception {
+        AtmosObjectChannel channel = new AtmosObjectChannel(
+                new MemoryAtmos( MemoryAtmos.randomContent( 100 ) ).api(), ID );
+        try {
+            channel.write( ByteBuffer.allocate( 1 ) );
+            Assert.fail( "channel should be read-only" );
+        } catch ( NonWritableChannelException e ) {
+            // expected
+        }
+
+        Assert.assertTrue( channel.isOpen() );
+        channel.close();
+        Assert.assertFalse( channel.isOpen() );
+        try {
+            channel.read( ByteBuffer.allocate( 1 ) );
+            Assert.fail( "closed channel should not be readable" );
+        } catch ( ClosedChannelException e ) {
+            // expected
+        }
+    }
+}
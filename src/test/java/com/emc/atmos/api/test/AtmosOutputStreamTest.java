@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.jersey.AtmosApiClient;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import org.junit.Assert;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class AtmosOutputStreamTest {
+    private static final ObjectId OBJECT_ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testChunkedAppends() throws Exception {
+        testWrite( 0 );
+    }
+
+    @Test
+    public void testQueuedAppends() throws Exception {
+        testWrite( 2 );
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos();
+        AtmosOutputStream out = new AtmosOutputStream( atmos.api() );
+        out.close();
+        Assert.assertEquals( OBJECT_ID, out.getObjectId() );
+        Assert.assertEquals( 0, atmos.content( OBJECT_ID ).length );
+        Assert.assertEquals( 1, atmos.requests.size() );
+    }
+
+    @Test
+    public void testChecksumAndCloseMetadata() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos();
+        RunningChecksum checksum = new RunningChecksum( ChecksumAlgorithm.SHA1 );
+        AtmosOutputStream out = new AtmosOutputStream( atmos.api(), new CreateObjectRequest().wsChecksum( checksum ) );
+        out.setChunkSize( 4000 );
+        out.setCloseMetadata( new Metadata( "size", "10000", false ) );
+        out.write( content );
+        Assert.assertNull( atmos.object( OBJECT_ID ).getUserMetadata( "size" ) );
+        out.close();
+
+        UpdateObjectRequest last = (UpdateObjectRequest) atmos.requests.get( atmos.requests.size() - 1 );
+        Assert.assertSame( checksum, last.getWsChecksum() );
+        Assert.assertEquals( 10000, checksum.getOffset() );
+        Assert.assertEquals( toHex( MessageDigest.getInstance( "SHA1" ).digest( content ) ), checksum.getValue() );
+        Assert.assertEquals( "10000", atmos.object( OBJECT_ID ).getUserMetadata( "size" ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedChecksumRejected() throws Exception {
+        ChecksumValue fixed = new ChecksumValueImpl( ChecksumAlgorithm.SHA1, 10000, "abc" );
+        new AtmosOutputStream( new MemoryAtmos().api(), new CreateObjectRequest().wsChecksum( fixed ) );
+    }
+
+    @Test
+    public void testCreateObjectChunked() throws Exception {
+        StubAtmosServer server = new StubAtmosServer();
+        server.handler = new StubAtmosServer.Handler() {
+            @Override
+            public void handle( StubAtmosServer.Request request, HttpExchange exchange ) throws Exception {
+                Map<String, String> headers = new HashMap<String, String>();
+                if ( "POST".equals( request.method ) ) headers.put( "Location", "/rest/objects/" + OBJECT_ID );
+                StubAtmosServer.respond( exchange, "POST".equals( request.method ) ? 201 : 200, headers,
+                                         new byte[0] );
+            }
+        };
+        try {
+            int chunkSize = AtmosOutputStream.DEFAULT_CHUNK_SIZE;
+            byte[] content = MemoryAtmos.randomContent( chunkSize + 1000 );
+            RunningChecksum checksum = new RunningChecksum( ChecksumAlgorithm.SHA1 );
+            CreateObjectRequest request = new CreateObjectRequest().content( new ByteArrayInputStream( content ) )
+                                                                   .contentLength( -1 ).contentType( "text/plain" )
+                                                                   .wsChecksum( checksum );
+            request.userMetadata( new Metadata( "name", "value", false ) );
+            AtmosApi api = new AtmosApiClient( server.newConfig() );
+            Assert.assertEquals( OBJECT_ID, api.createObject( request ).getObjectId() );
+
+            Assert.assertEquals( 2, server.requests.size() );
+            StubAtmosServer.Request create = server.requests.get( 0 ), append = server.requests.get( 1 );
+            Assert.assertEquals( "POST", create.method );
+            Assert.assertEquals( "PUT", append.method );
+            Assert.assertEquals( "/rest/objects/" + OBJECT_ID, append.uri.getPath() );
+
+            // every chunk is sent with its length, never with chunked transfer encoding
+            for ( StubAtmosServer.Request chunk : server.requests ) {
+                Assert.assertNull( chunk.getHeader( "Transfer-Encoding" ) );
+                Assert.assertEquals( "" + chunk.body.length, chunk.getHeader( "Content-Length" ) );
+                Assert.assertEquals( "text/plain", chunk.getHeader( "Content-Type" ) );
+            }
+            Assert.assertEquals( chunkSize, create.body.length );
+            Assert.assertArrayEquals( Arrays.copyOf( content, chunkSize ), create.body );
+            Assert.assertArrayEquals( Arrays.copyOfRange( content, chunkSize, content.length ), append.body );
+
+            Assert.assertNull( create.getHeader( RestUtil.HEADER_RANGE ) );
+            Assert.assertTrue( create.getHeader( RestUtil.XHEADER_META ).contains( "name=value" ) );
+            Assert.assertEquals( "bytes=" + chunkSize + "-" + (content.length - 1),
+                                 append.getHeader( RestUtil.HEADER_RANGE ) );
+
+            MessageDigest sha1 = MessageDigest.getInstance( "SHA1" );
+            sha1.update( content, 0, chunkSize );
+            Assert.assertEquals( "SHA1/" + chunkSize + "/" + toHex( ((MessageDigest) sha1.clone()).digest() ),
+                                 create.getHeader( RestUtil.XHEADER_WSCHECKSUM ) );
+            sha1.update( content, chunkSize, 1000 );
+            Assert.assertEquals( "SHA1/" + content.length + "/" + toHex( sha1.digest() ),
+                                 append.getHeader( RestUtil.XHEADER_WSCHECKSUM ) );
+
+            // the caller's stream is put back in the request
+            Assert.assertTrue( request.getContent() instanceof ByteArrayInputStream );
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUploadFailure() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos() {
+            @Override
+            public Object invoke( Object proxy, java.lang.reflect.Method method, Object[] args ) throws Throwable {
+                if ( "updateObject".equals( method.getName() ) ) throw new RuntimeException( "append failed" );
+                return super.invoke( proxy, method, args );
+            }
+        };
+        AtmosOutputStream out = new AtmosOutputStream( atmos.api() );
+        out.setChunkSize( 1000 );
+        out.setQueueDepth( 1 );
+        try {
+            for ( int i = 0; i < 100; i++ ) out.write( new byte[1000] );
+            out.close();
+            Assert.fail( "failure was not reported" );
+        } catch ( IOException e ) {
+            Assert.assertTrue( e.getMessage().contains( "append failed" ) );
+        }
+    }
+
+    @Test
+    public void testUploaderExitsAfterFailure() throws Exception {
+        final CountDownLatch failed = new CountDownLatch( 1 );
+        MemoryAtmos atmos = new MemoryAtmos() {
+            @Override
+            public Object invoke( Object proxy, java.lang.reflect.Method method, Object[] args ) throws Throwable {
+                if ( "updateObject".equals( method.getName() ) ) {
+                    failed.countDown();
+                    throw new RuntimeException( "append failed" );
+                }
+                return super.invoke( proxy, method, args );
+            }
+        };
+        final List<Thread> uploaders = new ArrayList<Thread>();
+        AtmosOutputStream out = new AtmosOutputStream( atmos.api() );
+        out.setChunkSize( 1000 );
+        out.setQueueDepth( 2 );
+        out.setExecutor( new Executor() {
+            @Override
+            public void execute( Runnable command ) {
+                Thread thread = new Thread( command );
+                uploaders.add( thread );
+                thread.start();
+            }
+        } );
+        out.write( new byte[2000] );
+        Assert.assertTrue( failed.await( 5, TimeUnit.SECONDS ) );
+        Thread.sleep( 100 ); // let the failure be recorded
+
+        // close() sees the failure before it has sent anything
+        try {
+            out.close();
+            Assert.fail( "failure was not reported" );
+        } catch ( IOException e ) {
+            Assert.assertTrue( e.getMessage().contains( "append failed" ) );
+        }
+        Assert.assertEquals( 1, uploaders.size() );
+        uploaders.get( 0 ).join( 5000 );
+        Assert.assertFalse( "uploader is still waiting for chunks", uploaders.get( 0 ).isAlive() );
+    }
+
+    private void testWrite( int queueDepth ) throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos();
+        AtmosOutputStream out = new AtmosOutputStream( atmos.api() );
+        out.setChunkSize( 3000 );
+        out.setQueueDepth( queueDepth );
+
+        // write in odd sizes that don't line up with chunks
+        Random random = new Random();
+        int position = 0;
+        while ( position < content.length ) {
+            int length = Math.min( random.nextInt( 1500 ) + 1, content.length - position );
+            out.write( content, position, length );
+            position += length;
+        }
+        out.close();
+
+        Assert.assertEquals( OBJECT_ID, out.getObjectId() );
+        Assert.assertArrayEquals( content, atmos.content( OBJECT_ID ) );
+        Assert.assertEquals( Arrays.asList( new Range( 3000, 5999 ), new Range( 6000, 8999 ), new Range( 9000, 9999 ) ),
+                             atmos.writes );
+    }
+
+    private String toHex( byte[] bytes ) {
+        StringBuilder hex = new StringBuilder();
+        for ( byte b : bytes ) hex.append( String.format( "%02x", b ) );
+        return hex.toString();
+    }
+}
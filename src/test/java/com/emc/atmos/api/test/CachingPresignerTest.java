@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.jersey.AtmosApiClient;
+import com.emc.atmos.api.request.PreSignedRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class CachingPresignerTest {
+    private static final ObjectId ID = new ObjectId( "4ef49feaa106904c04ef4a066e778104f71e8f3c1de8" );
+    private static final ObjectId ID2 = new ObjectId( "4ef49feaa106904c04ef4a066e778104f71e8f3c1de9" );
+    private static final long HOUR = 3600 * 1000;
+
+    private AtmosConfig config;
+    private CachingPresigner presigner;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new AtmosConfig( "user", "c2VjcmV0", new URI( "http://10.0.0.1" ) );
+        presigner = new CachingPresigner( config );
+    }
+
+    @Test
+    public void testShareableUrlMatchesApi() throws Exception {
+        Date expiration = new Date( 1760000000000L + 1234 );
+        Date rounded = new Date( (expiration.getTime() / 300000 + 1) * 300000 );
+        AtmosApi api = new AtmosApiClient( config );
+
+        Assert.assertEquals( api.getShareableUrl( ID, rounded ), presigner.getShareableUrl( ID, expiration ) );
+        Assert.assertEquals( api.getShareableUrl( ID, rounded, "attachment; filename=\"a.txt\"" ),
+                             presigner.getShareableUrl( ID, expiration, "attachment; filename=\"a.txt\"" ) );
+
+        ObjectPath path = new ObjectPath( "/Hot/Content.bin" );
+        Assert.assertEquals( api.getShareableUrl( path, rounded ), presigner.getShareableUrl( path, expiration ) );
+    }
+
+    @Test
+    public void testSameWindowIsCached() throws Exception {
+        long base = (System.currentTimeMillis() / 300000 + 10) * 300000;
+        URL first = presigner.getShareableUrl( ID, new Date( base + 1000 ) );
+        Assert.assertSame( first, presigner.getShareableUrl( ID, new Date( base + 299000 ) ) );
+        Assert.assertNotSame( first, presigner.getShareableUrl( ID, new Date( base + 301000 ) ) );
+        Assert.assertNotSame( first, presigner.getShareableUrl( ID, new Date( base + 1000 ), "inline" ) );
+        Assert.assertEquals( 3, presigner.getCacheSize() );
+
+        presigner.setWindowSeconds( 0 );
+        URL exact = presigner.getShareableUrl( ID2, new Date( base + 1000 ) );
+        Assert.assertTrue( exact.toString(), exact.getQuery().contains( "expires=" + (base + 1000) / 1000 + "&" ) );
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Date expiration = new Date( System.currentTimeMillis() + HOUR );
+        List<URL> urls = presigner.getShareableUrls( Arrays.asList( ID, ID2, ID ), expiration, null );
+        Assert.assertEquals( 3, urls.size() );
+        Assert.assertSame( urls.get( 0 ), urls.get( 2 ) );
+        Assert.assertEquals( presigner.getShareableUrl( ID2, expiration ), urls.get( 1 ) );
+        Assert.assertFalse( urls.get( 0 ).equals( urls.get( 1 ) ) );
+        Assert.assertEquals( 2, presigner.getCacheSize() );
+    }
+
+    @Test
+    public void testPreSignRequest() throws Exception {
+        long base = (System.currentTimeMillis() / 300000 + 10) * 300000;
+        PreSignedRequest first = presigner.preSignRequest( new ReadObjectRequest().identifier( ID ),
+                                                           new Date( base + 1000 ) );
+        Assert.assertEquals( base + 300000, first.getExpiration().getTime() );
+        Assert.assertEquals( "http://10.0.0.1/rest/objects/" + ID, first.getUrl().toString() );
+        Assert.assertEquals( Arrays.asList( (Object) (base + 300000) ),
+                             first.getHeaders().get( RestUtil.XHEADER_EXPIRES ) );
+        Assert.assertNotNull( first.getHeaders().get( RestUtil.XHEADER_SIGNATURE ) );
+
+        Assert.assertSame( first, presigner.preSignRequest( new ReadObjectRequest().identifier( ID ),
+                                                            new Date( base + 2000 ) ) );
+        Assert.assertNotSame( first, presigner.preSignRequest(
+                new ReadObjectRequest().identifier( ID ).ranges( new Range( 0, 99 ) ), new Date( base + 2000 ) ) );
+        Assert.assertNotSame( first, presigner.preSignRequest( new ReadObjectRequest().identifier( ID2 ),
+                                                               new Date( base + 2000 ) ) );
+    }
+
+    @Test
+    public void testContentTypeInKey() throws Exception {
+        Date expiration = new Date( System.currentTimeMillis() + HOUR );
+        PreSignedRequest text = presigner.preSignRequest(
+                new UpdateObjectRequest().identifier( ID ).contentType( "text/plain" ), expiration );
+        PreSignedRequest xml = presigner.preSignRequest(
+                new UpdateObjectRequest().identifier( ID ).contentType( "text/xml" ), expiration );
+        Assert.assertNotSame( text, xml );
+        Assert.assertEquals( "text/plain", text.getContentType() );
+        Assert.assertEquals( "text/xml", xml.getContentType() );
+        Assert.assertSame( text, presigner.preSignRequest(
+                new UpdateObjectRequest().identifier( ID ).contentType( "text/plain" ), expiration ) );
+    }
+
+    @Test
+    public void testCachedRequestImmutable() throws Exception {
+        Date expiration = new Date( System.currentTimeMillis() + HOUR );
+        PreSignedRequest first = presigner.preSignRequest( new ReadObjectRequest().identifier( ID ), expiration );
+        long expires = first.getExpiration().getTime();
+        try {
+            first.getHeaders().put( "x-emc-meta", Arrays.asList( (Object) "a=b" ) );
+            Assert.fail( "headers should not be modifiable" );
+        } catch ( UnsupportedOperationException e ) {
+            // expected
+        }
+        try {
+            first.getHeaders().get( RestUtil.XHEADER_SIGNATURE ).clear();
+            Assert.fail( "header values should not be modifiable" );
+        } catch ( UnsupportedOperationException e ) {
+            // expected
+        }
+        first.getExpiration().setTime( 0 );
+
+        PreSignedRequest second = presigner.preSignRequest( new ReadObjectRequest().identifier( ID ), expiration );
+        Assert.assertSame( first, second );
+        Assert.assertEquals( expires, second.getExpiration().getTime() );
+        Assert.assertEquals( 1, second.getHeaders().get( RestUtil.XHEADER_SIGNATURE ).size() );
+    }
+
+    @Test
+    public void testNewCredentialsClearCache() throws Exception {
+        Date expiration = new Date( System.currentTimeMillis() + HOUR );
+        URL before = presigner.getShareableUrl( ID, expiration );
+        config.setSecretKey( "b3RoZXI=" );
+        URL after = presigner.getShareableUrl( ID, expiration );
+        Assert.assertFalse( before.equals( after ) );
+        Assert.assertEquals( 1, presigner.getCacheSize() );
+    }
+
+    @Test
+    public void testFullCacheDropsFirstWindow() throws Exception {
+        long base = (System.currentTimeMillis() / 300000 + 10) * 300000;
+        presigner.setMaxCachedEntries( 3 );
+        URL soon = presigner.getShareableUrl( ID, new Date( base + 1000 ) );
+        presigner.getShareableUrl( ID2, new Date( base + 1000 ) );
+        URL later = presigner.getShareableUrl( ID, new Date( base + 301000 ) );
+        Assert.assertEquals( 3, presigner.getCacheSize() );
+
+        // the whole window that expires first makes room
+        URL latest = presigner.getShareableUrl( ID, new Date( base + 601000 ) );
+        Assert.assertEquals( 2, presigner.getCacheSize() );
+        Assert.assertSame( later, presigner.getShareableUrl( ID, new Date( base + 301000 ) ) );
+        Assert.assertSame( latest, presigner.getShareableUrl( ID, new Date( base + 601000 ) ) );
+        Assert.assertNotSame( soon, presigner.getShareableUrl( ID, new Date( base + 1000 ) ) );
+    }
+
+    @Test
+    public void testExpiredWindowsDropped() throws Exception {
+        long base = (System.currentTimeMillis() / 300000 - 10) * 300000;
+        presigner.getShareableUrl( ID, new Date( base + 1000 ) );
+        presigner.getShareableUrl( ID2, new Date( base + 301000 ) );
+        presigner.getShareableUrl( ID, new Date( System.currentTimeMillis() + HOUR ) );
+        Assert.assertEquals( 1, presigner.getCacheSize() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyRejected() throws Exception {
+        presigner.getShareableUrl( new ObjectKey( "bucket", "key" ), new Date() );
+    }
+}
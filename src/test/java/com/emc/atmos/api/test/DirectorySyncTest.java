@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectPath;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.sync.DirectorySync;
+import com.emc.atmos.api.sync.SyncResult;
+import com.emc.atmos.api.sync.SyncState;
+import com.emc.util.StreamUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+
+public class DirectorySyncTest {
+    private static final ObjectPath REMOTE = new ObjectPath( "/sync/test/" );
+
+    private File root;
+    private File local;
+    private MemoryAtmos namespace;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile( "sync", "test" );
+        Assert.assertTrue( root.delete() && root.mkdir() );
+        local = new File( root, "local" );
+        Assert.assertTrue( local.mkdir() );
+        namespace = new MemoryAtmos();
+        namespace.listPageSize = 2; // exercise the token
+    }
+
+    @After
+    public void tearDown() {
+        delete( root );
+    }
+
+    @Test
+    public void testIncrementalUpload() throws Exception {
+        write( "a.txt", "hello" );
+        write( "dir/b.txt", "world" );
+        write( "dir/sub/large.dat", new String( new char[5000] ).replace( '\0', 'x' ) );
+        Assert.assertTrue( new File( local, "empty" ).mkdir() );
+
+        SyncResult result = upload( false, null );
+        Assert.assertTrue( result.getFailures().toString(), result.isSuccessful() );
+        Assert.assertEquals( 3, result.getFilesTransferred() );
+        Assert.assertEquals( 5010, result.getBytesTransferred() );
+        Assert.assertEquals( "hello", content( "/sync/test/a.txt" ) );
+        Assert.assertEquals( "world", content( "/sync/test/dir/b.txt" ) );
+        Assert.assertEquals( 5000, content( "/sync/test/dir/sub/large.dat" ).length() );
+        Assert.assertTrue( namespace.objects.get( "/sync/test/empty/" ).directory );
+
+        // metadata is set for small (one request) and large (streamed) files
+        for ( String path : Arrays.asList( "/sync/test/a.txt", "/sync/test/dir/sub/large.dat" ) ) {
+            MemoryAtmos.StoredObject object = namespace.objects.get( path );
+            Assert.assertEquals( 32, object.getUserMetadata( DirectorySync.META_MD5 ).length() );
+            Assert.assertNotNull( object.getUserMetadata( DirectorySync.META_MTIME ) );
+        }
+
+        // nothing changed; nothing is sent
+        int writes = namespace.requests.size();
+        result = upload( false, null );
+        Assert.assertEquals( 3, result.getFilesScanned() );
+        Assert.assertEquals( 0, result.getFilesTransferred() );
+        Assert.assertEquals( writes, namespace.requests.size() );
+
+        // only the changed file is sent (as an update)
+        File changed = write( "dir/b.txt", "world!" );
+        Assert.assertTrue( changed.setLastModified( changed.lastModified() + 5000 ) );
+        result = upload( false, null );
+        Assert.assertEquals( 1, result.getFilesTransferred() );
+        Assert.assertEquals( "world!", content( "/sync/test/dir/b.txt" ) );
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        write( "a.txt", "hello" );
+        write( "dir/sub/c.txt", "deep" );
+        upload( false, null );
+
+        File target = new File( root, "target" );
+        DirectorySync sync = new DirectorySync( namespace.api(), target, REMOTE, DirectorySync.Direction.DOWNLOAD );
+        sync.setVerifyChecksums( true );
+        SyncResult result = sync.run();
+        Assert.assertTrue( result.getFailures().toString(), result.isSuccessful() );
+        Assert.assertEquals( 2, result.getFilesTransferred() );
+        Assert.assertEquals( "hello", read( new File( target, "a.txt" ) ) );
+        Assert.assertEquals( "deep", read( new File( target, "dir/sub/c.txt" ) ) );
+        Assert.assertEquals( new File( local, "a.txt" ).lastModified() / 1000,
+                             new File( target, "a.txt" ).lastModified() / 1000 );
+
+        Assert.assertEquals( 0, sync.run().getFilesTransferred() );
+
+        // a bad checksum is reported and the existing file is left alone
+        namespace.objects.get( "/sync/test/a.txt" ).data = "HELLO".getBytes( "UTF-8" );
+        namespace.objects.get( "/sync/test/a.txt" ).setUserMetadata(
+                new Metadata( DirectorySync.META_MTIME, "1000", false ) );
+        result = sync.run();
+        Assert.assertTrue( result.getFailures().get( "a.txt" ) instanceof AtmosException );
+        Assert.assertEquals( "hello", read( new File( target, "a.txt" ) ) );
+        Assert.assertFalse( new File( target, "a.txt.atmos-sync" ).exists() );
+    }
+
+    @Test
+    public void testChecksumsAndJournal() throws Exception {
+        write( "a.txt", "hello" );
+        write( "b.txt", "world" );
+        File journal = new File( root, "journal" );
+
+        SyncState state = new SyncState( journal );
+        upload( true, state );
+        state.close();
+        Assert.assertEquals( 2, state.size() );
+
+        // same size and mtime but different checksum in Atmos: only detected with verifyChecksums
+        namespace.objects.get( "/sync/test/b.txt" ).setUserMetadata(
+                new Metadata( DirectorySync.META_MD5, "0000", false ) );
+        Assert.assertEquals( 0, upload( false, null ).getFilesTransferred() );
+
+        state = new SyncState( journal );
+        Assert.assertEquals( 2, state.size() );
+        File a = new File( local, "a.txt" );
+        Assert.assertNotNull( state.getMd5( "a.txt", a.length(), a.lastModified() ) );
+        Assert.assertNull( state.getMd5( "a.txt", a.length(), a.lastModified() + 1 ) );
+
+        SyncResult result = upload( true, state );
+        state.close();
+        Assert.assertEquals( 1, result.getFilesTransferred() );
+        Assert.assertEquals( 32, namespace.objects.get( "/sync/test/b.txt" ).getUserMetadata( DirectorySync.META_MD5 )
+                                           .length() );
+    }
+
+    @Test
+    public void testJournalCompaction() throws Exception {
+        File journal = new File( root, "journal" );
+        String[] paths = new String[10];
+        for ( int i = 0; i < paths.length; i++ ) paths[i] = "dir/file\t" + i;
+
+        // the same tree synced 150 times
+        SyncState state = new SyncState( journal );
+        for ( int round = 0; round < 150; round++ ) {
+            for ( int i = 0; i < paths.length; i++ ) {
+                state.record( paths[i], i, round, "md5-" + round );
+            }
+        }
+        state.close();
+        Assert.assertEquals( 10, state.size() );
+        Assert.assertTrue( "journal was not compacted", state.getLineCount() < 1000 );
+        Assert.assertEquals( state.getLineCount(), countLines( journal ) );
+        Assert.assertFalse( new File( root, "journal.tmp" ).exists() );
+
+        state = new SyncState( journal );
+        Assert.assertEquals( 10, state.size() );
+        for ( int i = 0; i < paths.length; i++ ) {
+            Assert.assertEquals( "md5-149", state.getMd5( paths[i], i, 149 ) );
+        }
+        state.close();
+
+        // a bloated journal is compacted when it is loaded
+        Writer writer = new OutputStreamWriter( new FileOutputStream( journal ), "UTF-8" );
+        for ( int round = 0; round < 500; round++ ) {
+            writer.write( "a\t1\t" + round + "\tmd5\n" + "b\t2\t" + round + "\tmd5\n" );
+        }
+        writer.close();
+        state = new SyncState( journal );
+        Assert.assertEquals( 2, state.getLineCount() );
+        Assert.assertEquals( 2, countLines( journal ) );
+        Assert.assertEquals( "md5", state.getMd5( "b", 2, 499 ) );
+        state.close();
+    }
+
+    private SyncResult upload( boolean verify, SyncState state ) {
+        DirectorySync sync = new DirectorySync( namespace.api(), local, REMOTE, DirectorySync.Direction.UPLOAD );
+        sync.setSmallFileSize( 1000 );
+        sync.setThreadCount( 3 );
+        sync.setQueueSize( 2 );
+        sync.setVerifyChecksums( verify );
+        sync.setState( state );
+        return sync.run();
+    }
+
+    private long countLines( File file ) throws IOException {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try {
+            long count = 0;
+            while ( reader.readLine() != null ) count++;
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File write( String path, String content ) throws IOException {
+        File file = new File( local, path );
+        file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" );
+        writer.write( content );
+        writer.close();
+        return file;
+    }
+
+    private String content( String path ) throws UnsupportedEncodingException {
+        return new String( namespace.content( new ObjectPath( path ) ), "UTF-8" );
+    }
+
+    private String read( File file ) throws IOException {
+        return StreamUtil.readAsString( new FileInputStream( file ) );
+    }
+
+    private void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
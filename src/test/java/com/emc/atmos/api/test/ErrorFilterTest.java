@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.jersey.ErrorFilter;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandler;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.core.header.InBoundHeaders;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+public class ErrorFilterTest {
+    private static final String NOT_FOUND = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                                            + "<Error>\n  <Code>1003</Code>\n"
+                                            + "  <Message>The requested object was not found.</Message>\n</Error>";
+
+    @Test
+    public void testNotFound() throws Exception {
+        AtmosException e = error( "GET", 404, NOT_FOUND );
+        Assert.assertEquals( 404, e.getHttpCode() );
+        Assert.assertEquals( 1003, e.getErrorCode() );
+        Assert.assertEquals( "The requested object was not found.", e.getMessage() );
+    }
+
+    @Test
+    public void testNamespace() throws Exception {
+        AtmosException e = error( "POST", 500, "<Error xmlns=\"http://www.emc.com/cos/\"><Code>1040</Code>"
+                                               + "<Message>The server is busy. Please try again.</Message></Error>" );
+        Assert.assertEquals( 500, e.getHttpCode() );
+        Assert.assertEquals( 1040, e.getErrorCode() );
+        Assert.assertEquals( "The server is busy. Please try again.", e.getMessage() );
+    }
+
+    @Test
+    public void testOrderAndNesting() throws Exception {
+        // only direct children of the root count
+        AtmosException e = error( "PUT", 400, "<Error><Detail><Code>9</Code></Detail>"
+                                              + "<Message>Invalid &amp; bad</Message><Code> 1008 </Code></Error>" );
+        Assert.assertEquals( 1008, e.getErrorCode() );
+        Assert.assertEquals( "Invalid & bad", e.getMessage() );
+    }
+
+    @Test
+    public void testNonAtmosError() throws Exception {
+        AtmosException e = error( "GET", 502, "<html><body>Bad Gateway</body></html>" );
+        Assert.assertEquals( 502, e.getHttpCode() );
+        Assert.assertEquals( 0, e.getErrorCode() );
+
+        e = error( "GET", 503, "Service Unavailable" );
+        Assert.assertEquals( 503, e.getHttpCode() );
+        Assert.assertEquals( 0, e.getErrorCode() );
+
+        e = error( "GET", 400, "<Error><Code>abc</Code><Message>weird</Message></Error>" );
+        Assert.assertEquals( 0, e.getErrorCode() );
+        Assert.assertEquals( "weird", e.getMessage() );
+    }
+
+    @Test
+    public void testNoBody() throws Exception {
+        AtmosException e = error( "HEAD", 404, NOT_FOUND );
+        Assert.assertEquals( 404, e.getHttpCode() );
+        Assert.assertEquals( 0, e.getErrorCode() );
+
+        e = error( "DELETE", 403, "" );
+        Assert.assertEquals( 403, e.getHttpCode() );
+        Assert.assertEquals( 0, e.getErrorCode() );
+    }
+
+    @Test
+    public void testNoExceptions() throws Exception {
+        WebResource resource = client( 404, NOT_FOUND ).resource( "http://localhost/rest/objects/abc" );
+        resource.setProperty( ErrorFilter.NO_EXCEPTIONS, true );
+        Assert.assertEquals( 404, resource.get( ClientResponse.class ).getStatus() );
+    }
+
+    private AtmosException error( String method, int status, String body ) throws Exception {
+        try {
+            client( status, body ).resource( "http://localhost/rest/objects/abc" ).method( method, ClientResponse.class );
+            Assert.fail( "error response should throw" );
+            return null;
+        } catch ( AtmosException e ) {
+            return e;
+        }
+    }
+
+    private Client client( final int status, final String body ) throws UnsupportedEncodingException {
+        final byte[] bytes = body.getBytes( "UTF-8" );
+        Client client = new Client( new ClientHandler() {
+            @Override
+            public ClientResponse handle( ClientRequest request ) throws ClientHandlerException {
+                InBoundHeaders headers = new InBoundHeaders();
+                headers.putSingle( "Content-Length", "" + bytes.length );
+                headers.putSingle( "Content-Type", "text/xml" );
+                InputStream entity = new ByteArrayInputStream( bytes );
+                return new ClientResponse( status, headers, entity, null );
+            }
+        } );
+        client.addFilter( new ErrorFilter() );
+        return client;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.Expect100ContinuePolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+
+public class Expect100ContinuePolicyTest {
+    private static final URI NODE1 = URI.create( "http://10.0.0.101:80/rest/objects/abc" );
+    private static final URI NODE1_OTHER = URI.create( "http://10.0.0.101:80/rest/namespace/foo/bar" );
+    private static final URI NODE2 = URI.create( "http://10.0.0.102:80/rest/objects/abc" );
+    private static final long LARGE = 10 * 1024 * 1024;
+
+    @Test
+    public void testThreshold() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+        policy.setThresholdBytes( 1024 );
+
+        Assert.assertFalse( policy.useExpect( NODE1, 0 ) );
+        Assert.assertFalse( policy.useExpect( NODE1, 200 ) );
+        Assert.assertFalse( policy.useExpect( NODE1, 1023 ) );
+        Assert.assertTrue( policy.useExpect( NODE1, 1024 ) );
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+        Assert.assertTrue( "unknown length should be treated as large", policy.useExpect( NODE1, -1 ) );
+    }
+
+    @Test
+    public void testAdaptiveDisable() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+        policy.setSampleSize( 10 );
+
+        for ( int i = 0; i < 9; i++ ) {
+            Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+            policy.recordResponse( NODE1, true, LARGE, 200 );
+        }
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+        policy.recordResponse( NODE1, true, LARGE, 201 );
+
+        Assert.assertFalse( policy.useExpect( NODE1, LARGE ) );
+        Assert.assertFalse( "endpoint state should not depend on the path", policy.useExpect( NODE1_OTHER, LARGE ) );
+        Assert.assertTrue( "other endpoints should be unaffected", policy.useExpect( NODE2, LARGE ) );
+    }
+
+    @Test
+    public void testEarlyErrorsKeepExpect() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+        policy.setSampleSize( 10 );
+
+        for ( int i = 0; i < 20; i++ ) {
+            policy.recordResponse( NODE1, true, LARGE, i % 5 == 0 ? 403 : 200 );
+        }
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+    }
+
+    @Test
+    public void testRecoveryAfterErrors() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+        policy.setSampleSize( 10 );
+
+        // a busy spell
+        for ( int i = 0; i < 5; i++ ) {
+            policy.recordResponse( NODE1, true, LARGE, 500 );
+        }
+        for ( int i = 0; i < 9; i++ ) {
+            policy.recordResponse( NODE1, true, LARGE, 200 );
+        }
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+
+        // another error starts the count over
+        policy.recordResponse( NODE1, true, LARGE, 403 );
+        for ( int i = 0; i < 9; i++ ) {
+            policy.recordResponse( NODE1, true, LARGE, 200 );
+        }
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+
+        // once healthy for a full sample, the expectation is turned off
+        policy.recordResponse( NODE1, true, LARGE, 200 );
+        Assert.assertFalse( policy.useExpect( NODE1, LARGE ) );
+    }
+
+    @Test
+    public void testReEnableOnLargeRejection() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+        policy.setSampleSize( 1 );
+
+        policy.recordResponse( NODE1, true, LARGE, 200 );
+        Assert.assertFalse( policy.useExpect( NODE1, LARGE ) );
+
+        // small rejections don't matter
+        policy.recordResponse( NODE1, false, 100, 500 );
+        Assert.assertFalse( policy.useExpect( NODE1, LARGE ) );
+
+        policy.recordResponse( NODE1, false, LARGE, 500 );
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+        Assert.assertFalse( policy.isDisabled( NODE1 ) );
+    }
+
+    @Test
+    public void testExpectationFailed() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+
+        policy.recordResponse( NODE1, true, LARGE, 417 );
+        Assert.assertFalse( policy.useExpect( NODE1, LARGE ) );
+
+        // a 417 without the expectation should not turn it back on
+        policy.recordResponse( NODE1, false, LARGE, 417 );
+        Assert.assertFalse( policy.useExpect( NODE1, LARGE ) );
+    }
+
+    @Test
+    public void testNonAdaptive() {
+        Expect100ContinuePolicy policy = new Expect100ContinuePolicy();
+        policy.setAdaptive( false );
+        policy.setSampleSize( 1 );
+
+        policy.recordResponse( NODE1, true, LARGE, 200 );
+        policy.recordResponse( NODE1, true, LARGE, 417 );
+        Assert.assertTrue( policy.useExpect( NODE1, LARGE ) );
+        Assert.assertFalse( policy.useExpect( NODE1, 100 ) );
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AbstractConfig;
+import com.emc.atmos.HedgedReadPolicy;
+import com.emc.atmos.api.AtmosApi;
+import com.emc.atmos.api.AtmosConfig;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.ObjectIdentifier;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ObjectMetadata;
+import com.emc.atmos.api.jersey.AtmosApiClient;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HedgedReadPolicyTest {
+    private static final URI PRIMARY = URI.create( "http://10.0.0.101:80/rest/objects/abc?foo=b%20r" );
+    private static final URI SECONDARY = URI.create( "http://10.0.0.102:80/rest/objects/abc?foo=b%20r" );
+
+    @Test
+    public void testNoHedgeBeforeWarmUp() throws Exception {
+        HedgedReadPolicy policy = new HedgedReadPolicy();
+        policy.setMinSamples( 10 );
+
+        for ( int i = 0; i < 9; i++ ) {
+            Assert.assertEquals( PRIMARY, policy.execute( PRIMARY, SECONDARY, new EchoCall( 0 ) ) );
+            Assert.assertEquals( -1, policy.getHedgeDelayMillis() );
+        }
+        policy.execute( PRIMARY, SECONDARY, new EchoCall( 0 ) );
+        Assert.assertEquals( policy.getMinDelayMillis(), policy.getHedgeDelayMillis() );
+    }
+
+    @Test
+    public void testSlowPrimaryIsHedged() throws Exception {
+        HedgedReadPolicy policy = warmPolicy();
+
+        Assert.assertEquals( SECONDARY, policy.execute( PRIMARY, SECONDARY, new EchoCall( 2000 ) ) );
+    }
+
+    @Test
+    public void testFailedHedgeFallsBackToPrimary() throws Exception {
+        HedgedReadPolicy policy = warmPolicy();
+
+        URI result = policy.execute( PRIMARY, SECONDARY, new HedgedReadPolicy.Call<URI>() {
+            @Override
+            public URI call( URI uri, HedgedReadPolicy.Attempt attempt ) throws IOException {
+                if ( SECONDARY.equals( uri ) ) throw new IOException( "hedge failed" );
+                sleep( 200 );
+                return uri;
+            }
+        } );
+        Assert.assertEquals( PRIMARY, result );
+    }
+
+    @Test
+    public void testLoserStopsReading() throws Exception {
+        HedgedReadPolicy policy = warmPolicy();
+        final AtomicLong primaryBytes = new AtomicLong();
+        final CountDownLatch primaryDone = new CountDownLatch( 1 );
+        final AtomicReference<IOException> primaryError = new AtomicReference<IOException>();
+
+        URI result = policy.execute( PRIMARY, SECONDARY, new HedgedReadPolicy.Call<URI>() {
+            @Override
+            public URI call( URI uri, HedgedReadPolicy.Attempt attempt ) throws IOException {
+                if ( SECONDARY.equals( uri ) ) return uri;
+
+                // a slow, endless response body
+                InputStream in = attempt.track( new InputStream() {
+                    @Override
+                    public int read() {
+                        sleep( 5 );
+                        return 0;
+                    }
+                } );
+                try {
+                    while ( in.read() != -1 ) primaryBytes.incrementAndGet();
+                } catch ( IOException e ) {
+                    primaryError.set( e );
+                    throw e;
+                } finally {
+                    in.close();
+                    primaryDone.countDown();
+                }
+                return uri;
+            }
+        } );
+        Assert.assertEquals( SECONDARY, result );
+
+        Assert.assertTrue( "loser is still reading", primaryDone.await( 1, TimeUnit.SECONDS ) );
+        Assert.assertTrue( primaryError.get() instanceof InterruptedIOException );
+        long bytes = primaryBytes.get();
+        sleep( 100 );
+        Assert.assertEquals( bytes, primaryBytes.get() );
+    }
+
+    @Test
+    public void testLosingMetadataAttemptAborted() throws Exception {
+        final AtomicReference<CountDownLatch> hold = new AtomicReference<CountDownLatch>();
+        StubAtmosServer.Handler handler = new StubAtmosServer.Handler() {
+            @Override
+            public void handle( StubAtmosServer.Request request, HttpExchange exchange ) throws Exception {
+                // the first request after a hold is set (the primary attempt) waits until the hedge has won
+                CountDownLatch release = hold.getAndSet( null );
+                if ( release != null ) release.await( 5, TimeUnit.SECONDS );
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put( "Content-Type", "application/octet-stream" );
+                headers.put( "x-emc-meta", "size=10" );
+                StubAtmosServer.respond( exchange, 200, headers, new byte[0] );
+            }
+        };
+        StubAtmosServer server1 = new StubAtmosServer(), server2 = new StubAtmosServer();
+        server1.handler = handler;
+        server2.handler = handler;
+        try {
+            AtmosConfig config = server1.newConfig();
+            config.setEndpoints( new URI[]{server1.getEndpoint(), server2.getEndpoint()} );
+            HedgedReadPolicy policy = new HedgedReadPolicy();
+            policy.setMinSamples( 5 );
+            policy.setBudgetPercent( 100 );
+            config.setHedgedReadPolicy( policy );
+
+            final List<IOException> losers = Collections.synchronizedList( new ArrayList<IOException>() );
+            AtmosApi api = new AtmosApiClient( config ) {
+                @Override
+                protected Map<String, Metadata> getSystemMetadata( URI uri, ObjectIdentifier identifier,
+                                                                   HedgedReadPolicy.Attempt attempt,
+                                                                   String... metadataNames ) throws IOException {
+                    try {
+                        return super.getSystemMetadata( uri, identifier, attempt, metadataNames );
+                    } catch ( IOException e ) {
+                        losers.add( e );
+                        throw e;
+                    }
+                }
+
+                @Override
+                protected ObjectMetadata getObjectMetadata( URI uri, ObjectIdentifier identifier,
+                                                            HedgedReadPolicy.Attempt attempt ) throws IOException {
+                    try {
+                        return super.getObjectMetadata( uri, identifier, attempt );
+                    } catch ( IOException e ) {
+                        losers.add( e );
+                        throw e;
+                    }
+                }
+            };
+            ObjectId id = MemoryAtmos.OBJECT_ID;
+            for ( int i = 0; i < 5; i++ ) {
+                api.getSystemMetadata( id );
+            }
+            Assert.assertTrue( policy.getHedgeDelayMillis() >= 0 );
+
+            CountDownLatch release = new CountDownLatch( 1 );
+            hold.set( release );
+            Assert.assertEquals( "10", api.getSystemMetadata( id ).get( "size" ).getValue() );
+            release.countDown();
+
+            release = new CountDownLatch( 1 );
+            hold.set( release );
+            Assert.assertEquals( "10", api.getObjectMetadata( id ).getMetadata().get( "size" ).getValue() );
+            release.countDown();
+
+            // each losing attempt fails once its response arrives instead of returning a result
+            for ( int i = 0; i < 100 && losers.size() < 2; i++ ) {
+                sleep( 50 );
+            }
+            Assert.assertEquals( 2, losers.size() );
+            for ( IOException loser : losers ) {
+                Assert.assertTrue( loser.toString(), loser instanceof InterruptedIOException );
+            }
+            Assert.assertEquals( 2 + 5 + 2, server1.requests.size() + server2.requests.size() );
+        } finally {
+            server1.stop();
+            server2.stop();
+        }
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        HedgedReadPolicy policy = warmPolicy();
+        policy.setBudgetPercent( 0 );
+
+        Assert.assertEquals( PRIMARY, policy.execute( PRIMARY, SECONDARY, new EchoCall( 100 ) ) );
+    }
+
+    @Test
+    public void testResolveAlternatePath() {
+        AbstractConfig config = new AbstractConfig( "/rest", URI.create( "http://10.0.0.101:80" ),
+                                                    URI.create( "http://10.0.0.102:80" ) );
+        Assert.assertEquals( SECONDARY, config.resolveAlternatePath( PRIMARY ) );
+        Assert.assertEquals( PRIMARY, config.resolveAlternatePath( SECONDARY ) );
+
+        config.setEndpoints( new URI[]{URI.create( "http://10.0.0.101:80" )} );
+        Assert.assertNull( config.resolveAlternatePath( PRIMARY ) );
+    }
+
+    private HedgedReadPolicy warmPolicy() throws IOException {
+        HedgedReadPolicy policy = new HedgedReadPolicy();
+        policy.setMinSamples( 10 );
+        for ( int i = 0; i < 10; i++ ) {
+            policy.execute( PRIMARY, SECONDARY, new EchoCall( 0 ) );
+        }
+        return policy;
+    }
+
+    private static void sleep( long millis ) {
+        try {
+            Thread.sleep( millis );
+        } catch ( InterruptedException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Returns the URI it was called with; reads to PRIMARY take primaryMillis.
+     */
+    private static class EchoCall implements HedgedReadPolicy.Call<URI> {
+        private long primaryMillis;
+
+        EchoCall( long primaryMillis ) {
+            this.primaryMillis = primaryMillis;
+        }
+
+        @Override
+        public URI call( URI uri, HedgedReadPolicy.Attempt attempt ) throws IOException {
+            if ( PRIMARY.equals( uri ) ) sleep( primaryMillis );
+            return uri;
+        }
+    }
+}
@@ -30,10 +30,28 @@ import com.emc.util.HttpUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
 public class HttpUtilTest {
     @Test
     public void testUtf8Encoding() {
         String value = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789`-=[]\\;',./~!@#$%^&*()_+{}|:\"<>?";
         Assert.assertEquals(value, HttpUtil.decodeUtf8(HttpUtil.encodeUtf8(value)));
     }
+
+    @Test
+    public void testHeaderFormat() {
+        SimpleDateFormat format = new SimpleDateFormat( "EEE, d MMM yyyy HH:mm:ss z", Locale.ENGLISH );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+
+        // cover second boundaries and repeated values within a second
+        long[] times = {1400000000000L, 1400000000999L, 1400000001000L, 1400000000500L, -1L, -1000L, -1001L, 0L};
+        for ( long time : times ) {
+            Date date = new Date( time );
+            Assert.assertEquals( "for " + time, format.format( date ), HttpUtil.headerFormat( date ) );
+        }
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.jersey.provider.MeasuredMessageBodyWriter;
+import com.emc.atmos.api.jersey.provider.MeasuredStringWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MeasuredMessageBodyWriterTest {
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    @Test
+    public void testSerializeOnce() throws Exception {
+        CountingWriter counting = new CountingWriter();
+        MeasuredMessageBodyWriter<String> writer = new MeasuredMessageBodyWriter<String>( counting );
+
+        String entity = "Hello World";
+        Assert.assertEquals( 11, writer.getSize( entity, String.class, String.class, NO_ANNOTATIONS,
+                                                 MediaType.TEXT_PLAIN_TYPE ) );
+        Assert.assertEquals( entity, write( writer, entity, MediaType.TEXT_PLAIN_TYPE ) );
+        Assert.assertEquals( 1, counting.calls.get() );
+
+        // without a preceding getSize, the entity is written directly
+        Assert.assertEquals( entity, write( writer, entity, MediaType.TEXT_PLAIN_TYPE ) );
+        Assert.assertEquals( 2, counting.calls.get() );
+    }
+
+    @Test
+    public void testDelayedException() throws Exception {
+        MeasuredMessageBodyWriter<String> writer = new MeasuredMessageBodyWriter<String>( new CountingWriter() );
+        String entity = "fail";
+        Assert.assertEquals( -1, writer.getSize( entity, String.class, String.class, NO_ANNOTATIONS,
+                                                 MediaType.TEXT_PLAIN_TYPE ) );
+        try {
+            write( writer, entity, MediaType.TEXT_PLAIN_TYPE );
+            Assert.fail( "delayed exception was not thrown" );
+        } catch ( IOException e ) {
+            Assert.assertEquals( "fail", e.getMessage() );
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final MeasuredStringWriter writer = new MeasuredStringWriter();
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for ( int i = 0; i < 400; i++ ) {
+                final int n = i;
+                futures.add( executor.submit( new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        StringBuilder value = new StringBuilder();
+                        for ( int j = 0; j <= n; j++ ) value.append( (char) ('a' + j % 26) );
+                        String entity = value.toString();
+                        long size = writer.getSize( entity, String.class, String.class, NO_ANNOTATIONS,
+                                                    MediaType.TEXT_PLAIN_TYPE );
+                        String written = write( writer, entity, MediaType.TEXT_PLAIN_TYPE );
+                        return size == entity.length() && entity.equals( written );
+                    }
+                } ) );
+            }
+            for ( Future<Boolean> future : futures ) {
+                Assert.assertTrue( future.get() );
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testManyPendingWrites() throws Exception {
+        final CountingWriter counting = new CountingWriter();
+        final MeasuredMessageBodyWriter<String> writer = new MeasuredMessageBodyWriter<String>( counting );
+        final int count = 300;
+        // every request is measured before any of them is written
+        final CyclicBarrier measured = new CyclicBarrier( count );
+        ExecutorService executor = Executors.newFixedThreadPool( count );
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for ( int i = 0; i < count; i++ ) {
+                final String entity = "entity " + i;
+                futures.add( executor.submit( new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        long size = writer.getSize( entity, String.class, String.class, NO_ANNOTATIONS,
+                                                    MediaType.TEXT_PLAIN_TYPE );
+                        measured.await( 10, TimeUnit.SECONDS );
+                        return size == entity.length() && entity.equals( write( writer, entity,
+                                                                                 MediaType.TEXT_PLAIN_TYPE ) );
+                    }
+                } ) );
+            }
+            for ( Future<Boolean> future : futures ) {
+                Assert.assertTrue( future.get() );
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals( "each entity should be serialized once", count, counting.calls.get() );
+        Assert.assertEquals( 0, writer.getPendingCount() );
+    }
+
+    @Test
+    public void testAbandonedEntitiesEvicted() throws Exception {
+        CountingWriter counting = new CountingWriter();
+        MeasuredMessageBodyWriter<String> writer = new MeasuredMessageBodyWriter<String>( counting, 50 );
+
+        // these requests fail before writeTo()
+        for ( int i = 0; i < 10; i++ ) {
+            writer.getSize( "abandoned " + i, String.class, String.class, NO_ANNOTATIONS, MediaType.TEXT_PLAIN_TYPE );
+        }
+        Assert.assertEquals( 10, writer.getPendingCount() );
+
+        Thread.sleep( 120 );
+        String entity = "Hello World";
+        writer.getSize( entity, String.class, String.class, NO_ANNOTATIONS, MediaType.TEXT_PLAIN_TYPE );
+        Assert.assertEquals( 1, writer.getPendingCount() );
+        Assert.assertEquals( entity, write( writer, entity, MediaType.TEXT_PLAIN_TYPE ) );
+        Assert.assertEquals( 11, counting.calls.get() );
+        Assert.assertEquals( 0, writer.getPendingCount() );
+
+        // an entity written after eviction is still written (just serialized again)
+        writer.getSize( entity, String.class, String.class, NO_ANNOTATIONS, MediaType.TEXT_PLAIN_TYPE );
+        Thread.sleep( 120 );
+        writer.getSize( "next", String.class, String.class, NO_ANNOTATIONS, MediaType.TEXT_PLAIN_TYPE );
+        Assert.assertEquals( entity, write( writer, entity, MediaType.TEXT_PLAIN_TYPE ) );
+        Assert.assertEquals( 14, counting.calls.get() );
+    }
+
+    private static String write( MessageBodyWriter<String> writer, String entity, MediaType mediaType )
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo( entity, String.class, String.class, NO_ANNOTATIONS, mediaType, null, out );
+        return new String( out.toByteArray(), "UTF-8" );
+    }
+
+    private static class CountingWriter implements MessageBodyWriter<String> {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public boolean isWriteable( Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType ) {
+            return true;
+        }
+
+        @Override
+        public long getSize( String s, Class<?> type, Type genericType, Annotation[] annotations,
+                             MediaType mediaType ) {
+            return -1;
+        }
+
+        @Override
+        public void writeTo( String s, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                             MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream )
+                throws IOException, WebApplicationException {
+            calls.incrementAndGet();
+            if ( "fail".equals( s ) ) throw new IOException( "fail" );
+            entityStream.write( s.getBytes( "UTF-8" ) );
+        }
+    }
+}
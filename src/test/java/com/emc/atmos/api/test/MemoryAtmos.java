@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.*;
+import com.emc.atmos.api.multipart.MultipartEntity;
+import com.emc.atmos.api.multipart.MultipartPart;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.ListDirectoryRequest;
+import com.emc.atmos.api.request.PutObjectRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory Atmos for tests. Objects are stored by ID or path (parent directories are created as needed) and
+ * understand just enough of the AtmosApi for the helpers in this package: ranged and multipart reads, streams,
+ * creates, ranged updates, metadata, ACLs, server-generated checksums, deletes and paged directory listings.
+ * <p/>
+ * Reads, ranged writes, create/update requests and the name of every method called are recorded. Subclasses can
+ * override {@link #invoke(Object, Method, Object[])} to inject failures or delays, and
+ * {@link #openStream(StoredObject, byte[])} or {@link #readContent(PutObjectRequest)} to control how content moves.
+ */
+class MemoryAtmos implements InvocationHandler {
+    /**
+     * The ID of the object passed to {@link #MemoryAtmos(byte[])}, and of the first object created in an empty
+     * instance.
+     */
+    static final ObjectId OBJECT_ID = objectId( 0x1de8 );
+
+    final Map<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+    /** Every range read, in order (the whole object for unranged streams). */
+    final List<Range> reads = Collections.synchronizedList( new ArrayList<Range>() );
+    /** The ranges of each readObject request. */
+    final List<List<Range>> readRequests = Collections.synchronizedList( new ArrayList<List<Range>>() );
+    /** The range of every ranged update. */
+    final List<Range> writes = Collections.synchronizedList( new ArrayList<Range>() );
+    /** Every create and update request. */
+    final List<PutObjectRequest<?>> requests = Collections.synchronizedList( new ArrayList<PutObjectRequest<?>>() );
+    final List<String> deleted = Collections.synchronizedList( new ArrayList<String>() );
+    /** The name of every AtmosApi method called, in order. */
+    final List<String> calls = Collections.synchronizedList( new ArrayList<String>() );
+    volatile boolean declareLength = true;
+    volatile int listPageSize = 1000;
+    private final AtomicInteger nextId = new AtomicInteger( 0x1de8 );
+
+    MemoryAtmos() {
+    }
+
+    /**
+     * Stores content as {@link #OBJECT_ID}.
+     */
+    MemoryAtmos( byte[] content ) {
+        put( OBJECT_ID, content );
+    }
+
+    static ObjectId objectId( int n ) {
+        return new ObjectId( "4ef49feaa106904c04ef4a066e778104f71e8f3c" + String.format( "%04x", n ) );
+    }
+
+    static byte[] randomContent( int size ) {
+        byte[] content = new byte[size];
+        new Random().nextBytes( content );
+        return content;
+    }
+
+    AtmosApi api() {
+        return (AtmosApi) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[]{AtmosApi.class},
+                                                  this );
+    }
+
+    StoredObject put( ObjectIdentifier identifier, byte[] content ) {
+        StoredObject object = new StoredObject( false );
+        object.data = content;
+        if ( identifier instanceof ObjectPath ) mkdirs( ((ObjectPath) identifier).getPath() );
+        objects.put( identifier.toString(), object );
+        return object;
+    }
+
+    /**
+     * Returns the stored object, or null if there is none.
+     */
+    StoredObject object( ObjectIdentifier identifier ) {
+        return objects.get( identifier.toString() );
+    }
+
+    byte[] content( ObjectIdentifier identifier ) {
+        StoredObject object = object( identifier );
+        return object == null ? null : object.data;
+    }
+
+    @Override
+    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+        String name = method.getName();
+        if ( method.getDeclaringClass() == Object.class ) return method.invoke( this, args );
+        calls.add( name );
+        if ( "getSystemMetadata".equals( name ) ) {
+            StoredObject object = existing( (ObjectIdentifier) args[0] );
+            Map<String, Metadata> metadata = new HashMap<String, Metadata>();
+            for ( Metadata meta : object.systemMetadata() ) metadata.put( meta.getName(), meta );
+            return metadata;
+        } else if ( "objectExists".equals( name ) ) {
+            return objects.containsKey( args[0].toString() );
+        } else if ( "readObject".equals( name ) && args[0] instanceof ReadObjectRequest ) {
+            return readObject( (ReadObjectRequest) args[0], (Class<?>) args[1] );
+        } else if ( "readObjectStream".equals( name ) ) {
+            return readObjectStream( (ObjectIdentifier) args[0], (Range) args[1] );
+        } else if ( "createObject".equals( name ) && args[0] instanceof CreateObjectRequest ) {
+            return createObject( (CreateObjectRequest) args[0] );
+        } else if ( "updateObject".equals( name ) && args[0] instanceof UpdateObjectRequest ) {
+            return updateObject( (UpdateObjectRequest) args[0] );
+        } else if ( "setUserMetadata".equals( name ) ) {
+            existing( (ObjectIdentifier) args[0] ).setUserMetadata( (Metadata[]) args[1] );
+            return null;
+        } else if ( "getUserMetadata".equals( name ) ) {
+            StoredObject object = existing( (ObjectIdentifier) args[0] );
+            Map<String, Metadata> metadata = new HashMap<String, Metadata>( object.userMetadata );
+            if ( args[1] != null && ((String[]) args[1]).length > 0 )
+                metadata.keySet().retainAll( Arrays.asList( (String[]) args[1] ) );
+            return metadata;
+        } else if ( "getUserMetadataNames".equals( name ) ) {
+            Map<String, Boolean> names = new HashMap<String, Boolean>();
+            for ( Metadata meta : existing( (ObjectIdentifier) args[0] ).userMetadata.values() ) {
+                names.put( meta.getName(), meta.isListable() );
+            }
+            return names;
+        } else if ( "deleteUserMetadata".equals( name ) ) {
+            StoredObject object = existing( (ObjectIdentifier) args[0] );
+            object.userMetadata.keySet().removeAll( Arrays.asList( (String[]) args[1] ) );
+            return null;
+        } else if ( "delete".equals( name ) ) {
+            if ( objects.remove( args[0].toString() ) == null ) throw notFound( (ObjectIdentifier) args[0] );
+            deleted.add( args[0].toString() );
+            return null;
+        } else if ( "createDirectory".equals( name ) && args.length == 1 ) {
+            mkdirs( ((ObjectPath) args[0]).getPath() );
+            return objectId( nextId.getAndIncrement() );
+        } else if ( "listDirectory".equals( name ) ) {
+            return listDirectory( (ListDirectoryRequest) args[0] );
+        }
+        throw new UnsupportedOperationException( name );
+    }
+
+    /**
+     * Returns the stream a read is served from. Override to throttle, break or count reads.
+     */
+    protected InputStream openStream( StoredObject object, byte[] data ) {
+        return new ByteArrayInputStream( data );
+    }
+
+    /**
+     * Reads the content of a create or update. Like the real client, streams are read up to the content length
+     * rather than to the end. Override to break uploads part way.
+     */
+    protected byte[] readContent( PutObjectRequest<?> request ) throws IOException {
+        Object content = request.getContent();
+        if ( content == null ) return new byte[0];
+        if ( content instanceof byte[] ) return (byte[]) content;
+        if ( content instanceof BufferSegment ) {
+            BufferSegment segment = (BufferSegment) content;
+            return Arrays.copyOfRange( segment.getBuffer(), segment.getOffset(),
+                                       segment.getOffset() + segment.getSize() );
+        }
+        if ( content instanceof InputStream ) {
+            InputStream in = (InputStream) content;
+            long remaining = request.getContentLength() < 0 ? Long.MAX_VALUE : request.getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ( remaining > 0 && (read = in.read( buffer, 0, (int) Math.min( buffer.length, remaining ) )) != -1 ) {
+                remaining -= read;
+                out.write( buffer, 0, read );
+            }
+            return out.toByteArray();
+        }
+        throw new UnsupportedOperationException( "content type " + content.getClass().getName() );
+    }
+
+    private ReadObjectResponse<?> readObject( ReadObjectRequest request, Class<?> type ) {
+        StoredObject object = existing( request.getIdentifier() );
+        byte[] data = object.data;
+        List<Range> ranges = request.getRanges();
+        if ( ranges == null || ranges.isEmpty() ) ranges = Collections.singletonList( new Range( 0, data.length - 1 ) );
+        readRequests.add( ranges );
+        reads.addAll( ranges );
+
+        ReadObjectResponse<?> response;
+        if ( ranges.size() == 1 && type == byte[].class ) {
+            response = new ReadObjectResponse<byte[]>( slice( data, ranges.get( 0 ) ) );
+        } else if ( ranges.size() > 1 && type == MultipartEntity.class ) {
+            List<MultipartPart> parts = new ArrayList<MultipartPart>();
+            for ( Range range : ranges ) {
+                parts.add( new MultipartPart( object.contentType, range, slice( data, range ) ) );
+            }
+            Collections.reverse( parts ); // clients should not depend on the order
+            response = new ReadObjectResponse<MultipartEntity>( new MultipartEntity( parts ) );
+        } else {
+            throw new UnsupportedOperationException( ranges.size() + " ranges as " + type.getName() );
+        }
+        response.setHeaders( object.headers() );
+        response.setContentType( object.contentType );
+        return response;
+    }
+
+    private ReadObjectResponse<InputStream> readObjectStream( ObjectIdentifier identifier, Range range ) {
+        StoredObject object = existing( identifier );
+        byte[] data = object.data;
+        reads.add( range == null ? new Range( 0, data.length - 1 ) : range );
+        if ( range != null ) data = slice( data, range );
+
+        ReadObjectResponse<InputStream> response = new ReadObjectResponse<InputStream>( openStream( object, data ) );
+        response.setHeaders( object.headers() );
+        response.setContentType( object.contentType );
+        response.setContentLength( declareLength ? data.length : -1 );
+        return response;
+    }
+
+    private CreateObjectResponse createObject( CreateObjectRequest request ) throws Exception {
+        ObjectId objectId = objectId( nextId.getAndIncrement() );
+        ObjectIdentifier identifier = request.getIdentifier() == null ? objectId : request.getIdentifier();
+        if ( objects.containsKey( identifier.toString() ) ) throw new AtmosException( "exists", 400, 1016 );
+
+        // read everything first; a broken upload leaves nothing behind
+        byte[] data = readContent( request );
+        requests.add( request );
+        StoredObject object = put( identifier, data );
+        object.update( request );
+
+        CreateObjectResponse response = new CreateObjectResponse();
+        response.setLocation( "/rest/objects/" + objectId );
+        response.setHeaders( object.checksumHeaders() );
+        return response;
+    }
+
+    private BasicResponse updateObject( UpdateObjectRequest request ) throws Exception {
+        StoredObject object = existing( request.getIdentifier() );
+        byte[] data = readContent( request );
+        Range range = request.getRange();
+        if ( range == null ) {
+            object.data = data;
+        } else {
+            if ( range.getSize() != data.length )
+                throw new AtmosException( "range " + range + " does not match " + data.length + " bytes", 400, 1004 );
+            // appending is required to keep a running checksum
+            if ( range.getFirst() > object.data.length
+                 || (request.getWsChecksum() != null && range.getFirst() != object.data.length) )
+                throw new AtmosException( "cannot write " + range + " to " + object.data.length + " bytes", 416, 1004 );
+            byte[] updated = Arrays.copyOf( object.data, (int) Math.max( object.data.length, range.getLast() + 1 ) );
+            System.arraycopy( data, 0, updated, (int) range.getFirst(), data.length );
+            object.data = updated;
+            writes.add( range );
+        }
+        requests.add( request );
+        object.update( request );
+
+        BasicResponse response = new BasicResponse();
+        response.setHeaders( object.checksumHeaders() );
+        return response;
+    }
+
+    private ListDirectoryResponse listDirectory( ListDirectoryRequest request ) {
+        String path = request.getPath().getPath();
+        StoredObject directory = objects.get( path );
+        if ( directory == null || !directory.directory ) throw notFound( request.getPath() );
+
+        List<String> children = new ArrayList<String>();
+        for ( String key : objects.keySet() ) {
+            if ( key.length() > path.length() && key.startsWith( path ) ) {
+                String rest = key.substring( path.length() );
+                int slash = rest.indexOf( '/' );
+                if ( slash < 0 || slash == rest.length() - 1 ) children.add( key );
+            }
+        }
+        Collections.sort( children );
+
+        int start = request.getToken() == null ? 0 : Integer.parseInt( request.getToken() );
+        int end = Math.min( children.size(), start + listPageSize );
+        List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+        for ( String key : children.subList( start, end ) ) {
+            StoredObject object = objects.get( key );
+            DirectoryEntry entry = new DirectoryEntry();
+            String filename = key.substring( path.length() );
+            if ( object.directory ) filename = filename.substring( 0, filename.length() - 1 );
+            entry.setFilename( filename );
+            entry.setFileType( object.directory ? DirectoryEntry.FileType.directory : DirectoryEntry.FileType.regular );
+            if ( request.isIncludeMetadata() ) {
+                entry.setSystemMetadata( object.systemMetadata() );
+                entry.setUserMetadata( new ArrayList<Metadata>( object.userMetadata.values() ) );
+            }
+            entries.add( entry );
+        }
+        request.setToken( end < children.size() ? "" + end : null );
+
+        ListDirectoryResponse response = new ListDirectoryResponse();
+        response.setEntries( entries );
+        return response;
+    }
+
+    private StoredObject existing( ObjectIdentifier identifier ) {
+        StoredObject object = objects.get( identifier.toString() );
+        if ( object == null ) throw notFound( identifier );
+        return object;
+    }
+
+    private AtmosException notFound( ObjectIdentifier identifier ) {
+        return new AtmosException( identifier + " not found", 404, 1003 );
+    }
+
+    private void mkdirs( String path ) {
+        for ( int i = path.indexOf( '/', 1 ); i >= 0; i = path.indexOf( '/', i + 1 ) ) {
+            String parent = path.substring( 0, i + 1 );
+            if ( !objects.containsKey( parent ) ) objects.put( parent, new StoredObject( true ) );
+        }
+    }
+
+    // like the server, a range past the end returns what there is
+    private static byte[] slice( byte[] data, Range range ) {
+        if ( range.getFirst() >= data.length && data.length > 0 )
+            throw new AtmosException( "range " + range + " is past the end", 416, 1004 );
+        return Arrays.copyOfRange( data, (int) range.getFirst(),
+                                   (int) Math.min( range.getLast() + 1, data.length ) );
+    }
+
+    // metadata is encoded, like the server does for clients that support UTF-8
+    private static String join( Collection<?> values ) {
+        StringBuilder joined = new StringBuilder();
+        for ( Object value : values ) {
+            if ( joined.length() > 0 ) joined.append( ", " );
+            joined.append( value instanceof Metadata ? ((Metadata) value).toASCIIString() : value );
+        }
+        return joined.toString();
+    }
+
+    static class StoredObject {
+        volatile byte[] data = new byte[0];
+        final boolean directory;
+        final Map<String, Metadata> userMetadata = new ConcurrentHashMap<String, Metadata>();
+        volatile String mtime = "2014-01-01T00:00:00Z";
+        volatile String contentType = "application/octet-stream";
+        volatile Acl acl;
+        /** The server-generated checksum (e.g. MD5/10/...), if one was requested. */
+        volatile String checksum;
+        /** The last wschecksum sent. */
+        volatile String wsChecksum;
+
+        StoredObject( boolean directory ) {
+            this.directory = directory;
+        }
+
+        StoredObject setUserMetadata( Metadata... metadata ) {
+            for ( Metadata meta : metadata ) userMetadata.put( meta.getName(), meta );
+            return this;
+        }
+
+        String getUserMetadata( String name ) {
+            Metadata metadata = userMetadata.get( name );
+            return metadata == null ? null : metadata.getValue();
+        }
+
+        private void update( PutObjectRequest<?> request ) throws Exception {
+            if ( request.getUserMetadata() != null )
+                setUserMetadata( request.getUserMetadata().toArray( new Metadata[0] ) );
+            if ( request.getAcl() != null ) acl = request.getAcl();
+            if ( request.getContentType() != null ) contentType = request.getContentType();
+            if ( request.getWsChecksum() != null ) wsChecksum = request.getWsChecksum().toString();
+            if ( request.getServerGeneratedChecksumAlgorithm() != null ) {
+                RunningChecksum running = new RunningChecksum( request.getServerGeneratedChecksumAlgorithm() );
+                running.update( data, 0, data.length );
+                checksum = running.toString();
+            }
+        }
+
+        private List<Metadata> systemMetadata() {
+            List<Metadata> metadata = new ArrayList<Metadata>();
+            metadata.add( new Metadata( "size", "" + data.length, false ) );
+            metadata.add( new Metadata( "mtime", mtime, false ) );
+            return metadata;
+        }
+
+        private Map<String, List<String>> headers() {
+            List<Metadata> meta = systemMetadata(), listable = new ArrayList<Metadata>();
+            for ( Metadata metadata : userMetadata.values() ) {
+                (metadata.isListable() ? listable : meta).add( metadata );
+            }
+            Map<String, List<String>> headers = checksumHeaders();
+            headers.put( RestUtil.XHEADER_META, Collections.singletonList( join( meta ) ) );
+            if ( !listable.isEmpty() )
+                headers.put( RestUtil.XHEADER_LISTABLE_META, Collections.singletonList( join( listable ) ) );
+            if ( acl != null ) {
+                headers.put( RestUtil.XHEADER_USER_ACL, Collections.singletonList( join( acl.getUserAclHeader() ) ) );
+                headers.put( RestUtil.XHEADER_GROUP_ACL,
+                             Collections.singletonList( join( acl.getGroupAclHeader() ) ) );
+            }
+            return headers;
+        }
+
+        private Map<String, List<String>> checksumHeaders() {
+            Map<String, List<String>> headers = new HashMap<String, List<String>>();
+            if ( checksum != null )
+                headers.put( RestUtil.XHEADER_CONTENT_CHECKSUM, Collections.singletonList( checksum ) );
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ObjectAffinityAlgorithmTest {
+    private static final URI[] ENDPOINTS = {URI.create( "http://10.0.0.1" ), URI.create( "http://10.0.0.2" ),
+                                            URI.create( "http://10.0.0.3" )};
+
+    @Test
+    public void testAffinity() throws Exception {
+        ObjectAffinityAlgorithm algorithm = new ObjectAffinityAlgorithm();
+        URI endpoint = choose( algorithm, ENDPOINTS, new ObjectPath( "/dir/file1" ) );
+        for ( int i = 0; i < 5; i++ ) {
+            Assert.assertEquals( endpoint, choose( algorithm, ENDPOINTS, new ObjectPath( "/dir/file1" ) ) );
+        }
+        // files in the same directory (and the directory itself) share an endpoint
+        Assert.assertEquals( endpoint, choose( algorithm, ENDPOINTS, new ObjectPath( "/dir/file2" ) ) );
+        Assert.assertEquals( endpoint, choose( algorithm, ENDPOINTS, new ObjectPath( "/dir/" ) ) );
+
+        ObjectId id = new ObjectId( "4ef49feaa106904c04ef4a066e778104f71e8f3c1de8" );
+        URI idEndpoint = choose( algorithm, ENDPOINTS, id );
+        Assert.assertEquals( idEndpoint, choose( algorithm, ENDPOINTS, id ) );
+    }
+
+    @Test
+    public void testDistributionAndStability() throws Exception {
+        ObjectAffinityAlgorithm algorithm = new ObjectAffinityAlgorithm();
+        algorithm.setLoadFactor( 100 ); // measure placement only
+        algorithm.setGroupByParent( false );
+
+        Map<String, URI> placement = new HashMap<String, URI>();
+        Map<URI, Integer> counts = new HashMap<URI, Integer>();
+        for ( int i = 0; i < 3000; i++ ) {
+            String path = "/dir" + (i % 7) + "/file" + i;
+            URI endpoint = choose( algorithm, ENDPOINTS, new ObjectPath( path ) );
+            placement.put( path, endpoint );
+            counts.put( endpoint, counts.containsKey( endpoint ) ? counts.get( endpoint ) + 1 : 1 );
+        }
+        for ( URI endpoint : ENDPOINTS ) {
+            Assert.assertTrue( endpoint + ": " + counts.get( endpoint ), counts.get( endpoint ) > 700 );
+        }
+
+        // adding an endpoint only moves keys to the new endpoint (about a quarter of them)
+        URI[] fourEndpoints = {ENDPOINTS[0], ENDPOINTS[1], ENDPOINTS[2], URI.create( "http://10.0.0.4" )};
+        int moved = 0;
+        for ( Map.Entry<String, URI> entry : placement.entrySet() ) {
+            URI endpoint = choose( algorithm, fourEndpoints, new ObjectPath( entry.getKey() ) );
+            if ( !endpoint.equals( entry.getValue() ) ) {
+                Assert.assertEquals( fourEndpoints[3], endpoint );
+                moved++;
+            }
+        }
+        Assert.assertTrue( "moved " + moved, moved > 400 && moved < 1200 );
+    }
+
+    @Test
+    public void testBoundedLoad() throws Exception {
+        ObjectAffinityAlgorithm algorithm = new ObjectAffinityAlgorithm();
+        algorithm.setLoadWindow( Long.MAX_VALUE );
+
+        // a single hot directory spills over to other endpoints instead of overloading one node
+        Map<URI, Integer> counts = new HashMap<URI, Integer>();
+        for ( int i = 0; i < 300; i++ ) {
+            URI endpoint = choose( algorithm, ENDPOINTS, new ObjectPath( "/hot/file" + i ) );
+            counts.put( endpoint, counts.containsKey( endpoint ) ? counts.get( endpoint ) + 1 : 1 );
+        }
+        for ( int count : counts.values() ) {
+            Assert.assertTrue( "count " + count, count <= Math.ceil( 1.25 * 300 / 3 ) );
+        }
+    }
+
+    @Test
+    public void testConfigResolve() throws Exception {
+        AtmosConfig config = new AtmosConfig( "user", "c2VjcmV0", ENDPOINTS );
+        config.setLoadBalancingAlgorithm( new ObjectAffinityAlgorithm() );
+        ObjectPath path = new ObjectPath( "/dir/file" );
+        RequestContext context = new RequestContext( path, "GET", -1 );
+        URI first = config.resolvePath( path.getRelativeResourcePath(), null, context );
+        for ( int i = 0; i < 5; i++ ) {
+            Assert.assertEquals( first, config.resolvePath( path.getRelativeResourcePath(), null, context ) );
+        }
+        Assert.assertEquals( "/rest/namespace/dir/file", first.getPath() );
+
+        // no context: round-robin
+        Assert.assertFalse( config.resolvePath( "service", null ).equals( config.resolvePath( "service", null ) ) );
+    }
+
+    private URI choose( ObjectAffinityAlgorithm algorithm, URI[] endpoints, ObjectIdentifier identifier ) {
+        return algorithm.getNextEndpoint( endpoints, new RequestContext( identifier, "GET", -1 ) );
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ChunkedContent;
+import com.emc.atmos.api.ObjectBufferReader;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.encryption.AtmosEncryptionClient;
+import com.emc.atmos.api.encryption.EncryptionConfig;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.jersey.provider.ByteArrayReader;
+import com.emc.util.BufferPool;
+import com.emc.util.StreamUtil;
+import com.emc.vipr.transform.encryption.KeyUtils;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandler;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.core.header.InBoundHeaders;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+
+public class ObjectBufferReaderTest {
+    private static final ObjectId ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testReadIntoHeapBuffer() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 100000 );
+        ObjectBufferReader reader = new ObjectBufferReader( new MemoryAtmos( content ).api() );
+
+        ByteBuffer buffer = ByteBuffer.allocate( 100010 );
+        buffer.position( 10 );
+        Assert.assertSame( buffer, reader.read( ID, null, buffer ).getObject() );
+        Assert.assertEquals( 100010, buffer.position() );
+        Assert.assertArrayEquals( content, Arrays.copyOfRange( buffer.array(), 10, 100010 ) );
+
+        buffer.clear();
+        reader.read( ID, new Range( 1000, 1999 ), buffer );
+        Assert.assertEquals( 1000, buffer.position() );
+        Assert.assertArrayEquals( Arrays.copyOfRange( content, 1000, 2000 ), Arrays.copyOf( buffer.array(), 1000 ) );
+    }
+
+    @Test
+    public void testReadIntoDirectBuffer() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 200000 );
+        ObjectBufferReader reader = new ObjectBufferReader( new MemoryAtmos( content ).api() );
+        reader.setBufferPool( new BufferPool( 1024, 4 ) );
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect( 200000 );
+        reader.read( ID, null, buffer );
+        Assert.assertFalse( buffer.hasRemaining() );
+
+        buffer.flip();
+        byte[] result = new byte[content.length];
+        buffer.get( result );
+        Assert.assertArrayEquals( content, result );
+        Assert.assertEquals( 1, reader.getBufferPool().getPooledCount() );
+    }
+
+    @Test
+    public void testBufferTooSmall() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos( MemoryAtmos.randomContent( 1000 ) );
+        ObjectBufferReader reader = new ObjectBufferReader( atmos.api() );
+
+        ByteBuffer buffer = ByteBuffer.allocate( 999 );
+        try {
+            reader.read( ID, null, buffer );
+            Assert.fail( "content larger than buffer should fail" );
+        } catch ( AtmosException e ) {
+            Assert.assertEquals( "nothing should be read", 0, buffer.position() );
+        }
+
+        // without a content length, we only find out after filling the buffer
+        atmos.declareLength = false;
+        try {
+            reader.read( ID, null, ByteBuffer.allocateDirect( 999 ) );
+            Assert.fail( "content larger than buffer should fail" );
+        } catch ( AtmosException e ) {
+            // expected
+        }
+
+        buffer = ByteBuffer.allocate( 1000 );
+        reader.read( ID, null, buffer );
+        Assert.assertEquals( 1000, buffer.position() );
+    }
+
+    @Test
+    public void testChunkedContent() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos( content );
+        ObjectBufferReader reader = new ObjectBufferReader( atmos.api() );
+        BufferPool pool = new BufferPool( 1024, 100 );
+        reader.setBufferPool( pool );
+
+        ChunkedContent chunked = reader.read( ID, null ).getObject();
+        Assert.assertEquals( 10000, chunked.getSize() );
+        Assert.assertEquals( 10, chunked.getChunkCount() );
+        Assert.assertArrayEquals( content, chunked.toByteArray() );
+        Assert.assertArrayEquals( content, StreamUtil.readAsBytes( chunked.getInputStream() ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chunked.writeTo( out );
+        Assert.assertArrayEquals( content, out.toByteArray() );
+
+        ByteBuffer[] buffers = chunked.getBuffers();
+        Assert.assertEquals( 1024, buffers[0].remaining() );
+        Assert.assertEquals( 10000 - 9 * 1024, buffers[9].remaining() );
+
+        chunked.release();
+        chunked.release();
+        Assert.assertEquals( 10, pool.getPooledCount() );
+        try {
+            chunked.getInputStream();
+            Assert.fail( "released content should not be readable" );
+        } catch ( IllegalStateException e ) {
+            // expected
+        }
+
+        // chunks are reused and an unknown length gives the same result
+        atmos.declareLength = false;
+        chunked = reader.read( ID, new Range( 0, 2047 ) ).getObject();
+        Assert.assertEquals( 2, chunked.getChunkCount() );
+        Assert.assertEquals( 8, pool.getPooledCount() );
+        Assert.assertArrayEquals( Arrays.copyOf( content, 2048 ), chunked.toByteArray() );
+        chunked.release();
+        Assert.assertEquals( 10, pool.getPooledCount() );
+    }
+
+    @Test
+    public void testReadThroughEncryptionClient() throws Exception {
+        Properties keys = new Properties();
+        keys.load( getClass().getClassLoader().getResourceAsStream( "keys.properties" ) );
+        KeyPair masterKey = KeyUtils.rsaKeyPairFromBase64( keys.getProperty( "masterkey.public" ),
+                                                           keys.getProperty( "masterkey.private" ) );
+        EncryptionConfig encryption = new EncryptionConfig( masterKey, new HashSet<KeyPair>(), null, 128 );
+
+        MemoryAtmos atmos = new MemoryAtmos();
+        AtmosEncryptionClient client = new AtmosEncryptionClient( atmos.api(), encryption, null );
+        byte[] content = MemoryAtmos.randomContent( 1000 );
+        ObjectId id = client.createObject( content, null );
+        Assert.assertEquals( "stored content should be padded", 1008, atmos.content( id ).length );
+
+        ObjectBufferReader reader = new ObjectBufferReader( client );
+        ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+        ReadObjectResponse<ByteBuffer> response = reader.read( id, null, buffer );
+        Assert.assertEquals( "encoded length should not be reported", -1, response.getContentLength() );
+        Assert.assertFalse( buffer.hasRemaining() );
+        Assert.assertArrayEquals( content, buffer.array() );
+
+        ChunkedContent chunked = reader.read( id, null ).getObject();
+        Assert.assertEquals( 1000, chunked.getSize() );
+        Assert.assertArrayEquals( content, chunked.toByteArray() );
+        chunked.release();
+
+        Assert.assertArrayEquals( content, client.readObject( id, byte[].class ) );
+        Assert.assertEquals( 1000, client.readObject( new ReadObjectRequest().identifier( id ), byte[].class )
+                                         .getContentLength() );
+    }
+
+    @Test
+    public void testBufferPoolLimit() throws Exception {
+        BufferPool pool = new BufferPool( 16, 2 );
+        byte[] a = pool.acquire(), b = pool.acquire(), c = pool.acquire();
+        pool.release( a );
+        pool.release( b );
+        pool.release( c );
+        pool.release( new byte[15] );
+        Assert.assertEquals( 2, pool.getPooledCount() );
+        Assert.assertSame( a, pool.acquire() );
+    }
+
+    @Test
+    public void testPresizedByteArrayReader() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 300000 );
+        Assert.assertTrue( client( content, true ).getMessageBodyWorkers().getMessageBodyReader(
+                byte[].class, byte[].class, new Annotation[0], MediaType.APPLICATION_OCTET_STREAM_TYPE )
+                           instanceof ByteArrayReader );
+        Assert.assertArrayEquals( content, client( content, true ).resource( "http://localhost/rest/objects/abc" )
+                                                                   .get( byte[].class ) );
+        Assert.assertArrayEquals( content, client( content, false ).resource( "http://localhost/rest/objects/abc" )
+                                                                    .get( byte[].class ) );
+    }
+
+    private Client client( final byte[] content, final boolean declareLength ) {
+        ClientConfig config = new DefaultClientConfig();
+        config.getClasses().add( ByteArrayReader.class );
+        final Client[] client = new Client[1];
+        client[0] = new Client( new ClientHandler() {
+            @Override
+            public ClientResponse handle( ClientRequest request ) throws ClientHandlerException {
+                InBoundHeaders headers = new InBoundHeaders();
+                if ( declareLength ) headers.putSingle( "Content-Length", "" + content.length );
+                headers.putSingle( "Content-Type", "application/octet-stream" );
+                return new ClientResponse( 200, headers, new ByteArrayInputStream( content ),
+                                           client[0].getMessageBodyWorkers() );
+            }
+        }, config );
+        return client[0];
+    }
+}
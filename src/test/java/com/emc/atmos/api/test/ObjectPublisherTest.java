@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.reactive.ObjectPublisher;
+import com.emc.atmos.api.reactive.ObjectSubscriber;
+import com.emc.atmos.api.reactive.Subscriber;
+import com.emc.atmos.api.reactive.Subscription;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class ObjectPublisherTest {
+    private static final ObjectId OBJECT_ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testDemandBoundsReads() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos( content );
+        ObjectPublisher publisher = new ObjectPublisher( atmos.api(), OBJECT_ID );
+        publisher.setChunkSize( 1000 );
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe( subscriber );
+        subscriber.subscription.request( 2 );
+        subscriber.awaitItems( 2 );
+        Thread.sleep( 100 );
+        Assert.assertEquals( 2, atmos.reads.size() );
+        Assert.assertEquals( new Range( 1000, 1999 ), atmos.reads.get( 1 ) );
+
+        subscriber.subscription.request( Long.MAX_VALUE );
+        Assert.assertTrue( subscriber.done.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertNull( subscriber.error );
+        Assert.assertEquals( 10, atmos.reads.size() );
+        Assert.assertArrayEquals( content, subscriber.data.toByteArray() );
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos( content );
+        ObjectPublisher publisher = new ObjectPublisher( atmos.api(), OBJECT_ID, new Range( 500, 20000 ) );
+        publisher.setChunkSize( 4000 );
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe( subscriber );
+        subscriber.subscription.request( Long.MAX_VALUE );
+        Assert.assertTrue( subscriber.done.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertArrayEquals( Arrays.copyOfRange( content, 500, 10000 ), subscriber.data.toByteArray() );
+        Assert.assertEquals( new Range( 8500, 9999 ), atmos.reads.get( 2 ) );
+    }
+
+    @Test
+    public void testEmptyObject() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos( new byte[0] );
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        new ObjectPublisher( atmos.api(), OBJECT_ID ).subscribe( subscriber );
+        subscriber.subscription.request( 1 );
+        Assert.assertTrue( subscriber.done.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertNull( subscriber.error );
+        Assert.assertEquals( 0, atmos.reads.size() );
+    }
+
+    @Test
+    public void testChangedObject() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos( MemoryAtmos.randomContent( 10000 ) );
+        ObjectPublisher publisher = new ObjectPublisher( atmos.api(), OBJECT_ID );
+        publisher.setChunkSize( 1000 );
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe( subscriber );
+        subscriber.subscription.request( 1 );
+        subscriber.awaitItems( 1 );
+        atmos.object( OBJECT_ID ).mtime = "2014-01-01T00:00:01Z";
+        subscriber.subscription.request( 1 );
+        Assert.assertTrue( subscriber.done.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertNotNull( subscriber.error );
+        Assert.assertTrue( subscriber.error.getMessage().contains( "changed" ) );
+    }
+
+    @Test
+    public void testInvalidRequest() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos( MemoryAtmos.randomContent( 100 ) );
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        new ObjectPublisher( atmos.api(), OBJECT_ID ).subscribe( subscriber );
+        subscriber.subscription.request( 0 );
+        Assert.assertTrue( subscriber.done.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertTrue( subscriber.error instanceof IllegalArgumentException );
+    }
+
+    @Test
+    public void testCopyThroughSubscriber() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos source = new MemoryAtmos( content );
+        MemoryAtmos target = new MemoryAtmos();
+
+        ObjectPublisher publisher = new ObjectPublisher( source.api(), OBJECT_ID );
+        publisher.setChunkSize( 700 );
+        ObjectSubscriber subscriber = new ObjectSubscriber( target.api(), null );
+        subscriber.setPartSize( 3000 );
+        publisher.subscribe( subscriber );
+
+        Assert.assertEquals( OBJECT_ID, subscriber.getResult().get( 5, TimeUnit.SECONDS ) );
+        Assert.assertArrayEquals( content, target.content( OBJECT_ID ) );
+        // 3500 (5 chunks) is the first multiple of 700 past 3000
+        Assert.assertEquals( Arrays.asList( new Range( 3500, 6999 ), new Range( 7000, 9999 ) ), target.writes );
+    }
+
+    static class CollectingSubscriber implements Subscriber<ByteBuffer> {
+        volatile Subscription subscription;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final Semaphore items = new Semaphore( 0 );
+        final CountDownLatch done = new CountDownLatch( 1 );
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe( Subscription subscription ) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext( ByteBuffer item ) {
+            byte[] bytes = new byte[item.remaining()];
+            item.get( bytes );
+            data.write( bytes, 0, bytes.length );
+            items.release();
+        }
+
+        @Override
+        public void onError( Throwable throwable ) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        void awaitItems( int count ) throws InterruptedException {
+            Assert.assertTrue( items.tryAcquire( count, 5, TimeUnit.SECONDS ) );
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.BasicResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.Permission;
+import com.emc.atmos.api.request.PutObjectRequest;
+import com.emc.atmos.api.sync.ObjectReplicator;
+import com.emc.atmos.api.sync.ReplicationResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ObjectReplicatorTest {
+    private static final ObjectPath PATH = new ObjectPath( "/replicate/test.bin" );
+
+    @Test
+    public void testFanOutCopiesContentAndMetadata() throws Exception {
+        Source source = new Source();
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        source.add( PATH, content );
+        Destination siteB = new Destination(), siteC = new Destination();
+
+        ObjectReplicator replicator = new ObjectReplicator( source.api(), Arrays.asList( siteB.api(), siteC.api() ) );
+        replicator.setChunkSize( 1000 );
+        replicator.setQueueDepth( 2 );
+        ReplicationResult result = replicator.replicate( PATH, PATH );
+
+        Assert.assertTrue( result.toString(), result.isSuccessful() );
+        Assert.assertEquals( content.length, result.getBytesRead() );
+        Assert.assertEquals( md5( content ), result.getMd5() );
+        Assert.assertEquals( Arrays.<ObjectIdentifier>asList( PATH, PATH ), result.getTargetIds() );
+        for ( Destination destination : Arrays.asList( siteB, siteC ) ) {
+            Assert.assertArrayEquals( content, destination.content( PATH ) );
+            PutObjectRequest<?> request = destination.requests.get( 0 );
+            Map<String, Metadata> metadata = new TreeMap<String, Metadata>();
+            for ( Metadata meta : request.getUserMetadata() ) metadata.put( meta.getName(), meta );
+            Assert.assertEquals( "system metadata must not be copied", new TreeSet<String>(
+                    Arrays.asList( "color", "tag" ) ), metadata.keySet() );
+            Assert.assertEquals( "red", metadata.get( "color" ).getValue() );
+            Assert.assertFalse( metadata.get( "color" ).isListable() );
+            Assert.assertTrue( metadata.get( "tag" ).isListable() );
+            Assert.assertEquals( Permission.FULL_CONTROL, request.getAcl().getUserAcl().get( "alice" ) );
+            Assert.assertEquals( Permission.READ, request.getAcl().getGroupAcl().get( "other" ) );
+            Assert.assertEquals( "application/octet-stream", request.getContentType() );
+            Assert.assertEquals( content.length, request.getContentLength() );
+        }
+        Assert.assertEquals( 1, source.reads.size() );
+    }
+
+    @Test
+    public void testSourceWaitsForSlowestDestination() throws Exception {
+        Source source = new Source();
+        source.add( PATH, MemoryAtmos.randomContent( 100000 ) );
+        Destination fast = new Destination(), slow = new Destination();
+        slow.startLatch = new CountDownLatch( 1 );
+
+        final ObjectReplicator replicator = new ObjectReplicator( source.api(),
+                                                                  Arrays.asList( fast.api(), slow.api() ) );
+        replicator.setChunkSize( 1000 );
+        replicator.setQueueDepth( 3 );
+        final ReplicationResult[] result = new ReplicationResult[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                result[0] = replicator.replicate( PATH, PATH );
+            }
+        };
+        thread.start();
+
+        Thread.sleep( 300 );
+        // the queue, the chunk being offered and the one read ahead of it
+        Assert.assertTrue( "read " + source.bytesRead.get(), source.bytesRead.get() <= 5 * 1000 );
+        slow.startLatch.countDown();
+        thread.join( 5000 );
+        Assert.assertTrue( result[0].toString(), result[0].isSuccessful() );
+        Assert.assertArrayEquals( source.content( PATH ), slow.content( PATH ) );
+    }
+
+    @Test
+    public void testFailedDestinationDoesNotStopOthers() throws Exception {
+        Source source = new Source();
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        source.add( PATH, content );
+        Destination good = new Destination(), broken = new Destination(), corrupt = new Destination();
+        broken.failAfter = 3000;
+        corrupt.corrupt = true;
+
+        ObjectReplicator replicator = new ObjectReplicator( source.api(),
+                                                            Arrays.asList( good.api(), broken.api(), corrupt.api() ) );
+        replicator.setChunkSize( 1000 );
+        replicator.setQueueDepth( 1 );
+        ReplicationResult result = replicator.replicate( PATH, PATH );
+
+        Assert.assertEquals( new TreeSet<Integer>( Arrays.asList( 1, 2 ) ), result.getFailures().keySet() );
+        Assert.assertTrue( result.getFailures().get( 2 ).getMessage().contains( "checksum mismatch" ) );
+        Assert.assertArrayEquals( content, good.content( PATH ) );
+        Assert.assertNull( broken.content( PATH ) );
+        Assert.assertEquals( Arrays.<ObjectIdentifier>asList( PATH, null, PATH ), result.getTargetIds() );
+    }
+
+    @Test
+    public void testSourceChecksumMismatchIsNotKept() throws Exception {
+        Source source = new Source();
+        source.add( PATH, MemoryAtmos.randomContent( 5000 ) );
+        source.object( PATH ).checksum = "MD5/5000/" + md5( new byte[0] );
+        Destination siteB = new Destination(), siteC = new Destination();
+
+        ObjectReplicator replicator = new ObjectReplicator( source.api(), Arrays.asList( siteB.api(), siteC.api() ) );
+        replicator.setChunkSize( 1000 );
+        ReplicationResult result = replicator.replicate( PATH, PATH );
+
+        // the destinations have all the bytes before the checksum is known, so the replicas must be deleted
+        Assert.assertFalse( result.isSuccessful() );
+        Assert.assertEquals( new TreeSet<Integer>( Arrays.asList( 0, 1 ) ), result.getFailures().keySet() );
+        for ( Throwable failure : result.getFailures().values() ) {
+            Assert.assertTrue( failure.getMessage(), failure.getMessage().contains( "Source checksum mismatch" ) );
+        }
+        for ( Destination destination : Arrays.asList( siteB, siteC ) ) {
+            Assert.assertEquals( Arrays.asList( PATH.toString() ), destination.deleted );
+            Assert.assertNull( destination.object( PATH ) );
+        }
+        Assert.assertEquals( Arrays.<ObjectIdentifier>asList( null, null ), result.getTargetIds() );
+    }
+
+    @Test
+    public void testShortSourceIsNotCommitted() throws Exception {
+        Source source = new Source();
+        source.add( PATH, MemoryAtmos.randomContent( 5000 ) );
+        source.missingBytes = 100;
+        Destination destination = new Destination();
+
+        ObjectReplicator replicator = new ObjectReplicator( source.api(), Arrays.asList( destination.api() ) );
+        replicator.setChunkSize( 1000 );
+        ReplicationResult result = replicator.replicate( PATH, PATH );
+
+        Assert.assertEquals( Collections.singleton( 0 ), result.getFailures().keySet() );
+        Assert.assertTrue( result.getFailures().get( 0 ).getMessage().contains( "source reported 5100" ) );
+        Assert.assertNull( destination.object( PATH ) );
+        Assert.assertTrue( destination.deleted.isEmpty() );
+        Assert.assertEquals( 5000, result.getBytesRead() );
+    }
+
+    @Test
+    public void testReplicateAllBoundsConcurrency() throws Exception {
+        Source source = new Source();
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for ( int i = 0; i < 6; i++ ) {
+            ObjectId id = MemoryAtmos.objectId( i );
+            ids.add( id );
+            source.add( id, MemoryAtmos.randomContent( 2000 + i ) );
+        }
+        Destination destination = new Destination();
+        destination.delayMs = 50;
+
+        ObjectReplicator replicator = new ObjectReplicator( source.api(), Arrays.asList( destination.api() ) );
+        replicator.setMaxConcurrent( 2 );
+        List<ReplicationResult> results = replicator.replicateAll( ids );
+
+        Assert.assertEquals( 6, results.size() );
+        Set<ObjectIdentifier> newIds = new HashSet<ObjectIdentifier>();
+        for ( int i = 0; i < 6; i++ ) {
+            ReplicationResult result = results.get( i );
+            Assert.assertTrue( result.toString(), result.isSuccessful() );
+            Assert.assertEquals( ids.get( i ), result.getSourceId() );
+            ObjectIdentifier newId = result.getTargetIds().get( 0 );
+            Assert.assertTrue( newId instanceof ObjectId );
+            Assert.assertArrayEquals( source.content( ids.get( i ) ), destination.content( newId ) );
+            newIds.add( newId );
+        }
+        Assert.assertEquals( 6, newIds.size() );
+        Assert.assertTrue( "concurrency " + destination.maxActive.get(), destination.maxActive.get() <= 2 );
+        Assert.assertEquals( 2, destination.maxActive.get() );
+    }
+
+    private static String md5( byte[] data ) throws Exception {
+        byte[] digest = MessageDigest.getInstance( "MD5" ).digest( data );
+        return String.format( "%032x", new java.math.BigInteger( 1, digest ) );
+    }
+
+    /**
+     * Serves objects with user metadata, an ACL and a checksum, and counts the bytes read.
+     */
+    static class Source extends MemoryAtmos {
+        final AtomicLong bytesRead = new AtomicLong();
+        volatile int missingBytes = 0;
+
+        StoredObject add( ObjectIdentifier identifier, byte[] content ) throws Exception {
+            StoredObject object = put( identifier, content );
+            object.setUserMetadata( new Metadata( "color", "red", false ), new Metadata( "tag", "", true ) );
+            object.acl = new Acl().addUserGrant( "alice", Permission.FULL_CONTROL )
+                                  .addGroupGrant( Acl.GROUP_OTHER, Permission.READ );
+            object.checksum = "MD5/" + content.length + "/" + md5( content );
+            return object;
+        }
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            Object result = super.invoke( proxy, method, args );
+            if ( "readObjectStream".equals( method.getName() ) ) {
+                BasicResponse response = (BasicResponse) result;
+                response.setContentLength( response.getContentLength() + missingBytes );
+            }
+            return result;
+        }
+
+        @Override
+        protected InputStream openStream( StoredObject object, byte[] data ) {
+            return new ByteArrayInputStream( data ) {
+                @Override
+                public synchronized int read( byte[] b, int off, int len ) {
+                    int read = super.read( b, off, len );
+                    if ( read > 0 ) bytesRead.addAndGet( read );
+                    return read;
+                }
+            };
+        }
+    }
+
+    /**
+     * Tracks concurrent creates, and can hold them, slow them, break them part way or corrupt their checksums.
+     */
+    static class Destination extends MemoryAtmos {
+        final AtomicInteger active = new AtomicInteger(), maxActive = new AtomicInteger();
+        volatile CountDownLatch startLatch;
+        volatile long failAfter = -1;
+        volatile boolean corrupt = false;
+        volatile long delayMs = 0;
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            if ( !"createObject".equals( method.getName() ) ) return super.invoke( proxy, method, args );
+            int now = active.incrementAndGet();
+            try {
+                int max;
+                while ( now > (max = maxActive.get()) && !maxActive.compareAndSet( max, now ) ) ;
+                if ( startLatch != null ) startLatch.await( 5, TimeUnit.SECONDS );
+                if ( delayMs > 0 ) Thread.sleep( delayMs );
+
+                BasicResponse response = (BasicResponse) super.invoke( proxy, method, args );
+                if ( corrupt ) {
+                    long length = ((PutObjectRequest<?>) args[0]).getContentLength();
+                    response.getHeaders().put( RestUtil.XHEADER_CONTENT_CHECKSUM,
+                                               Arrays.asList( "MD5/" + length + "/" + md5( new byte[0] ) ) );
+                }
+                return response;
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected byte[] readContent( PutObjectRequest<?> request ) throws IOException {
+            if ( failAfter < 0 ) return super.readContent( request );
+            InputStream in = (InputStream) request.getContent();
+            byte[] buffer = new byte[700];
+            long total = 0;
+            int read;
+            while ( total < failAfter && (read = in.read( buffer )) != -1 ) total += read;
+            throw new RuntimeException( "connection reset" );
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.reactive.ObjectSubscriber;
+import com.emc.atmos.api.reactive.Publisher;
+import com.emc.atmos.api.reactive.Subscriber;
+import com.emc.atmos.api.reactive.Subscription;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ObjectSubscriberTest {
+    private static final ObjectId OBJECT_ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testOrderedAppends() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos();
+        ObjectSubscriber subscriber = new ObjectSubscriber( atmos.api(), null );
+        subscriber.setPartSize( 4000 );
+
+        ArrayPublisher publisher = new ArrayPublisher( content, 1000, null );
+        publisher.subscribe( subscriber );
+
+        Assert.assertEquals( OBJECT_ID, subscriber.getResult().get( 5, TimeUnit.SECONDS ) );
+        Assert.assertArrayEquals( content, atmos.content( OBJECT_ID ) );
+        Assert.assertEquals( Arrays.asList( new Range( 4000, 7999 ), new Range( 8000, 9999 ) ), atmos.writes );
+        // never more than one buffer outstanding
+        Assert.assertEquals( 1, publisher.maxOutstanding );
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos();
+        ObjectSubscriber subscriber = new ObjectSubscriber( atmos.api(), null );
+        new ArrayPublisher( new byte[0], 1000, null ).subscribe( subscriber );
+
+        Assert.assertEquals( OBJECT_ID, subscriber.getResult().get( 5, TimeUnit.SECONDS ) );
+        Assert.assertEquals( 0, atmos.content( OBJECT_ID ).length );
+    }
+
+    @Test
+    public void testStreamError() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos();
+        ObjectSubscriber subscriber = new ObjectSubscriber( atmos.api(), null );
+        new ArrayPublisher( new byte[5000], 1000, new IOException( "source failed" ) ).subscribe( subscriber );
+
+        try {
+            subscriber.getResult().get( 5, TimeUnit.SECONDS );
+            Assert.fail( "upload should fail" );
+        } catch ( ExecutionException e ) {
+            Assert.assertEquals( "source failed", e.getCause().getMessage() );
+        }
+    }
+
+    /**
+     * Publishes an array in fixed-size buffers (synchronously, as demand arrives), then completes or fails.
+     */
+    private static class ArrayPublisher implements Publisher<ByteBuffer> {
+        private byte[] content;
+        private int bufferSize;
+        private Throwable error;
+        private volatile long maxOutstanding;
+
+        ArrayPublisher( byte[] content, int bufferSize, Throwable error ) {
+            this.content = content;
+            this.bufferSize = bufferSize;
+            this.error = error;
+        }
+
+        @Override
+        public void subscribe( final Subscriber<? super ByteBuffer> subscriber ) {
+            subscriber.onSubscribe( new Subscription() {
+                private final AtomicLong demand = new AtomicLong();
+                private int position = 0;
+                private boolean emitting, done;
+
+                @Override
+                public synchronized void request( long n ) {
+                    maxOutstanding = Math.max( maxOutstanding, demand.addAndGet( n ) );
+                    if ( emitting ) return; // re-entrant call from onNext
+                    emitting = true;
+                    while ( demand.get() > 0 && position < content.length ) {
+                        int length = Math.min( bufferSize, content.length - position );
+                        demand.decrementAndGet();
+                        ByteBuffer buffer = ByteBuffer.wrap( content, position, length );
+                        position += length;
+                        subscriber.onNext( buffer );
+                    }
+                    emitting = false;
+                    if ( position >= content.length && !done ) {
+                        done = true;
+                        if ( error != null ) subscriber.onError( error );
+                        else subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                }
+            } );
+        }
+    }
+}
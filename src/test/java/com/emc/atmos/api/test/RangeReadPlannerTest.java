@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.RangeReadPlanner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class RangeReadPlannerTest {
+    private static final ObjectId ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testCoalesce() throws Exception {
+        RangeReadPlanner planner = new RangeReadPlanner( null );
+        planner.setMaxGapBytes( 50 );
+
+        List<Range> ranges = Arrays.asList( new Range( 100, 199 ), new Range( 5, 19 ), new Range( 0, 9 ),
+                                            new Range( 20, 29 ), new Range( 150, 160 ) );
+        RangeReadPlanner.Plan plan = planner.plan( ranges );
+        Assert.assertEquals( 1, plan.getRequests().size() );
+        Assert.assertEquals( Arrays.asList( new Range( 0, 29 ), new Range( 100, 199 ) ), plan.getRequests().get( 0 ) );
+        Assert.assertEquals( 130, plan.getRequestedBytes() );
+
+        planner.setMaxGapBytes( 70 );
+        plan = planner.plan( ranges );
+        Assert.assertEquals( Collections.singletonList( Collections.singletonList( new Range( 0, 199 ) ) ),
+                             plan.getRequests() );
+
+        planner.setMaxGapBytes( -1 );
+        plan = planner.plan( ranges );
+        Assert.assertEquals( Arrays.asList( new Range( 0, 19 ), new Range( 20, 29 ), new Range( 100, 199 ) ),
+                             plan.getRequests().get( 0 ) );
+    }
+
+    @Test
+    public void testSplitAndPack() throws Exception {
+        RangeReadPlanner planner = new RangeReadPlanner( null );
+        planner.setMaxRequestBytes( 1000 );
+        planner.setMaxMultipartRanges( 3 );
+        planner.setMaxGapBytes( 0 );
+
+        // one large span is split into single-range requests
+        RangeReadPlanner.Plan plan = planner.plan( Collections.singletonList( new Range( 0, 2499 ) ) );
+        Assert.assertEquals( 3, plan.getRequests().size() );
+        Assert.assertEquals( Collections.singletonList( new Range( 2000, 2499 ) ), plan.getRequests().get( 2 ) );
+
+        // small spans are packed up to maxMultipartRanges per request
+        List<Range> ranges = new ArrayList<Range>();
+        for ( int i = 0; i < 7; i++ ) {
+            ranges.add( new Range( i * 100, i * 100 + 9 ) );
+        }
+        plan = planner.plan( ranges );
+        Assert.assertEquals( 3, plan.getRequests().size() );
+        Assert.assertEquals( 3, plan.getRequests().get( 0 ).size() );
+        Assert.assertEquals( 1, plan.getRequests().get( 2 ).size() );
+
+        planner.setMaxMultipartRanges( 1 );
+        Assert.assertEquals( 7, planner.plan( ranges ).getRequests().size() );
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 100000 );
+        MemoryAtmos atmos = new MemoryAtmos( content );
+        RangeReadPlanner planner = new RangeReadPlanner( atmos.api() );
+        planner.setMaxGapBytes( 100 );
+        planner.setMaxRequestBytes( 20000 );
+        planner.setMaxMultipartRanges( 4 );
+
+        Random random = new Random( 42 );
+        List<Range> ranges = new ArrayList<Range>();
+        for ( int i = 0; i < 200; i++ ) {
+            long first = random.nextInt( content.length - 500 );
+            ranges.add( new Range( first, first + random.nextInt( 500 ) ) );
+        }
+        ranges.add( new Range( 0, content.length - 1 ) ); // overlaps everything and must be split
+
+        List<byte[]> data = planner.read( ID, ranges );
+        Assert.assertEquals( ranges.size(), data.size() );
+        for ( int i = 0; i < ranges.size(); i++ ) {
+            Range range = ranges.get( i );
+            Assert.assertArrayEquals( "range " + range,
+                                      Arrays.copyOfRange( content, (int) range.getFirst(), (int) range.getLast() + 1 ),
+                                      data.get( i ) );
+        }
+        Assert.assertEquals( planner.plan( ranges ).getRequests().size(), atmos.readRequests.size() );
+        Assert.assertEquals( 5, atmos.readRequests.size() );
+    }
+
+    @Test
+    public void testMultipart() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        MemoryAtmos atmos = new MemoryAtmos( content );
+        RangeReadPlanner planner = new RangeReadPlanner( atmos.api() );
+        planner.setMaxGapBytes( 0 );
+
+        List<Range> ranges = Arrays.asList( new Range( 9000, 9099 ), new Range( 10, 19 ), new Range( 5000, 5000 ) );
+        List<byte[]> data = planner.read( ID, ranges );
+        Assert.assertEquals( 1, atmos.readRequests.size() );
+        Assert.assertEquals( 3, atmos.readRequests.get( 0 ).size() );
+        Assert.assertArrayEquals( Arrays.copyOfRange( content, 9000, 9100 ), data.get( 0 ) );
+        Assert.assertArrayEquals( Arrays.copyOfRange( content, 10, 20 ), data.get( 1 ) );
+        Assert.assertArrayEquals( new byte[]{content[5000]}, data.get( 2 ) );
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        MemoryAtmos atmos = new MemoryAtmos( MemoryAtmos.randomContent( 1000 ) );
+        RangeReadPlanner planner = new RangeReadPlanner( atmos.api() );
+        planner.setMaxRequestBytes( 100 );
+
+        try {
+            planner.read( ID, Collections.singletonList( new Range( 10, 5 ) ) );
+            Assert.fail( "invalid range should fail" );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+
+        // past the end of the object; the response is short
+        try {
+            planner.read( ID, Collections.singletonList( new Range( 900, 1099 ) ) );
+            Assert.fail( "missing bytes should fail" );
+        } catch ( AtmosException e ) {
+            // expected
+        }
+
+        atmos.objects.clear();
+        try {
+            planner.read( ID, Collections.singletonList( new Range( 0, 999 ) ) );
+            Assert.fail( "request errors should propagate" );
+        } catch ( AtmosException e ) {
+            Assert.assertEquals( 1003, e.getErrorCode() );
+        }
+    }
+}
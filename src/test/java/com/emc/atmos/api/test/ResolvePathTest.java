@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.AtmosConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+
+public class ResolvePathTest {
+    private static final String[] PATHS = {
+            "", "/", "service", "objects/4ef49feaa106904c04ef4a066e778104f71848fb5054",
+            "namespace/dir with spaces/file name.txt", "namespace/a%20b/100%", "namespace/q?x=1#frag",
+            "namespace/[brackets]/{braces}/<angle>|pipe\\back^caret`tick\"quote",
+            "namespace/plus+amp&eq=semi;colon:at@dollar$comma,", "namespace/unicode/\u00e9\u4e2d\u6587\ud83d\ude00",
+            "namespace/nbsp\u00a0ideo\u3000ctl\u0085\u0001\u007f", "/rest/namespace/already/has/context"
+    };
+
+    private static final String[] QUERIES = {
+            null, "", "metadata/user", "rename", "a=b&c=d?e", "sp ace%#[]", "\u00e9 \u00a0"
+    };
+
+    @Test
+    public void testMatchesUriConstructor() throws Exception {
+        URI[] endpoints = {new URI( "http://10.0.0.1:8080" ), new URI( "https://atmos.example.com" ),
+                           new URI( "http://[::1]:80" )};
+        AtmosConfig config = new AtmosConfig( "user", "c2VjcmV0", endpoints );
+
+        for ( int pass = 0; pass < 2; pass++ ) { // second pass is served from the caches
+            for ( String path : PATHS ) {
+                for ( String query : QUERIES ) {
+                    for ( int i = 0; i < endpoints.length; i++ ) {
+                        URI uri = config.resolvePath( path, query );
+                        URI expected = legacyResolve( config.getContext(), uri, path, query );
+                        Assert.assertEquals( path + "?" + query, expected.toString(), uri.toString() );
+                        Assert.assertEquals( expected, uri );
+                        Assert.assertEquals( expected.getPath(), uri.getPath() );
+                        Assert.assertEquals( expected.getQuery(), uri.getQuery() );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testContextChange() throws Exception {
+        AtmosConfig config = new AtmosConfig( "user", "c2VjcmV0", new URI( "http://10.0.0.1" ) );
+        Assert.assertEquals( "/rest/service", config.resolvePath( "service", null ).getPath() );
+        config.setContext( "/other" );
+        Assert.assertEquals( "/other/service", config.resolvePath( "service", null ).getPath() );
+        config.setEndpoints( new URI[]{new URI( "https://10.0.0.2:443" )} );
+        Assert.assertEquals( "https://10.0.0.2:443/other/service", config.resolvePath( "service", null ).toString() );
+    }
+
+    private URI legacyResolve( String context, URI endpoint, String relativePath, String query ) throws Exception {
+        String path = relativePath;
+        if ( path.length() == 0 || path.charAt( 0 ) != '/' ) path = '/' + path;
+        if ( !path.startsWith( context ) ) path = context + path;
+        return new URI( endpoint.getScheme(), null, endpoint.getHost(), endpoint.getPort(), path, query, null );
+    }
+}
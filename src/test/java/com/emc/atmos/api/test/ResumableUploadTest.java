@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+public class ResumableUploadTest {
+    private static final ObjectId OBJECT_ID = MemoryAtmos.OBJECT_ID;
+
+    private File file;
+    private File checkpointFile;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        content = MemoryAtmos.randomContent( 10000 );
+        file = File.createTempFile( "resumable", ".dat" );
+        FileOutputStream out = new FileOutputStream( file );
+        out.write( content );
+        out.close();
+        checkpointFile = new File( file.getPath() + ".checkpoint" );
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        CrashingAtmos atmos = new CrashingAtmos();
+        ResumableUpload upload = newUpload( atmos );
+
+        Assert.assertEquals( OBJECT_ID, upload.upload() );
+        Assert.assertArrayEquals( content, atmos.content( OBJECT_ID ) );
+        Assert.assertFalse( "checkpoint not deleted", checkpointFile.exists() );
+        Assert.assertEquals( checksumOf( content ), atmos.object( OBJECT_ID ).wsChecksum );
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        CrashingAtmos atmos = new CrashingAtmos();
+        atmos.failAfter = 3;
+        try {
+            newUpload( atmos ).upload();
+            Assert.fail( "upload should have failed" );
+        } catch ( RuntimeException e ) {
+            // expected
+        }
+        Assert.assertTrue( "checkpoint not written", checkpointFile.exists() );
+        Assert.assertEquals( 3000, atmos.content( OBJECT_ID ).length );
+
+        // resume with a new instance (as if the JVM was restarted)
+        atmos.failAfter = -1;
+        newUpload( atmos ).upload();
+
+        Assert.assertArrayEquals( content, atmos.content( OBJECT_ID ) );
+        Assert.assertEquals( 10, atmos.requests.size() );
+        Assert.assertEquals( checksumOf( content ), atmos.object( OBJECT_ID ).wsChecksum );
+    }
+
+    @Test
+    public void testResumeAfterUncheckpointedPart() throws Exception {
+        CrashingAtmos atmos = new CrashingAtmos();
+        atmos.failAfter = 3;
+        try {
+            newUpload( atmos ).upload();
+            Assert.fail( "upload should have failed" );
+        } catch ( RuntimeException e ) {
+            // expected
+        }
+
+        // the server received another part that was never checkpointed
+        atmos.object( OBJECT_ID ).data = Arrays.copyOf( content, 4000 );
+
+        atmos.failAfter = -1;
+        newUpload( atmos ).upload();
+
+        Assert.assertArrayEquals( content, atmos.content( OBJECT_ID ) );
+        Assert.assertEquals( checksumOf( content ), atmos.object( OBJECT_ID ).wsChecksum );
+    }
+
+    private ResumableUpload newUpload( MemoryAtmos atmos ) {
+        ResumableUpload upload = new ResumableUpload( atmos.api(), file, checkpointFile );
+        upload.setPartSize( 1000 );
+        upload.setChecksumAlgorithm( ChecksumAlgorithm.SHA1 );
+        return upload;
+    }
+
+    private String checksumOf( byte[] data ) throws Exception {
+        RunningChecksum checksum = new RunningChecksum( ChecksumAlgorithm.SHA1 );
+        checksum.update( data, 0, data.length );
+        return checksum.toString();
+    }
+
+    /**
+     * Fails (like a crash) after a number of writes.
+     */
+    private static class CrashingAtmos extends MemoryAtmos {
+        volatile int failAfter = -1;
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            boolean write = "createObject".equals( method.getName() ) || "updateObject".equals( method.getName() );
+            if ( write && failAfter >= 0 && requests.size() >= failAfter )
+                throw new RuntimeException( "simulated crash" );
+            return super.invoke( proxy, method, args );
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.ResumingInputStream;
+import com.emc.util.StreamUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class ResumingInputStreamTest {
+    private static final ObjectId OBJECT_ID = MemoryAtmos.OBJECT_ID;
+
+    @Test
+    public void testResume() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        FlakyAtmos atmos = new FlakyAtmos( content, 1000 );
+
+        ResumingInputStream in = newStream( atmos, null );
+        Assert.assertArrayEquals( content, StreamUtil.readAsBytes( in ) );
+        Assert.assertEquals( 10, atmos.reads.size() );
+        Assert.assertEquals( new Range( 1000, 9999 ), atmos.reads.get( 1 ) );
+    }
+
+    @Test
+    public void testResumeRange() throws Exception {
+        byte[] content = MemoryAtmos.randomContent( 10000 );
+        FlakyAtmos atmos = new FlakyAtmos( content, 1000 );
+
+        ResumingInputStream in = newStream( atmos, new Range( 500, 2999 ) );
+        Assert.assertArrayEquals( Arrays.copyOfRange( content, 500, 3000 ), StreamUtil.readAsBytes( in ) );
+        Assert.assertEquals( new Range( 1500, 2999 ), atmos.reads.get( 1 ) );
+    }
+
+    @Test
+    public void testChangedObject() throws Exception {
+        FlakyAtmos atmos = new FlakyAtmos( MemoryAtmos.randomContent( 10000 ), 1000 );
+
+        ResumingInputStream in = newStream( atmos, null );
+        in.read( new byte[1000] );
+        atmos.object( OBJECT_ID ).mtime = "2014-01-01T00:00:01Z";
+        try {
+            StreamUtil.readAsBytes( in );
+            Assert.fail( "changed object was stitched together" );
+        } catch ( IOException e ) {
+            Assert.assertTrue( e.getMessage().contains( "changed" ) );
+        }
+    }
+
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        FlakyAtmos atmos = new FlakyAtmos( MemoryAtmos.randomContent( 10000 ), 0 );
+
+        ResumingInputStream in = newStream( atmos, null );
+        try {
+            StreamUtil.readAsBytes( in );
+            Assert.fail( "read should fail" );
+        } catch ( IOException e ) {
+            // expected
+        }
+        Assert.assertEquals( 1 + in.getMaxRetries(), atmos.reads.size() );
+    }
+
+    private ResumingInputStream newStream( FlakyAtmos atmos, Range range ) {
+        ResumingInputStream in = new ResumingInputStream( atmos.api(), OBJECT_ID, range );
+        in.setRetryDelay( 0 );
+        return in;
+    }
+
+    /**
+     * Serves streams that break after failAfter bytes.
+     */
+    private static class FlakyAtmos extends MemoryAtmos {
+        private final int failAfter;
+
+        FlakyAtmos( byte[] content, int failAfter ) {
+            super( content );
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        protected InputStream openStream( StoredObject object, byte[] data ) {
+            final InputStream in = super.openStream( object, data );
+            return new InputStream() {
+                int count = 0;
+
+                @Override
+                public int read() throws IOException {
+                    if ( count++ >= failAfter ) throw new IOException( "Connection reset" );
+                    return in.read();
+                }
+            };
+        }
+    }
+}
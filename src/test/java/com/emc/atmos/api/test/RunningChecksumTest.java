@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.ChecksumAlgorithm;
+import com.emc.atmos.api.RunningChecksum;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+
+public class RunningChecksumTest {
+    private static final int[] SIZES = {0, 1, 55, 56, 63, 64, 65, 119, 120, 128, 1000, 65537};
+
+    @Test
+    public void testMatchesMessageDigest() throws Exception {
+        Random random = new Random();
+        for ( ChecksumAlgorithm algorithm : ChecksumAlgorithm.values() ) {
+            for ( int size : SIZES ) {
+                byte[] content = new byte[size];
+                random.nextBytes( content );
+
+                // feed in random-sized pieces to exercise partial blocks
+                RunningChecksum checksum = new RunningChecksum( algorithm, true );
+                int offset = 0;
+                while ( offset < size ) {
+                    int length = Math.min( size - offset, random.nextInt( 100 ) + 1 );
+                    checksum.update( content, offset, length );
+                    offset += length;
+                }
+
+                Assert.assertEquals( algorithm + " of " + size + " bytes", expected( algorithm, content ),
+                                     checksum.getValue() );
+                Assert.assertEquals( size, checksum.getOffset() );
+            }
+        }
+    }
+
+    @Test
+    public void testStateRoundTrip() throws Exception {
+        Random random = new Random();
+        for ( ChecksumAlgorithm algorithm : ChecksumAlgorithm.values() ) {
+            for ( int size : SIZES ) {
+                byte[] content = new byte[size];
+                random.nextBytes( content );
+                int split = size / 3;
+
+                RunningChecksum checksum = new RunningChecksum( algorithm, true );
+                checksum.update( content, 0, split );
+
+                RunningChecksum restored = new RunningChecksum( checksum.getState() );
+                Assert.assertEquals( split, restored.getOffset() );
+                Assert.assertEquals( algorithm, restored.getAlgorithm() );
+                restored.update( content, split, size - split );
+
+                Assert.assertEquals( algorithm + " of " + size + " bytes", expected( algorithm, content ),
+                                     restored.getValue() );
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStateRequiresResumable() throws Exception {
+        new RunningChecksum( ChecksumAlgorithm.SHA1 ).getState();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidState() throws Exception {
+        new RunningChecksum( "SHA1/0123" );
+    }
+
+    private String expected( ChecksumAlgorithm algorithm, byte[] content ) throws Exception {
+        byte[] digest = MessageDigest.getInstance( algorithm.getDigestName() ).digest( content );
+        return String.format( "%0" + (digest.length << 1) + "x", new BigInteger( 1, digest ) );
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.AtmosConfig;
+import com.emc.atmos.api.jersey.AtmosApiClient;
+import com.emc.util.StreamUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server standing in for Atmos, so tests can run real {@link AtmosApiClient} requests (filters,
+ * connection pool and all) without a live system. Every request is recorded and passed to the handler, which by
+ * default answers 200 with an empty body.
+ */
+class StubAtmosServer {
+    static {
+        // send headers and body without waiting for delayed ACKs (otherwise each response takes ~40ms)
+        System.setProperty( "sun.net.httpserver.nodelay", "true" );
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    final List<Request> requests = Collections.synchronizedList( new ArrayList<Request>() );
+    volatile Handler handler = new Handler() {
+        @Override
+        public void handle( Request request, HttpExchange exchange ) throws IOException {
+            respond( exchange, 200, null, new byte[0] );
+        }
+    };
+
+    StubAtmosServer() throws IOException {
+        server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        server.createContext( "/", new HttpHandler() {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException {
+                try {
+                    Request request = new Request( exchange );
+                    requests.add( request );
+                    handler.handle( request, exchange );
+                } catch ( Exception e ) {
+                    try {
+                        respond( exchange, 500, null, new byte[0] );
+                    } catch ( IOException ignored ) {
+                        // the response was already started
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        } );
+        server.setExecutor( executor );
+        server.start();
+    }
+
+    URI getEndpoint() {
+        return URI.create( "http://127.0.0.1:" + server.getAddress().getPort() );
+    }
+
+    AtmosConfig newConfig() {
+        return new AtmosConfig( "subtenant/user", "c2VjcmV0", getEndpoint() );
+    }
+
+    void stop() {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends a response; headers may be null.
+     */
+    static void respond( HttpExchange exchange, int status, Map<String, String> headers, byte[] body )
+            throws IOException {
+        if ( headers != null ) {
+            for ( Map.Entry<String, String> header : headers.entrySet() ) {
+                exchange.getResponseHeaders().add( header.getKey(), header.getValue() );
+            }
+        }
+        exchange.sendResponseHeaders( status, body.length == 0 ? -1 : body.length );
+        OutputStream out = exchange.getResponseBody();
+        out.write( body );
+        out.close();
+    }
+
+    interface Handler {
+        void handle( Request request, HttpExchange exchange ) throws Exception;
+    }
+
+    /**
+     * A received request (the body is read in full before the handler runs).
+     */
+    static class Request {
+        final String method;
+        final URI uri;
+        final Map<String, List<String>> headers = new TreeMap<String, List<String>>( String.CASE_INSENSITIVE_ORDER );
+        final byte[] body;
+
+        Request( HttpExchange exchange ) throws IOException {
+            method = exchange.getRequestMethod();
+            uri = exchange.getRequestURI();
+            headers.putAll( exchange.getRequestHeaders() );
+            body = StreamUtil.readAsBytes( exchange.getRequestBody() );
+        }
+
+        String getHeader( String name ) {
+            List<String> values = headers.get( name );
+            return values == null || values.isEmpty() ? null : values.get( 0 );
+        }
+    }
+}
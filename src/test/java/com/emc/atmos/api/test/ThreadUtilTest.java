@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2013-2016, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AdaptiveConcurrencyLimiter;
+import com.emc.atmos.HedgedReadPolicy;
+import com.emc.atmos.StickyThreadAlgorithm;
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.jersey.AtmosApiClient;
+import com.emc.util.StreamUtil;
+import com.emc.util.ThreadUtil;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadUtilTest {
+    private static final URI[] ENDPOINTS = {URI.create( "http://10.0.0.1" ), URI.create( "http://10.0.0.2" ),
+                                            URI.create( "http://10.0.0.3" )};
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    @Test
+    @SuppressWarnings( "deprecation" )
+    public void testStickyThreadAffinity() throws Exception {
+        final StickyThreadAlgorithm algorithm = new StickyThreadAlgorithm();
+
+        URI endpoint = algorithm.getNextEndpoint( ENDPOINTS );
+        for ( int i = 0; i < 10; i++ ) {
+            Assert.assertEquals( endpoint, algorithm.getNextEndpoint( ENDPOINTS ) );
+        }
+
+        // a change in endpoints is honored immediately
+        URI[] single = {URI.create( "http://10.0.0.4" )};
+        Assert.assertEquals( single[0], algorithm.getNextEndpoint( single ) );
+
+        // threads are spread across all endpoints
+        ExecutorService executor = ThreadUtil.newDaemonExecutor( "affinity-test" );
+        try {
+            Set<URI> used = new HashSet<URI>();
+            for ( Future<URI> future : runAll( executor, 30, new Callable<URI>() {
+                @Override
+                public URI call() throws Exception {
+                    Thread.sleep( 50 ); // make sure each task gets its own thread
+                    return algorithm.getNextEndpoint( ENDPOINTS );
+                }
+            } ) ) {
+                used.add( future.get() );
+            }
+            Assert.assertEquals( ENDPOINTS.length, used.size() );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testClientLoad() throws Exception {
+        // the same load on platform threads, so it runs on every JVM
+        ExecutorService executor = ThreadUtil.newDaemonExecutor( "client-load" );
+        try {
+            runClientLoad( executor, 100 );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs the client load on virtual threads under a flight recording (JDK 21+) and checks that no virtual thread was
+     * pinned to its carrier. The threshold is zero, so any pinning is recorded, however short.
+     */
+    @Test
+    public void testVirtualThreadsNotPinned() throws Exception {
+        Assume.assumeTrue( ThreadUtil.isVirtualThreadSupported() );
+        Class<?> recordingClass, recordingFileClass;
+        try {
+            recordingClass = Class.forName( "jdk.jfr.Recording" );
+            recordingFileClass = Class.forName( "jdk.jfr.consumer.RecordingFile" );
+        } catch ( ClassNotFoundException e ) {
+            Assume.assumeNoException( e );
+            return;
+        }
+        Class<?> durationClass = Class.forName( "java.time.Duration" );
+        Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+
+        Object recording = recordingClass.getConstructor().newInstance();
+        Object settings = recordingClass.getMethod( "enable", String.class ).invoke( recording, PINNED_EVENT );
+        Class.forName( "jdk.jfr.EventSettings" ).getMethod( "withThreshold", durationClass )
+             .invoke( settings, durationClass.getField( "ZERO" ).get( null ) );
+        File file = File.createTempFile( "pinning", ".jfr" );
+        try {
+            recordingClass.getMethod( "start" ).invoke( recording );
+            ExecutorService executor = ThreadUtil.newVirtualThreadExecutor();
+            try {
+                runClientLoad( executor, 1000 );
+            } finally {
+                recordingClass.getMethod( "stop" ).invoke( recording );
+                executor.shutdown();
+            }
+            Object path = File.class.getMethod( "toPath" ).invoke( file );
+            recordingClass.getMethod( "dump", pathClass ).invoke( recording, path );
+
+            List<String> pinned = new ArrayList<String>();
+            for ( Object event : (List<?>) recordingFileClass.getMethod( "readAllEvents", pathClass )
+                                                             .invoke( null, path ) ) {
+                Object type = event.getClass().getMethod( "getEventType" ).invoke( event );
+                if ( PINNED_EVENT.equals( type.getClass().getMethod( "getName" ).invoke( type ) ) )
+                    pinned.add( event.toString() );
+            }
+            Assert.assertEquals( "pinned virtual threads: " + pinned, 0, pinned.size() );
+        } finally {
+            recordingClass.getMethod( "close" ).invoke( recording );
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes, stats and reads back count objects through a real client (with the concurrency limiter, object affinity
+     * and hedged reads configured) against a stub server, one task per object.
+     */
+    private void runClientLoad( ExecutorService executor, int count ) throws Exception {
+        final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+        final AtomicInteger nextId = new AtomicInteger();
+        StubAtmosServer server = new StubAtmosServer();
+        server.handler = new StubAtmosServer.Handler() {
+            @Override
+            public void handle( StubAtmosServer.Request request, HttpExchange exchange ) throws Exception {
+                Map<String, String> headers = new HashMap<String, String>();
+                if ( "POST".equals( request.method ) ) {
+                    String location = "/rest/objects/" + String.format( "%044x", nextId.incrementAndGet() );
+                    objects.put( location, request.body );
+                    headers.put( "Location", location );
+                    StubAtmosServer.respond( exchange, 201, headers, new byte[0] );
+                } else {
+                    byte[] data = objects.get( request.uri.getPath() );
+                    headers.put( RestUtil.XHEADER_META, "size=" + data.length + ", mtime=2014-01-01T00:00:00Z" );
+                    headers.put( "Content-Type", "application/octet-stream" );
+                    // metadata requests have a query (e.g. ?metadata/system)
+                    byte[] body = request.uri.getQuery() == null ? data : new byte[0];
+                    StubAtmosServer.respond( exchange, 200, headers, body );
+                }
+            }
+        };
+
+        AtmosConfig config = server.newConfig();
+        config.setConcurrencyLimiter( new AdaptiveConcurrencyLimiter() );
+        config.setHedgedReadPolicy( new HedgedReadPolicy() );
+        config.setLoadBalancingAlgorithm( new ObjectAffinityAlgorithm() );
+        final AtmosApi atmos = new AtmosApiClient( config );
+        try {
+            for ( Future<Integer> future : runAll( executor, count, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    byte[] content = ("written by " + Thread.currentThread()).getBytes( "UTF-8" );
+                    ObjectId id = atmos.createObject( content, "application/octet-stream" );
+                    Assert.assertEquals( "" + content.length, atmos.getSystemMetadata( id ).get( "size" ).getValue() );
+                    Assert.assertArrayEquals( content, atmos.readObject( id, byte[].class ) );
+                    InputStream in = atmos.readObjectStream( id, null ).getObject();
+                    Assert.assertArrayEquals( content, StreamUtil.readAsBytes( in ) );
+                    return content.length;
+                }
+            } ) ) {
+                Assert.assertTrue( future.get() > 0 );
+            }
+        } finally {
+            server.stop();
+        }
+        Assert.assertEquals( count, objects.size() );
+    }
+
+    private static <T> List<Future<T>> runAll( ExecutorService executor, int count, Callable<T> task ) {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for ( int i = 0; i < count; i++ ) {
+            futures.add( executor.submit( task ) );
+        }
+        return futures;
+    }
+}